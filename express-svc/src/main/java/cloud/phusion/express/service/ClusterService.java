@@ -60,10 +60,11 @@ public class ClusterService {
                 false, ctx
         );
 
-        // Message channel
+        // Message stream: every engine is a consumer group, to receive all messages, including the ones sent while
+        // it is disconnected or restarting
 
         KVStorageImpl kvStorage = (KVStorageImpl) engine.getKVStorageForApplication(ExpressService.STORAGE_ID);
-        kvStorage.subscribe(MSG_CHANNEL, new ClusterServiceHandler(MSG_CHANNEL, ctx), ctx);
+        kvStorage.receiveMessages(MSG_CHANNEL, engine.getId(), new ClusterServiceHandler(MSG_CHANNEL, ctx), ctx);
     }
 
     public static void prepareDBTables(Context ctx) throws Exception {
@@ -208,7 +209,7 @@ public class ClusterService {
 
     public static void sendMessage(String type, String action, String id, Context ctx) throws Exception {
         KVStorageImpl storage = (KVStorageImpl) ctx.getEngine().getKVStorageForApplication(ExpressService.STORAGE_ID);
-        storage.publish(MSG_CHANNEL, String.join(",",type,action,id), ctx);
+        storage.sendMessage(MSG_CHANNEL, String.join(",",type,action,id), ctx);
     }
 
 }
@@ -553,8 +553,7 @@ public class UserService {
         user.put("time", System.currentTimeMillis());
         String userInfo = user.toJSONString();
 
-        storage.put(SESSION_USER_KEY+id, token, sessionIntervalInMS);
-        storage.put(SESSION_KEY+token, userInfo, sessionIntervalInMS);
+        _saveSession(storage, id, token, userInfo, ctx);
 
         return token;
     }
@@ -579,13 +578,27 @@ public class UserService {
             user.put("time", currentTime);
             userInfo = user.toJSONString();
 
-            storage.put(SESSION_USER_KEY+user.getString("id"), token, sessionIntervalInMS);
-            storage.put(SESSION_KEY+token, userInfo, sessionIntervalInMS);
+            _saveSession(storage, user.getString("id"), token, userInfo, ctx);
         }
 
         return user;
     }
 
+    private static void _saveSession(KVStorage storage, String id, String token, String userInfo, Context ctx) throws Exception {
+        if (storage instanceof KVStorageImpl) {
+            // Both keys in one round trip
+
+            Map<String,Object> entries = new HashMap<>();
+            entries.put(SESSION_USER_KEY+id, token);
+            entries.put(SESSION_KEY+token, userInfo);
+            ((KVStorageImpl) storage).putAll(entries, sessionIntervalInMS, ctx);
+        }
+        else {
+            storage.put(SESSION_USER_KEY+id, token, sessionIntervalInMS, ctx);
+            storage.put(SESSION_KEY+token, userInfo, sessionIntervalInMS, ctx);
+        }
+    }
+
     public static void logout(String id, String token, Context ctx) throws Exception {
         KVStorage storage = ctx.getEngine().getKVStorageForApplication(ExpressService.STORAGE_ID);
 
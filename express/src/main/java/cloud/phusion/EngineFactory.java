@@ -14,6 +14,12 @@ public class EngineFactory {
     public final static String Cluster_DataCenter = "cluster.dataCenterId";
     public final static String Cluster_Worker = "cluster.workerId";
 
+    /*
+    Run the integration instances, ForEach loops, scheduled task bodies and HTTP requests on virtual threads,
+    the default is false. Java 21 or later is required, otherwise platform threads are used.
+    */
+    public final static String Engine_VirtualThreads = "engine.virtualThreads";
+
     public final static String HttpServer_Enabled = "http.server.enabled";
     public final static String HttpServer_Port = "http.server.port";
     public final static String HttpServer_MaxFileSize = "http.server.maxFileSize"; // Max POST size in bytes
@@ -38,6 +44,37 @@ public class EngineFactory {
     public final static String Scheduler_RandomRange = "scheduler.cluster.randomRange";
     public final static String Scheduler_LockTime = "scheduler.cluster.lockTime";
 
+    // Number of threads to run the ForEach loops in parallel, shared by all integrations, the default is 16
+    public final static String Integration_ForEachThreadCount = "integration.forEach.threadCount";
+
+    /*
+    Cache of the compiled conditions, shared by all integrations and condition tests:
+    - Size: the max number of conditions in the cache, the default is 1000.
+    - Expire: a condition not used for the time (in seconds) is removed, the default is 3600.
+    */
+    public final static String Condition_CacheSize = "integration.condition.cacheSize";
+    public final static String Condition_CacheExpire = "integration.condition.cacheExpire";
+
+    /*
+    Execution pools of the integrations:
+    - Enabled: whether to run the integration instances in bounded pools, instead of the triggering threads (Tomcat,
+      Quartz or the caller). The default is false.
+    - Scope: "integration" (default), one pool for each integration; or "client", one pool for all integrations of a client.
+    - Max concurrency: the max number of instances running at the same time in a pool, the default is 10.
+    - Queue size: the max number of instances waiting in a pool, the default is 100.
+    - Rejection: what to do when the pool is full, "reject" (default) or "callerRuns".
+    In the integration scope, the settings can be overridden by "execution" in the integration config,
+    e.g. {"execution": {"maxConcurrency": 5, "queueSize": 0}}. In the client scope, the override is ignored (and logged).
+    The pool of a client is removed with the last integration of the client.
+    The triggering thread still waits for the result of the instance (e.g. the Tomcat thread of an HTTP request), so
+    the pools limit the instances running at the same time and reject the ones beyond, rather than free the callers.
+    */
+    public final static String Integration_PoolEnabled = "integration.pool.enabled";
+    public final static String Integration_PoolScope = "integration.pool.scope";
+    public final static String Integration_PoolMaxConcurrency = "integration.pool.maxConcurrency";
+    public final static String Integration_PoolQueueSize = "integration.pool.queueSize";
+    public final static String Integration_PoolRejection = "integration.pool.rejection";
+
     /*
     Root paths of the file system to host the file storage. The path should not end with "/".
     - Root for the Jar files.
@@ -51,17 +88,88 @@ public class EngineFactory {
     public final static String FileStorage_PublicRootPath = "file.storage.publicRootPath";
     public final static String FileStorage_PublicRootUrl = "file.storage.publicRootUrl";
 
+    /*
+    JavaScript runtimes: the scripts run in a fixed pool of worker threads, each of which owns a Node.js runtime.
+    - Worker count: the number of workers (runtimes), the default is the number of CPU cores.
+    - Warm up: whether all runtimes load a script when it is loaded into the engine, the default is true.
+      Otherwise, each runtime loads the script when running it the first time.
+    - Timeout: the default max time (in milliseconds) a script runs before it is terminated, the default is 0 (no
+      limit). It can be overridden for each script.
+    - Max heap size: the size (in MB) the used heap of each runtime should stay below, the default is 0 (no limit).
+      The runtime is recycled when its heap reaches 80% of it (or the recycle heap size, if lower). It is not a hard
+      limit, V8 is not capped by the flag, which aborts the process.
+    - Recycle: a runtime is released and created again after the number of executions, or when its used heap reaches
+      the size (in MB). The default is 0, never. The heap size should be lower than the max heap size.
+    - Code cache: whether the compiled code of each script is cached (V8 code cache) on disk, under the folder
+      "code_cache" of the JavaScript root path, and reused by all runtimes and after restarts. The default is true.
+      With warm-up enabled, the runtimes are also created when the engine starts, instead of when used the first time.
+    */
+    public final static String Module_JavaScriptWorkerCount = "module.javascript.workerCount";
+    public final static String Module_JavaScriptWarmUp = "module.javascript.warmUp";
+    public final static String Module_JavaScriptTimeout = "module.javascript.timeout";
+    public final static String Module_JavaScriptMaxHeapSize = "module.javascript.maxHeapSize";
+    public final static String Module_JavaScriptRecycleExecutions = "module.javascript.recycle.executions";
+    public final static String Module_JavaScriptRecycleHeapSize = "module.javascript.recycle.heapSize";
+    public final static String Module_JavaScriptCodeCache = "module.javascript.codeCache";
+
     // Redis server
     public final static String Redis_Host = "kv.storage.redis.host";
     public final static String Redis_Port = "kv.storage.redis.port";
     public final static String Redis_Auth = "kv.storage.redis.auth";
     public final static String Redis_Database = "kv.storage.redis.database";
 
+    /*
+    Batching of the single-key operations (get, put, doesExist and remove): the operations from different threads
+    are queued, and sent to Redis in one pipeline.
+    - Batch: whether to batch the operations, the default is false.
+    - Window: how long (in microseconds) to wait for more operations after the first one, the default is 0,
+      i.e. send the queued operations at once, which are still batched while the previous pipeline is running.
+    - Size: the max number of operations in one pipeline, the default is 128.
+    */
+    public final static String Redis_Batch = "kv.storage.redis.batch";
+    public final static String Redis_BatchWindow = "kv.storage.redis.batch.window";
+    public final static String Redis_BatchSize = "kv.storage.redis.batch.size";
+
+    /*
+    Near-cache: the values retrieved from Redis are cached locally. When a key is changed by an engine, the others
+    are notified to drop it by Redis pub/sub.
+    - Namespaces: the namespaces to cache, separated by ",", e.g. "AExpressService,IOrderSync", or "*" for all.
+      If empty (default), the near-cache is disabled.
+    - Size: the max number of the cached values, the least recently used ones are evicted, the default is 10000.
+    - Expire: the max time (in milliseconds) to keep a value, the default is 60000. A value is also dropped when it
+      expires in Redis.
+    */
+    public final static String Redis_NearCacheNamespaces = "kv.storage.redis.nearCache.namespaces";
+    public final static String Redis_NearCacheSize = "kv.storage.redis.nearCache.size";
+    public final static String Redis_NearCacheExpire = "kv.storage.redis.nearCache.expire";
+
+    /*
+    Message streams (e.g. the cluster messages): the messages are kept in Redis Streams, and read by the consumer
+    groups, so that an engine reconnected or restarted receives the ones sent meanwhile.
+    - Max length: the max number of messages (approximately) kept in a stream, the default is 10000.
+    */
+    public final static String Redis_StreamMaxLength = "kv.storage.redis.stream.maxLength";
+
+    /*
+    Local KV store, used if Redis is not configured (single-node engines):
+    - Max memory: the max memory (in MB, estimated) for the data, the least recently used keys are evicted beyond it.
+      The default is 0, i.e. no limit.
+    - AOF: the file to persist the data (appended with the changes, synced every second), which is loaded when
+      started. If empty (default), the data is lost when the engine stops.
+    */
+    public final static String KV_LocalMaxMemory = "kv.storage.local.maxMemory";
+    public final static String KV_LocalAOF = "kv.storage.local.aof";
+
     // Database server: MongoDB, or JDBC source
     public final static String DB_Type = "db.storage.type";
     public final static String DBType_JDBC = "jdbc";
 
-    // JDBC database server with connection pooling
+    /*
+    JDBC database server with connection pooling. H2 (e.g. "jdbc:h2:mem:phusion") goes through the same pool, and its
+    MVStore engine keeps the readers and writers of the connections from blocking each other (MVCC). The in-memory
+    database is kept while the engine runs ("DB_CLOSE_DELAY=-1" is added to the URL if absent), and the user is "sa"
+    if not set.
+    */
     public final static String JDBC_DriverClass = "db.storage.jdbc.driverClass";
     public final static String JDBC_Url = "db.storage.jdbc.url";
     public final static String JDBC_DBName = "db.storage.jdbc.dbName";
@@ -70,9 +178,46 @@ public class EngineFactory {
     public final static String JDBC_MinPoolSize = "db.storage.jdbc.minPoolSize";
     public final static String JDBC_MaxPoolSize = "db.storage.jdbc.maxPoolSize";
 
+    /*
+    Prepared statement cache: the statements prepared are kept by the pooled connections and reused for the same
+    SQL. The size is the max number of statements cached by a connection, the default is 100, and 0 disables it.
+    For MySQL, add "useServerPrepStmts=true" to the URL to cache the statements prepared on the server side.
+    */
+    public final static String JDBC_StatementCacheSize = "db.storage.jdbc.statementCacheSize";
+
+    /*
+    Batch size: the max number of records sent in one batch by the batch operations (insertRecords, insertBatch,
+    updateBatchById and upsertBatch), the default is 1000. For MySQL, add "rewriteBatchedStatements=true" to the URL
+    to send a batch in fewer statements.
+    */
+    public final static String JDBC_BatchSize = "db.storage.jdbc.batchSize";
+
+    /*
+    Fetch size: the number of rows fetched from the server in one round trip by the cursors (SQLDBStorageImpl.openCursor
+    and queryStream), the default is 1000. For MySQL, the rows are streamed one by one instead, and the fetch size is
+    ignored.
+    */
+    public final static String JDBC_FetchSize = "db.storage.jdbc.fetchSize";
+
     // Store transaction logs into database
     public final static String TRXLog_Target = "db.storage.trxLog.target"; // The storage ID. If empty, do not store logs
     public final static String TRXLog_EncodeMsg = "db.storage.trxLog.encodeMsg"; // boolean
+
+    /*
+    Transaction logs are written by a background thread in batches:
+    - Async: whether to write the logs in background, the default is true.
+    - Batch size: the max number of steps flushed in one batch, the default is 100.
+    - Flush interval: the max time (in milliseconds) a step waits in the queue before flushed, the default is 1000ms.
+    - Queue size: the max number of steps waiting in the queue, the default is 10000.
+    - Overflow: what to do when the queue is full, "block" (default), "drop" or "spill" (to the local file under spillPath).
+      Whatever the policy, the batches failed to write are spilled and retried, and the file is kept for the next run.
+    */
+    public final static String TRXLog_Async = "db.storage.trxLog.async";
+    public final static String TRXLog_BatchSize = "db.storage.trxLog.batchSize";
+    public final static String TRXLog_FlushInterval = "db.storage.trxLog.flushInterval";
+    public final static String TRXLog_QueueSize = "db.storage.trxLog.queueSize";
+    public final static String TRXLog_Overflow = "db.storage.trxLog.overflow";
+    public final static String TRXLog_SpillPath = "db.storage.trxLog.spillPath";
     public final static String TRXLog_Table_Transaction = "transaction";
     public final static String TRXLog_Table_TransactionStep = "transaction_step";
     public final static String TRXLog_Table_TransactionStepInfo = "transaction_step_info";
@@ -106,6 +251,7 @@ public class EngineFactory {
         PhusionException.setCode("IT_EXEC", "Integration execution failed");
         PhusionException.setCode("IT_NONE_LOOP", "Not found ForEach loop");
         PhusionException.setCode("IT_NESTED_LOOP", "Nested ForEach loop");
+        PhusionException.setCode("IT_BUSY", "Integration is too busy, the execution is rejected");
 
         PhusionException.setCode("FS_NONE", "File path configuration is missing");
         PhusionException.setCode("FS_OP", "File operation failed");
@@ -123,6 +269,7 @@ public class EngineFactory {
 
         PhusionException.setCode("JS_NONE", "Javascript module does not exist");
         PhusionException.setCode("JS_OP", "Javascript module operation failed");
+        PhusionException.setCode("JS_TIMEOUT", "Javascript module execution timed out");
 
         PhusionException.setCode("HTTP_WEB_NONE", "Web server not started");
         PhusionException.setCode("HTTP_NONE", "HTTP server not registered");
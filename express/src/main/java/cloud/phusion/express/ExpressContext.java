@@ -16,6 +16,13 @@ public class ExpressContext implements Context {
     private String strContextInfo = null;
     private String id = null;
 
+    /**
+     * Whether the info logs are written, so that the callers can skip composing them.
+     */
+    public static boolean isInfoEnabled() {
+        return logger.isInfoEnabled();
+    }
+
     public ExpressContext(Engine engine) {
         super();
         this.engine = engine;
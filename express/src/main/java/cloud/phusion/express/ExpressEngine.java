@@ -4,12 +4,15 @@ import cloud.phusion.*;
 import cloud.phusion.application.*;
 import cloud.phusion.express.component.IDGenerator;
 import cloud.phusion.express.component.JavaModuleManager;
+import cloud.phusion.express.component.scripting.JavaScriptBridge;
 import cloud.phusion.express.component.scripting.JavaScriptExecutor;
 import cloud.phusion.express.component.storage.FileStorageImpl;
 import cloud.phusion.express.component.storage.KVStorageImpl;
 import cloud.phusion.express.component.storage.SQLDBStorageImpl;
+import cloud.phusion.express.integration.ConditionCache;
 import cloud.phusion.express.integration.ConditionEvaluator;
 import cloud.phusion.express.integration.IntegrationImpl;
+import cloud.phusion.express.util.ThreadMode;
 import cloud.phusion.integration.*;
 import cloud.phusion.express.application.ApplicationManager;
 import cloud.phusion.express.component.http.HttpClientImpl;
@@ -26,6 +29,7 @@ import com.alibaba.fastjson2.JSONObject;
 
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 public class ExpressEngine implements Engine {
     private static final String _position = ExpressEngine.class.getName();
@@ -52,8 +56,10 @@ public class ExpressEngine implements Engine {
 
         config = (props==null) ? new Properties() : props;
 
+        ThreadMode.init(config);
+
         this.appManager = new ApplicationManager();
-        this.itManager = new IntegrationManager();
+        this.itManager = new IntegrationManager(config);
 
         String dataCenter = config.getProperty(EngineFactory.Cluster_DataCenter);
         String worker = config.getProperty(EngineFactory.Cluster_Worker);
@@ -63,9 +69,10 @@ public class ExpressEngine implements Engine {
 
         idGenerator = new IDGenerator(Long.parseLong(dataCenter), Long.parseLong(worker));
         moduleManager = new JavaModuleManager( config.getProperty(EngineFactory.Module_JavaFileRootPath) );
-        jsExecuter = new JavaScriptExecutor( config.getProperty(EngineFactory.Module_JavaScriptFileRootPath) );
+        jsExecuter = new JavaScriptExecutor( config.getProperty(EngineFactory.Module_JavaScriptFileRootPath), config );
 
         KVStorageImpl.init(props);
+        ConditionCache.init(props);
 
         dbType = config.getProperty(EngineFactory.DB_Type);
         if (EngineFactory.DBType_JDBC.equals(dbType)) {
@@ -120,13 +127,10 @@ public class ExpressEngine implements Engine {
 
         status = ExecStatus.Running;
 
-        IntegrationImpl.initSystemSettings(
-                config.getProperty(EngineFactory.TRXLog_Target),
-                config.getProperty(EngineFactory.TRXLog_EncodeMsg, "true"),
-                ctx
-        );
+        IntegrationImpl.initSystemSettings(config, ctx);
+        jsExecuter.start(ctx);
 
-        ctx.logInfo(_position, "Engine is running");
+        ctx.logInfo(_position, "Engine is running", "virtualThreads="+ThreadMode.isVirtual());
     }
 
     @Override
@@ -142,6 +146,10 @@ public class ExpressEngine implements Engine {
             HttpServerManager.stopHttpRootServer();
         }
 
+        IntegrationImpl.stopSystemSettings(ctx);
+        itManager.shutdownPools();
+        jsExecuter.shutdown(ctx);
+
         status = ExecStatus.Stopped;
 
         ctx.logInfo(_position, "Engine is stopped");
@@ -239,6 +247,20 @@ public class ExpressEngine implements Engine {
         if (ctx != null) ctx.removeContextInfo("moduleId");
     }
 
+    /**
+     * Run the async script of the module without waiting for it. The future is completed with the updated transaction.
+     */
+    public CompletableFuture<Transaction> runJavaScriptWithTransactionAsync(String moduleId, Transaction trx) throws Exception {
+        return jsExecuter.runScriptWithinTransactionAsync(moduleId, trx);
+    }
+
+    /**
+     * Set the timeout (in milliseconds) of the scripts of the module, 0 for no limit, negative to use the default.
+     */
+    public void setJavaScriptModuleTimeout(String moduleId, long timeout) {
+        jsExecuter.setScriptTimeout(moduleId, timeout);
+    }
+
     @Override
     public String runJavaScriptFile(String filePath, boolean async, boolean reload, Context ctx) throws Exception {
         return jsExecuter.runJavaScriptFile(filePath, async, reload, ctx);
@@ -496,6 +518,7 @@ public class ExpressEngine implements Engine {
         if (ctx == null) ctx = EngineFactory.createContext(this);
         ctx.setContextInfo("applicationId", applicationId);
         appManager.removeApplication(applicationId, ctx);
+        JavaScriptBridge.invalidateStorageHandles();
         ctx.removeContextInfo("applicationId");
     }
 
@@ -529,6 +552,7 @@ public class ExpressEngine implements Engine {
         if (ctx == null) ctx = EngineFactory.createContext(this);
         ctx.setContextInfo("integrationId", integrationId);
         itManager.removeIntegration(integrationId, ctx);
+        JavaScriptBridge.invalidateStorageHandles();
         ctx.removeContextInfo("integrationId");
     }
 
@@ -537,9 +561,44 @@ public class ExpressEngine implements Engine {
         return itManager.getIntegrationStatus(integrationId);
     }
 
+    /**
+     * Statistics of the execution pool of the integration (queue wait, rejections, etc.), or null if not bound to a pool.
+     */
+    public DataObject getIntegrationExecutionStatistics(String integrationId) {
+        return itManager.getExecutionStatistics(integrationId);
+    }
+
+    /**
+     * Statistics of the compiled condition cache (hits, misses, compile time, etc.).
+     */
+    public DataObject getConditionCacheStatistics() {
+        return ConditionCache.getStatistics();
+    }
+
+    /**
+     * Statistics of the JavaScript runtimes (queue wait, execution time, memory of each runtime, terminated and recycled runtimes, etc.).
+     */
+    public DataObject getJavaScriptStatistics() {
+        return jsExecuter.getStatistics();
+    }
+
+    /**
+     * Statistics of the KVStorage connections and the batching of the single-key operations.
+     */
+    public DataObject getKVStorageStatistics() {
+        return KVStorageImpl.getStatistics();
+    }
+
+    /**
+     * Statistics of the SQL templates and the JDBC connection pool (including the prepared statement cache).
+     */
+    public DataObject getDBStorageStatistics() {
+        return SQLDBStorageImpl.getStatistics();
+    }
+
     @Override
     public boolean evaluateCondition(DataObject data) throws Exception {
-        ConditionEvaluator eval = new ConditionEvaluator(data.getString());
+        ConditionEvaluator eval = ConditionCache.get(data.getJSONObject());
         JSONObject obj = data.getJSONObject();
         return eval.evaluate(new DataObject(obj.getJSONObject("msg")),
                 new DataObject(obj.getJSONObject("config")));
@@ -552,7 +611,7 @@ public class ExpressEngine implements Engine {
 
     @Override
     public boolean evaluateCondition(String condition, String msg, String config) throws Exception {
-        ConditionEvaluator eval = new ConditionEvaluator(condition);
+        ConditionEvaluator eval = ConditionCache.get(condition);
         return eval.evaluate(new DataObject(msg), new DataObject(config));
     }
 
@@ -4,6 +4,7 @@ import cloud.phusion.Context;
 import cloud.phusion.DataObject;
 import cloud.phusion.EngineFactory;
 import cloud.phusion.PhusionException;
+import cloud.phusion.express.util.ThreadMode;
 import cloud.phusion.express.util.TimeMarker;
 import cloud.phusion.protocol.http.HttpRequest;
 import cloud.phusion.protocol.http.HttpResponse;
@@ -14,6 +15,7 @@ import org.apache.catalina.startup.Tomcat;
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Tomcat Configuration:
@@ -43,6 +45,10 @@ public class HttpServerManager {
         if (params.containsKey("maxConnections")) connector.setProperty("maxConnections", params.getProperty("maxConnections"));
         if (params.containsKey("acceptCount")) connector.setProperty("acceptCount", params.getProperty("acceptCount"));
 
+        // Handle each request in a new virtual thread, instead of the pool of maxThreads
+        ExecutorService executor = ThreadMode.newVirtualTaskExecutor();
+        if (executor != null) connector.getProtocolHandler().setExecutor(executor);
+
         tomcatContext = tomcat.addContext("", new File(".").getAbsolutePath()); // Base doc path: docBase
         tomcatContext.setCookies(true);
 
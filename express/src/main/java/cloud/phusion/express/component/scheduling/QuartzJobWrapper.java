@@ -11,7 +11,8 @@ public class QuartzJobWrapper implements Job {
         String taskId = ctx.getJobDetail().getKey().getName();
 
         try {
-            TaskManager.runTask(taskId);
+            if (TaskManager.isDispatching()) TaskManager.dispatchTask(taskId);
+            else TaskManager.runTask(taskId);
         } catch (Exception ex) {
             throw new JobExecutionException(ex);
         }
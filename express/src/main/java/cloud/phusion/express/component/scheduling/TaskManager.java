@@ -4,6 +4,7 @@ import cloud.phusion.Context;
 import cloud.phusion.EngineFactory;
 import cloud.phusion.PhusionException;
 import cloud.phusion.ScheduledTask;
+import cloud.phusion.express.util.ThreadMode;
 import cloud.phusion.express.util.TimeMarker;
 import cloud.phusion.storage.KVStorage;
 
@@ -11,11 +12,15 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * It is not thread-safe. To be optimized.
  *
  * Execute process: Quartz -> QuartzJobWrapper.run -> TaskManager.run -> ScheduledTask.run
+ *
+ * If virtual threads are enabled, the Quartz thread only dispatches the task, and TaskManager.run runs in a new
+ * virtual thread. So the Quartz threads are not blocked by the tasks.
  */
 public class TaskManager {
     private static final String _position = TaskManager.class.getName();
@@ -32,6 +37,7 @@ public class TaskManager {
     private static boolean clustered = false;
     private static int clusterRandomRange = 1000;
     private static long clusterLocktime = 10000;
+    private static ExecutorService taskExecutor = null; // If null, run the tasks in the Quartz threads
 
     public static void init(Properties props) {
         if (props != null) {
@@ -39,6 +45,28 @@ public class TaskManager {
             clusterRandomRange = Integer.parseInt(props.getProperty(EngineFactory.Scheduler_RandomRange, "1000"));
             clusterLocktime = Integer.parseInt(props.getProperty(EngineFactory.Scheduler_LockTime, "10000"));
         }
+
+        // Follow the current thread mode, if re-initialized
+        if (taskExecutor != null) taskExecutor.shutdown();
+        taskExecutor = ThreadMode.newVirtualTaskExecutor();
+    }
+
+    public static boolean isDispatching() {
+        return taskExecutor != null;
+    }
+
+    /**
+     * Run the task in a new virtual thread, without waiting for it.
+     */
+    public static void dispatchTask(String taskId) {
+        taskExecutor.execute(() -> {
+            try {
+                runTask(taskId);
+            } catch (Exception ex) {
+                Context c = tasksContext.get(taskId);
+                if (c != null) c.logError(_position, "Failed to run task", "taskId="+taskId, ex);
+            }
+        });
     }
 
     public static void addTask(String taskId, ScheduledTask task, boolean clustered, Context ctx) throws Exception {
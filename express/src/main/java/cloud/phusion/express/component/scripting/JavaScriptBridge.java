@@ -1,22 +1,27 @@
 package cloud.phusion.express.component.scripting;
 
 import cloud.phusion.Context;
-import cloud.phusion.Engine;
 import cloud.phusion.PhusionException;
 import cloud.phusion.storage.DBStorage;
 import cloud.phusion.storage.FileStorage;
 import cloud.phusion.storage.KVStorage;
 import cloud.phusion.storage.Record;
-import com.alibaba.fastjson2.JSON;
-import com.alibaba.fastjson2.JSONObject;
+import cloud.phusion.express.component.storage.FileStorageImpl;
+import cloud.phusion.express.component.storage.KVLock;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import cloud.phusion.express.component.storage.SQLDBCursor;
+import cloud.phusion.express.component.storage.SQLDBStorageImpl;
 import com.eclipsesource.v8.*;
 
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,10 +33,43 @@ public class JavaScriptBridge implements JavaCallback {
 
     private Map<String,Object> map;
 
+    private final StorageHandles storageHandles = new StorageHandles();
+    private boolean inAsyncScript = false; // Whether the current call is made by an async script
+
+    /**
+     * The files opened by the scripts on this runtime: handle -> FileChannel.
+     *
+     * The files left open are closed when the runtime has no running scripts, or when the runtime is released.
+     */
+    private static final int MAX_OPEN_FILES = 100;
+    private static final int DEFAULT_CHUNK_SIZE = 65536;
+
+    private final Map<Integer,FileChannel> openFiles = new HashMap<>();
+    private int lastFileHandle = 0;
+
+    /**
+     * The cursors opened by the scripts on this runtime: handle -> SQLDBCursor.
+     *
+     * A cursor holds a database connection until it is read to the end or closed, so the cursors left open are
+     * closed together with the files.
+     */
+    private static final int MAX_OPEN_CURSORS = 10;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final Map<Integer,SQLDBCursor> openCursors = new HashMap<>();
+    private int lastCursorHandle = 0;
+
     public JavaScriptBridge(Map<String,Object> localMap) {
         this.map = localMap;
     }
 
+    /**
+     * Drop the storage handles cached by all runtimes.
+     */
+    public static void invalidateStorageHandles() {
+        StorageHandles.invalidate();
+    }
+
     /**
      * From JavaScript to call Java.
      */
@@ -50,6 +88,9 @@ public class JavaScriptBridge implements JavaCallback {
     /**
      * Params: type, instance, method, arg1, arg2, ...
      *
+     * The type of the calls made by an async script is followed by "@{callback handle}", so that the calls are made
+     * within the context of the script, even from the event loop.
+     *
      * Type: "context"
      * - instance: null
      * - method(arg1, arg2, ...):
@@ -63,6 +104,9 @@ public class JavaScriptBridge implements JavaCallback {
      *      get(key),
      *      doesExist(key),
      *      remove(key),
+     *      getAll(keys), // Returns {key: value}
+     *      putAll(entries,ms=empty), // entries: {key: value}
+     *      removeAll(keys),
      *      lock(key,ms=empty),
      *      unlock(key)
      *
@@ -84,7 +128,12 @@ public class JavaScriptBridge implements JavaCallback {
      *      removeFile(path),
      *      removePublicFile(path),
      *      removeAll(),
-     *      getPublicFileUrl(path)
+     *      getPublicFileUrl(path),
+     *      openFile(path,mode="r"|"w"|"a"), // Returns the handle
+     *      openPublicFile(path,mode="r"|"w"|"a"),
+     *      readChunk(handle,size=65536), // Returns ArrayBuffer, or null at the end of the file
+     *      writeChunk(handle,content), // Content: String or ArrayBuffer, returns the bytes written
+     *      closeFile(handle)
      *
      * Type: "dbstorage"
      * - instance: "application|integration|client id"
@@ -98,44 +147,59 @@ public class JavaScriptBridge implements JavaCallback {
      *      updateRecordById(tableName,record,idField,params),
      *      replaceRecordById(tableName,record,idField,params),
      *      deleteRecords(tableName,whereClause,params),
-     *      deleteRecordById(tableName,idField,params)
+     *      deleteRecordById(tableName,idField,params),
+     *      openCursor(tableName,selectClause,whereClause,params,orderClause), // Returns the handle
+     *      fetchRecords(handle,size=100), // Returns an array of records, or null at the end
+     *      closeCursor(handle)
      *
-     *      Note: params = {"0":..., "1":...., "2":....}
+     *      Note: params = [..., ..., ...]
+     *
+     * The arguments and the results keep their types: numbers, booleans, objects (records) and arrays are passed
+     * as V8 values directly, instead of JSON strings.
      */
     @Override
     public Object invoke(V8Object receiver, V8Array params) {
         if (params.length() > 0) {
             String type = params.getString(0);
-            String instance = params.getString(1);
+            String instance = params.getType(1)==V8Value.STRING ? params.getString(1) : null;
             String method = params.getString(2);
-            String[] args = new String[params.length()-3];
-            Object extraParam = null;
-
-            if (type.equals("filestorage") && (
-                    method.equals("saveToFile") || method.equals("saveToPublicFile")
-                    )) {
-                for (int i = 3; i < params.length()-1; i++) {
-                    args[i - 3] = params.getString(i);
-                }
-                extraParam = params.get(params.length()-1);
+            Object[] args = new Object[params.length()-3];
+
+            // The arguments keep their types, objects and arrays are converted directly, and ArrayBuffer is kept as it is
+
+            for (int i = 3; i < params.length(); i++) {
+                args[i - 3] = JavaScriptValues.toJava(params.get(i));
             }
-            else {
-                for (int i = 3; i < params.length(); i++) {
-                    args[i - 3] = params.getString(i);
-                }
+
+            int pos = type.indexOf('@');
+            Context asyncCtx = pos<0 ? null : (Context) map.get("a" + type.substring(pos+1));
+            if (pos >= 0) type = type.substring(0, pos);
+
+            Object currentCtx = map.get("c");
+            if (asyncCtx != null) {
+                map.put("c", asyncCtx);
+                inAsyncScript = true;
             }
 
-            switch (type) {
-                case "context":
-                    return _execContextMethods(method, args);
-                case "kvstorage":
-                    return _execKVStorageMethods(instance, method, args);
-                case "filestorage":
-                    return _execFileStorageMethods(instance, method, args, extraParam);
-                case "dbstorage":
-                    return _execDBStorageMethods(instance, method, args);
-                default:
-                    return null;
+            try {
+                switch (type) {
+                    case "context":
+                        return _execContextMethods(method, args);
+                    case "kvstorage":
+                        return _execKVStorageMethods(instance, method, args);
+                    case "filestorage":
+                        return _execFileStorageMethods(instance, method, args);
+                    case "dbstorage":
+                        return _execDBStorageMethods(instance, method, args);
+                    default:
+                        return null;
+                }
+            } finally {
+                if (asyncCtx != null) {
+                    if (currentCtx == null) map.remove("c");
+                    else map.put("c", currentCtx);
+                    inAsyncScript = false;
+                }
             }
         }
         else {
@@ -144,83 +208,119 @@ public class JavaScriptBridge implements JavaCallback {
         }
     }
 
-    private Object _execContextMethods(String method, String[] args) {
+    private static String _str(Object value) {
+        return value==null ? null : value.toString();
+    }
+
+    private static long _long(Object value, long defaultValue) {
+        if (value instanceof Number) return ((Number) value).longValue();
+        else if (value instanceof String && ((String) value).length()>0) return Long.parseLong((String) value);
+        else return defaultValue;
+    }
+
+    private static boolean _bool(Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        else if (value instanceof String) return Boolean.parseBoolean((String) value);
+        else return false;
+    }
+
+    /**
+     * J2V8 does not accept Long.
+     */
+    private static Object _number(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+        else return (double) value;
+    }
+
+    private V8 _getRuntime() {
+        return ((NodeJS) map.get("n")).getRuntime();
+    }
+
+    private Object _execContextMethods(String method, Object[] args) {
         Context c = (Context) map.get("c");
 
         switch (method) {
             case "logInfo":
-                if (args!=null && args.length==3) c.logInfo(args[0], args[1], args[2]);
+                if (args!=null && args.length==3) c.logInfo(_str(args[0]), _str(args[1]), _str(args[2]));
                 return null;
             case "logError":
-                if (args!=null && args.length==3) c.logError(args[0], args[1], args[2]);
+                if (args!=null && args.length==3) c.logError(_str(args[0]), _str(args[1]), _str(args[2]));
                 return null;
             default:
                 return null;
         }
     }
 
-    private Object _execKVStorageMethods(String instance, String method, String[] args) {
+    private Object _execKVStorageMethods(String instance, String method, Object[] args) {
         Context ctx = (Context) map.get("c");
-        Engine engine = ctx.getEngine();
-
-        int pos = instance.indexOf(' ');
-        String type = instance.substring(0,pos);
-        String id = instance.substring(pos+1);
         KVStorage storage = null;
 
         try {
-            switch (type) {
-                case "application":
-                    storage = engine.getKVStorageForApplication(id);
-                    break;
-                case "integration":
-                    storage = engine.getKVStorageForIntegration(id);
-                    break;
-                case "client":
-                    storage = engine.getKVStorageForClient(id);
-                    break;
-            }
+            storage = (KVStorage) storageHandles.get("k", instance, ctx.getEngine());
 
             if (storage != null) {
                 switch (method) {
                     case "put":
                         if (args!=null && args.length==3) {
-                            String ms = args[2];
-                            if (ms==null || ms.length()==0) storage.put(args[0], args[1], ctx);
-                            else storage.put(args[0], args[1], Integer.parseInt(ms), ctx);
+                            long ms = _long(args[2], 0);
+                            if (ms == 0) storage.put(_str(args[0]), _str(args[1]), ctx);
+                            else storage.put(_str(args[0]), _str(args[1]), ms, ctx);
                         }
                         return null;
                     case "get":
                         if (args!=null && args.length==1) {
-                            Object result = storage.get(args[0], ctx);
-                            return result instanceof String ? result : result.toString();
+                            Object result = storage.get(_str(args[0]), ctx);
+                            return result==null ? null : (result instanceof String ? result : result.toString());
                         }
                         return null;
                     case "doesExist":
                         if (args!=null && args.length==1) {
-                            boolean result = storage.doesExist(args[0], ctx);
-                            return result ? "true" : "false";
+                            return storage.doesExist(_str(args[0]), ctx);
                         }
                         return null;
                     case "remove":
                         if (args!=null && args.length==1) {
-                            storage.remove(args[0], ctx);
+                            storage.remove(_str(args[0]), ctx);
+                        }
+                        return null;
+                    case "getAll":
+                        if (args!=null && args.length==1) {
+                            Map<String,Object> result = _getAll(storage, _params(args[0]), ctx);
+                            return JavaScriptValues.toV8(_getRuntime(), result);
+                        }
+                        return null;
+                    case "putAll":
+                        if (args!=null && args.length==2 && args[0] instanceof Map) {
+                            _putAll(storage, (Map<String,Object>) args[0], _long(args[1], 0), ctx);
+                        }
+                        return null;
+                    case "removeAll":
+                        if (args!=null && args.length==1) {
+                            _removeAll(storage, _params(args[0]), ctx);
                         }
                         return null;
                     case "lock":
                         if (args!=null && args.length==2) {
-                            String ms = args[1];
-                            boolean result;
+                            long ms = _long(args[1], 0);
 
-                            if (ms==null || ms.length()==0) result = storage.lock(args[0], ctx);
-                            else result = storage.lock(args[0], Integer.parseInt(ms), ctx);
-
-                            return result ? "true" : "false";
+                            if (ms == 0) return storage.lock(_str(args[0]), ctx);
+                            else return storage.lock(_str(args[0]), ms, ctx);
                         }
                         return null;
                     case "unlock":
                         if (args!=null && args.length==1) {
-                            storage.unlock(args[0], ctx);
+                            storage.unlock(_str(args[0]), ctx);
+                        }
+                        return null;
+                    case "tryLock":
+                        if (args!=null && args.length==3) {
+                            return _number(_tryLock(storage, _str(args[0]), _long(args[1], 0), _long(args[2], 0), ctx));
+                        }
+                        return null;
+                    case "renewLock":
+                        if (args!=null && args.length==2) {
+                            return storage instanceof KVStorageImpl &&
+                                    ((KVStorageImpl) storage).renewLock(_str(args[0]), _long(args[1], 0), ctx);
                         }
                         return null;
                     default:
@@ -238,128 +338,159 @@ public class JavaScriptBridge implements JavaCallback {
         }
     }
 
-    private Object _execFileStorageMethods(String instance, String method, String[] args, Object extraParam) {
-        Context ctx = (Context) map.get("c");
-        Engine engine = ctx.getEngine();
+    private static List<String> _keys(List<Object> keys) {
+        List<String> result = new ArrayList<>(keys.size());
+        for (Object key : keys) result.add(_str(key));
+        return result;
+    }
+
+    private Map<String,Object> _getAll(KVStorage storage, List<Object> keys, Context ctx) throws Exception {
+        if (storage instanceof KVStorageImpl) return ((KVStorageImpl) storage).getAll(_keys(keys), ctx);
 
-        int pos = instance.indexOf(' ');
-        String type = instance.substring(0,pos);
-        String id = instance.substring(pos+1);
+        Map<String,Object> result = new LinkedHashMap<>();
+        for (String key : _keys(keys)) {
+            Object value = storage.get(key, ctx);
+            if (value != null) result.put(key, value.toString());
+        }
+        return result;
+    }
+
+    private void _putAll(KVStorage storage, Map<String,Object> entries, long ms, Context ctx) throws Exception {
+        if (storage instanceof KVStorageImpl) {
+            ((KVStorageImpl) storage).putAll(entries, ms, ctx);
+            return;
+        }
+
+        for (Map.Entry<String,Object> entry : entries.entrySet()) {
+            if (ms == 0) storage.put(entry.getKey(), _str(entry.getValue()), ctx);
+            else storage.put(entry.getKey(), _str(entry.getValue()), ms, ctx);
+        }
+    }
+
+    /**
+     * Returns the fencing token, or 0 if not acquired. Without KVStorageImpl, try once and return 1 if acquired.
+     *
+     * An async script shares the runtime with the others, so it tries only once, instead of blocking all of them
+     * (JavaScript "tryLockAsync" waits by retrying on the event loop).
+     */
+    private long _tryLock(KVStorage storage, String key, long ms, long timeout, Context ctx) throws Exception {
+        if (inAsyncScript) timeout = 0;
+
+        if (storage instanceof KVStorageImpl) {
+            KVLock lock = ((KVStorageImpl) storage).tryLock(key, ms, timeout, ctx);
+            return lock==null ? 0 : lock.getFencingToken();
+        }
+
+        boolean locked = (ms == 0) ? storage.lock(key, ctx) : storage.lock(key, ms, ctx);
+        return locked ? 1 : 0;
+    }
+
+    private void _removeAll(KVStorage storage, List<Object> keys, Context ctx) throws Exception {
+        if (storage instanceof KVStorageImpl) ((KVStorageImpl) storage).removeAll(_keys(keys), ctx);
+        else {
+            for (String key : _keys(keys)) storage.remove(key, ctx);
+        }
+    }
+
+    private Object _execFileStorageMethods(String instance, String method, Object[] args) {
+        Context ctx = (Context) map.get("c");
         FileStorage storage = null;
 
         try {
-            switch (type) {
-                case "application":
-                    storage = engine.getFileStorageForApplication(id);
-                    break;
-                case "integration":
-                    storage = engine.getFileStorageForIntegration(id);
-                    break;
-                case "client":
-                    storage = engine.getFileStorageForClient(id);
-                    break;
-            }
+            storage = (FileStorage) storageHandles.get("f", instance, ctx.getEngine());
 
             if (storage != null) {
                 switch (method) {
                     case "doesFileExist":
                         if (args!=null && args.length==1) {
-                            boolean result;
-                            result = storage.doesFileExist(args[0], ctx);
-                            return result ? "true" : "false";
+                            return storage.doesFileExist(_str(args[0]), ctx);
                         }
                         return null;
                     case "doesPublicFileExist":
                         if (args!=null && args.length==1) {
-                            boolean result;
-                            result = storage.doesPublicFileExist(args[0], ctx);
-                            return result ? "true" : "false";
+                            return storage.doesPublicFileExist(_str(args[0]), ctx);
                         }
                         return null;
                     case "getFileSize":
                         if (args!=null && args.length==1) {
-                            long result = storage.getFileSize(args[0], ctx);
-                            return ""+result;
+                            return _number(storage.getFileSize(_str(args[0]), ctx));
                         }
                         return null;
                     case "getPublicFileSize":
                         if (args!=null && args.length==1) {
-                            long result = storage.getPublicFileSize(args[0], ctx);
-                            return ""+result;
+                            return _number(storage.getPublicFileSize(_str(args[0]), ctx));
                         }
                         return null;
                     case "listFolders":
                         if (args!=null && args.length==1) {
-                            String[] result = storage.listFolders(args[0], ctx);
-                            return _stringArrayToJSONString(result);
+                            String[] result = storage.listFolders(_str(args[0]), ctx);
+                            return (result==null || result.length==0) ? null : JavaScriptValues.stringsToV8(_getRuntime(), result);
                         }
                         return null;
                     case "listPublicFolders":
                         if (args!=null && args.length==1) {
-                            String[] result = storage.listPublicFolders(args[0], ctx);
-                            return _stringArrayToJSONString(result);
+                            String[] result = storage.listPublicFolders(_str(args[0]), ctx);
+                            return (result==null || result.length==0) ? null : JavaScriptValues.stringsToV8(_getRuntime(), result);
                         }
                         return null;
                     case "listFiles":
                         if (args!=null && args.length==1) {
-                            String[] result = storage.listFiles(args[0], ctx);
-                            return _stringArrayToJSONString(result);
+                            String[] result = storage.listFiles(_str(args[0]), ctx);
+                            return (result==null || result.length==0) ? null : JavaScriptValues.stringsToV8(_getRuntime(), result);
                         }
                         return null;
                     case "listPublicFiles":
                         if (args!=null && args.length==1) {
-                            String[] result = storage.listPublicFiles(args[0], ctx);
-                            return _stringArrayToJSONString(result);
+                            String[] result = storage.listPublicFiles(_str(args[0]), ctx);
+                            return (result==null || result.length==0) ? null : JavaScriptValues.stringsToV8(_getRuntime(), result);
                         }
                         return null;
                     case "saveToFile":
                         if (args!=null && args.length==2) {
-                            if (extraParam instanceof String) {
-                                storage.saveToFile(args[0], ((String) extraParam).getBytes(StandardCharsets.UTF_8), ctx);
+                            Object content = args[1];
+                            if (content instanceof String) {
+                                storage.saveToFile(_str(args[0]), ((String) content).getBytes(StandardCharsets.UTF_8), ctx);
                             }
-                            else if (extraParam instanceof V8ArrayBuffer) _saveToFileByBytes(storage, args[0], (V8ArrayBuffer) extraParam, ctx, true);
+                            else if (content instanceof V8ArrayBuffer) _saveToFileByBytes(storage, _str(args[0]), (V8ArrayBuffer) content, ctx, true);
                         }
                         return null;
                     case "saveToPublicFile":
                         if (args!=null && args.length==2) {
-                            if (extraParam instanceof String) {
-                                storage.saveToPublicFile(args[0], ((String) extraParam).getBytes(StandardCharsets.UTF_8), ctx);
+                            Object content = args[1];
+                            if (content instanceof String) {
+                                storage.saveToPublicFile(_str(args[0]), ((String) content).getBytes(StandardCharsets.UTF_8), ctx);
                             }
-                            else if (extraParam instanceof V8ArrayBuffer) _saveToFileByBytes(storage, args[0], (V8ArrayBuffer) extraParam, ctx, false);
+                            else if (content instanceof V8ArrayBuffer) _saveToFileByBytes(storage, _str(args[0]), (V8ArrayBuffer) content, ctx, false);
                         }
                         return null;
                     case "readFromFile":
                         if (args!=null && args.length==2) {
-                            String inString = args[1];
-                            boolean bInString = (inString==null || inString.length()==0) ? false : Boolean.parseBoolean(inString);
                             NodeJS node = (NodeJS) map.get("n");
-                            if (bInString) {
-                                byte[] result = storage.readAllFromFile(args[0], ctx);
+                            if (_bool(args[1])) {
+                                byte[] result = storage.readAllFromFile(_str(args[0]), ctx);
                                 return new String(result, StandardCharsets.UTF_8);
                             }
-                            else return _readFromFileByBytes(storage, args[0], ctx, node, true);
+                            else return _readFromFileByBytes(storage, _str(args[0]), ctx, node, true);
                         }
                         return null;
                     case "readFromPublicFile":
                         if (args!=null && args.length==2) {
-                            String inString = args[1];
-                            boolean bInString = (inString==null || inString.length()==0) ? false : Boolean.parseBoolean(inString);
                             NodeJS node = (NodeJS) map.get("n");
-                            if (bInString) {
-                                byte[] result = storage.readAllFromPublicFile(args[0], ctx);
+                            if (_bool(args[1])) {
+                                byte[] result = storage.readAllFromPublicFile(_str(args[0]), ctx);
                                 return new String(result, StandardCharsets.UTF_8);
                             }
-                            else return _readFromFileByBytes(storage, args[0], ctx, node, false);
+                            else return _readFromFileByBytes(storage, _str(args[0]), ctx, node, false);
                         }
                         return null;
                     case "removeFile":
                         if (args!=null && args.length==1) {
-                            storage.removeFile(args[0], ctx);
+                            storage.removeFile(_str(args[0]), ctx);
                         }
                         return null;
                     case "removePublicFile":
                         if (args!=null && args.length==1) {
-                            storage.removePublicFile(args[0], ctx);
+                            storage.removePublicFile(_str(args[0]), ctx);
                         }
                         return null;
                     case "removeAll":
@@ -369,7 +500,33 @@ public class JavaScriptBridge implements JavaCallback {
                         return null;
                     case "getPublicFileUrl":
                         if (args!=null && args.length==1) {
-                            return storage.getPublicFileUrl(args[0]);
+                            return storage.getPublicFileUrl(_str(args[0]));
+                        }
+                        return null;
+                    case "openFile":
+                        if (args!=null && args.length==2) {
+                            return _openFile(storage, _str(args[0]), _str(args[1]), ctx, true);
+                        }
+                        return null;
+                    case "openPublicFile":
+                        if (args!=null && args.length==2) {
+                            return _openFile(storage, _str(args[0]), _str(args[1]), ctx, false);
+                        }
+                        return null;
+                    case "readChunk":
+                        if (args!=null && args.length==2) {
+                            return _readChunk(args[0], _long(args[1], DEFAULT_CHUNK_SIZE), ctx);
+                        }
+                        return null;
+                    case "writeChunk":
+                        if (args!=null && args.length==2) {
+                            return _writeChunk(args[0], args[1], ctx);
+                        }
+                        return null;
+                    case "closeFile":
+                        if (args!=null && args.length==1) {
+                            FileChannel channel = openFiles.remove((int) _long(args[0], 0));
+                            if (channel != null) channel.close();
                         }
                         return null;
                     default:
@@ -387,114 +544,90 @@ public class JavaScriptBridge implements JavaCallback {
         }
     }
 
-    private String _stringArrayToJSONString(String[] arr) {
-        if (arr==null || arr.length==0) return null;
-
-        StringBuilder result = new StringBuilder();
-        result.append("[");
-        for (int i = 0; i < arr.length; i++) {
-            if (i > 0) result.append(",");
-            result.append("\"").append(arr[i]).append("\"");
-        }
-        result.append("]");
-
-        return result.toString();
-    }
-
-    private Object _execDBStorageMethods(String instance, String method, String[] args) {
+    private Object _execDBStorageMethods(String instance, String method, Object[] args) {
         Context ctx = (Context) map.get("c");
-        Engine engine = ctx.getEngine();
-
-        int pos = instance.indexOf(' ');
-        String type = instance.substring(0,pos);
-        String id = instance.substring(pos+1);
         DBStorage storage = null;
 
         try {
-            switch (type) {
-                case "application":
-                    storage = engine.getDBStorageForApplication(id);
-                    break;
-                case "integration":
-                    storage = engine.getDBStorageForIntegration(id);
-                    break;
-                case "client":
-                    storage = engine.getDBStorageForClient(id);
-                    break;
-            }
+            storage = (DBStorage) storageHandles.get("d", instance, ctx.getEngine());
 
             if (storage != null) {
                 switch (method) {
                     case "doesTableExist":
                         if (args!=null && args.length==1) {
-                            boolean result = storage.doesTableExist(args[0], ctx);
-                            return result ? "true" : "false";
+                            return storage.doesTableExist(_str(args[0]), ctx);
                         }
                         return null;
                     case "insertRecord":
                         if (args!=null && args.length==2) {
-                            int result = storage.insertRecord(args[0],new Record(args[1]), ctx);
-                            return ""+result;
+                            return storage.insertRecord(_str(args[0]), JavaScriptValues.toRecord(args[1]), ctx);
                         }
                         return null;
                     case "queryRecords":
                         if (args!=null && args.length==9) {
-                            List<Object> params = _paramsJSONToList(args[5]);
-                            long from = (args[7]!=null && args[7].length()>0) ? Long.parseLong(args[7]) : 0;
-                            long length = (args[8]!=null && args[8].length()>0) ? Long.parseLong(args[8]) : 0;
+                            List<Object> params = _params(args[5]);
+                            long from = _long(args[7], 0);
+                            long length = _long(args[8], 0);
                             if (length == 0) length = 100;
 
-                            Record[] result = storage.queryRecords(args[0],args[1],args[2],args[3],args[4],params,args[6],from,length, ctx);
-                            return _recordArrToJSON(result);
+                            Record[] result = storage.queryRecords(_str(args[0]),_str(args[1]),_str(args[2]),_str(args[3]),_str(args[4]),params,_str(args[6]),from,length, ctx);
+                            return JavaScriptValues.recordsToV8(_getRuntime(), result);
                         }
                         return null;
                     case "queryCount":
                         if (args!=null && args.length==4) {
-                            List<Object> params = _paramsJSONToList(args[3]);
-                            long result = storage.queryCount(args[0],args[1],args[2],params, ctx);
-                            return ""+result;
+                            List<Object> params = _params(args[3]);
+                            return _number(storage.queryCount(_str(args[0]),_str(args[1]),_str(args[2]),params, ctx));
                         }
                         return null;
                     case "queryRecordById":
                         if (args!=null && args.length==4) {
-                            List<Object> params = _paramsJSONToList(args[3]);
-                            Record result = storage.queryRecordById(args[0],args[1],args[2],params.get(0), ctx);
-                            return result==null ? "" : result.toJSONString();
+                            Record result = storage.queryRecordById(_str(args[0]),_str(args[1]),_str(args[2]),args[3], ctx);
+                            return result==null ? null : JavaScriptValues.recordToV8(_getRuntime(), result);
                         }
                         return null;
                     case "updateRecords":
                         if (args!=null && args.length==4) {
-                            List<Object> params = _paramsJSONToList(args[3]);
-                            int result = storage.updateRecords(args[0],new Record(args[1]),args[2],params, ctx);
-                            return ""+result;
+                            List<Object> params = _params(args[3]);
+                            return storage.updateRecords(_str(args[0]),JavaScriptValues.toRecord(args[1]),_str(args[2]),params, ctx);
                         }
                         return null;
                     case "updateRecordById":
                         if (args!=null && args.length==4) {
-                            List<Object> params = _paramsJSONToList(args[3]);
-                            int result = storage.updateRecordById(args[0],new Record(args[1]),args[2],params.get(0), ctx);
-                            return ""+result;
+                            return storage.updateRecordById(_str(args[0]),JavaScriptValues.toRecord(args[1]),_str(args[2]),args[3], ctx);
                         }
                         return null;
                     case "replaceRecordById":
                         if (args!=null && args.length==4) {
-                            List<Object> params = _paramsJSONToList(args[3]);
-                            int result = storage.replaceRecordById(args[0],new Record(args[1]),args[2],params.get(0), ctx);
-                            return ""+result;
+                            return storage.replaceRecordById(_str(args[0]),JavaScriptValues.toRecord(args[1]),_str(args[2]),args[3], ctx);
                         }
                         return null;
                     case "deleteRecords":
                         if (args!=null && args.length==3) {
-                            List<Object> params = _paramsJSONToList(args[2]);
-                            int result = storage.deleteRecords(args[0],args[1],params, ctx);
-                            return ""+result;
+                            List<Object> params = _params(args[2]);
+                            return storage.deleteRecords(_str(args[0]),_str(args[1]),params, ctx);
                         }
                         return null;
                     case "deleteRecordById":
                         if (args!=null && args.length==3) {
-                            List<Object> params = _paramsJSONToList(args[2]);
-                            int result = storage.deleteRecordById(args[0],args[1],params.get(0), ctx);
-                            return ""+result;
+                            return storage.deleteRecordById(_str(args[0]),_str(args[1]),args[2], ctx);
+                        }
+                        return null;
+                    case "openCursor":
+                        if (args!=null && args.length==5) {
+                            List<Object> params = _params(args[3]);
+                            return _openCursor(storage, _str(args[0]),_str(args[1]),_str(args[2]),params,_str(args[4]), ctx);
+                        }
+                        return null;
+                    case "fetchRecords":
+                        if (args!=null && args.length==2) {
+                            return _fetchRecords(args[0], _long(args[1], DEFAULT_PAGE_SIZE));
+                        }
+                        return null;
+                    case "closeCursor":
+                        if (args!=null && args.length==1) {
+                            SQLDBCursor cursor = openCursors.remove((int) _long(args[0], 0));
+                            if (cursor != null) cursor.close();
                         }
                         return null;
                     default:
@@ -512,68 +645,212 @@ public class JavaScriptBridge implements JavaCallback {
         }
     }
 
-    private String _recordArrToJSON(Record[] records) {
-        StringBuilder result = new StringBuilder();
-        result.append("[");
+    /**
+     * The params are passed in a JavaScript array, and converted already.
+     */
+    private List<Object> _params(Object params) {
+        if (params instanceof List) return (List<Object>) params;
+        else return new ArrayList<>();
+    }
+
+    private void _saveToFileByBytes(FileStorage storage, String path, V8ArrayBuffer content, Context ctx, boolean isPrivate) throws Exception {
+        try {
+            if (storage instanceof FileStorageImpl) {
+                FileStorageImpl impl = (FileStorageImpl) storage;
 
-        if (records!=null && records.length>0) {
-            for (int i = 0; i <records.length; i++) {
-                if (i > 0) result.append(",");
-                result.append(records[i].toJSONString());
+                try (FileChannel channel = isPrivate ? impl.openFile(path, "w", ctx) : impl.openPublicFile(path, "w", ctx)) {
+                    _writeToChannel(channel, content.getBackingStore());
+                }
             }
+            else {
+                try (ByteBufferBackedInputStream in = new ByteBufferBackedInputStream(content.getBackingStore())) {
+                    if (isPrivate) storage.saveToFile(path, in, ctx);
+                    else storage.saveToPublicFile(path, in, ctx);
+                }
+            }
+        } finally {
+            content.release();
         }
-
-        result.append("]");
-        return result.toString();
     }
 
+    private static final int LOCAL_BUFFER_LENGTH = 1024;
+
     /**
-     * @param json {"0":..., "1":...., "2":....}
+     * The ArrayBuffer is filled from the file channel directly, without copying through a Java array.
      */
-    private List<Object> _paramsJSONToList(String json) {
-        ArrayList<Object> arr = new ArrayList<>();
+    private V8ArrayBuffer _readFromFileByBytes(FileStorage storage, String path, Context ctx, NodeJS node, boolean isPrivate) throws Exception {
+        int size = (int)(isPrivate ? storage.getFileSize(path, ctx) : storage.getPublicFileSize(path, ctx));
+
+        V8ArrayBuffer result = new V8ArrayBuffer(node.getRuntime(), size);
+        ByteBuffer resultBuf = result.getBackingStore();
 
-        if (json != null) {
-            JSONObject obj = JSON.parseObject(json);
-            int length = obj.size();
+        try {
+            if (storage instanceof FileStorageImpl) {
+                FileStorageImpl impl = (FileStorageImpl) storage;
 
-            for (int i = 0; i < length; i++) {
-                arr.add(obj.get("" + i));
+                try (FileChannel channel = isPrivate ? impl.openFile(path, "r", ctx) : impl.openPublicFile(path, "r", ctx)) {
+                    _readFromChannel(channel, resultBuf);
+                }
             }
+            else {
+                try (InputStream in = isPrivate ? storage.readFromFile(path, ctx) : storage.readFromPublicFile(path, ctx)) {
+                    int offset = 0;
+                    byte[] buf = new byte[LOCAL_BUFFER_LENGTH];
+                    while (offset < size) {
+                        int bytes = in.read(buf, 0, Math.min(LOCAL_BUFFER_LENGTH, size-offset));
+                        if (bytes == -1) break;
+                        resultBuf.put(buf, 0, bytes);
+                        offset += bytes;
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            result.release();
+            throw ex;
         }
 
-        return arr;
+        return result;
     }
 
-    private void _saveToFileByBytes(FileStorage storage, String path, V8ArrayBuffer content, Context ctx, boolean isPrivate) throws Exception {
-        try (ByteBufferBackedInputStream in = new ByteBufferBackedInputStream(content.getBackingStore())) {
-            if (isPrivate) storage.saveToFile(path, in, ctx);
-            else storage.saveToFile(path, in, ctx);
+    private Integer _openFile(FileStorage storage, String path, String mode, Context ctx, boolean isPrivate) throws Exception {
+        if (! (storage instanceof FileStorageImpl))
+            throw new PhusionException("FS_OP", "Failed to open file", "path="+path+", reason=chunked access is not supported");
+
+        if (openFiles.size() >= MAX_OPEN_FILES)
+            throw new PhusionException("FS_OP", "Failed to open file", "path="+path+", reason=too many open files");
+
+        FileStorageImpl impl = (FileStorageImpl) storage;
+        FileChannel channel = isPrivate ? impl.openFile(path, mode, ctx) : impl.openPublicFile(path, mode, ctx);
+
+        lastFileHandle = lastFileHandle==Integer.MAX_VALUE ? 1 : lastFileHandle+1;
+        openFiles.put(lastFileHandle, channel);
+        return lastFileHandle;
+    }
+
+    private FileChannel _getOpenFile(Object handle) throws Exception {
+        FileChannel channel = openFiles.get((int) _long(handle, 0));
+        if (channel == null) throw new PhusionException("FS_OP", "Failed to access file", "handle="+handle);
+        return channel;
+    }
+
+    /**
+     * Returns null at the end of the file. The chunk is shorter than the size only at the end of the file.
+     */
+    private V8ArrayBuffer _readChunk(Object handle, long size, Context ctx) throws Exception {
+        FileChannel channel = _getOpenFile(handle);
+
+        long remaining = channel.size() - channel.position();
+        if (remaining <= 0) return null;
+
+        int length = (int) Math.min(size>0 ? size : DEFAULT_CHUNK_SIZE, remaining);
+        V8ArrayBuffer result = new V8ArrayBuffer(_getRuntime(), length);
+
+        try {
+            _readFromChannel(channel, result.getBackingStore());
+        } catch (Exception ex) {
+            result.release();
+            throw ex;
         }
 
-        content.release();
+        return result;
     }
 
-    private static final int LOCAL_BUFFER_LENGTH = 1024;
+    private Object _writeChunk(Object handle, Object content, Context ctx) throws Exception {
+        try {
+            FileChannel channel = _getOpenFile(handle);
 
-    private V8ArrayBuffer _readFromFileByBytes(FileStorage storage, String path, Context ctx, NodeJS node, boolean isPrivate) throws Exception {
-        int size = (int)(isPrivate ? storage.getFileSize(path, ctx) : storage.getPublicFileSize(path, ctx));
+            if (content instanceof String)
+                return _writeToChannel(channel, ByteBuffer.wrap(((String) content).getBytes(StandardCharsets.UTF_8)));
+            else if (content instanceof V8ArrayBuffer)
+                return _writeToChannel(channel, ((V8ArrayBuffer) content).getBackingStore());
+            else
+                return 0;
+        } finally {
+            if (content instanceof V8Value) ((V8Value) content).release();
+        }
+    }
 
-        V8ArrayBuffer result = new V8ArrayBuffer(node.getRuntime(), size);
-        ByteBuffer resultBuf = result.getBackingStore();
+    private static void _readFromChannel(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) break;
+        }
+    }
+
+    private static int _writeToChannel(FileChannel channel, ByteBuffer buf) throws IOException {
+        int bytes = 0;
+        while (buf.hasRemaining()) bytes += channel.write(buf);
+        return bytes;
+    }
+
+    private Integer _openCursor(DBStorage storage, String tableName, String selectClause, String whereClause, List<Object> params, String orderClause, Context ctx) throws Exception {
+        if (! (storage instanceof SQLDBStorageImpl))
+            throw new PhusionException("DB_OP", "Failed to open cursor", "tableName="+tableName+", reason=cursor is not supported");
+
+        if (openCursors.size() >= MAX_OPEN_CURSORS)
+            throw new PhusionException("DB_OP", "Failed to open cursor", "tableName="+tableName+", reason=too many open cursors");
+
+        SQLDBCursor cursor = ((SQLDBStorageImpl) storage).openCursor(tableName, selectClause, whereClause, params, orderClause, ctx);
 
-        try (InputStream in = isPrivate ? storage.readFromFile(path, ctx) : storage.readFromPublicFile(path, ctx)) {
-            int offset = 0;
-            byte[] buf = new byte[LOCAL_BUFFER_LENGTH];
-            while (offset < size) {
-                int bytes = in.read(buf, 0, LOCAL_BUFFER_LENGTH);
-                if (bytes == -1) break;
-                resultBuf.put(buf, 0, bytes);
-                offset += bytes;
+        lastCursorHandle = lastCursorHandle==Integer.MAX_VALUE ? 1 : lastCursorHandle+1;
+        openCursors.put(lastCursorHandle, cursor);
+        return lastCursorHandle;
+    }
+
+    /**
+     * Returns null at the end of the records, when the cursor is closed and dropped.
+     */
+    private V8Array _fetchRecords(Object handle, long size) throws Exception {
+        int key = (int) _long(handle, 0);
+        SQLDBCursor cursor = openCursors.get(key);
+        if (cursor == null) throw new PhusionException("DB_OP", "Failed to access cursor", "handle="+handle);
+
+        List<Record> records;
+        try {
+            records = cursor.next((int) (size>0 ? size : DEFAULT_PAGE_SIZE));
+        } catch (Exception ex) {
+            openCursors.remove(key);
+            throw ex;
+        }
+
+        if (records.size() == 0) {
+            openCursors.remove(key);
+            cursor.close();
+            return null;
+        }
+
+        return JavaScriptValues.recordsToV8(_getRuntime(), records.toArray(new Record[]{}));
+    }
+
+    /**
+     * Close the cursors left open by the scripts. Returns the number of cursors closed.
+     */
+    public int closeCursors() {
+        int count = openCursors.size();
+
+        for (SQLDBCursor cursor : openCursors.values()) {
+            cursor.close();
+        }
+
+        openCursors.clear();
+        return count;
+    }
+
+    /**
+     * Close the files left open by the scripts. Returns the number of files closed.
+     */
+    public int closeFiles() {
+        int count = openFiles.size();
+
+        for (FileChannel channel : openFiles.values()) {
+            try {
+                channel.close();
+            } catch (Exception ex) {
+                // Ignore it
             }
         }
 
-        return result;
+        openFiles.clear();
+        return count;
     }
 
 }
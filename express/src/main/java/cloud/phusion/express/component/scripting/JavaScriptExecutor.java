@@ -2,207 +2,363 @@ package cloud.phusion.express.component.scripting;
 
 import cloud.phusion.Context;
 import cloud.phusion.DataObject;
+import cloud.phusion.EngineFactory;
 import cloud.phusion.PhusionException;
 import cloud.phusion.integration.Transaction;
-import com.eclipsesource.v8.*;
-import org.apache.commons.io.FileUtils;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.eclipsesource.v8.NodeJS;
+import com.eclipsesource.v8.V8Object;
 
 import java.io.*;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * To support ES6, the script must run in strict mode.
  *
- * All script must run in sync mode.
+ * An async script gets a callback handle, and returns the result by calling "_callback(handle, result)".
+ * It runs in the event loop of the worker, without holding the calling thread or the worker while waiting.
+ *
+ * If a script (sync or async) does not return in the timeout (set for each script, or the global default),
+ * it fails with "JS_TIMEOUT".
+ *
+ * The scripts run in a fixed pool of worker threads, each of which owns a Node.js runtime, instead of creating
+ * a runtime in every thread touching JavaScript (Tomcat, Quartz, etc.). The callers wait for the results.
+ * - The workers take the scripts from a shared queue, so an idle worker always takes the next one.
+ * - The pool starts when it is used the first time (or when the engine starts, if warm-up is enabled),
+ *   and stops with the engine.
+ * - If warm-up is enabled, a loaded script is required by all runtimes at once, instead of when running it.
+ *
+ * A script running beyond its timeout is terminated by the watchdog, and its runtime is recycled. A runtime is also
+ * recycled after a number of executions, or when its heap reaches the soft threshold below the max heap size. The V8
+ * flag of the heap size is not used, because V8 aborts the whole process when the heap is beyond it.
+ *
+ * If code cache is enabled, the compiled code of each script is saved under "{basePath}code_cache/", named by the
+ * script id, the modified time and the size of the file. The runtimes load the script from the code cache if it exists,
+ * so only the first runtime compiles a script, even after restarts. The cache files of the old versions are removed
+ * when the script is loaded again.
  */
 public class JavaScriptExecutor {
     private static final String _position = JavaScriptExecutor.class.getName();
 
-    /**
-     * Each thread has a ThreadLocal JavaScript Runtime to avoid frequently create it.
-     *
-     * Map<String, Object> map = local.get();
-     *
-     * Map (key name MUST have a 1-char prefix !):
-     * "n" -> NodeJS runtime;
-     * "f{scriptId}" -> V8Object function of the script;
-     * "t{scriptId}" -> Long timestamp when load the script;
-     * "r" -> The module refresh function;
-     * "c" -> Current context
-     */
-    private final static ThreadLocal<Map<String,Object>> local = new ThreadLocal<Map<String,Object>>(){
-        @Override
-        protected Map<String,Object> initialValue() {
-            Map<String,Object> map = new HashMap<>();
-
-            NodeJS node = NodeJS.createNodeJS();
-            map.put("n", node);
-
-            // The JavaScript to Java bridge function
-            V8Function callback = new V8Function(node.getRuntime(), new JavaScriptBridge(map));
-            node.getRuntime().add(JavaScriptBridge.JavaCallback_Func, callback);
-
-            // The JavaScript to Java callback to return async results
-            V8Function asyncCallback = new V8Function(node.getRuntime(), (receiver, parameters) -> {
-                callbackResult.put(
-                        parameters.getString(0),
-                        parameters.getString(1)
-                );
-                return null;
-            });
-            node.getRuntime().add(JavaScriptBridge.JavaCallback_AsyncResult, asyncCallback);
-
-            // J2V8 collapses in Windows ?
-//            try {
-//                Thread.sleep(500);
-//            } catch (Exception ex) {ex.printStackTrace();}
-
-            return map;
-        }
-    };
-
     // script_id -> reload_timestamp
-    private static Map<String, Long> scripts = new ConcurrentHashMap<String, Long>();
+    static Map<String, Long> scripts = new ConcurrentHashMap<String, Long>();
 
     // script_id -> script_file
-    private static Map<String, String> scriptFiles = new ConcurrentHashMap<String, String>();
+    static Map<String, String> scriptFiles = new ConcurrentHashMap<String, String>();
 
-    // callbackHanlde -> result returned by javascript function
-    private static Map<String, String> callbackResult = new ConcurrentHashMap<>();
-    private static int callbackHandleCount = 0;
+    // script_id -> timeout in milliseconds
+    static Map<String, Long> scriptTimeouts = new ConcurrentHashMap<String, Long>();
 
-    private static synchronized String _generateHandle() {
-        callbackHandleCount ++;
-        if (callbackHandleCount == Integer.MAX_VALUE) callbackHandleCount = 0;
-        return ""+callbackHandleCount;
+    private String basePath;
+    private int workerCount;
+    private boolean warmUp;
+    private long defaultTimeout; // In milliseconds, 0 for no limit
+    private long recycleExecutions; // 0 for never
+    private long recycleHeapSize; // In bytes, 0 for never
+    private String codeCachePath; // null if code cache is disabled
+
+    private static final long WATCHDOG_INTERVAL = 50; // In milliseconds
+    private static final double SOFT_HEAP_RATIO = 0.8; // Of the max heap size, if the recycle heap size is not set
+
+    private volatile JavaScriptWorker[] workers = null;
+    private ScheduledExecutorService watchdog = null;
+    private final BlockingQueue<JavaScriptWorker.Task> sharedQueue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong totalQueueWait = new AtomicLong(0); // In nanoseconds
+    private final AtomicLong maxQueueWait = new AtomicLong(0); // In nanoseconds
+    private final AtomicLong totalExecTime = new AtomicLong(0); // In nanoseconds
+    private final AtomicLong maxExecTime = new AtomicLong(0); // In nanoseconds
+    private final AtomicLong terminated = new AtomicLong(0);
+    private final AtomicLong recycled = new AtomicLong(0);
+
+    private static final class ScriptLoadStats {
+        final AtomicLong compiles = new AtomicLong(0);
+        final AtomicLong compileTime = new AtomicLong(0); // In nanoseconds
+        final AtomicLong cachedLoads = new AtomicLong(0);
+        final AtomicLong cachedLoadTime = new AtomicLong(0); // In nanoseconds
+        final AtomicLong rejected = new AtomicLong(0);
     }
 
-    private String basePath;
+    // script_id -> load statistics
+    private final Map<String, ScriptLoadStats> scriptLoads = new ConcurrentHashMap<>();
 
     public JavaScriptExecutor() throws Exception {
         this(null);
     }
 
     public JavaScriptExecutor(String basePath) throws Exception {
+        this(basePath, null);
+    }
+
+    public JavaScriptExecutor(String basePath, Properties props) throws Exception {
         super();
         this.basePath = basePath;
-    }
 
-    private void _prepareClearModuleScript() throws Exception {
-        File f = new File(basePath+"clear_module.js");
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (props == null) props = new Properties();
 
-        // Create the script file if not exist
-        if (! f.exists()) {
-            FileUtils.write(f,
-                    "exports.clear_module=" +
-                            "function(f){try{" +
-                            "delete require.cache[f];" +
-                            "}catch(e){console.log('Error clear_module: '+e.message)}}",
-                    "UTF-8"
-            );
-        }
+        this.workerCount = Integer.parseInt(props.getProperty(EngineFactory.Module_JavaScriptWorkerCount, ""+cores));
+        this.warmUp = Boolean.parseBoolean(props.getProperty(EngineFactory.Module_JavaScriptWarmUp, "true"));
+        this.defaultTimeout = Long.parseLong(props.getProperty(EngineFactory.Module_JavaScriptTimeout, "0"));
+        this.recycleExecutions = Long.parseLong(props.getProperty(EngineFactory.Module_JavaScriptRecycleExecutions, "0"));
+        this.recycleHeapSize = Long.parseLong(props.getProperty(EngineFactory.Module_JavaScriptRecycleHeapSize, "0")) * 1024 * 1024;
 
-        Map<String,Object> map = local.get();
-        NodeJS node = (NodeJS) map.get("n");
+        long maxHeapSize = Long.parseLong(props.getProperty(EngineFactory.Module_JavaScriptMaxHeapSize, "0")) * 1024 * 1024;
+        if (maxHeapSize > 0 && (this.recycleHeapSize == 0 || this.recycleHeapSize > maxHeapSize))
+            this.recycleHeapSize = (long) (maxHeapSize * SOFT_HEAP_RATIO);
+        if (this.workerCount < 1) this.workerCount = 1;
 
-        V8Object func = node.require(f);
-        map.put("r", func);
+        boolean codeCache = Boolean.parseBoolean(props.getProperty(EngineFactory.Module_JavaScriptCodeCache, "true"));
+        this.codeCachePath = (codeCache && basePath!=null) ? basePath+"code_cache/" : null;
     }
 
-    private void _executeClearModuleScript(String script) throws Exception {
-        Map<String,Object> map = local.get();
+    String getBasePath() {
+        return basePath;
+    }
 
-        V8Object func = (V8Object) map.get("r");
-        if (func == null) {
-            _prepareClearModuleScript();
-            func = (V8Object) map.get("r");
-        }
+    boolean isWarmUp() {
+        return warmUp;
+    }
+
+    long getRecycleExecutions() {
+        return recycleExecutions;
+    }
 
-        func.executeJSFunction("clear_module", (new File(script)).getCanonicalPath());
+    long getRecycleHeapSize() {
+        return recycleHeapSize;
     }
 
     /**
-     * Lazy load the script.
-     *
-     * Renew the timestamp, each thread will check it to reload the script when using it.
-     *
-     * @param scriptId i.e. moduleId
-     * @param script path to the .js file
+     * Start the pool in advance if warm-up is enabled, so that the first scripts do not wait for the runtimes.
      */
-    public void loadScript(String scriptId, String script, Context ctx) throws Exception {
-        scripts.put(scriptId, System.currentTimeMillis());
+    public void start(Context ctx) {
+        if (warmUp) _getWorkers(ctx);
+    }
 
-        String f = basePath==null ? script : basePath+script;
-        scriptFiles.put(scriptId, f);
+    /**
+     * Returns null if code cache is disabled, or the script file does not exist.
+     */
+    File getCodeCacheFile(String scriptId, File script) {
+        if (codeCachePath==null || ! script.isFile()) return null;
 
-        ctx.logInfo(_position, "JavaScript module loaded (to lazy-load later)", "script="+script);
+        File folder = new File(codeCachePath);
+        if (! folder.exists()) folder.mkdirs();
+
+        return new File(folder, _codeCachePrefix(scriptId) +
+                Long.toHexString(script.lastModified()) + "-" + Long.toHexString(script.length()) + ".cache");
     }
 
-    public boolean doesScriptExists(String scriptId) {
-        return scripts.containsKey(scriptId);
+    private static String _codeCachePrefix(String scriptId) {
+        return scriptId.replaceAll("[^A-Za-z0-9_.]", "_") + "-";
     }
 
-    public void unloadScript(String scriptId, Context ctx) throws Exception {
-        scripts.remove(scriptId);
+    private void _removeOldCodeCache(String scriptId, String script) {
+        File current = getCodeCacheFile(scriptId, new File(script));
+        if (current == null) return;
 
-        _executeClearModuleScript(scriptFiles.get(scriptId));
-        scriptFiles.remove(scriptId);
+        String prefix = _codeCachePrefix(scriptId);
+        File[] files = current.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".cache"));
+        if (files == null) return;
 
-        Map<String,Object> map = local.get();
-        V8Object func = (V8Object) map.get("f"+scriptId);
+        // "-" is not kept in the script id, so the prefix does not match the other scripts
+        for (File f : files) {
+            if (! f.getName().equals(current.getName())) f.delete();
+        }
+    }
 
-        if (func != null) func.release();
-        map.remove("f"+scriptId);
-        map.remove("t"+scriptId);
+    void _recordScriptLoad(String scriptId, String status, long time) {
+        ScriptLoadStats stats = scriptLoads.computeIfAbsent(scriptId, k -> new ScriptLoadStats());
 
-        ctx.logInfo(_position, "JavaScript module unloaded");
+        if ("cached".equals(status)) {
+            stats.cachedLoads.incrementAndGet();
+            stats.cachedLoadTime.addAndGet(time);
+        }
+        else if ("compiled".equals(status) || "rejected".equals(status)) {
+            if ("rejected".equals(status)) stats.rejected.incrementAndGet();
+            stats.compiles.incrementAndGet();
+            stats.compileTime.addAndGet(time);
+        }
     }
 
-    private V8Object _getScript(String scriptId, Context ctx) throws Exception {
-        Map<String,Object> map = local.get();
-        V8Object currentFunc = (V8Object) map.get("f"+scriptId);
-        Long currentTimestamp = (Long) map.get("t"+scriptId);
+    private synchronized JavaScriptWorker[] _getWorkers(Context ctx) {
+        if (workers == null) {
+            workers = new JavaScriptWorker[workerCount];
+
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new JavaScriptWorker(this, sharedQueue, "phusion-js-" + (i+1));
+
+                // Warm up the scripts loaded before the pool starts
 
-        Long refreshTimestamp = scripts.get(scriptId);
+                if (warmUp) {
+                    for (String scriptId : scripts.keySet()) workers[i].submit(_warmUpJob(scriptId, ctx), defaultTimeout);
+                }
+
+                workers[i].start();
+            }
+
+            JavaScriptWorker[] watched = workers;
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "phusion-js-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            watchdog.scheduleWithFixedDelay(() -> {
+                long now = System.nanoTime();
+                for (JavaScriptWorker worker : watched) {
+                    if (worker.checkTimeout(now)) terminated.incrementAndGet();
+                }
+            }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+
+            if (ctx != null) ctx.logInfo(_position, "JavaScript runtimes started", "workers="+workerCount);
+        }
+        return workers;
+    }
 
-        if (refreshTimestamp==null || currentTimestamp==null || currentTimestamp<refreshTimestamp) {
-            // Load the script
+    public synchronized void shutdown(Context ctx) {
+        if (workers == null) return;
+
+        watchdog.shutdownNow();
+        watchdog = null;
+
+        for (JavaScriptWorker worker : workers) worker.shutdown();
+        workers = null;
+
+        JavaScriptWorker.failPendingTasks(sharedQueue);
+
+        if (ctx != null) ctx.logInfo(_position, "JavaScript runtimes stopped");
+    }
+
+    /**
+     * Run the job in one of the workers and wait for the result.
+     *
+     * If it is called from a worker (e.g. by the Java bridge), run it in the current worker to avoid dead lock.
+     */
+    private Object _execute(JavaScriptWorker.Job job, long timeout, Context ctx) throws Exception {
+        Thread current = Thread.currentThread();
+        if (current instanceof JavaScriptWorker) return job.run((JavaScriptWorker) current);
+
+        _getWorkers(ctx);
+
+        Exception startError = _getStartError();
+        if (startError != null) throw startError;
+
+        JavaScriptWorker.Task task = new JavaScriptWorker.Task(job, timeout);
+        submitted.incrementAndGet();
+        sharedQueue.offer(task);
+
+        try {
+            return task.future.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw (t instanceof Exception) ? (Exception) t : ex;
+        }
+    }
+
+    /**
+     * Returns the start error if no worker has a runtime, otherwise null.
+     */
+    Exception _getStartError() {
+        JavaScriptWorker[] current = workers;
+        if (current == null) return null;
+
+        Exception error = null;
+        for (JavaScriptWorker worker : current) {
+            if (worker == null) return null; // Not created yet
+            error = worker.getStartError();
+            if (error == null) return null;
+        }
+        return error;
+    }
 
-            if (currentFunc != null) currentFunc.release();
+    /**
+     * Run the job in every worker without waiting for it.
+     */
+    private void _broadcast(JavaScriptWorker.Job job, Context ctx) {
+        for (JavaScriptWorker worker : _getWorkers(ctx)) worker.submit(job, defaultTimeout);
+    }
 
-            NodeJS node = (NodeJS) map.get("n");
-            File f = new File(scriptFiles.get(scriptId));
+    private JavaScriptWorker.Job _warmUpJob(String scriptId, Context ctx) {
+        return worker -> {
             try {
-                currentFunc = node.require(f);
+                worker.getScript(scriptId, ctx);
             } catch (Exception ex) {
-                throw new PhusionException("JS_OP", "Failed to node.require script", ctx, ex);
+                if (ctx != null) ctx.logError(_position, "Failed to warm up script", "scriptId="+scriptId, ex);
             }
+            return null;
+        };
+    }
 
-            map.put("f"+scriptId, currentFunc);
-            map.put("t"+scriptId, System.currentTimeMillis());
-        }
+    void _recordQueueWait(long wait) {
+        completed.incrementAndGet();
+        totalQueueWait.addAndGet(wait);
+        _recordMax(maxQueueWait, wait);
+    }
 
-        if (currentFunc == null) throw new PhusionException("JS_NONE", "Failed to physically load script", ctx);
-        else return currentFunc;
+    void _recordExecTime(long time) {
+        totalExecTime.addAndGet(time);
+        _recordMax(maxExecTime, time);
     }
 
-    private Context _getContext() {
-        Map<String,Object> map = local.get();
-        return (Context) map.get("c");
+    void _recordRecycle() {
+        recycled.incrementAndGet();
+    }
+
+    private static void _recordMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && ! max.compareAndSet(current, value)) current = max.get();
+    }
+
+    /**
+     * Lazy load the script.
+     *
+     * Renew the timestamp, each runtime will check it to reload the script when using it.
+     * If warm-up is enabled, all runtimes load the script at once.
+     *
+     * @param scriptId i.e. moduleId
+     * @param script path to the .js file
+     */
+    public void loadScript(String scriptId, String script, Context ctx) throws Exception {
+        String f = basePath==null ? script : basePath+script;
+        scriptFiles.put(scriptId, f);
+
+        scripts.put(scriptId, System.currentTimeMillis());
+        _removeOldCodeCache(scriptId, f);
+
+        if (warmUp) {
+            _broadcast(_warmUpJob(scriptId, ctx), ctx);
+            ctx.logInfo(_position, "JavaScript module loaded (warming up)", "script="+script);
+        }
+        else
+            ctx.logInfo(_position, "JavaScript module loaded (to lazy-load later)", "script="+script);
     }
 
-    private void _putContext(Context c) {
-        Map<String,Object> map = local.get();
-        map.put("c", c);
+    public boolean doesScriptExists(String scriptId) {
+        return scripts.containsKey(scriptId);
     }
 
-    private void _popContext() {
-        Map<String,Object> map = local.get();
-        map.remove("c");
+    public void unloadScript(String scriptId, Context ctx) throws Exception {
+        scripts.remove(scriptId);
+        scriptTimeouts.remove(scriptId);
+        String script = scriptFiles.remove(scriptId);
+        scriptLoads.remove(scriptId);
+
+        synchronized (this) {
+            if (workers != null) {
+                _broadcast(worker -> {
+                    worker.releaseScript(scriptId, script);
+                    return null;
+                }, ctx);
+            }
+        }
+
+        ctx.logInfo(_position, "JavaScript module unloaded");
     }
 
     /**
@@ -217,79 +373,171 @@ public class JavaScriptExecutor {
         if (trx == null) return;
         Context ctx = trx.getContext();
 
-        try {
-            V8Object func = _getScript(scriptId, ctx);
-            _putContext(ctx);
+        String in = trx.toJSONString();
+        String out;
 
-            String in = trx.toJSONString();
-            String out;
+        if (async) out = _await(_callScriptAsync(scriptId, in, ctx));
+        else {
+            out = (String) _execute(worker -> {
+                V8Object func = worker.getScript(scriptId, ctx);
+                worker.putContext(ctx);
 
-            if (async) {
-                String handle = _generateHandle();
+                return func.executeJSFunction(JavaScriptBridge.JavascriptTransaction_Func, in);
+            }, getScriptTimeout(scriptId), ctx);
+        }
 
-                Map<String,Object> map = local.get();
-                NodeJS node = (NodeJS) map.get("n");
-                func.executeJSFunction(JavaScriptBridge.JavascriptTransaction_Func, in, handle);
-                while (node.handleMessage()) {}
+        if (out != null && out.length() > 0) trx.updateFromJSONString(out);
+    }
 
-                out = callbackResult.get(handle);
-                callbackResult.remove(handle);
-            }
-            else
-                out = (String) func.executeJSFunction(JavaScriptBridge.JavascriptTransaction_Func, in);
+    /**
+     * Run the async script without waiting for it. The transaction is updated when the script returns,
+     * then the future is completed.
+     *
+     * Cancel the future to give up the script, then its result is ignored.
+     */
+    public CompletableFuture<Transaction> runScriptWithinTransactionAsync(String scriptId, Transaction trx) throws Exception {
+        if (trx == null) return CompletableFuture.completedFuture(null);
+        Context ctx = trx.getContext();
 
+        return _callScriptAsync(scriptId, trx.toJSONString(), ctx).thenApply(out -> {
             if (out != null && out.length() > 0) trx.updateFromJSONString(out);
-//        } catch (Exception ex) {
-//            throw new PhusionException("JS_OP", "Failed to run script", ctx, ex);
-        } finally {
-            _popContext();
+            return trx;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<String> _callScriptAsync(String scriptId, String in, Context ctx) throws Exception {
+        long timeout = getScriptTimeout(scriptId);
+
+        return (CompletableFuture<String>) _execute(worker -> {
+            V8Object func = worker.getScript(scriptId, ctx);
+
+            return worker.callAsync(handle -> {
+                func.executeJSFunction(JavaScriptBridge.JavascriptTransaction_Func, in, handle);
+            }, timeout, null, ctx);
+        }, timeout, ctx);
+    }
+
+    /**
+     * Wait for the async script. If the waiting thread is interrupted, the script is cancelled.
+     */
+    private String _await(CompletableFuture<String> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw (t instanceof Exception) ? (Exception) t : ex;
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
         }
     }
 
+    /**
+     * @param timeout in milliseconds, 0 for no limit, and negative to use the global default.
+     */
+    public void setScriptTimeout(String scriptId, long timeout) {
+        if (timeout < 0) scriptTimeouts.remove(scriptId);
+        else scriptTimeouts.put(scriptId, timeout);
+    }
+
+    public long getScriptTimeout(String scriptId) {
+        Long timeout = scriptId==null ? null : scriptTimeouts.get(scriptId);
+        return timeout==null ? defaultTimeout : timeout;
+    }
+
+    @SuppressWarnings("unchecked")
     public String runJavaScriptFile(String filePath, boolean async, boolean reload, Context ctx) throws Exception {
-        Map<String,Object> map = local.get();
+        String f = basePath==null ? filePath : basePath+filePath;
 
-        try {
-            map.put("c", ctx);
-            NodeJS node = (NodeJS) map.get("n");
-            String f = basePath==null ? filePath : basePath+filePath;
+        Object result = _execute(worker -> {
+            worker.putContext(ctx);
+            NodeJS node = worker.getNode();
 
-            if (reload) _executeClearModuleScript(f);
+            if (reload) worker.clearModule(f);
 
             V8Object func = node.require(new File(f));
-            String out;
 
             if (async) {
-                String handle = _generateHandle();
-
-                func.executeJSFunction(JavaScriptBridge.Javascript_Func, handle);
-                while (node.handleMessage()) {}
+                // The function is released when the script is finished
 
-                out = callbackResult.get(handle);
-                callbackResult.remove(handle);
+                return worker.callAsync(handle -> {
+                    func.executeJSFunction(JavaScriptBridge.Javascript_Func, handle);
+                }, defaultTimeout, func::release, ctx);
             }
-            else
-                out = (String) func.executeJSFunction(JavaScriptBridge.Javascript_Func);
-
-            func.release();
-            return out;
-//        } catch (Exception ex) {
-//            throw new PhusionException("JS_OP", "Failed to run script", ctx, ex);
-        } finally {
-            map.remove("c");
-        }
+            else {
+                try {
+                    return func.executeJSFunction(JavaScriptBridge.Javascript_Func);
+                } finally {
+                    func.release();
+                }
+            }
+        }, defaultTimeout, ctx);
+
+        if (async) return _await((CompletableFuture<String>) result);
+        else return (String) result;
     }
 
     public String runJavaScript(String script, Context ctx) throws Exception {
-        try {
-            Map<String,Object> map = local.get();
-            NodeJS node = (NodeJS) map.get("n");
+        return (String) _execute(worker -> worker.getNode().getRuntime().executeStringScript(script), defaultTimeout, ctx);
+    }
 
-            return node.getRuntime().executeStringScript(script);
-//        } catch (Exception ex) {
-//            throw new PhusionException("JS_OP", "Failed to run script", ctx, ex);
-        } finally {
+    /**
+     * Statistics of the JavaScript runtimes: queue wait and execution time of the scripts,
+     * the memory used by each runtime (sampled every 100 executions), and the time to compile or load each script.
+     */
+    public DataObject getStatistics() {
+        JavaScriptWorker[] current = workers;
+        long count = completed.get();
+
+        JSONObject result = new JSONObject();
+        result.put("workers", workerCount);
+        result.put("started", current != null);
+        result.put("queued", sharedQueue.size());
+        result.put("submitted", submitted.get());
+        result.put("completed", count);
+        result.put("avgQueueWait", count==0 ? 0.0 : totalQueueWait.get()/count/100000/10.0); // In milliseconds
+        result.put("maxQueueWait", maxQueueWait.get()/100000/10.0); // In milliseconds
+        result.put("avgExecTime", count==0 ? 0.0 : totalExecTime.get()/count/100000/10.0); // In milliseconds
+        result.put("maxExecTime", maxExecTime.get()/100000/10.0); // In milliseconds
+        result.put("terminated", terminated.get());
+        result.put("recycled", recycled.get());
+
+        JSONArray runtimes = new JSONArray();
+        if (current != null) {
+            for (JavaScriptWorker worker : current) {
+                JSONObject runtime = new JSONObject();
+                runtime.put("worker", worker.getName());
+                runtime.put("available", worker.getStartError() == null);
+                runtime.put("executions", worker.getExecutions());
+                runtime.put("queued", worker.getQueueLength());
+                runtime.put("asyncCalls", worker.getAsyncCallCount());
+                runtime.put("objectReferences", worker.getObjectReferences());
+                runtime.put("heapUsed", worker.getHeapUsed()); // In bytes
+                runtimes.add(runtime);
+            }
         }
+        result.put("runtimes", runtimes);
+
+        result.put("codeCache", codeCachePath != null);
+        JSONArray loads = new JSONArray();
+        for (Map.Entry<String, ScriptLoadStats> entry : scriptLoads.entrySet()) {
+            ScriptLoadStats stats = entry.getValue();
+            long compiles = stats.compiles.get();
+            long cachedLoads = stats.cachedLoads.get();
+
+            JSONObject load = new JSONObject();
+            load.put("scriptId", entry.getKey());
+            load.put("compiles", compiles);
+            load.put("avgCompileTime", compiles==0 ? 0.0 : stats.compileTime.get()/compiles/100000/10.0); // In milliseconds
+            load.put("cachedLoads", cachedLoads);
+            load.put("avgCachedLoadTime", cachedLoads==0 ? 0.0 : stats.cachedLoadTime.get()/cachedLoads/100000/10.0); // In milliseconds
+            load.put("rejected", stats.rejected.get());
+            loads.add(load);
+        }
+        result.put("scripts", loads);
+
+        return new DataObject(result);
     }
 
     private static boolean isWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
@@ -0,0 +1,218 @@
+package cloud.phusion.express.component.scripting;
+
+import cloud.phusion.storage.Record;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.eclipsesource.v8.V8;
+import com.eclipsesource.v8.V8Array;
+import com.eclipsesource.v8.V8Object;
+import com.eclipsesource.v8.V8Value;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the values passed between JavaScript and Java, without going through JSON strings.
+ *
+ * From JavaScript: objects become JSONObject, arrays become JSONArray, and whole numbers become Integer or Long,
+ * the same as parsing the JSON string of the value. The V8 values are released after converted.
+ *
+ * To JavaScript: the values are converted the same as JSON serialization, e.g. a timestamp becomes the milliseconds.
+ * The created V8 values must be released by the caller, or returned to JavaScript (J2V8 releases them).
+ */
+public class JavaScriptValues {
+
+    private static final double MAX_SAFE_INTEGER = 9007199254740991.0; // 2^53 - 1
+
+    /**
+     * Convert the value from V8Array.get() or V8Object.get() into Java. The ArrayBuffer is returned as it is.
+     */
+    public static Object toJava(Object value) {
+        if (value instanceof V8Array) {
+            V8Array arr = (V8Array) value;
+            try {
+                return _arrayToJava(arr);
+            } finally {
+                arr.release();
+            }
+        }
+        else if (value instanceof V8Object) {
+            V8Object obj = (V8Object) value;
+            try {
+                return obj.isUndefined() ? null : _objectToJava(obj);
+            } finally {
+                obj.release();
+            }
+        }
+        else if (value instanceof Double) return _normalizeNumber((Double) value);
+        else return value;
+    }
+
+    private static JSONArray _arrayToJava(V8Array arr) {
+        int length = arr.length();
+        JSONArray result = new JSONArray(length);
+
+        for (int i = 0; i < length; i++) result.add(toJava(arr.get(i)));
+        return result;
+    }
+
+    private static JSONObject _objectToJava(V8Object obj) {
+        String[] keys = obj.getKeys();
+        JSONObject result = new JSONObject(keys.length);
+
+        for (String key : keys) {
+            if (obj.getType(key) == V8Value.UNDEFINED) continue; // Same as JSON.stringify()
+            result.put(key, toJava(obj.get(key)));
+        }
+        return result;
+    }
+
+    private static Object _normalizeNumber(Double value) {
+        double d = value;
+
+        if (d == Math.rint(d) && Math.abs(d) <= MAX_SAFE_INTEGER) {
+            long l = (long) d;
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) return (int) l;
+            else return l;
+        }
+        else return value;
+    }
+
+    /**
+     * Convert the JavaScript array (or null / undefined) into a list.
+     */
+    public static List<Object> toList(Object value) {
+        Object result = toJava(value);
+
+        if (result instanceof List) return (List<Object>) result;
+        else if (result == null) return new ArrayList<>();
+        else {
+            List<Object> list = new ArrayList<>();
+            list.add(result);
+            return list;
+        }
+    }
+
+    public static Record toRecord(Object value) {
+        Object result = toJava(value);
+        Record record = new Record();
+
+        if (result instanceof JSONObject) {
+            for (Map.Entry<String, Object> entry : ((JSONObject) result).entrySet()) {
+                record.setValue(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return record;
+    }
+
+    /**
+     * Convert the value into the value accepted by J2V8: Integer, Double, Boolean, String or V8Value.
+     */
+    public static Object toV8(V8 runtime, Object value) {
+        if (value == null) return null;
+        else if (value instanceof String || value instanceof Boolean || value instanceof Integer || value instanceof Double) return value;
+        else if (value instanceof Long) return _longToV8((Long) value);
+        else if (value instanceof Short || value instanceof Byte) return ((Number) value).intValue();
+        else if (value instanceof BigInteger) return _longToV8(((BigInteger) value).longValue());
+        else if (value instanceof BigDecimal) return _normalizeV8Number(((BigDecimal) value).doubleValue());
+        else if (value instanceof Number) return ((Number) value).doubleValue();
+        else if (value instanceof Map) return _mapToV8(runtime, (Map<?,?>) value);
+        else if (value instanceof Collection) return _collectionToV8(runtime, (Collection<?>) value);
+        else if (value instanceof Record) return recordToV8(runtime, (Record) value);
+        else if (value instanceof V8Value) return value;
+        else if (value instanceof Date && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)) {
+            return (double) ((Date) value).getTime();
+        }
+        else {
+            // Others, e.g. date, time and bytes, are converted the same as the JSON serialization
+            return toV8(runtime, JSON.parse(JSON.toJSONString(value)));
+        }
+    }
+
+    private static Object _longToV8(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+        else return (double) value;
+    }
+
+    private static Object _normalizeV8Number(double value) {
+        if (value == Math.rint(value) && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+        else return value;
+    }
+
+    private static V8Object _mapToV8(V8 runtime, Map<?,?> map) {
+        V8Object result = new V8Object(runtime);
+        for (Map.Entry<?,?> entry : map.entrySet()) _addToObject(runtime, result, String.valueOf(entry.getKey()), entry.getValue());
+        return result;
+    }
+
+    private static V8Array _collectionToV8(V8 runtime, Collection<?> collection) {
+        V8Array result = new V8Array(runtime);
+        for (Object item : collection) _pushToArray(runtime, result, item);
+        return result;
+    }
+
+    public static V8Object recordToV8(V8 runtime, Record record) {
+        V8Object result = new V8Object(runtime);
+        for (String field : record.getFields()) _addToObject(runtime, result, field, record.getValue(field));
+        return result;
+    }
+
+    /**
+     * Always returns an array, which is empty if there is no record.
+     */
+    public static V8Array recordsToV8(V8 runtime, Record[] records) {
+        V8Array result = new V8Array(runtime);
+
+        if (records != null) {
+            for (Record record : records) {
+                V8Object obj = recordToV8(runtime, record);
+                result.push(obj);
+                obj.release();
+            }
+        }
+
+        return result;
+    }
+
+    public static V8Array stringsToV8(V8 runtime, String[] arr) {
+        V8Array result = new V8Array(runtime);
+        for (String item : arr) result.push(item);
+        return result;
+    }
+
+    private static void _addToObject(V8 runtime, V8Object obj, String key, Object value) {
+        Object v = toV8(runtime, value);
+
+        if (v == null) obj.addNull(key);
+        else if (v instanceof String) obj.add(key, (String) v);
+        else if (v instanceof Integer) obj.add(key, (Integer) v);
+        else if (v instanceof Double) obj.add(key, (Double) v);
+        else if (v instanceof Boolean) obj.add(key, (Boolean) v);
+        else {
+            obj.add(key, (V8Value) v);
+            if (v != value) ((V8Value) v).release();
+        }
+    }
+
+    private static void _pushToArray(V8 runtime, V8Array arr, Object value) {
+        Object v = toV8(runtime, value);
+
+        if (v == null) arr.pushNull();
+        else if (v instanceof String) arr.push((String) v);
+        else if (v instanceof Integer) arr.push((Integer) v);
+        else if (v instanceof Double) arr.push((Double) v);
+        else if (v instanceof Boolean) arr.push((Boolean) v);
+        else {
+            arr.push((V8Value) v);
+            if (v != value) ((V8Value) v).release();
+        }
+    }
+
+}
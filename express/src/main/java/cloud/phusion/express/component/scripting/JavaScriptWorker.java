@@ -0,0 +1,733 @@
+package cloud.phusion.express.component.scripting;
+
+import cloud.phusion.Context;
+import cloud.phusion.PhusionException;
+import com.eclipsesource.v8.NodeJS;
+import com.eclipsesource.v8.V8Function;
+import com.eclipsesource.v8.V8Object;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedicated thread which owns one Node.js runtime. All scripts on the runtime run in this thread.
+ *
+ * The worker takes the tasks from its own queue first (to warm up or unload scripts on every runtime),
+ * then from the queue shared by all workers (to run the scripts).
+ *
+ * While async scripts are outstanding, the worker keeps running the event loop of Node.js between the tasks,
+ * so one worker interleaves many async scripts. An async script is finished when it calls "_callback",
+ * when it times out, or when its future is cancelled.
+ *
+ * A script running beyond its timeout is terminated by the watchdog of the executor, then the runtime is recycled
+ * (released and created again). The runtime is also recycled after a number of executions or when its heap is too large,
+ * once it has no outstanding async scripts.
+ *
+ * If the runtime fails to be created, the worker leaves the shared queue to the other workers, and tries again after
+ * a delay, which doubles on every failure (from 1 second up to 30 seconds). If no worker has a runtime, the scripts
+ * fail at once with the error.
+ */
+class JavaScriptWorker extends Thread {
+    private static final String _position = JavaScriptWorker.class.getName();
+
+    private static final long POLL_INTERVAL = 100; // In milliseconds
+    private static final long TICK_INTERVAL = 10; // In milliseconds, the max time the event loop blocks the worker
+    private static final int MEMORY_SAMPLE_INTERVAL = 100; // Sample the memory usage every 100 executions
+    private static final int HEAP_CHECK_INTERVAL = 10; // Or every 10 executions, if recycled by the heap size
+    private static final long RETRY_DELAY_MIN = 1000; // In milliseconds, to create the runtime again after failed
+    private static final long RETRY_DELAY_MAX = 30000; // In milliseconds
+
+    /**
+     * The work to do on the runtime of the worker.
+     */
+    interface Job {
+        Object run(JavaScriptWorker worker) throws Exception;
+    }
+
+    static final class Task {
+        final Job job;
+        final long timeout; // In milliseconds, 0 for no limit
+        final long submitTime = System.nanoTime();
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Task(Job job, long timeout) {
+            this.job = job;
+            this.timeout = timeout;
+        }
+    }
+
+    private final JavaScriptExecutor executor;
+    private final BlockingQueue<Task> sharedQueue;
+    private final BlockingQueue<Task> ownQueue = new LinkedBlockingQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Map (key name MUST have a 1-char prefix !):
+     * "n" -> NodeJS runtime;
+     * "f{scriptId}" -> V8Object function of the script;
+     * "t{scriptId}" -> Long timestamp when load the script;
+     * "r" -> The module refresh function;
+     * "l" -> The script loader (with code cache);
+     * "b" -> The JavaScript to Java bridge;
+     * "c" -> Current context;
+     * "a{handle}" -> Context of the outstanding async script
+     */
+    private Map<String,Object> map = null;
+    private volatile NodeJS node = null; // Also accessed by the watchdog
+    private volatile Exception startError = null;
+    private long retryDelay = 0; // In milliseconds
+    private long retryTime = 0; // In nanoseconds, when to create the runtime again
+
+    // Guarded by watchLock: the running script is terminated only before the worker finishes it
+    private final Object watchLock = new Object();
+    private long deadline = 0; // In nanoseconds, 0 for no limit
+    private boolean terminated = false;
+
+    /**
+     * The outstanding async script, which is only accessed in the worker thread.
+     */
+    private static final class AsyncCall {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final long deadline; // In nanoseconds, 0 for no limit
+        final long timeout; // In milliseconds
+        final Runnable onFinish;
+        final Context ctx;
+
+        AsyncCall(long timeout, Runnable onFinish, Context ctx) {
+            this.ctx = ctx;
+            this.timeout = timeout;
+            this.deadline = timeout>0 ? System.nanoTime()+timeout*1000000 : 0;
+            this.onFinish = onFinish;
+        }
+    }
+
+    /**
+     * Starts the async script with the callback handle.
+     */
+    interface AsyncStarter {
+        void start(String handle) throws Exception;
+    }
+
+    private final Map<String, AsyncCall> pending = new LinkedHashMap<>();
+    private long handleCount = 0;
+    private volatile int asyncCallCount = 0;
+
+    private volatile long executions = 0;
+    private long executionsOfRuntime = 0;
+    private volatile long objectReferences = 0;
+    private volatile long heapUsed = 0; // In bytes
+
+    JavaScriptWorker(JavaScriptExecutor executor, BlockingQueue<Task> sharedQueue, String name) {
+        super(name);
+
+        this.executor = executor;
+        this.sharedQueue = sharedQueue;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue the job to run on this worker only.
+     */
+    Task submit(Job job, long timeout) {
+        Task task = new Task(job, timeout);
+        ownQueue.offer(task);
+        return task;
+    }
+
+    void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        _startRuntime();
+
+        while (running) {
+            if (startError!=null && System.nanoTime()-retryTime>=0) {
+                if (_startRuntime()) _warmUp();
+            }
+
+            Task task = ownQueue.poll();
+
+            if (task == null) {
+                try {
+                    // Without a runtime, only the tasks of this worker are taken, and they fail with the start error
+                    if (startError != null) task = ownQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    else if (pending.isEmpty()) task = sharedQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    else task = sharedQueue.poll();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+
+            if (task != null) _runTask(task);
+
+            if (! pending.isEmpty()) _runEventLoop();
+        }
+
+        failPendingTasks(ownQueue);
+        _failAsyncCalls();
+        if (map != null) _releaseRuntime();
+    }
+
+    private void _runTask(Task task) {
+        long start = System.nanoTime();
+        executor._recordQueueWait(start - task.submitTime);
+
+        Object result = null;
+        Throwable error = null;
+
+        _beginWatch(task.timeout);
+
+        try {
+            if (startError != null) throw startError;
+            result = task.job.run(this);
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        boolean killed = _endWatch();
+
+        executor._recordExecTime(System.nanoTime() - start);
+        if (map != null) map.remove("c");
+
+        if (killed) {
+            task.future.completeExceptionally(new PhusionException("JS_TIMEOUT", "Failed to finish script in time",
+                    "timeout="+task.timeout+"ms"));
+            _recycle();
+        }
+        else {
+            if (error == null) task.future.complete(result);
+            else task.future.completeExceptionally(error);
+
+            _afterExecution();
+        }
+    }
+
+    private void _afterExecution() {
+        executions++;
+        executionsOfRuntime++;
+        int sampleInterval = executor.getRecycleHeapSize()>0 ? HEAP_CHECK_INTERVAL : MEMORY_SAMPLE_INTERVAL;
+        if (executions % sampleInterval == 0) _sampleMemory();
+
+        if (map==null || ! pending.isEmpty()) return;
+
+        // No script is running on the runtime, so the files and cursors still open are leaked
+        JavaScriptBridge bridge = (JavaScriptBridge) map.get("b");
+        bridge.closeFiles();
+        bridge.closeCursors();
+
+        long maxExecutions = executor.getRecycleExecutions();
+        long maxHeapUsed = executor.getRecycleHeapSize();
+
+        if ((maxExecutions>0 && executionsOfRuntime>=maxExecutions) || (maxHeapUsed>0 && heapUsed>=maxHeapUsed))
+            _recycle();
+    }
+
+    private void _beginWatch(long timeout) {
+        synchronized (watchLock) {
+            deadline = timeout>0 ? System.nanoTime()+timeout*1000000 : 0;
+            terminated = false;
+        }
+    }
+
+    /**
+     * Returns whether the script is terminated by the watchdog.
+     */
+    private boolean _endWatch() {
+        synchronized (watchLock) {
+            deadline = 0;
+            return terminated;
+        }
+    }
+
+    /**
+     * Called by the watchdog: terminate the running script if it is beyond the deadline.
+     */
+    boolean checkTimeout(long now) {
+        synchronized (watchLock) {
+            NodeJS current = node;
+
+            if (deadline!=0 && now-deadline>0 && !terminated && current!=null) {
+                terminated = true;
+                current.getRuntime().terminateExecution();
+                return true;
+            }
+            else return false;
+        }
+    }
+
+    /**
+     * Release the runtime and create a new one. The outstanding async scripts fail,
+     * and the scripts are loaded again (at once if warm-up is enabled).
+     */
+    private void _recycle() {
+        for (String handle : new ArrayList<>(pending.keySet())) {
+            AsyncCall call = pending.get(handle);
+            boolean expired = call.deadline>0 && System.nanoTime()-call.deadline>0;
+
+            _finishAsyncCall(handle, null, expired ?
+                    new PhusionException("JS_TIMEOUT", "Failed to finish script in time", "timeout="+call.timeout+"ms") :
+                    new PhusionException("JS_OP", "JavaScript runtime is recycled"));
+        }
+
+        if (map != null) _releaseRuntime();
+
+        if (! _startRuntime()) return;
+
+        executionsOfRuntime = 0;
+        executor._recordRecycle();
+        _warmUp();
+    }
+
+    /**
+     * Create the runtime. If failed, the next try is scheduled, and returns false.
+     */
+    private boolean _startRuntime() {
+        try {
+            _createRuntime();
+        } catch (Throwable t) {
+            // Also the linkage errors of the native library, which would end the worker
+            startError = new PhusionException("JS_OP", "Failed to create JavaScript runtime", t.getMessage());
+            retryDelay = retryDelay==0 ? RETRY_DELAY_MIN : Math.min(retryDelay*2, RETRY_DELAY_MAX);
+            retryTime = System.nanoTime() + retryDelay*1000000;
+
+            // No worker is left to take the scripts already queued
+            Exception error = executor._getStartError();
+            if (error != null) failPendingTasks(sharedQueue, error);
+            return false;
+        }
+
+        startError = null;
+        retryDelay = 0;
+        _sampleMemory();
+        return true;
+    }
+
+    private void _warmUp() {
+        if (executor.isWarmUp()) {
+            for (String scriptId : JavaScriptExecutor.scripts.keySet()) {
+                try {
+                    getScript(scriptId, null);
+                } catch (Exception ex) {
+                    // It fails again when running the script
+                }
+            }
+        }
+    }
+
+    static void failPendingTasks(BlockingQueue<Task> queue) {
+        failPendingTasks(queue, null);
+    }
+
+    /**
+     * @param error null if the runtimes are stopped
+     */
+    static void failPendingTasks(BlockingQueue<Task> queue, Exception error) {
+        Task task;
+        while ((task = queue.poll()) != null) {
+            task.future.completeExceptionally(error!=null ? error :
+                    new PhusionException("JS_OP", "JavaScript runtimes are stopped"));
+        }
+    }
+
+    private void _createRuntime() {
+        Map<String,Object> map = new HashMap<>();
+
+        NodeJS node = NodeJS.createNodeJS();
+        map.put("n", node);
+
+        // The JavaScript to Java bridge function
+        JavaScriptBridge bridge = new JavaScriptBridge(map);
+        map.put("b", bridge);
+        V8Function callback = new V8Function(node.getRuntime(), bridge);
+        node.getRuntime().add(JavaScriptBridge.JavaCallback_Func, callback);
+
+        // The JavaScript to Java callback to return async results
+        V8Function asyncCallback = new V8Function(node.getRuntime(), (receiver, parameters) -> {
+            Object result = parameters.length()>1 ? parameters.get(1) : null;
+            _finishAsyncCall(
+                    parameters.getString(0),
+                    (result instanceof String) ? (String) result : null,
+                    null
+            );
+            if (result instanceof V8Object) ((V8Object) result).release();
+            return null;
+        });
+        node.getRuntime().add(JavaScriptBridge.JavaCallback_AsyncResult, asyncCallback);
+
+        this.map = map;
+        this.node = node;
+    }
+
+    private void _releaseRuntime() {
+        NodeJS current = getNode();
+
+        synchronized (watchLock) {
+            node = null;
+        }
+
+        for (Object value : map.values()) {
+            if (value instanceof V8Object) ((V8Object) value).release();
+            else if (value instanceof JavaScriptBridge) {
+                ((JavaScriptBridge) value).closeFiles();
+                ((JavaScriptBridge) value).closeCursors();
+            }
+        }
+        map = null;
+
+        try {
+            current.release();
+        } catch (Exception ex) {
+            // Some objects are not released by the scripts, ignore it
+        }
+    }
+
+    /**
+     * The runtime memory is read on the worker thread, because the runtime can only be accessed by its own thread.
+     */
+    private void _sampleMemory() {
+        try {
+            NodeJS current = getNode();
+            objectReferences = current.getRuntime().getObjectReferenceCount();
+
+            V8Object usage = current.getRuntime().executeObjectScript("process.memoryUsage()");
+            heapUsed = (long) usage.getDouble("heapUsed");
+            usage.release();
+        } catch (Exception ex) {
+            // Not critical
+        }
+    }
+
+    /**
+     * Start the async script and return at once. The future is completed in the worker thread.
+     *
+     * @param timeout in milliseconds, 0 for no limit
+     * @param onFinish run in the worker thread when the script is finished, e.g. to release the objects
+     */
+    CompletableFuture<String> callAsync(AsyncStarter starter, long timeout, Runnable onFinish, Context ctx) {
+        handleCount ++;
+        String handle = getName() + "-" + handleCount;
+
+        putContext(ctx);
+
+        AsyncCall call = new AsyncCall(timeout, onFinish, ctx);
+        pending.put(handle, call);
+        if (ctx != null) map.put("a"+handle, ctx);
+        asyncCallCount = pending.size();
+        if (asyncCallCount == 1) _startTicking();
+
+        try {
+            starter.start(handle);
+        } catch (Exception ex) {
+            _finishAsyncCall(handle, null, ex);
+        }
+
+        return call.future;
+    }
+
+    private void _finishAsyncCall(String handle, String result, Exception error) {
+        AsyncCall call = pending.remove(handle);
+        if (call == null) return; // Timed out or cancelled already
+        if (map != null) map.remove("a"+handle);
+
+        asyncCallCount = pending.size();
+        if (asyncCallCount == 0) _stopTicking();
+
+        if (call.onFinish != null) {
+            try {
+                call.onFinish.run();
+            } catch (Exception ex) {
+                // Not critical
+            }
+        }
+
+        if (error == null) call.future.complete(result);
+        else call.future.completeExceptionally(error);
+    }
+
+    /**
+     * Run the callbacks which are ready, then finish the timed out and cancelled scripts.
+     */
+    private void _runEventLoop() {
+        _expireAsyncCalls();
+        if (pending.isEmpty()) return;
+
+        // The calls from the scripts carry their callback handles, so the bridge finds their own contexts. The calls
+        // without the handle are made within the context of the earliest outstanding script.
+
+        putContext(pending.values().iterator().next().ctx);
+
+        // A callback running beyond the earliest deadline is terminated
+
+        long timeout = 0;
+        long now = System.nanoTime();
+        for (AsyncCall call : pending.values()) {
+            if (call.deadline == 0) continue;
+            long remaining = (call.deadline-now)/1000000 + 1;
+            if (timeout==0 || remaining<timeout) timeout = remaining;
+        }
+
+        _beginWatch(timeout);
+
+        try {
+            getNode().handleMessage();
+        } catch (Exception ex) {
+            // The error is thrown to the script
+        } finally {
+            if (map != null) map.remove("c");
+        }
+
+        if (_endWatch()) _recycle();
+        else _expireAsyncCalls();
+    }
+
+    /**
+     * Finish the timed out and cancelled scripts.
+     */
+    private void _expireAsyncCalls() {
+        long now = System.nanoTime();
+        List<String> expired = null;
+
+        for (Map.Entry<String, AsyncCall> entry : pending.entrySet()) {
+            AsyncCall call = entry.getValue();
+            if (call.future.isDone() || (call.deadline>0 && now-call.deadline>0)) {
+                if (expired == null) expired = new ArrayList<>();
+                expired.add(entry.getKey());
+            }
+        }
+
+        if (expired != null) {
+            for (String handle : expired) {
+                AsyncCall call = pending.get(handle);
+                _finishAsyncCall(handle, null, new PhusionException("JS_TIMEOUT", "Failed to finish script in time",
+                        "timeout="+call.timeout+"ms"));
+            }
+        }
+    }
+
+    private void _failAsyncCalls() {
+        for (String handle : new ArrayList<>(pending.keySet())) {
+            _finishAsyncCall(handle, null, new PhusionException("JS_OP", "JavaScript runtimes are stopped"));
+        }
+    }
+
+    /**
+     * Keep a timer in the event loop, so that running the loop returns at least every TICK_INTERVAL,
+     * even if the scripts are waiting for the I/O.
+     */
+    private void _startTicking() {
+        try {
+            getNode().getRuntime().executeVoidScript("global.__phusionTick = setInterval(function(){}, "+TICK_INTERVAL+");");
+        } catch (Exception ex) {
+            // Not critical
+        }
+    }
+
+    private void _stopTicking() {
+        try {
+            getNode().getRuntime().executeVoidScript("clearInterval(global.__phusionTick);");
+        } catch (Exception ex) {
+            // Not critical
+        }
+    }
+
+    /**
+     * Returns the error if the runtime failed to be created and is not created again yet, otherwise null.
+     */
+    Exception getStartError() {
+        return startError;
+    }
+
+    int getAsyncCallCount() {
+        return asyncCallCount;
+    }
+
+    NodeJS getNode() {
+        return map==null ? null : (NodeJS) map.get("n");
+    }
+
+    void putContext(Context ctx) {
+        map.put("c", ctx);
+    }
+
+    private void _prepareClearModuleScript() throws Exception {
+        File f = new File(executor.getBasePath()+"clear_module.js");
+
+        // Create the script file if not exist
+        synchronized (JavaScriptWorker.class) {
+            if (! f.exists()) {
+                FileUtils.write(f,
+                        "exports.clear_module=" +
+                                "function(f){try{" +
+                                "delete require.cache[f];" +
+                                "}catch(e){console.log('Error clear_module: '+e.message)}}",
+                        "UTF-8"
+                );
+            }
+        }
+
+        V8Object func = getNode().require(f);
+        map.put("r", func);
+    }
+
+    /**
+     * Load the script as a Node.js module, the same as "require", but the compiled code is cached on disk
+     * (V8 code cache), so that the other runtimes, and this runtime after recycled or restarted, skip the compiling.
+     *
+     * Status: "compiled", "cached" (loaded from the code cache), "rejected" (the code cache is out of date,
+     * e.g. V8 is upgraded, so compiled again), or "loaded" (already loaded as a module).
+     */
+    private static final String LOADER_SCRIPT =
+            "var Module=require('module'),vm=require('vm'),fs=require('fs'),path=require('path');\n" +
+            "exports.status=null;\n" +
+            "exports.load=function(filename,cacheFile){\n" +
+            "  var m=Module._cache[filename];\n" +
+            "  if(m){exports.status='loaded';return m.exports;}\n" +
+            "  var source=fs.readFileSync(filename,'utf8');\n" +
+            "  if(source.charCodeAt(0)===0xFEFF)source=source.slice(1);\n" +
+            "  source=Module.wrap(source);\n" +
+            "  var data;\n" +
+            "  try{data=fs.readFileSync(cacheFile);}catch(e){}\n" +
+            "  var script=new vm.Script(source,{filename:filename,cachedData:data,produceCachedData:!data});\n" +
+            "  if(data&&!script.cachedDataRejected)exports.status='cached';\n" +
+            "  else{\n" +
+            "    if(data){exports.status='rejected';script=new vm.Script(source,{filename:filename,produceCachedData:true});}\n" +
+            "    else exports.status='compiled';\n" +
+            "    if(script.cachedDataProduced){\n" +
+            "      var tmp=cacheFile+'.'+process.pid+'.'+Math.random().toString(36).slice(2);\n" +
+            "      try{fs.writeFileSync(tmp,script.cachedData);fs.renameSync(tmp,cacheFile);}catch(e){try{fs.unlinkSync(tmp);}catch(e2){}}\n" +
+            "    }\n" +
+            "  }\n" +
+            "  m=new Module(filename,module);\n" +
+            "  m.filename=filename;\n" +
+            "  m.paths=Module._nodeModulePaths(path.dirname(filename));\n" +
+            "  Module._cache[filename]=m;\n" +
+            "  var req=function(id){return m.require(id);};\n" +
+            "  req.resolve=function(request){return Module._resolveFilename(request,m);};\n" +
+            "  req.cache=Module._cache;\n" +
+            "  try{script.runInThisContext().call(m.exports,m.exports,req,m,filename,path.dirname(filename));}\n" +
+            "  catch(e){delete Module._cache[filename];throw e;}\n" +
+            "  m.loaded=true;\n" +
+            "  return m.exports;\n" +
+            "};\n";
+
+    private static boolean loaderPrepared = false;
+
+    private void _prepareLoaderScript() throws Exception {
+        File f = new File(executor.getBasePath()+"script_loader.js");
+
+        // Write the script file once in each process, to take the changes of the loader
+        synchronized (JavaScriptWorker.class) {
+            if (! loaderPrepared) {
+                FileUtils.write(f, LOADER_SCRIPT, "UTF-8");
+                loaderPrepared = true;
+            }
+        }
+
+        V8Object loader = getNode().require(f);
+        map.put("l", loader);
+    }
+
+    private V8Object _requireScript(String scriptId, String script) throws Exception {
+        File file = new File(script);
+        File cacheFile = executor.getCodeCacheFile(scriptId, file);
+        long start = System.nanoTime();
+
+        if (cacheFile == null) {
+            V8Object result = getNode().require(file);
+            executor._recordScriptLoad(scriptId, "compiled", System.nanoTime()-start);
+            return result;
+        }
+
+        V8Object loader = (V8Object) map.get("l");
+        if (loader == null) {
+            _prepareLoaderScript();
+            loader = (V8Object) map.get("l");
+        }
+
+        Object result = loader.executeJSFunction("load", file.getCanonicalPath(), cacheFile.getPath());
+        executor._recordScriptLoad(scriptId, loader.getString("status"), System.nanoTime()-start);
+
+        if (result instanceof V8Object) return (V8Object) result;
+        else throw new PhusionException("JS_OP", "The script exports nothing", "script="+script);
+    }
+
+    void clearModule(String script) throws Exception {
+        V8Object func = (V8Object) map.get("r");
+        if (func == null) {
+            _prepareClearModuleScript();
+            func = (V8Object) map.get("r");
+        }
+
+        func.executeJSFunction("clear_module", (new File(script)).getCanonicalPath());
+    }
+
+    /**
+     * Load the script if it is not loaded, or it is reloaded after this runtime loaded it.
+     */
+    V8Object getScript(String scriptId, Context ctx) throws Exception {
+        V8Object currentFunc = (V8Object) map.get("f"+scriptId);
+        Long currentTimestamp = (Long) map.get("t"+scriptId);
+
+        Long refreshTimestamp = JavaScriptExecutor.scripts.get(scriptId);
+        String script = JavaScriptExecutor.scriptFiles.get(scriptId);
+
+        if (refreshTimestamp==null || script==null) throw new PhusionException("JS_NONE", "Failed to find script", ctx);
+
+        if (currentTimestamp==null || currentTimestamp<refreshTimestamp) {
+            // Load the script
+
+            if (currentFunc != null) currentFunc.release();
+
+            try {
+                currentFunc = _requireScript(scriptId, script);
+            } catch (Exception ex) {
+                map.remove("f"+scriptId);
+                map.remove("t"+scriptId);
+                throw new PhusionException("JS_OP", "Failed to node.require script", ctx, ex);
+            }
+
+            map.put("f"+scriptId, currentFunc);
+            map.put("t"+scriptId, System.currentTimeMillis());
+        }
+
+        if (currentFunc == null) throw new PhusionException("JS_NONE", "Failed to physically load script", ctx);
+        else return currentFunc;
+    }
+
+    void releaseScript(String scriptId, String script) throws Exception {
+        if (script != null) clearModule(script);
+
+        V8Object func = (V8Object) map.remove("f"+scriptId);
+        if (func != null) func.release();
+        map.remove("t"+scriptId);
+    }
+
+    long getExecutions() {
+        return executions;
+    }
+
+    long getObjectReferences() {
+        return objectReferences;
+    }
+
+    long getHeapUsed() {
+        return heapUsed;
+    }
+
+    int getQueueLength() {
+        return ownQueue.size();
+    }
+
+}
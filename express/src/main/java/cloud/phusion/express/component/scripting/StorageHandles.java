@@ -0,0 +1,71 @@
+package cloud.phusion.express.component.scripting;
+
+import cloud.phusion.Engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The storage handles resolved by one JavaScript runtime: "{k|f|d}{instance}" -> KVStorage, FileStorage or DBStorage.
+ *
+ * The handles are only used by the thread of the runtime. They are dropped when any application or integration
+ * is removed (the generation changes), when the engine changes, or when there are too many of them.
+ */
+public class StorageHandles {
+    public static final int MAX_HANDLES = 1000;
+
+    private static volatile long generation = 0;
+
+    private final Map<String,Object> handles = new HashMap<>();
+    private long handlesGeneration = 0;
+    private Engine handlesEngine = null;
+
+    /**
+     * Drop the storage handles cached by all runtimes.
+     */
+    public static synchronized void invalidate() {
+        generation ++;
+    }
+
+    /**
+     * @param kind "k": KVStorage, "f": FileStorage, "d": DBStorage
+     * @param instance "{application|integration|client} {id}"
+     */
+    public Object get(String kind, String instance, Engine engine) throws Exception {
+        long current = generation;
+
+        if (handlesGeneration!=current || handlesEngine!=engine || handles.size()>=MAX_HANDLES) {
+            handles.clear();
+            handlesGeneration = current;
+            handlesEngine = engine;
+        }
+
+        String key = kind + instance;
+        Object storage = handles.get(key);
+        if (storage != null) return storage;
+
+        int pos = instance.indexOf(' ');
+        String type = instance.substring(0,pos);
+        String id = instance.substring(pos+1);
+
+        switch (kind + type) {
+            case "kapplication": storage = engine.getKVStorageForApplication(id); break;
+            case "kintegration": storage = engine.getKVStorageForIntegration(id); break;
+            case "kclient": storage = engine.getKVStorageForClient(id); break;
+            case "fapplication": storage = engine.getFileStorageForApplication(id); break;
+            case "fintegration": storage = engine.getFileStorageForIntegration(id); break;
+            case "fclient": storage = engine.getFileStorageForClient(id); break;
+            case "dapplication": storage = engine.getDBStorageForApplication(id); break;
+            case "dintegration": storage = engine.getDBStorageForIntegration(id); break;
+            case "dclient": storage = engine.getDBStorageForClient(id); break;
+        }
+
+        if (storage != null) handles.put(key, storage);
+        return storage;
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+}
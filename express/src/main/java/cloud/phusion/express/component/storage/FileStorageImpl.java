@@ -7,6 +7,8 @@ import cloud.phusion.storage.FileStorage;
 import org.apache.commons.io.FileUtils;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 public class FileStorageImpl implements FileStorage {
@@ -224,22 +226,7 @@ public class FileStorageImpl implements FileStorage {
 }
 
     private void _saveToFile(String path, InputStream content, Context ctx) throws Exception {
-        _checkPathValidity(path, "save file", ctx);
-
-        File f = new File(path);
-
-        if (path.charAt(path.length()-1)=='/' || f.isDirectory())
-            throw new PhusionException("FILE_NOT", "Failed to save file", ctx);
-
-        if (! f.exists()) {
-            // Automatically create the parent folders
-            try {
-                File folder = new File(f.getParent());
-                if (! folder.exists()) folder.mkdirs();
-            } catch (Exception ex) {
-                throw new PhusionException("FS_OP", "Failed to create folders", ctx, ex);
-            }
-        }
+        File f = _prepareFileToWrite(path, ctx);
 
         try (FileOutputStream out = new FileOutputStream(f, false)) {
             int len;
@@ -291,6 +278,27 @@ public class FileStorageImpl implements FileStorage {
         ctx.removeContextInfo("namespace");
     }
 
+    private File _prepareFileToWrite(String path, Context ctx) throws Exception {
+        _checkPathValidity(path, "save file", ctx);
+
+        File f = new File(path);
+
+        if (path.charAt(path.length()-1)=='/' || f.isDirectory())
+            throw new PhusionException("FILE_NOT", "Failed to save file", ctx);
+
+        if (! f.exists()) {
+            // Automatically create the parent folders
+            try {
+                File folder = new File(f.getParent());
+                if (! folder.exists()) folder.mkdirs();
+            } catch (Exception ex) {
+                throw new PhusionException("FS_OP", "Failed to create folders", ctx, ex);
+            }
+        }
+
+        return f;
+    }
+
     private void _saveToFile(String path, byte[] content, Context ctx) throws Exception {
         try (ByteArrayInputStream in = new ByteArrayInputStream(content)) {
             _saveToFile(path, in, ctx);
@@ -338,6 +346,16 @@ public class FileStorageImpl implements FileStorage {
     }
 
     private InputStream _readFromFile(String path, Context ctx) throws Exception {
+        File f = _prepareFileToRead(path, ctx);
+
+        try {
+            return new FileInputStream(f);
+        } catch (Exception ex) {
+            throw new PhusionException("FS_OP", "Failed to read file", ctx, ex);
+        }
+    }
+
+    private File _prepareFileToRead(String path, Context ctx) throws Exception {
         _checkPathValidity(path, "read file", ctx);
 
         File f = new File(path);
@@ -349,10 +367,62 @@ public class FileStorageImpl implements FileStorage {
             throw new PhusionException("FILE_NOT", "Failed to access file", ctx);
         }
 
+        return f;
+    }
+
+    /**
+     * Open the file as a channel, to read or write it in chunks. The caller must close the channel.
+     *
+     * @param mode "r": read; "w": write from the beginning (the file is truncated); "a": append to the end.
+     */
+    public FileChannel openFile(String path, String mode, Context ctx) throws Exception {
+        if (myPrivateRootPath == null)
+            throw new PhusionException("FS_NONE", "Failed to access file", ctx);
+
+        ctx.setContextInfo("namespace", namespace);
+        ctx.setContextInfo("path", "[private]"+path);
+
+        FileChannel result = _openFile( myPrivateRootPath + path, mode, ctx );
+
+        ctx.removeContextInfo("path");
+        ctx.removeContextInfo("namespace");
+        return result;
+    }
+
+    public FileChannel openPublicFile(String path, String mode, Context ctx) throws Exception {
+        if (myPublicRootPath == null)
+            throw new PhusionException("FS_NONE", "Failed to access file", ctx);
+
+        ctx.setContextInfo("namespace", namespace);
+        ctx.setContextInfo("path", "[public]"+path);
+
+        FileChannel result = _openFile( myPublicRootPath + path, mode, ctx );
+
+        ctx.removeContextInfo("path");
+        ctx.removeContextInfo("namespace");
+        return result;
+    }
+
+    private FileChannel _openFile(String path, String mode, Context ctx) throws Exception {
+        if (mode == null || mode.length() == 0) mode = "r";
+
         try {
-            return new FileInputStream(f);
+            switch (mode) {
+                case "r":
+                    return FileChannel.open(_prepareFileToRead(path, ctx).toPath(), StandardOpenOption.READ);
+                case "w":
+                    return FileChannel.open(_prepareFileToWrite(path, ctx).toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                case "a":
+                    return FileChannel.open(_prepareFileToWrite(path, ctx).toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                default:
+                    throw new PhusionException("FS_OP", "Failed to open file", "mode="+mode);
+            }
+        } catch (PhusionException ex) {
+            throw ex;
         } catch (Exception ex) {
-            throw new PhusionException("FS_OP", "Failed to read file", ctx, ex);
+            throw new PhusionException("FS_OP", "Failed to open file", ctx, ex);
         }
     }
 
@@ -0,0 +1,174 @@
+package cloud.phusion.express.component.storage;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the single-key operations from different threads into pipelines.
+ *
+ * The callers queue the commands and wait. The flusher thread takes the first command, waits for more in the window
+ * (or until the batch is full), then sends them in one pipeline with one connection, and hands out the responses.
+ * While a pipeline is running, the new commands are queued for the next one.
+ */
+class KVBatcher {
+    private static final long POLL_INTERVAL = 100; // In milliseconds
+
+    /**
+     * Queues the command into the pipeline.
+     */
+    interface Command {
+        Response<?> queue(Pipeline pipeline);
+    }
+
+    private static final class Request {
+        final Command command;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        Response<?> response = null;
+
+        Request(Command command) {
+            this.command = command;
+        }
+    }
+
+    private final JedisPool pool;
+    private final long window; // In nanoseconds
+    private final int maxSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong commands = new AtomicLong(0);
+    private final AtomicLong maxBatch = new AtomicLong(0);
+
+    /**
+     * @param window in microseconds
+     */
+    KVBatcher(JedisPool pool, long window, int maxSize) {
+        this.pool = pool;
+        this.window = window * 1000;
+        this.maxSize = maxSize<1 ? 1 : maxSize;
+
+        flusher = new Thread(this::_run, "phusion-kv-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Run the command in the next pipeline and wait for the result.
+     */
+    Object execute(Command command) throws Exception {
+        if (! running) throw new IllegalStateException("KVStorage batching is stopped");
+
+        Request request = new Request(command);
+        queue.offer(request);
+        if (! running && queue.remove(request)) throw new IllegalStateException("KVStorage batching is stopped");
+
+        try {
+            return request.future.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw (t instanceof Exception) ? (Exception) t : ex;
+        }
+    }
+
+    private void _run() {
+        List<Request> batch = new ArrayList<>(maxSize);
+
+        while (running) {
+            try {
+                Request first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+
+                batch.add(first);
+                long deadline = System.nanoTime() + window;
+
+                while (batch.size() < maxSize) {
+                    Request next = queue.poll();
+
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) break;
+
+                        next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                // Stopping, send the commands taken already
+            }
+
+            if (! batch.isEmpty()) {
+                _flush(batch);
+                batch.clear();
+            }
+        }
+
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new IllegalStateException("KVStorage batching is stopped"));
+        }
+    }
+
+    private void _flush(List<Request> batch) {
+        batches.incrementAndGet();
+        commands.addAndGet(batch.size());
+        long current = maxBatch.get();
+        while (batch.size() > current && ! maxBatch.compareAndSet(current, batch.size())) current = maxBatch.get();
+
+        try (Jedis redis = pool.getResource()) {
+            Pipeline pipeline = redis.pipelined();
+            for (Request request : batch) request.response = request.command.queue(pipeline);
+            pipeline.sync();
+
+            for (Request request : batch) {
+                try {
+                    request.future.complete(request.response.get());
+                } catch (Exception ex) {
+                    // The error reply of the command
+                    request.future.completeExceptionally(ex);
+                }
+            }
+        } catch (Exception ex) {
+            // The requests completed already are not affected
+            for (Request request : batch) request.future.completeExceptionally(ex);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        flusher.interrupt();
+
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException ex) {
+            // Ignore it
+        }
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getCommands() {
+        return commands.get();
+    }
+
+    long getMaxBatch() {
+        return maxBatch.get();
+    }
+
+    int getQueueLength() {
+        return queue.size();
+    }
+
+}
@@ -0,0 +1,653 @@
+package cloud.phusion.express.component.storage;
+
+import com.alibaba.fastjson2.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * In-process key-value store, used by KVStorageImpl when Redis is not configured (single-node engines).
+ *
+ * - Every operation on a key is atomic (ConcurrentHashMap.compute).
+ * - Expiry: the expired keys are removed when read, and by the reaper thread with a timing wheel (100ms ticks,
+ *   512 slots). The keys expiring beyond the wheel wait in a sorted overflow, and move into the wheel when due.
+ * - Memory cap: if the estimated memory exceeds the max, the keys are evicted by CLOCK (second chance), i.e. a key
+ *   read since the last sweep is kept for another round.
+ * - Persistence (optional): the changes are appended to a file, flushed and synced every second. It is replayed and
+ *   compacted when started, and compacted again when it grows to twice the data (the writes wait meanwhile).
+ * - Pub/sub: the messages are delivered to the listeners in the engine, in order, by one dispatcher thread.
+ * - Streams: like pub/sub, but every consumer group keeps the messages sent while it is stopped, and receives them
+ *   when it consumes again.
+ */
+class KVLocalStore {
+    private static final long TICK = 100; // In milliseconds
+    private static final int SLOTS = 512;
+    private static final long ENTRY_OVERHEAD = 80; // In bytes
+    private static final long MIN_REWRITE_SIZE = 16 * 1024 * 1024; // In bytes
+
+    private static final byte OP_SET = 'S';
+    private static final byte OP_DEL = 'D';
+
+    private static final class Entry {
+        final String key;
+        final String value;
+        final long expireTime; // In milliseconds, 0 for no expire time
+        final long size;
+        volatile boolean referenced = false;
+
+        Entry(String key, String value, long expireTime) {
+            this.key = key;
+            this.value = value;
+            this.expireTime = expireTime;
+            this.size = ENTRY_OVERHEAD + 2L*(key.length() + value.length());
+        }
+
+        boolean isExpired(long now) {
+            return expireTime > 0 && expireTime <= now;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong usedMemory = new AtomicLong(0);
+    private final long maxMemory; // In bytes, 0 for no limit
+
+    // Timing wheel
+    private final Queue<Entry>[] wheel;
+    private final TreeMap<Long, List<Entry>> overflow = new TreeMap<>(); // By the tick, guarded by itself
+    private volatile long currentTick;
+
+    // CLOCK eviction
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong clockLength = new AtomicLong(0);
+    private final Object evictionLock = new Object();
+
+    // Append-only file
+    private final File aofFile;
+    private DataOutputStream aof = null; // Guarded by aofLock
+    private FileOutputStream aofStream = null;
+    private long aofSnapshotSize = 0; // The file size after rewritten, aof.size() is appended since then
+    private final Object aofLock = new Object();
+    private final AtomicLong aofRewrites = new AtomicLong(0);
+
+    // Pub/sub
+    private final Map<String, Set<MessageListener>> listeners = new ConcurrentHashMap<>();
+    private final ExecutorService dispatcher;
+
+    // Streams
+    private static final class StreamGroup {
+        final Deque<String> backlog = new ArrayDeque<>(); // Guarded by the group
+        String channel = null;
+        MessageListener listener = null; // Null if stopped, the messages are kept in the backlog meanwhile
+    }
+
+    private final Map<String, Map<String, StreamGroup>> streams = new ConcurrentHashMap<>(); // By stream and group
+    private final AtomicLong streamSequence = new AtomicLong(0);
+    private final AtomicLong streamDelivered = new AtomicLong(0);
+    private final AtomicLong streamFailed = new AtomicLong(0);
+
+    private final Thread reaper;
+    private volatile boolean running = true;
+
+    private final AtomicLong expired = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+    private final AtomicLong published = new AtomicLong(0);
+
+    /**
+     * @param maxMemory in bytes, 0 for no limit
+     * @param aofPath the file to persist the data, null for no persistence
+     */
+    @SuppressWarnings("unchecked")
+    KVLocalStore(long maxMemory, String aofPath) throws IOException {
+        this.maxMemory = maxMemory;
+
+        wheel = new Queue[SLOTS];
+        for (int i = 0; i < SLOTS; i++) wheel[i] = new ConcurrentLinkedQueue<>();
+        currentTick = System.currentTimeMillis() / TICK;
+
+        if (aofPath != null && aofPath.length() > 0) {
+            aofFile = new File(aofPath);
+            if (aofFile.getParentFile() != null) aofFile.getParentFile().mkdirs();
+
+            _replay();
+            synchronized (aofLock) {
+                _rewrite();
+            }
+        }
+        else aofFile = null;
+
+        dispatcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "phusion-kv-local-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        reaper = new Thread(this::_reap, "phusion-kv-local-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    String get(String key) {
+        Entry entry = _getEntry(key);
+        if (entry == null) return null;
+
+        entry.referenced = true;
+        return entry.value;
+    }
+
+    boolean exists(String key) {
+        return _getEntry(key) != null;
+    }
+
+    /**
+     * Returns the milliseconds to live, -1 if no expire time, or -2 if not found (the same as PTTL).
+     */
+    long pttl(String key) {
+        Entry entry = _getEntry(key);
+        if (entry == null) return -2;
+        else if (entry.expireTime == 0) return -1;
+        else return Math.max(entry.expireTime - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @param millisecondsToLive 0 for no expire time
+     */
+    void set(String key, String value, long millisecondsToLive) {
+        Entry entry = new Entry(key, value, _expireTime(millisecondsToLive));
+        _compute(key, (k, old) -> entry);
+    }
+
+    /**
+     * Returns false if the key exists.
+     */
+    boolean setIfAbsent(String key, String value, long millisecondsToLive) {
+        Entry entry = new Entry(key, value, _expireTime(millisecondsToLive));
+        long now = System.currentTimeMillis();
+
+        return _compute(key, (k, old) -> (old == null || old.isExpired(now)) ? entry : old) == entry;
+    }
+
+    boolean remove(String key) {
+        long now = System.currentTimeMillis();
+        boolean[] removed = new boolean[]{false};
+
+        _compute(key, (k, old) -> {
+            removed[0] = old != null && ! old.isExpired(now);
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Remove the key only if its value is the given one.
+     */
+    boolean removeIfEquals(String key, String value) {
+        long now = System.currentTimeMillis();
+        boolean[] removed = new boolean[]{false};
+
+        _compute(key, (k, old) -> {
+            if (old == null || old.isExpired(now)) return null;
+            if (! old.value.equals(value)) return old;
+
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Set the expire time only if the value of the key is the given one.
+     */
+    boolean expireIfEquals(String key, String value, long millisecondsToLive) {
+        long now = System.currentTimeMillis();
+        Entry[] renewed = new Entry[]{null};
+
+        _compute(key, (k, old) -> {
+            if (old == null || old.isExpired(now)) return null;
+            if (! old.value.equals(value)) return old;
+
+            renewed[0] = new Entry(key, value, _expireTime(millisecondsToLive));
+            return renewed[0];
+        });
+        return renewed[0] != null;
+    }
+
+    /**
+     * Increase the number by 1 (0 if not found), keeping the expire time.
+     */
+    long increment(String key) {
+        long now = System.currentTimeMillis();
+        long[] result = new long[]{0};
+
+        _compute(key, (k, old) -> {
+            boolean alive = old != null && ! old.isExpired(now);
+            result[0] = (alive ? Long.parseLong(old.value) : 0) + 1;
+            return new Entry(key, "" + result[0], alive ? old.expireTime : 0);
+        });
+        return result[0];
+    }
+
+    private static long _expireTime(long millisecondsToLive) {
+        return millisecondsToLive > 0 ? System.currentTimeMillis() + millisecondsToLive : 0;
+    }
+
+    private Entry _getEntry(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+
+        if (entry.isExpired(System.currentTimeMillis())) {
+            _removeEntry(entry, expired);
+            return null;
+        }
+        else return entry;
+    }
+
+    /**
+     * Change the key atomically, along with the memory usage, the expiry, the eviction and the file.
+     */
+    private Entry _compute(String key, BiFunction<String, Entry, Entry> function) {
+        boolean[] changed = new boolean[]{false};
+
+        Entry result = entries.compute(key, (k, old) -> {
+            Entry entry = function.apply(k, old);
+
+            if (entry != old) {
+                changed[0] = true;
+                usedMemory.addAndGet((entry==null ? 0 : entry.size) - (old==null ? 0 : old.size));
+
+                // In the lock of the key, so the changes of the key are logged in order
+                if (entry != null) _log(OP_SET, key, entry.value, entry.expireTime);
+                else if (old != null) _log(OP_DEL, key, null, 0);
+            }
+            return entry;
+        });
+
+        if (result != null && changed[0]) {
+            _schedule(result);
+
+            if (maxMemory > 0) {
+                clock.offer(result);
+                clockLength.incrementAndGet();
+                _evict();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove the entry if it is still the value of its key.
+     */
+    private boolean _removeEntry(Entry entry, AtomicLong counter) {
+        boolean[] removed = new boolean[]{false};
+
+        entries.computeIfPresent(entry.key, (k, current) -> {
+            if (current != entry) return current;
+
+            removed[0] = true;
+            usedMemory.addAndGet(-entry.size);
+            _log(OP_DEL, k, null, 0);
+            return null;
+        });
+
+        if (removed[0]) counter.incrementAndGet();
+        return removed[0];
+    }
+
+    private void _schedule(Entry entry) {
+        if (entry.expireTime == 0) return;
+
+        long tick = Math.max(entry.expireTime / TICK, currentTick + 1);
+
+        if (tick < currentTick + SLOTS) wheel[(int) (tick % SLOTS)].offer(entry);
+        else {
+            synchronized (overflow) {
+                overflow.computeIfAbsent(tick, t -> new ArrayList<>()).add(entry);
+            }
+        }
+    }
+
+    private void _evict() {
+        if (usedMemory.get() <= maxMemory) return;
+
+        synchronized (evictionLock) {
+            while (usedMemory.get() > maxMemory) {
+                Entry entry = clock.poll();
+                if (entry == null) break;
+                clockLength.decrementAndGet();
+
+                if (entries.get(entry.key) != entry) continue; // Replaced or removed
+
+                if (entry.referenced) {
+                    // Second chance
+                    entry.referenced = false;
+                    clock.offer(entry);
+                    clockLength.incrementAndGet();
+                }
+                else _removeEntry(entry, evicted);
+            }
+        }
+    }
+
+    private void _reap() {
+        long lastSync = System.currentTimeMillis();
+
+        while (running) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException ex) {
+                continue; // Stopping
+            }
+
+            long now = System.currentTimeMillis();
+            long nowTick = now / TICK;
+
+            while (currentTick < nowTick) {
+                long tick = ++currentTick;
+
+                synchronized (overflow) {
+                    // Move the keys due within the wheel
+                    SortedMap<Long, List<Entry>> due = overflow.headMap(tick + SLOTS);
+                    for (List<Entry> list : due.values()) {
+                        for (Entry entry : list) wheel[(int) (Math.max(entry.expireTime / TICK, tick) % SLOTS)].offer(entry);
+                    }
+                    due.clear();
+                }
+
+                Queue<Entry> slot = wheel[(int) (tick % SLOTS)];
+                List<Entry> entriesInSlot = new ArrayList<>();
+                Entry entry;
+                while ((entry = slot.poll()) != null) entriesInSlot.add(entry);
+
+                for (Entry e : entriesInSlot) {
+                    if (e.isExpired(now)) _removeEntry(e, expired);
+                    else if (entries.get(e.key) == e) _schedule(e); // Scheduled late
+                }
+            }
+
+            // The entries replaced or removed are left in the clock, purge them if too many
+            if (maxMemory > 0 && clockLength.get() > 2L*entries.size() + 1024) {
+                synchronized (evictionLock) {
+                    clock.removeIf(e -> entries.get(e.key) != e);
+                    clockLength.set(clock.size());
+                }
+            }
+
+            if (aofFile != null && now - lastSync >= 1000) {
+                lastSync = now;
+                _syncFile();
+            }
+        }
+    }
+
+    private void _log(byte op, String key, String value, long expireTime) {
+        if (aofFile == null) return;
+
+        synchronized (aofLock) {
+            if (aof == null) return;
+
+            try {
+                _writeRecord(aof, op, key, value, expireTime);
+            } catch (IOException ex) {
+                // The file is broken, the data stays in memory. It is rewritten in the next sync.
+                _closeFile();
+            }
+        }
+    }
+
+    private static void _writeRecord(DataOutputStream out, byte op, String key, String value, long expireTime) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(op);
+        out.writeInt(k.length);
+        out.write(k);
+        if (op == OP_DEL) return;
+
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(v.length);
+        out.write(v);
+        out.writeLong(expireTime);
+    }
+
+    private void _replay() throws IOException {
+        if (! aofFile.exists()) return;
+
+        long now = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(aofFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String key = _readString(in);
+
+                if (op == OP_DEL) entries.remove(key);
+                else {
+                    String value = _readString(in);
+                    long expireTime = in.readLong();
+
+                    if (expireTime == 0 || expireTime > now) entries.put(key, new Entry(key, value, expireTime));
+                    else entries.remove(key);
+                }
+            }
+        } catch (EOFException ex) {
+            // The end, or the record not completely written
+        }
+
+        long used = 0;
+        for (Entry entry : entries.values()) {
+            used += entry.size;
+            _schedule(entry);
+            if (maxMemory > 0) {
+                clock.offer(entry);
+                clockLength.incrementAndGet();
+            }
+        }
+        usedMemory.set(used);
+    }
+
+    private static String _readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the current data into a new file and switch to it. Must be called in aofLock.
+     */
+    private void _rewrite() throws IOException {
+        _closeFile();
+
+        File tmp = new File(aofFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            long now = System.currentTimeMillis();
+            for (Entry entry : entries.values()) {
+                if (! entry.isExpired(now)) _writeRecord(out, OP_SET, entry.key, entry.value, entry.expireTime);
+            }
+            out.flush();
+            aofSnapshotSize = out.size();
+        }
+
+        Files.move(tmp.toPath(), aofFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        aofStream = new FileOutputStream(aofFile, true);
+        aof = new DataOutputStream(new BufferedOutputStream(aofStream, 65536));
+        aofRewrites.incrementAndGet();
+    }
+
+    private void _closeFile() {
+        if (aof == null) return;
+
+        try {
+            aof.close();
+        } catch (IOException ex) {
+            // Ignore it
+        }
+        aof = null;
+        aofStream = null;
+    }
+
+    private void _syncFile() {
+        synchronized (aofLock) {
+            try {
+                if (aof == null || aofSnapshotSize + aof.size() > 2*usedMemory.get() + MIN_REWRITE_SIZE) _rewrite();
+                else {
+                    aof.flush();
+                    aofStream.getFD().sync();
+                }
+            } catch (IOException ex) {
+                // Try again in the next sync
+                _closeFile();
+            }
+        }
+    }
+
+    void subscribe(String channel, MessageListener listener) {
+        listeners.computeIfAbsent(channel, c -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    void unsubscribe(String channel, MessageListener listener) {
+        listeners.computeIfPresent(channel, (c, set) -> {
+            set.remove(listener);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Returns the number of the listeners to receive the message.
+     */
+    int publish(String channel, String message) {
+        Set<MessageListener> set = listeners.get(channel);
+        if (set == null || set.isEmpty()) return 0;
+
+        List<MessageListener> receivers = new ArrayList<>(set);
+        dispatcher.execute(() -> {
+            for (MessageListener listener : receivers) {
+                try {
+                    listener.onMessage(channel, message);
+                } catch (Exception ex) {
+                    // The other listeners are not affected
+                }
+            }
+        });
+
+        published.incrementAndGet();
+        return receivers.size();
+    }
+
+    /**
+     * Add the message to the backlogs of all groups of the stream (at most maxLength ones kept in each), and
+     * deliver it by the dispatcher. Returns the message ID.
+     */
+    String addStreamMessage(String stream, String message, int maxLength) {
+        String id = System.currentTimeMillis() + "-" + streamSequence.incrementAndGet();
+
+        Map<String, StreamGroup> groups = streams.get(stream);
+        if (groups == null) return id;
+
+        for (StreamGroup group : groups.values()) {
+            synchronized (group) {
+                group.backlog.add(message);
+                while (group.backlog.size() > maxLength) group.backlog.poll();
+            }
+            dispatcher.execute(() -> _drain(group));
+        }
+        return id;
+    }
+
+    /**
+     * Create the group if not exists (receives the messages added from now on), and deliver its messages to the
+     * listener, starting from the ones kept while stopped.
+     */
+    void consumeStream(String stream, String groupName, String channel, MessageListener listener) {
+        StreamGroup group = streams.computeIfAbsent(stream, s -> new ConcurrentHashMap<>())
+                .computeIfAbsent(groupName, g -> new StreamGroup());
+
+        synchronized (group) {
+            group.channel = channel;
+            group.listener = listener;
+        }
+        dispatcher.execute(() -> _drain(group));
+    }
+
+    /**
+     * Keep the group, the messages are kept in its backlog until consumed again.
+     */
+    void stopConsumingStream(String stream, String groupName) {
+        Map<String, StreamGroup> groups = streams.get(stream);
+        StreamGroup group = groups==null ? null : groups.get(groupName);
+        if (group == null) return;
+
+        synchronized (group) {
+            group.listener = null;
+        }
+    }
+
+    private void _drain(StreamGroup group) {
+        while (true) {
+            String message;
+            String channel;
+            MessageListener listener;
+
+            synchronized (group) {
+                if (group.listener == null || group.backlog.isEmpty()) return;
+                message = group.backlog.poll();
+                channel = group.channel;
+                listener = group.listener;
+            }
+
+            try {
+                listener.onMessage(channel, message);
+                streamDelivered.incrementAndGet();
+            } catch (Exception ex) {
+                // The other messages are not affected
+                streamFailed.incrementAndGet();
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        reaper.interrupt();
+        dispatcher.shutdown();
+
+        synchronized (aofLock) {
+            if (aof != null) {
+                try {
+                    aof.flush();
+                    aofStream.getFD().sync();
+                } catch (IOException ex) {
+                    // Ignore it
+                }
+                _closeFile();
+            }
+        }
+    }
+
+    JSONObject getStatistics() {
+        JSONObject result = new JSONObject();
+        result.put("keys", entries.size());
+        result.put("usedMemory", usedMemory.get()); // Estimated, in bytes
+        result.put("maxMemory", maxMemory);
+        result.put("expired", expired.get());
+        result.put("evicted", evicted.get());
+        result.put("channels", listeners.size());
+        result.put("published", published.get());
+        result.put("streams", streams.size());
+        result.put("streamDelivered", streamDelivered.get());
+        result.put("streamFailed", streamFailed.get());
+
+        if (aofFile != null) {
+            synchronized (aofLock) {
+                result.put("aofSize", aofSnapshotSize + (aof==null ? 0 : aof.size()));
+            }
+            result.put("aofRewrites", aofRewrites.get());
+        }
+
+        return result;
+    }
+
+}
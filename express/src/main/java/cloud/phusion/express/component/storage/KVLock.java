@@ -0,0 +1,61 @@
+package cloud.phusion.express.component.storage;
+
+/**
+ * A lock acquired from KVStorageImpl.
+ *
+ * The owner token identifies the holder: only the holder can renew or release the lock. The fencing token increases
+ * each time the key is locked, so a resource can reject the writes from a holder whose lock has expired, i.e. the
+ * writes with a fencing token smaller than the one seen already.
+ */
+public class KVLock {
+    private final String key;
+    private final String fullKey; // With the namespace
+    private final String owner;
+    private final long fencingToken;
+    private volatile long expireTime; // In milliseconds, 0 for no expire time
+
+    KVLock(String key, String fullKey, String owner, long fencingToken, long expireTime) {
+        this.key = key;
+        this.fullKey = fullKey;
+        this.owner = owner;
+        this.fencingToken = fencingToken;
+        this.expireTime = expireTime;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    String getFullKey() {
+        return fullKey;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * When the lock expires if not renewed, 0 for no expire time.
+     */
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    boolean isExpired(long now) {
+        return expireTime > 0 && expireTime <= now;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("key=%s, owner=%s, fencingToken=%d", key, owner, fencingToken);
+    }
+
+}
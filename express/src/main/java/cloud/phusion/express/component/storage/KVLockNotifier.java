@@ -0,0 +1,133 @@
+package cloud.phusion.express.component.storage;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wakes up the threads waiting for the locks, when the locks are released by any engine.
+ *
+ * The release script publishes the key on the channel "phusion_kv_lock_released". A waiter registers itself before
+ * trying to acquire the lock, so the release between its attempt and its wait is not missed. The lock expired is not
+ * published, so the waiter never waits longer than the lock lives.
+ *
+ * Without Redis (KVLocalStore), there is no subscription: the waiters are signalled directly when released.
+ */
+class KVLockNotifier {
+    static final String CHANNEL = "phusion_kv_lock_released";
+
+    static final class Waiter {
+        private final String key;
+        private boolean released = false;
+
+        Waiter(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Wait until the key is released, or for the milliseconds.
+         */
+        synchronized void await(long milliseconds) throws InterruptedException {
+            if (! released && milliseconds > 0) wait(milliseconds);
+            released = false;
+        }
+
+        synchronized void signal() {
+            released = true;
+            notifyAll();
+        }
+    }
+
+    private final Map<String, Set<Waiter>> waitersByKey = new ConcurrentHashMap<>();
+    private final KVSubscriber subscriber; // null without Redis
+    private final KVSubscriber.Listener listener;
+    private final AtomicLong wakeups = new AtomicLong(0);
+
+    /**
+     * @param subscriber null without Redis
+     */
+    KVLockNotifier(KVSubscriber subscriber) {
+        this.subscriber = subscriber;
+
+        if (subscriber == null) {
+            listener = null;
+            return;
+        }
+
+        listener = new KVSubscriber.Listener() {
+            @Override
+            public void onSubscribed() {
+                // The waiters may have missed the releases
+                signalAll();
+            }
+
+            @Override
+            public void onMessage(String message) {
+                signal(message);
+            }
+
+            @Override
+            public void onBroken() {
+                signalAll();
+            }
+        };
+        subscriber.subscribe(CHANNEL, listener);
+    }
+
+    /**
+     * Whether the releases are notified. If not, the waiters should retry in short intervals.
+     */
+    boolean isSubscribed() {
+        return subscriber==null || subscriber.isSubscribed(CHANNEL);
+    }
+
+    Waiter register(String key) {
+        Waiter waiter = new Waiter(key);
+
+        waitersByKey.compute(key, (k, waiters) -> {
+            if (waiters == null) waiters = ConcurrentHashMap.newKeySet();
+            waiters.add(waiter);
+            return waiters;
+        });
+
+        return waiter;
+    }
+
+    void unregister(Waiter waiter) {
+        waitersByKey.computeIfPresent(waiter.key, (k, waiters) -> {
+            waiters.remove(waiter);
+            return waiters.isEmpty() ? null : waiters;
+        });
+    }
+
+    void signal(String key) {
+        Set<Waiter> waiters = waitersByKey.get(key);
+        if (waiters == null) return;
+
+        for (Waiter waiter : waiters) {
+            waiter.signal();
+            wakeups.incrementAndGet();
+        }
+    }
+
+    private void signalAll() {
+        for (String key : waitersByKey.keySet()) signal(key);
+    }
+
+    long getWakeups() {
+        return wakeups.get();
+    }
+
+    int getWaiters() {
+        int count = 0;
+        for (Set<Waiter> waiters : waitersByKey.values()) count += waiters.size();
+        return count;
+    }
+
+    void shutdown() {
+        if (subscriber != null) subscriber.unsubscribe(CHANNEL, listener);
+        signalAll();
+    }
+
+}
@@ -0,0 +1,275 @@
+package cloud.phusion.express.component.storage;
+
+import com.alibaba.fastjson2.JSONObject;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local cache of the values retrieved from Redis, for the namespaces configured.
+ *
+ * - The least recently used value is evicted when the cache is full.
+ * - A value expires when it expires in Redis (PTTL retrieved with the value), or after the max expire time.
+ * - When a key is changed, the local value is removed, and the key is published to the other engines on the channel
+ *   "phusion_kv_invalidation" (in the background, the keys changed in the meantime are published in one message).
+ *   Message: "{instance id}\n{time in milliseconds}\n{key}\n{key}...".
+ * - The values are cached only while the invalidation channel is subscribed. If the subscription is broken,
+ *   the cache is cleared, since the messages may be missed.
+ */
+class KVNearCache {
+    static final String CHANNEL = "phusion_kv_invalidation";
+
+    private static final int MAX_KEYS_PER_MESSAGE = 1000;
+    private static final int SEQUENCE_STRIPES = 64; // Power of 2
+
+    private static final class Entry {
+        final String value;
+        final long expireTime;
+
+        Entry(String value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private final JedisPool pool;
+    private final Set<String> namespaces; // null for all
+    private final int maxSize;
+    private final long maxExpire; // In milliseconds
+    private final String instanceId = UUID.randomUUID().toString();
+
+    // Guarded by itself, along with the sequences
+    private final LinkedHashMap<String, Entry> cache;
+
+    // Striped by the hash of the key, and increased by each invalidation of the keys in the stripe.
+    // A value retrieved before it is not cached, so the changes of the other keys rarely keep a key from being cached
+    private final long[] sequences = new long[SEQUENCE_STRIPES];
+
+    private volatile boolean running = true;
+    private final BlockingQueue<String> changedKeys = new LinkedBlockingQueue<>();
+    private final KVSubscriber subscriber;
+    private final KVSubscriber.Listener listener;
+    private final Thread publisherThread;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong published = new AtomicLong(0); // Keys
+    private final AtomicLong received = new AtomicLong(0); // Keys
+    private final AtomicLong messages = new AtomicLong(0); // Messages received
+    private final AtomicLong totalLag = new AtomicLong(0); // In milliseconds
+    private final AtomicLong maxLag = new AtomicLong(0); // In milliseconds
+
+    /**
+     * @param namespaces the namespaces (without "_") separated by ",", or "*" for all
+     */
+    KVNearCache(JedisPool pool, KVSubscriber subscriber, String namespaces, int maxSize, long maxExpire) {
+        this.pool = pool;
+        this.maxSize = maxSize<1 ? 1 : maxSize;
+        this.maxExpire = maxExpire;
+
+        if (namespaces.trim().equals("*")) this.namespaces = null;
+        else {
+            this.namespaces = new HashSet<>();
+            for (String ns : namespaces.split(",")) {
+                if (ns.trim().length() > 0) this.namespaces.add(ns.trim() + "_");
+            }
+        }
+
+        cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > KVNearCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                else return false;
+            }
+        };
+
+        this.subscriber = subscriber;
+        this.listener = new KVSubscriber.Listener() {
+            @Override
+            public void onSubscribed() {
+                _clear(); // The messages before are missed
+            }
+
+            @Override
+            public void onMessage(String message) {
+                _onMessage(message);
+            }
+
+            @Override
+            public void onBroken() {
+                _clear();
+            }
+        };
+        subscriber.subscribe(CHANNEL, listener);
+
+        publisherThread = new Thread(this::_publish, "phusion-kv-invalidation-publisher");
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+    }
+
+    /**
+     * @param namespace with the "_" suffix
+     */
+    boolean isCached(String namespace) {
+        return namespaces==null || namespaces.contains(namespace);
+    }
+
+    /**
+     * Returns null if not cached.
+     */
+    String get(String key) {
+        long now = System.currentTimeMillis();
+
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+
+            if (entry != null) {
+                if (entry.expireTime > now) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                else cache.remove(key);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Take it before retrieving the value from Redis, and pass it to put().
+     */
+    long getSequence(String key) {
+        synchronized (cache) {
+            return sequences[_stripe(key)];
+        }
+    }
+
+    private static int _stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (SEQUENCE_STRIPES - 1);
+    }
+
+    /**
+     * @param millisecondsToLive PTTL from Redis, negative if no expire time
+     */
+    void put(String key, String value, long millisecondsToLive, long sequence) {
+        if (! subscriber.isSubscribed(CHANNEL) || value == null) return;
+
+        long ttl = (millisecondsToLive < 0 || millisecondsToLive > maxExpire) ? maxExpire : millisecondsToLive;
+        if (ttl == 0) return;
+
+        synchronized (cache) {
+            // Changed after retrieved, it may be stale
+            if (sequences[_stripe(key)] != sequence) return;
+
+            cache.put(key, new Entry(value, System.currentTimeMillis()+ttl));
+        }
+    }
+
+    /**
+     * Called after the key is changed in Redis.
+     */
+    void invalidate(String key) {
+        _remove(key);
+        changedKeys.offer(key);
+    }
+
+    private void _remove(String key) {
+        synchronized (cache) {
+            sequences[_stripe(key)]++;
+            cache.remove(key);
+        }
+    }
+
+    private void _clear() {
+        synchronized (cache) {
+            for (int i = 0; i < SEQUENCE_STRIPES; i++) sequences[i]++;
+            cache.clear();
+        }
+    }
+
+    private void _onMessage(String message) {
+        String[] lines = message.split("\n");
+        if (lines.length < 3 || lines[0].equals(instanceId)) return;
+
+        long lag = System.currentTimeMillis() - Long.parseLong(lines[1]);
+        if (lag < 0) lag = 0; // The clocks of the engines are not the same
+        messages.incrementAndGet();
+        totalLag.addAndGet(lag);
+        long current = maxLag.get();
+        while (lag > current && ! maxLag.compareAndSet(current, lag)) current = maxLag.get();
+
+        for (int i = 2; i < lines.length; i++) _remove(lines[i]);
+        received.addAndGet(lines.length - 2);
+    }
+
+    private void _publish() {
+        List<String> keys = new ArrayList<>();
+
+        while (running) {
+            try {
+                String key = changedKeys.poll(100, TimeUnit.MILLISECONDS);
+                if (key == null) continue;
+
+                keys.add(key);
+                changedKeys.drainTo(keys, MAX_KEYS_PER_MESSAGE - 1);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            StringBuilder message = new StringBuilder();
+            message.append(instanceId).append('\n').append(System.currentTimeMillis());
+            for (String key : keys) message.append('\n').append(key);
+
+            try (Jedis redis = pool.getResource()) {
+                redis.publish(CHANNEL, message.toString());
+                published.addAndGet(keys.size());
+            } catch (Exception ex) {
+                // The other engines may keep the stale values until they expire
+            }
+
+            keys.clear();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+
+        subscriber.unsubscribe(CHANNEL, listener);
+        publisherThread.interrupt();
+        _clear();
+    }
+
+    JSONObject getStatistics() {
+        JSONObject result = new JSONObject();
+        long h = hits.get();
+        long m = misses.get();
+        long msgs = messages.get();
+
+        synchronized (cache) {
+            result.put("size", cache.size());
+        }
+        result.put("maxSize", maxSize);
+        result.put("subscribed", subscriber.isSubscribed(CHANNEL));
+        result.put("hits", h);
+        result.put("misses", m);
+        result.put("hitRatio", h+m==0 ? 0.0 : h*1000/(h+m)/1000.0);
+        result.put("evictions", evictions.get());
+        result.put("publishedKeys", published.get());
+        result.put("receivedKeys", received.get());
+        result.put("avgInvalidationLag", msgs==0 ? 0.0 : totalLag.get()*10/msgs/10.0); // In milliseconds
+        result.put("maxInvalidationLag", maxLag.get()); // In milliseconds
+        return result;
+    }
+
+}
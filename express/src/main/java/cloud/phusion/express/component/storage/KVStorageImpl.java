@@ -1,35 +1,66 @@
 package cloud.phusion.express.component.storage;
 
 import cloud.phusion.Context;
+import cloud.phusion.DataObject;
 import cloud.phusion.Engine;
 import cloud.phusion.EngineFactory;
 import cloud.phusion.PhusionException;
 import cloud.phusion.storage.KVStorage;
+import com.alibaba.fastjson2.JSONObject;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.JedisPubSub;
-
-import java.util.Date;
-import java.util.Map;
-import java.util.Properties;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.XAddParams;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KVStorage on Redis, or on the in-process store (KVLocalStore) if Redis is not configured.
+ *
+ * The connections are not tested when borrowed (no extra PING), but by the evictor while idle. A command failed
+ * by a broken connection is retried once with another connection.
+ *
+ * The multi-key operations (getAll, putAll and removeAll) take one round trip with MGET, MSET, DEL or a pipeline.
+ * If batching is enabled, the single-key operations from different threads are coalesced into pipelines.
+ *
+ * If the near-cache is enabled for the namespace, the values retrieved are cached locally (see KVNearCache), and
+ * the keys changed are removed from the near-caches of all engines.
+ *
+ * Besides the pub/sub, the messages can be sent durably by streams (sendMessage and receiveMessages).
+ */
 public class KVStorageImpl implements KVStorage {
     private static final String _position = KVStorageImpl.class.getName();
 
     private static JedisPool pool = null;
+    private static KVBatcher batcher = null;
+    private static KVNearCache nearCache = null;
+    private static KVSubscriber subscriber = null; // All channels subscribed by the engine
 
-    private static boolean isFake = false;
-    private static Map<String, Object> storage = new ConcurrentHashMap<String, Object>(); // For fake storage
-    private static Map<String, Date> timer = new ConcurrentHashMap<String, Date>(); // For fake storage
+    private static KVLocalStore local = null; // If Redis is not configured
 
     public static void init(Properties props) throws Exception {
-        if (pool!=null || isFake || props==null) return;
+        if (pool!=null || local!=null || props==null) return;
+
+        streamMaxLength = Integer.parseInt(props.getProperty(EngineFactory.Redis_StreamMaxLength, "10000"));
 
         String host = props.getProperty(EngineFactory.Redis_Host);
         if (host==null || host.length()==0) {
-            isFake = true;
+            local = new KVLocalStore(
+                    Long.parseLong(props.getProperty(EngineFactory.KV_LocalMaxMemory, "0")) * 1024 * 1024,
+                    props.getProperty(EngineFactory.KV_LocalAOF)
+            );
             return;
         }
 
@@ -37,10 +68,11 @@ public class KVStorageImpl implements KVStorage {
 
         config.setMaxIdle(128);
         config.setMaxTotal(1024);
-        config.setTestOnBorrow(true);
+        config.setTestOnBorrow(false);
         config.setTestWhileIdle(true);
         config.setTestOnReturn(false);
         config.setNumTestsPerEvictionRun(1024);
+        config.setTimeBetweenEvictionRuns(Duration.ofSeconds(30));
 
         int timeout = 3000;
         int port = Integer.parseInt(props.getProperty(EngineFactory.Redis_Port));
@@ -48,6 +80,99 @@ public class KVStorageImpl implements KVStorage {
         String password = props.getProperty(EngineFactory.Redis_Auth);
 
         pool = new JedisPool(config, host, port, timeout, password, database);
+        subscriber = new KVSubscriber(pool, "phusion-kv-subscriber");
+
+        if (Boolean.parseBoolean(props.getProperty(EngineFactory.Redis_Batch, "false"))) {
+            batcher = new KVBatcher(
+                    pool,
+                    Long.parseLong(props.getProperty(EngineFactory.Redis_BatchWindow, "0")),
+                    Integer.parseInt(props.getProperty(EngineFactory.Redis_BatchSize, "128"))
+            );
+        }
+
+        String cachedNamespaces = props.getProperty(EngineFactory.Redis_NearCacheNamespaces);
+        if (cachedNamespaces!=null && cachedNamespaces.trim().length()>0) {
+            nearCache = new KVNearCache(
+                    pool,
+                    subscriber,
+                    cachedNamespaces,
+                    Integer.parseInt(props.getProperty(EngineFactory.Redis_NearCacheSize, "10000")),
+                    Long.parseLong(props.getProperty(EngineFactory.Redis_NearCacheExpire, "60000"))
+            );
+        }
+    }
+
+    /**
+     * Close the connections or the local store, e.g. to initialize again with other properties.
+     */
+    public static synchronized void shutdown() {
+        if (batcher != null) {
+            batcher.shutdown();
+            batcher = null;
+        }
+
+        if (nearCache != null) {
+            nearCache.shutdown();
+            nearCache = null;
+        }
+
+        if (lockNotifier != null) {
+            lockNotifier.shutdown();
+            lockNotifier = null;
+        }
+
+        if (streamReader != null) {
+            streamReader.shutdown();
+            streamReader = null;
+        }
+
+        if (subscriber != null) {
+            subscriber.close();
+            subscriber = null;
+        }
+
+        if (messageDispatcher != null) {
+            messageDispatcher.shutdown();
+            messageDispatcher = null;
+        }
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+
+        if (local != null) {
+            local.shutdown();
+            local = null;
+        }
+
+        heldLocks.clear();
+    }
+
+    private interface RedisCall<T> {
+        T call(Jedis redis);
+    }
+
+    /**
+     * Run the command with a connection from the pool. If the connection is broken, retry once with another one.
+     */
+    private static <T> T _execute(RedisCall<T> call) {
+        try (Jedis redis = pool.getResource()) {
+            return call.call(redis);
+        } catch (JedisConnectionException ex) {
+            try (Jedis redis = pool.getResource()) {
+                return call.call(redis);
+            }
+        }
+    }
+
+    /**
+     * Run the single-key command, in the next pipeline if batching is enabled.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T _execute(RedisCall<T> call, KVBatcher.Command command) throws Exception {
+        if (batcher != null) return (T) batcher.execute(command);
+        else return _execute(call);
     }
 
     private String namespace = null;
@@ -67,6 +192,26 @@ public class KVStorageImpl implements KVStorage {
         this(namespace, null);
     }
 
+    /**
+     * Returns null if the namespace is not cached.
+     */
+    private KVNearCache _nearCache() {
+        KVNearCache cache = nearCache;
+        return (cache != null && cache.isCached(namespace)) ? cache : null;
+    }
+
+    private void _invalidate(String theKey) {
+        KVNearCache cache = _nearCache();
+        if (cache != null) cache.invalidate(theKey);
+    }
+
+    private void _invalidate(String[] theKeys) {
+        KVNearCache cache = _nearCache();
+        if (cache != null) {
+            for (String theKey : theKeys) cache.invalidate(theKey);
+        }
+    }
+
     @Override
     public void put(String key, Object value) throws Exception {
         put(key, value, baseCtx);
@@ -76,15 +221,16 @@ public class KVStorageImpl implements KVStorage {
     public void put(String key, Object value, Context ctx) throws Exception {
         String v = (value instanceof String) ? (String)value : value.toString();
 
-        if (isFake) {
-            storage.put(namespace+key, v);
-            Date expireTime = new Date((new Date()).getTime()+(24*60*60*1000l));
-            timer.put(namespace+key, expireTime);
+        if (local != null) {
+            local.set(namespace+key, v, 0);
             return;
         }
 
-        try (Jedis redis = pool.getResource()) {
-            redis.set(namespace+key, v);
+        String theKey = namespace + key;
+
+        try {
+            _execute(redis -> redis.set(theKey, v), pipeline -> pipeline.set(theKey, v));
+            _invalidate(theKey);
         } catch (Exception ex) {
             throw new PhusionException("KV_OP", "Failed to put without expire time", String.format("namespace=%s, key=%s, value=%s",
                     namespace, key, v), ctx, ex);
@@ -100,15 +246,16 @@ public class KVStorageImpl implements KVStorage {
     public void put(String key, Object value, long millisecondsToLive, Context ctx) throws Exception {
         String v = (value instanceof String) ? (String)value : value.toString();
 
-        if (isFake) {
-            storage.put(namespace+key, v);
-            Date expireTime = new Date((new Date()).getTime()+millisecondsToLive);
-            timer.put(namespace+key, expireTime);
+        if (local != null) {
+            local.set(namespace+key, v, millisecondsToLive);
             return;
         }
 
-        try (Jedis redis = pool.getResource()) {
-            redis.psetex(namespace+key, millisecondsToLive, v);
+        String theKey = namespace + key;
+
+        try {
+            _execute(redis -> redis.psetex(theKey, millisecondsToLive, v), pipeline -> pipeline.psetex(theKey, millisecondsToLive, v));
+            _invalidate(theKey);
         } catch (Exception ex) {
             throw new PhusionException("KV_OP", "Failed to put with expire time", String.format("namespace=%s, key=%s, value=%s",
                     namespace, key, v), ctx, ex);
@@ -122,13 +269,28 @@ public class KVStorageImpl implements KVStorage {
 
     @Override
     public Object get(String key, Context ctx) throws Exception {
-        if (isFake) {
-            if (doesExist(key)) return storage.get(namespace+key);
-            else return null;
-        }
+        if (local != null) return local.get(namespace+key);
 
-        try (Jedis redis = pool.getResource()) {
-            return redis.get(namespace+key);
+        String theKey = namespace + key;
+        KVNearCache cache = _nearCache();
+
+        try {
+            if (cache == null) return _execute(redis -> redis.get(theKey), pipeline -> pipeline.get(theKey));
+
+            String value = cache.get(theKey);
+            if (value != null) return value;
+
+            // Retrieve the value along with its expire time in one round trip
+            long sequence = cache.getSequence(theKey);
+            return _execute(redis -> {
+                Pipeline pipeline = redis.pipelined();
+                Response<String> v = pipeline.get(theKey);
+                Response<Long> ttl = pipeline.pttl(theKey);
+                pipeline.sync();
+
+                cache.put(theKey, v.get(), ttl.get(), sequence);
+                return v.get();
+            });
         } catch (Exception ex) {
             throw new PhusionException("KV_OP", "Failed to retrieve", String.format("namespace=%s, key=%s",
                     namespace, key), ctx, ex);
@@ -142,16 +304,14 @@ public class KVStorageImpl implements KVStorage {
 
     @Override
     public boolean doesExist(String key, Context ctx) throws Exception {
-        if (isFake) {
-            if (! storage.containsKey(namespace+key)) return false;
+        if (local != null) return local.exists(namespace+key);
 
-            Date t = timer.get(namespace+key);
-            if ((new Date()).getTime() > t.getTime()) return false;
-            else return true;
-        }
+        String theKey = namespace + key;
+        KVNearCache cache = _nearCache();
+        if (cache != null && cache.get(theKey) != null) return true;
 
-        try (Jedis redis = pool.getResource()) {
-            return redis.exists(namespace+key);
+        try {
+            return _execute(redis -> redis.exists(theKey), pipeline -> pipeline.exists(theKey));
         } catch (Exception ex) {
             throw new PhusionException("KV_OP", "Failed to check existence", String.format("namespace=%s, key=%s",
                     namespace, key), ctx, ex);
@@ -165,112 +325,488 @@ public class KVStorageImpl implements KVStorage {
 
     @Override
     public void remove(String key, Context ctx) throws Exception {
-        if (isFake) {
-            storage.remove(namespace+key);
-            timer.remove(namespace+key);
+        if (local != null) {
+            local.remove(namespace+key);
             return;
         }
 
-        try (Jedis redis = pool.getResource()) {
-            redis.del(namespace+key);
+        String theKey = namespace + key;
+
+        try {
+            _execute(redis -> redis.del(theKey), pipeline -> pipeline.del(theKey));
+            _invalidate(theKey);
         } catch (Exception ex) {
             throw new PhusionException("KV_OP", "Failed to remove", String.format("namespace=%s, key=%s",
                     namespace, key), ctx, ex);
         }
     }
 
-    @Override
-    public boolean lock(String key) throws Exception {
-        return lock(key, baseCtx);
+    public Map<String,Object> getAll(Collection<String> keys) throws Exception {
+        return getAll(keys, baseCtx);
     }
 
-    @Override
-    public boolean lock(String key, Context ctx) throws Exception {
-        // It is a naive implementation of distributed lock. To be optimized.
-
-        if (isFake) {
-            if (doesExist(key)) return false;
-            else {
-                put(key, "");
-                return true;
+    /**
+     * Retrieve the values of the keys in one round trip. The keys not found are not in the result.
+     */
+    public Map<String,Object> getAll(Collection<String> keys, Context ctx) throws Exception {
+        Map<String,Object> result = new LinkedHashMap<>();
+        if (keys==null || keys.isEmpty()) return result;
+
+        if (local != null) {
+            for (String key : keys) {
+                Object value = get(key, ctx);
+                if (value != null) result.put(key, value);
             }
+            return result;
         }
 
-        try (Jedis redis = pool.getResource()) {
-            boolean locked = redis.setnx(namespace+key, "lock") == 1;
-            return locked;
+        String[] theKeys = _keysInNamespace(keys);
+
+        try {
+            List<String> values = _execute(redis -> redis.mget(theKeys));
+
+            int i = 0;
+            for (String key : keys) {
+                String value = values.get(i++);
+                if (value != null) result.put(key, value);
+            }
+            return result;
         } catch (Exception ex) {
-            throw new PhusionException("KV_OP", "Failed to lock without expire time", String.format("namespace=%s, key=%s",
-                    namespace, key), ctx, ex);
+            throw new PhusionException("KV_OP", "Failed to retrieve keys", String.format("namespace=%s, keys=%s",
+                    namespace, keys), ctx, ex);
         }
     }
 
-    @Override
-    public boolean lock(String key, long millisecondsToLive) throws Exception {
-        return lock(key, millisecondsToLive, baseCtx);
+    public void putAll(Map<String,Object> entries, long millisecondsToLive) throws Exception {
+        putAll(entries, millisecondsToLive, baseCtx);
     }
 
-    @Override
-    public boolean lock(String key, long millisecondsToLive, Context ctx) throws Exception {
-        // It is a naive implementation of distributed lock. To be optimized.
+    /**
+     * Put the entries in one round trip.
+     *
+     * @param millisecondsToLive 0 for no expire time.
+     */
+    public void putAll(Map<String,Object> entries, long millisecondsToLive, Context ctx) throws Exception {
+        if (entries==null || entries.isEmpty()) return;
 
-        if (isFake) {
-            if (doesExist(key)) return false;
-            else {
-                put(key, "", millisecondsToLive);
-                return true;
+        if (local != null) {
+            for (Map.Entry<String,Object> entry : entries.entrySet()) {
+                local.set(namespace+entry.getKey(), _valueToString(entry.getValue()), millisecondsToLive);
             }
+            return;
         }
 
-        try (Jedis redis = pool.getResource()) {
-            String theKey = namespace + key;
-            boolean locked = redis.setnx(theKey, "lock") == 1;
-            if (locked) {
-                try {
-                    locked = redis.pexpire(theKey, millisecondsToLive) == 1;
-                }
-                catch (Exception ex) {
-                    redis.del(theKey); // If failed to set the expire time, the lock should be released
-                    throw ex;
+        try {
+            if (millisecondsToLive > 0) {
+                _execute(redis -> {
+                    Pipeline pipeline = redis.pipelined();
+                    for (Map.Entry<String,Object> entry : entries.entrySet()) {
+                        pipeline.psetex(namespace+entry.getKey(), millisecondsToLive, _valueToString(entry.getValue()));
+                    }
+                    pipeline.sync();
+                    return null;
+                });
+            }
+            else {
+                String[] keysValues = new String[entries.size()*2];
+                int i = 0;
+                for (Map.Entry<String,Object> entry : entries.entrySet()) {
+                    keysValues[i++] = namespace + entry.getKey();
+                    keysValues[i++] = _valueToString(entry.getValue());
                 }
-                if (! locked) redis.del(theKey);
+
+                _execute(redis -> redis.mset(keysValues));
+            }
+
+            KVNearCache cache = _nearCache();
+            if (cache != null) {
+                for (String key : entries.keySet()) cache.invalidate(namespace+key);
             }
-            return locked;
         } catch (Exception ex) {
-            throw new PhusionException("KV_OP", "Failed to lock with expire time", String.format("namespace=%s, key=%s",
-                    namespace, key), ctx, ex);
+            throw new PhusionException("KV_OP", "Failed to put keys", String.format("namespace=%s, keys=%s",
+                    namespace, entries.keySet()), ctx, ex);
+        }
+    }
+
+    public void removeAll(Collection<String> keys) throws Exception {
+        removeAll(keys, baseCtx);
+    }
+
+    public void removeAll(Collection<String> keys, Context ctx) throws Exception {
+        if (keys==null || keys.isEmpty()) return;
+
+        if (local != null) {
+            for (String key : keys) local.remove(namespace+key);
+            return;
+        }
+
+        String[] theKeys = _keysInNamespace(keys);
+
+        try {
+            _execute(redis -> redis.del(theKeys));
+            _invalidate(theKeys);
+        } catch (Exception ex) {
+            throw new PhusionException("KV_OP", "Failed to remove keys", String.format("namespace=%s, keys=%s",
+                    namespace, keys), ctx, ex);
+        }
+    }
+
+    private String[] _keysInNamespace(Collection<String> keys) {
+        String[] result = new String[keys.size()];
+        int i = 0;
+        for (String key : keys) result[i++] = namespace + key;
+        return result;
+    }
+
+    private static String _valueToString(Object value) {
+        return (value instanceof String) ? (String)value : value.toString();
+    }
+
+    /*
+     Distributed locks. A lock is a key with the owner token as its value, set with "SET NX PX" and the fencing token
+     increased in one script. It is released (or renewed) by a script only if the value is still the owner token,
+     and the release is published to wake up the waiters of tryLock().
+
+     lock() and unlock() of KVStorage keep the locks acquired in this engine, so unlock() releases only the lock held
+     by this engine. A lock not held by this engine is removed unconditionally, as the old implementation did.
+     */
+
+    private static final String LOCK_ACQUIRE_SCRIPT =
+            "local ok\n" +
+            "if ARGV[2] == '0' then ok = redis.call('set', KEYS[1], ARGV[1], 'NX')\n" +
+            "else ok = redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) end\n" +
+            "if ok then return {redis.call('incr', KEYS[2]), 0} end\n" +
+            "return {0, redis.call('pttl', KEYS[1])}";
+
+    private static final String LOCK_RELEASE_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then\n" +
+            "  redis.call('del', KEYS[1])\n" +
+            "  redis.call('publish', ARGV[2], KEYS[1])\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0";
+
+    private static final String LOCK_FORCE_RELEASE_SCRIPT =
+            "if redis.call('del', KEYS[1]) == 1 then\n" +
+            "  redis.call('publish', ARGV[1], KEYS[1])\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0";
+
+    private static final String LOCK_RENEW_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) end\n" +
+            "return 0";
+
+    private static final String FENCE_SUFFIX = ":fence";
+    private static final long LOCK_RETRY_INTERVAL = 100; // In milliseconds, when the releases are not notified
+    private static final int MAX_HELD_LOCKS = 10000; // The expired ones are purged beyond it
+
+    private static final String lockOwnerPrefix = UUID.randomUUID().toString() + ":";
+    private static final AtomicLong lockSequence = new AtomicLong(0);
+    private static final Map<String, KVLock> heldLocks = new ConcurrentHashMap<>(); // By the key with namespace
+    private static KVLockNotifier lockNotifier = null;
+
+    private static final AtomicLong locksAcquired = new AtomicLong(0);
+    private static final AtomicLong locksRejected = new AtomicLong(0);
+    private static final AtomicLong locksReleased = new AtomicLong(0);
+    private static final AtomicLong locksLost = new AtomicLong(0); // Expired or taken by others when released
+
+    private static synchronized KVLockNotifier _lockNotifier() {
+        // Without Redis, the waiters are signalled when released in this engine
+        if (lockNotifier == null) lockNotifier = new KVLockNotifier(subscriber);
+        return lockNotifier;
+    }
+
+    /**
+     * Run the script by its SHA1, and send it if Redis does not have it yet.
+     */
+    private static Object _evalScript(Jedis redis, String script, List<String> keys, List<String> args) {
+        try {
+            return redis.evalsha(_sha1(script), keys, args);
+        } catch (JedisNoScriptException ex) {
+            return redis.eval(script, keys, args);
         }
     }
 
+    private static final Map<String, String> scriptSHAs = new ConcurrentHashMap<>();
+
+    private static String _sha1(String script) {
+        return scriptSHAs.computeIfAbsent(script, s -> {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+                StringBuilder result = new StringBuilder();
+                for (byte b : digest) result.append(String.format("%02x", b));
+                return result.toString();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    @Override
+    public boolean lock(String key) throws Exception {
+        return lock(key, baseCtx);
+    }
+
+    /**
+     * The lock never expires until unlocked.
+     */
+    @Override
+    public boolean lock(String key, Context ctx) throws Exception {
+        return acquireLock(key, 0, ctx) != null;
+    }
+
+    @Override
+    public boolean lock(String key, long millisecondsToLive) throws Exception {
+        return lock(key, millisecondsToLive, baseCtx);
+    }
+
+    @Override
+    public boolean lock(String key, long millisecondsToLive, Context ctx) throws Exception {
+        return acquireLock(key, millisecondsToLive, ctx) != null;
+    }
+
     @Override
     public void unlock(String key) throws Exception {
         unlock(key, baseCtx);
     }
 
+    /**
+     * Release the lock held by this engine. If the lock is held by others (e.g. it expired and was acquired again),
+     * it is not released.
+     *
+     * If this engine does not hold the lock (e.g. it was acquired by another engine, or before restarting), it is
+     * removed whoever holds it, as lock() without expire time is released in no other way.
+     */
     @Override
     public void unlock(String key, Context ctx) throws Exception {
-        // It is a naive implementation of distributed lock. To be optimized.
+        KVLock lock = heldLocks.get(namespace+key);
+        if (lock != null) releaseLock(lock, ctx);
+        else _forceReleaseLock(namespace+key, ctx);
+    }
 
-        if (isFake) {
-            if (doesExist(key)) remove(key);
-            return;
+    public KVLock acquireLock(String key, long millisecondsToLive) throws Exception {
+        return acquireLock(key, millisecondsToLive, baseCtx);
+    }
+
+    /**
+     * Acquire the lock in one round trip, or return null if it is held by others.
+     *
+     * @param millisecondsToLive 0 for no expire time.
+     */
+    public KVLock acquireLock(String key, long millisecondsToLive, Context ctx) throws Exception {
+        String owner = _newLockOwner();
+        long[] result = _acquireLock(namespace+key, owner, millisecondsToLive, ctx);
+        return result[0]>0 ? _lockAcquired(key, owner, result[0], millisecondsToLive) : null;
+    }
+
+    public KVLock tryLock(String key, long millisecondsToLive, long timeout) throws Exception {
+        return tryLock(key, millisecondsToLive, timeout, baseCtx);
+    }
+
+    /**
+     * Wait for the lock until it is acquired, or return null after the timeout (in milliseconds).
+     *
+     * The waiter is woken up when the lock is released by any engine (or when it expires), rather than polling.
+     */
+    public KVLock tryLock(String key, long millisecondsToLive, long timeout, Context ctx) throws Exception {
+        String theKey = namespace + key;
+        String owner = _newLockOwner();
+        long deadline = System.currentTimeMillis() + timeout;
+
+        KVLockNotifier notifier = _lockNotifier();
+        KVLockNotifier.Waiter waiter = notifier.register(theKey);
+
+        try {
+            while (true) {
+                long[] result = _acquireLock(theKey, owner, millisecondsToLive, ctx);
+                if (result[0] > 0) return _lockAcquired(key, owner, result[0], millisecondsToLive);
+
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return null;
+
+                if (result[1] > 0) wait = Math.min(wait, result[1]); // The expiry is not notified
+                if (! notifier.isSubscribed()) wait = Math.min(wait, LOCK_RETRY_INTERVAL);
+                waiter.await(wait);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            notifier.unregister(waiter);
         }
+    }
 
-        try (Jedis redis = pool.getResource()) {
-            redis.del(namespace+key);
-        } catch (Exception ex) {
-            throw new PhusionException("KV_OP", "Failed to unlock", String.format("namespace=%s, key=%s",
-                    namespace, key), ctx, ex);
+    public boolean renewLock(KVLock lock, long millisecondsToLive) throws Exception {
+        return renewLock(lock, millisecondsToLive, baseCtx);
+    }
+
+    /**
+     * Extend the lease of the lock, returns false if it is not held any more.
+     */
+    public boolean renewLock(KVLock lock, long millisecondsToLive, Context ctx) throws Exception {
+        String theKey = lock.getFullKey();
+        boolean renewed;
+
+        if (local != null) renewed = local.expireIfEquals(theKey, lock.getOwner(), millisecondsToLive);
+        else {
+            try {
+                renewed = _execute(redis -> (Long) _evalScript(redis, LOCK_RENEW_SCRIPT,
+                        Collections.singletonList(theKey),
+                        Arrays.asList(lock.getOwner(), "" + millisecondsToLive))) == 1;
+            } catch (Exception ex) {
+                throw new PhusionException("KV_OP", "Failed to renew lock", String.format("namespace=%s, lock=%s",
+                        namespace, lock), ctx, ex);
+            }
+        }
+
+        if (renewed) lock.setExpireTime(System.currentTimeMillis()+millisecondsToLive);
+        return renewed;
+    }
+
+    /**
+     * Extend the lease of the lock held by this engine, returns false if it is not held any more.
+     */
+    public boolean renewLock(String key, long millisecondsToLive, Context ctx) throws Exception {
+        KVLock lock = heldLocks.get(namespace+key);
+        return lock != null && renewLock(lock, millisecondsToLive, ctx);
+    }
+
+    public boolean releaseLock(KVLock lock) throws Exception {
+        return releaseLock(lock, baseCtx);
+    }
+
+    /**
+     * Release the lock, returns false if it is not held any more (expired or taken by others).
+     */
+    public boolean releaseLock(KVLock lock, Context ctx) throws Exception {
+        String theKey = lock.getFullKey();
+        heldLocks.remove(theKey, lock);
+        boolean released;
+
+        if (local != null) released = local.removeIfEquals(theKey, lock.getOwner());
+        else {
+            try {
+                released = _execute(redis -> (Long) _evalScript(redis, LOCK_RELEASE_SCRIPT,
+                        Collections.singletonList(theKey),
+                        Arrays.asList(lock.getOwner(), KVLockNotifier.CHANNEL))) == 1;
+            } catch (Exception ex) {
+                throw new PhusionException("KV_OP", "Failed to release lock", String.format("namespace=%s, lock=%s",
+                        namespace, lock), ctx, ex);
+            }
+
+            if (released) _invalidate(theKey);
+        }
+
+        if (released) {
+            // Wake up the waiters in this engine at once
+            KVLockNotifier notifier = lockNotifier;
+            if (notifier != null) notifier.signal(theKey);
+
+            locksReleased.incrementAndGet();
+        }
+        else locksLost.incrementAndGet();
+        return released;
+    }
+
+    private void _forceReleaseLock(String theKey, Context ctx) throws Exception {
+        boolean released;
+
+        if (local != null) released = local.remove(theKey);
+        else {
+            try {
+                released = _execute(redis -> (Long) _evalScript(redis, LOCK_FORCE_RELEASE_SCRIPT,
+                        Collections.singletonList(theKey),
+                        Collections.singletonList(KVLockNotifier.CHANNEL))) == 1;
+            } catch (Exception ex) {
+                throw new PhusionException("KV_OP", "Failed to release lock", String.format("namespace=%s, lock=%s",
+                        namespace, theKey), ctx, ex);
+            }
+
+            if (released) _invalidate(theKey);
+        }
+
+        if (released) {
+            KVLockNotifier notifier = lockNotifier;
+            if (notifier != null) notifier.signal(theKey);
+
+            locksReleased.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns {fencing token, 0} if acquired, otherwise {0, milliseconds to live of the current lock (negative if
+     * no expire time)}.
+     */
+    @SuppressWarnings("unchecked")
+    private long[] _acquireLock(String theKey, String owner, long millisecondsToLive, Context ctx) throws Exception {
+        long[] result;
+
+        if (local != null) {
+            // Acquired and fenced together, as the script does
+            synchronized (local) {
+                if (local.setIfAbsent(theKey, owner, millisecondsToLive)) result = new long[]{local.increment(theKey+FENCE_SUFFIX), 0};
+                else result = new long[]{0, local.pttl(theKey)};
+            }
+        }
+        else {
+            try {
+                List<Long> reply = _execute(redis -> (List<Long>) _evalScript(redis, LOCK_ACQUIRE_SCRIPT,
+                        Arrays.asList(theKey, theKey+FENCE_SUFFIX),
+                        Arrays.asList(owner, "" + millisecondsToLive)));
+                result = new long[]{reply.get(0), reply.get(1)};
+            } catch (Exception ex) {
+                throw new PhusionException("KV_OP", "Failed to lock", String.format("namespace=%s, key=%s, ms=%d",
+                        namespace, theKey.substring(namespace.length()), millisecondsToLive), ctx, ex);
+            }
+
+            if (result[0] > 0) _invalidate(theKey);
         }
+
+        if (result[0] > 0) locksAcquired.incrementAndGet();
+        else locksRejected.incrementAndGet();
+        return result;
     }
 
+    private static String _newLockOwner() {
+        return lockOwnerPrefix + lockSequence.incrementAndGet();
+    }
+
+    private KVLock _lockAcquired(String key, String owner, long fencingToken, long millisecondsToLive) {
+        long now = System.currentTimeMillis();
+        KVLock lock = new KVLock(key, namespace+key, owner, fencingToken, millisecondsToLive>0 ? now+millisecondsToLive : 0);
+
+        if (heldLocks.size() >= MAX_HELD_LOCKS) heldLocks.values().removeIf(held -> held.isExpired(now));
+        heldLocks.put(lock.getFullKey(), lock);
+
+        return lock;
+    }
     /*
-     Simple message sub/pub implementation based on Redis.
+     Simple message sub/pub implementation based on Redis (or the local store, within the engine).
      The subscription is not persistent, i.e. if some client was shutdown, when it comes back,
-     the messages published during its downtime will not be republished to it.
+     the messages published during its downtime will not be republished to it. Use the streams below instead.
+
+     The channels are subscribed on the connection shared by the engine (see KVSubscriber), and the messages are
+     handed to the listeners by one dispatcher thread, in order.
      */
 
-    private Map<String,JedisPubSub> subscribers = new ConcurrentHashMap<>();
+    private static final long SUBSCRIBE_TIMEOUT = 3000; // In milliseconds
+
+    private static ExecutorService messageDispatcher = null;
+
+    private static synchronized ExecutorService _messageDispatcher() {
+        if (messageDispatcher == null) {
+            messageDispatcher = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "phusion-kv-message-dispatcher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return messageDispatcher;
+    }
+
+    private Map<String,MessageSubscriber> subscribers = new ConcurrentHashMap<>();
+    private Map<String,MessageListener> localSubscribers = new ConcurrentHashMap<>();
 
     public void subscribe(String channel, MessageListener listener) throws Exception {
         subscribe(channel, listener, baseCtx);
@@ -279,20 +815,25 @@ public class KVStorageImpl implements KVStorage {
     public void subscribe(String channel, MessageListener listener, Context ctx) throws Exception {
         String data = String.format("engineId=%s, channel=%s", ctx.getEngine().getId(), namespace+channel);
 
-        JedisPubSub subscriber = new MessageSubscriber(listener);
+        if (local != null) {
+            local.subscribe(namespace+channel, listener);
+            localSubscribers.put(namespace+channel, listener);
+            ctx.logInfo(_position, "Message subscribed", data);
+            return;
+        }
 
-        new Thread(() -> {
-            try (Jedis redis = pool.getResource()) {
-                redis.subscribe(subscriber, namespace+channel);
-            } catch (Exception ex) {
-                ctx.logError(_position, "Failed to subscribe message", data, ex);
-            }
-        }).start();
+        String theChannel = namespace+channel;
+        MessageSubscriber subscription = new MessageSubscriber(theChannel, listener, _messageDispatcher());
 
-        // Wait a while for the subscription is done. If other messaging operations coming in soon, it will fail.
-        Thread.sleep(1000);
+        // Wait for Redis to confirm, so that the messages published right after are received
+        if (! subscriber.subscribe(theChannel, subscription, SUBSCRIBE_TIMEOUT)) {
+            subscriber.unsubscribe(theChannel, subscription);
+            throw new PhusionException("KV_OP", "Failed to subscribe message", data, ctx);
+        }
+
+        MessageSubscriber previous = subscribers.put(theChannel, subscription);
+        if (previous != null) subscriber.unsubscribe(theChannel, previous);
 
-        subscribers.put(namespace+channel,subscriber);
         ctx.logInfo(_position, "Message subscribed", data);
     }
 
@@ -305,6 +846,12 @@ public class KVStorageImpl implements KVStorage {
         String engineId = ctx.getEngine().getId();
         String data = String.format("engineId=%s, channel=%s, msg=%s", engineId, channel, msg);
 
+        if (local != null) {
+            local.publish(channel, msg);
+            ctx.logInfo(_position, "Message published", data);
+            return;
+        }
+
         try (Jedis redis = pool.getResource()) {
             redis.publish(channel, msg);
             ctx.logInfo(_position, "Message published", data);
@@ -319,16 +866,169 @@ public class KVStorageImpl implements KVStorage {
 
     public void unsubscribe(String channel, Context ctx) throws Exception {
         channel = namespace+channel;
-        JedisPubSub subscriber = subscribers.get(channel);
-        if (subscriber == null) return;
 
-        subscriber.unsubscribe(channel);
-        subscribers.remove(channel);
+        if (local != null) {
+            MessageListener listener = localSubscribers.remove(channel);
+            if (listener == null) return;
+            local.unsubscribe(channel, listener);
+        }
+        else {
+            MessageSubscriber subscription = subscribers.remove(channel);
+            if (subscription == null) return;
+
+            subscriber.unsubscribe(channel, subscription);
+        }
 
         String data = String.format("engineId=%s, channel=%s", ctx.getEngine().getId(), channel);
         ctx.logInfo(_position, "Message unsubscribed", data);
     }
 
+    /*
+     Durable messaging based on Redis Streams (or the local store, within the engine). Every consumer group receives
+     all messages sent after it is created, and the ones sent while its consumer is stopped or disconnected are
+     received when it comes back. The messages are delivered at least once, in order.
+
+     The streams consumed in the engine are read by one thread (see KVStreamReader).
+     */
+
+    private static final String STREAM_PREFIX = "stream:";
+
+    private static int streamMaxLength = 10000;
+    private static KVStreamReader streamReader = null;
+
+    private static synchronized KVStreamReader _streamReader() {
+        if (streamReader == null) streamReader = new KVStreamReader(pool);
+        return streamReader;
+    }
+
+    private static String _consumerName(Context ctx) {
+        Engine engine = ctx.getEngine();
+        return engine==null ? lockOwnerPrefix+"consumer" : engine.getId();
+    }
+
+    public String sendMessage(String channel, String msg) throws Exception {
+        return sendMessage(channel, msg, baseCtx);
+    }
+
+    /**
+     * Returns the message ID.
+     */
+    public String sendMessage(String channel, String msg, Context ctx) throws Exception {
+        String stream = namespace + STREAM_PREFIX + channel;
+
+        if (local != null) return local.addStreamMessage(stream, msg, streamMaxLength);
+
+        try {
+            return _execute(redis -> redis.xadd(
+                    stream,
+                    XAddParams.xAddParams().maxLen(streamMaxLength).approximateTrimming(),
+                    Collections.singletonMap(KVStreamReader.FIELD, msg)
+            )).toString();
+        } catch (Exception ex) {
+            String data = String.format("channel=%s, msg=%s", namespace+channel, msg);
+            throw new PhusionException("KV_OP", "Failed to send message", data, ctx, ex);
+        }
+    }
+
+    public void receiveMessages(String channel, String group, MessageListener listener) throws Exception {
+        receiveMessages(channel, group, listener, baseCtx);
+    }
+
+    /**
+     * Receive the messages of the group, the listener is called with the channel (with namespace) and the message.
+     *
+     * Every group receives all messages, e.g. use the engine ID as the group to broadcast the messages to the
+     * engines. If the listener throws an exception, the message will be delivered again after reconnected or
+     * restarted (not by the local store). After failed 3 times in the engine, it is moved to the channel
+     * "{channel}:dead" (received by the groups of that channel) and not delivered again.
+     */
+    public void receiveMessages(String channel, String group, MessageListener listener, Context ctx) throws Exception {
+        String stream = namespace + STREAM_PREFIX + channel;
+        String data = String.format("channel=%s, group=%s", namespace+channel, group);
+
+        if (local != null) local.consumeStream(stream, group, namespace+channel, listener);
+        else {
+            try {
+                _streamReader().add(new KVStreamReader.Consumer(stream, group, _consumerName(ctx), namespace+channel, listener));
+            } catch (Exception ex) {
+                throw new PhusionException("KV_OP", "Failed to receive message", data, ctx, ex);
+            }
+        }
+
+        ctx.logInfo(_position, "Message stream consumed", data);
+    }
+
+    public void stopReceivingMessages(String channel, String group) throws Exception {
+        stopReceivingMessages(channel, group, baseCtx);
+    }
+
+    /**
+     * The group is kept, and receives the messages sent meanwhile when started again.
+     */
+    public void stopReceivingMessages(String channel, String group, Context ctx) throws Exception {
+        String stream = namespace + STREAM_PREFIX + channel;
+
+        if (local != null) local.stopConsumingStream(stream, group);
+        else {
+            KVStreamReader reader = streamReader;
+            if (reader != null) reader.remove(stream, group);
+        }
+
+        String data = String.format("channel=%s, group=%s", namespace+channel, group);
+        ctx.logInfo(_position, "Message stream stopped", data);
+    }
+
+    /**
+     * Statistics of the local store, or the connection pool, the batching, the near-cache and the streams; and the locks.
+     */
+    public static DataObject getStatistics() {
+        JSONObject result = new JSONObject();
+        KVLocalStore currentLocal = local;
+        result.put("local", currentLocal != null);
+        if (currentLocal != null) result.put("localStore", currentLocal.getStatistics());
+
+        JedisPool currentPool = pool;
+        if (currentPool != null) {
+            result.put("activeConnections", currentPool.getNumActive());
+            result.put("idleConnections", currentPool.getNumIdle());
+            result.put("waiters", currentPool.getNumWaiters());
+        }
+
+        KVBatcher currentBatcher = batcher;
+        result.put("batch", currentBatcher != null);
+        if (currentBatcher != null) {
+            long batches = currentBatcher.getBatches();
+            long commands = currentBatcher.getCommands();
+
+            result.put("batches", batches);
+            result.put("batchedCommands", commands);
+            result.put("avgBatchSize", batches==0 ? 0.0 : commands*10/batches/10.0);
+            result.put("maxBatchSize", currentBatcher.getMaxBatch());
+            result.put("queued", currentBatcher.getQueueLength());
+        }
+
+        JSONObject locks = new JSONObject();
+        locks.put("acquired", locksAcquired.get());
+        locks.put("rejected", locksRejected.get());
+        locks.put("released", locksReleased.get());
+        locks.put("lost", locksLost.get());
+        locks.put("held", heldLocks.size());
+        KVLockNotifier currentNotifier = lockNotifier;
+        if (currentNotifier != null) {
+            locks.put("waiters", currentNotifier.getWaiters());
+            locks.put("wakeups", currentNotifier.getWakeups());
+        }
+        result.put("locks", locks);
+
+        KVNearCache currentNearCache = nearCache;
+        result.put("nearCache", currentNearCache==null ? null : currentNearCache.getStatistics());
+
+        KVStreamReader currentReader = streamReader;
+        result.put("streams", currentReader==null ? null : currentReader.getStatistics());
+
+        return new DataObject(result);
+    }
+
     private static void _testMessaging(String[] args) throws Exception {
         // mvn exec:exec -Dexec.executable="java" -Dexec.args="-classpath %classpath cloud.phusion.express.component.storage.KVStorageImpl <WORKER_ID>"
         // Press q+<enter> to exit
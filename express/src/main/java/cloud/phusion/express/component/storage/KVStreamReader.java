@@ -0,0 +1,291 @@
+package cloud.phusion.express.component.storage;
+
+import com.alibaba.fastjson2.JSONObject;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.params.XReadGroupParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the messages of all streams consumed in the engine with one thread (XREADGROUP), and acknowledges them
+ * after handled (XACK, sent along with the next read).
+ *
+ * - The streams of one consumer group are read in one command, blocked until a message comes. With more groups,
+ *   they are read in one pipeline, and the reader blocks on the first group for a short time if nothing comes.
+ * - The messages are delivered at least once: when started or reconnected, the messages delivered but not
+ *   acknowledged (e.g. the listener failed) are read again, then the ones after the last delivered in the group.
+ *   The pending messages are read once in order (from the last one read), so a failed one does not hold the others.
+ * - A message failed MAX_DELIVERIES times in the engine is moved to the dead-letter stream ("{stream}:dead") and
+ *   acknowledged.
+ * - A new consumer is read since the next round, within a second.
+ */
+class KVStreamReader {
+    static final String FIELD = "m";
+
+    private static final int COUNT = 100;
+    private static final int BLOCK = 1000; // In milliseconds
+    private static final int MULTI_GROUP_BLOCK = 100; // In milliseconds
+    private static final long RETRY_INTERVAL = 1000; // In milliseconds
+    private static final long IDLE_INTERVAL = 100; // In milliseconds
+    private static final int MAX_DELIVERIES = 3; // Failed deliveries before moved to the dead-letter stream
+    private static final int MAX_FAILURES_KEPT = 10000;
+
+    static final String DEAD_LETTER_SUFFIX = ":dead";
+
+    static final class Consumer {
+        final String stream;
+        final String group;
+        final String name;
+        final String channel; // Passed to the listener
+        final MessageListener listener;
+        volatile boolean replayed = false; // The pending messages are read again
+        StreamEntryID cursor = new StreamEntryID(); // The last pending message read, owned by the reader thread
+
+        Consumer(String stream, String group, String name, String channel, MessageListener listener) {
+            this.stream = stream;
+            this.group = group;
+            this.name = name;
+            this.channel = channel;
+            this.listener = listener;
+        }
+    }
+
+    private final JedisPool pool;
+    private final Map<String, Consumer> consumers = new ConcurrentHashMap<>(); // By "stream group"
+    private final Map<Consumer, List<StreamEntryID>> acks = new HashMap<>(); // Owned by the reader thread
+    private final Map<String, Map<String, String>> deadLetters = new LinkedHashMap<>(); // By "stream ID", owned by the reader thread
+    private final Map<String, Integer> failures = new HashMap<>(); // By "stream group ID", owned by the reader thread
+    private final Thread thread;
+    private volatile Jedis connection = null; // Disconnected when shut down, to abort the blocking read
+    private volatile boolean running = true;
+
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong redelivered = new AtomicLong(0);
+    private final AtomicLong deadLettered = new AtomicLong(0);
+    private final AtomicLong reconnects = new AtomicLong(0);
+
+    KVStreamReader(JedisPool pool) {
+        this.pool = pool;
+
+        thread = new Thread(this::_run, "phusion-kv-stream-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Create the group (from the new messages) if not exists, and start reading.
+     */
+    void add(Consumer consumer) {
+        try (Jedis redis = pool.getResource()) {
+            redis.xgroupCreate(consumer.stream, consumer.group, StreamEntryID.LAST_ENTRY, true);
+        } catch (Exception ex) {
+            if (ex.getMessage()==null || ! ex.getMessage().startsWith("BUSYGROUP")) throw ex;
+            // The group exists, continue from its last delivered message
+        }
+
+        consumers.put(consumer.stream + " " + consumer.group, consumer);
+    }
+
+    void remove(String stream, String group) {
+        consumers.remove(stream + " " + group);
+    }
+
+    private void _run() {
+        while (running) {
+            if (consumers.isEmpty()) {
+                _sleep(IDLE_INTERVAL);
+                continue;
+            }
+
+            try (Jedis redis = pool.getResource()) {
+                connection = redis;
+                while (running && ! consumers.isEmpty()) _read(redis);
+            } catch (Exception ex) {
+                if (! running) break;
+
+                // Read the pending messages again after reconnected, since the acknowledgements may be lost
+                reconnects.incrementAndGet();
+                acks.clear();
+                deadLetters.clear();
+                for (Consumer consumer : consumers.values()) {
+                    consumer.replayed = false;
+                    consumer.cursor = new StreamEntryID();
+                }
+                _sleep(RETRY_INTERVAL);
+            }
+        }
+    }
+
+    private void _read(Jedis redis) {
+        // Consumers by group and consumer name
+        Map<String, List<Consumer>> groups = new LinkedHashMap<>();
+        for (Consumer consumer : consumers.values()) {
+            groups.computeIfAbsent(consumer.group + " " + consumer.name, k -> new ArrayList<>()).add(consumer);
+        }
+
+        Pipeline pipeline = redis.pipelined();
+        _queueAcks(pipeline);
+
+        List<Response<List<Map.Entry<String, List<StreamEntry>>>>> responses = new ArrayList<>();
+        List<List<Consumer>> groupList = new ArrayList<>(groups.values());
+        int block = groupList.size()==1 ? BLOCK : 0;
+
+        for (List<Consumer> group : groupList) responses.add(_queueRead(pipeline, group, block));
+        pipeline.sync();
+
+        boolean received = false;
+        for (int i = 0; i < groupList.size(); i++) received |= _deliver(groupList.get(i), responses.get(i).get());
+
+        if (! received && groupList.size() > 1) {
+            // Wait for the first group a while, the others are read in the next round
+            pipeline = redis.pipelined();
+            _queueAcks(pipeline);
+            Response<List<Map.Entry<String, List<StreamEntry>>>> response = _queueRead(pipeline, groupList.get(0), MULTI_GROUP_BLOCK);
+            pipeline.sync();
+            _deliver(groupList.get(0), response.get());
+        }
+    }
+
+    private Response<List<Map.Entry<String, List<StreamEntry>>>> _queueRead(Pipeline pipeline, List<Consumer> group, int block) {
+        Map<String, StreamEntryID> streams = new LinkedHashMap<>();
+        for (Consumer consumer : group) {
+            streams.put(consumer.stream, consumer.replayed ? StreamEntryID.UNRECEIVED_ENTRY : consumer.cursor);
+        }
+
+        XReadGroupParams params = XReadGroupParams.xReadGroupParams().count(COUNT);
+        if (block > 0) params.block(block);
+
+        Consumer first = group.get(0);
+        return pipeline.xreadGroup(first.group, first.name, params, streams);
+    }
+
+    private void _queueAcks(Pipeline pipeline) {
+        // Moved before acknowledged
+        for (Map.Entry<String, Map<String, String>> entry : deadLetters.entrySet()) {
+            String stream = entry.getKey().substring(0, entry.getKey().lastIndexOf(' '));
+            pipeline.xadd(stream + DEAD_LETTER_SUFFIX, StreamEntryID.NEW_ENTRY, entry.getValue());
+        }
+        deadLetters.clear();
+
+        for (Map.Entry<Consumer, List<StreamEntryID>> entry : acks.entrySet()) {
+            Consumer consumer = entry.getKey();
+            pipeline.xack(consumer.stream, consumer.group, entry.getValue().toArray(new StreamEntryID[0]));
+        }
+        acks.clear();
+    }
+
+    /**
+     * Returns whether any message is received.
+     */
+    private boolean _deliver(List<Consumer> group, List<Map.Entry<String, List<StreamEntry>>> result) {
+        if (! running) return false; // Left pending, delivered again when restarted
+
+        Map<String, Consumer> byStream = new HashMap<>();
+        for (Consumer consumer : group) byStream.put(consumer.stream, consumer);
+
+        Set<Consumer> pendingRead = new HashSet<>();
+        for (Consumer consumer : group) {
+            if (! consumer.replayed) pendingRead.add(consumer);
+        }
+
+        boolean received = false;
+
+        if (result != null) {
+            for (Map.Entry<String, List<StreamEntry>> streamResult : result) {
+                Consumer consumer = byStream.get(streamResult.getKey());
+                if (consumer == null) continue;
+
+                // Stopped meanwhile, left pending and read again when started again
+                if (consumers.get(consumer.stream + " " + consumer.group) != consumer) continue;
+
+                List<StreamEntry> entries = streamResult.getValue();
+                if (entries == null || entries.isEmpty()) continue;
+
+                // Read the pending messages until none is left
+                pendingRead.remove(consumer);
+
+                for (StreamEntry entry : entries) {
+                    received = true;
+
+                    // The pending messages are read from the last one, rather than from the first again
+                    if (! consumer.replayed) consumer.cursor = entry.getID();
+
+                    Map<String, String> fields = entry.getFields();
+                    if (fields != null) {
+                        if (! consumer.replayed) redelivered.incrementAndGet();
+
+                        String failureKey = consumer.stream + " " + consumer.group + " " + entry.getID();
+
+                        try {
+                            consumer.listener.onMessage(consumer.channel, fields.get(FIELD));
+                            delivered.incrementAndGet();
+                            if (! failures.isEmpty()) failures.remove(failureKey);
+                        } catch (Exception ex) {
+                            failed.incrementAndGet();
+
+                            if (failures.size() >= MAX_FAILURES_KEPT) failures.clear();
+                            int count = failures.merge(failureKey, 1, Integer::sum);
+
+                            // Not acknowledged, delivered again when reconnected or restarted
+                            if (count < MAX_DELIVERIES) continue;
+
+                            failures.remove(failureKey);
+                            deadLetters.put(consumer.stream + " " + entry.getID(), fields);
+                            deadLettered.incrementAndGet();
+                        }
+                    }
+                    // The message trimmed from the stream is acknowledged without delivered
+
+                    acks.computeIfAbsent(consumer, c -> new ArrayList<>()).add(entry.getID());
+                }
+            }
+        }
+
+        // No pending messages left, read the new ones from now on
+        for (Consumer consumer : pendingRead) consumer.replayed = true;
+
+        return received;
+    }
+
+    private void _sleep(long milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException ex) {
+            // Stopping
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+
+        Jedis current = connection;
+        if (current != null) {
+            try {
+                current.disconnect();
+            } catch (Exception ex) {
+                // Ignore it
+            }
+        }
+    }
+
+    JSONObject getStatistics() {
+        JSONObject result = new JSONObject();
+        result.put("consumers", consumers.size());
+        result.put("delivered", delivered.get());
+        result.put("redelivered", redelivered.get());
+        result.put("failed", failed.get());
+        result.put("deadLettered", deadLettered.get());
+        result.put("reconnects", reconnects.get());
+        return result;
+    }
+
+}
@@ -0,0 +1,237 @@
+package cloud.phusion.express.component.storage;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.*;
+
+/**
+ * Keeps the subscriptions of the engine on one connection, in one background thread: the message channels of
+ * KVStorageImpl, the invalidation channel of the near-cache and the channel of the lock releases.
+ *
+ * The thread is started with the first channel. The channels added or removed later are subscribed or unsubscribed
+ * on the same connection, and subscribe() can wait for Redis to confirm. If the subscription is broken, e.g. Redis is
+ * restarted, the thread subscribes all the channels again later.
+ *
+ * The messages published while not subscribed are missed, so the listeners are told when the subscription is broken
+ * and when it is done (again). The listeners are called by the thread, so they should return quickly.
+ */
+class KVSubscriber {
+    private static final long RETRY_INTERVAL = 1000; // In milliseconds
+
+    interface Listener {
+        void onSubscribed();
+        void onMessage(String message);
+        void onBroken();
+    }
+
+    private final JedisPool pool;
+    private final String threadName;
+
+    // Guarded by this
+    private final Map<String, Set<Listener>> listeners = new HashMap<>();
+    private final Set<String> subscribed = new HashSet<>(); // Confirmed by Redis
+    private JedisPubSub connection = null; // Null until the first channel is confirmed on the connection
+    private Thread thread = null;
+    private boolean running = true;
+
+    KVSubscriber(JedisPool pool, String threadName) {
+        this.pool = pool;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Add the listener to the channel. The listener is told when the channel is subscribed.
+     */
+    void subscribe(String channel, Listener listener) {
+        // Joined the others on the channel, so it is not told by the thread
+        if (_join(channel, listener)) listener.onSubscribed();
+    }
+
+    /**
+     * Add the listener to the channel, and wait at most the milliseconds for the channel to be subscribed.
+     * Returns whether it is subscribed. If not, the listener is kept, and told when subscribed later.
+     */
+    boolean subscribe(String channel, Listener listener, long milliseconds) throws InterruptedException {
+        subscribe(channel, listener);
+
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + milliseconds;
+            long wait;
+            while (! subscribed.contains(channel) && running && (wait = deadline - System.currentTimeMillis()) > 0) {
+                wait(wait);
+            }
+            return subscribed.contains(channel);
+        }
+    }
+
+    /**
+     * Returns true if the channel is subscribed already.
+     */
+    private synchronized boolean _join(String channel, Listener listener) {
+        if (! running) return false;
+
+        Set<Listener> set = listeners.computeIfAbsent(channel, k -> new LinkedHashSet<>());
+        if (! set.add(listener)) return false;
+        if (subscribed.contains(channel)) return true;
+
+        if (set.size() == 1) {
+            if (thread == null) {
+                thread = new Thread(this::_run, threadName);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            else if (connection != null) _send(() -> connection.subscribe(channel));
+            else notifyAll(); // The thread may be waiting for the channels
+        }
+        return false;
+    }
+
+    synchronized void unsubscribe(String channel, Listener listener) {
+        Set<Listener> set = listeners.get(channel);
+        if (set == null || ! set.remove(listener) || ! set.isEmpty()) return;
+
+        listeners.remove(channel);
+        if (connection != null) _send(() -> connection.unsubscribe(channel));
+    }
+
+    synchronized boolean isSubscribed(String channel) {
+        return subscribed.contains(channel);
+    }
+
+    synchronized void close() {
+        running = false;
+        if (connection != null) _send(() -> connection.unsubscribe());
+        notifyAll();
+    }
+
+    private void _run() {
+        while (true) {
+            String[] channels;
+
+            synchronized (this) {
+                try {
+                    while (running && listeners.isEmpty()) wait();
+                } catch (InterruptedException ex) {
+                    running = false;
+                }
+                if (! running) return;
+
+                channels = listeners.keySet().toArray(new String[0]);
+            }
+
+            Jedis redis = null;
+            boolean failed = false;
+
+            try {
+                redis = pool.getResource();
+                redis.subscribe(new Subscription(channels), channels);
+            } catch (Exception ex) {
+                failed = true; // Subscribe again later
+            } finally {
+                if (redis != null) {
+                    // The replies to the commands sent after the last channel was unsubscribed may still come
+                    try {
+                        redis.getConnection().setBroken();
+                        redis.close();
+                    } catch (Exception ex) {
+                        // Ignore it
+                    }
+                }
+            }
+
+            List<Listener> broken = new ArrayList<>();
+            synchronized (this) {
+                connection = null;
+                subscribed.clear();
+                for (Set<Listener> set : listeners.values()) broken.addAll(set);
+            }
+
+            for (Listener listener : broken) listener.onBroken();
+
+            if (failed) {
+                synchronized (this) {
+                    try {
+                        if (running) wait(RETRY_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        running = false;
+                    }
+                }
+            }
+        }
+    }
+
+    private interface Command {
+        void send();
+    }
+
+    /**
+     * Send the command on the subscribed connection, always while holding the lock. If failed, the connection is
+     * broken, and the thread will subscribe all the channels again.
+     */
+    private void _send(Command command) {
+        try {
+            command.send();
+        } catch (Exception ex) {
+            // Ignore it
+        }
+    }
+
+    private synchronized List<Listener> _listeners(String channel) {
+        Set<Listener> set = listeners.get(channel);
+        return set==null ? Collections.emptyList() : new ArrayList<>(set);
+    }
+
+    private class Subscription extends JedisPubSub {
+        private final Set<String> channels; // The channels subscribed on the connection at first
+
+        Subscription(String[] channels) {
+            this.channels = new HashSet<>(Arrays.asList(channels));
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            synchronized (KVSubscriber.this) {
+                if (connection == null) {
+                    connection = this;
+
+                    // Catch up with the channels added or removed since the thread took them
+                    if (! running) _send(() -> unsubscribe());
+                    else {
+                        for (String ch : listeners.keySet()) {
+                            if (! channels.contains(ch)) _send(() -> subscribe(ch));
+                        }
+                        for (String ch : channels) {
+                            if (! listeners.containsKey(ch)) _send(() -> unsubscribe(ch));
+                        }
+                    }
+                }
+
+                subscribed.add(channel);
+                KVSubscriber.this.notifyAll();
+            }
+
+            for (Listener listener : _listeners(channel)) listener.onSubscribed();
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+            synchronized (KVSubscriber.this) {
+                subscribed.remove(channel);
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            for (Listener listener : _listeners(channel)) {
+                try {
+                    listener.onMessage(message);
+                } catch (Exception ex) {
+                    // The subscription and the other listeners are not affected
+                }
+            }
+        }
+    }
+
+}
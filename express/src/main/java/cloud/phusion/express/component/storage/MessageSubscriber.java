@@ -1,18 +1,40 @@
 package cloud.phusion.express.component.storage;
 
-import redis.clients.jedis.JedisPubSub;
+import java.util.concurrent.Executor;
 
-public class MessageSubscriber extends JedisPubSub {
-    private MessageListener listener;
+/**
+ * Hands the messages of the channel to the listener, by the dispatcher rather than the thread of KVSubscriber,
+ * which is shared by all channels.
+ */
+public class MessageSubscriber implements KVSubscriber.Listener {
+    private final String channel;
+    private final MessageListener listener;
+    private final Executor dispatcher;
 
-    MessageSubscriber(MessageListener listener) {
+    MessageSubscriber(String channel, MessageListener listener, Executor dispatcher) {
         super();
+        this.channel = channel;
         this.listener = listener;
+        this.dispatcher = dispatcher;
     }
 
     @Override
-    public void onMessage(String channel, String message) {
-        listener.onMessage( channel, message );
+    public void onSubscribed() {
+    }
+
+    @Override
+    public void onMessage(String message) {
+        dispatcher.execute(() -> {
+            try {
+                listener.onMessage(channel, message);
+            } catch (Exception ex) {
+                // The other messages are not affected
+            }
+        });
+    }
+
+    @Override
+    public void onBroken() {
     }
 
 }
@@ -0,0 +1,111 @@
+package cloud.phusion.express.component.storage;
+
+import cloud.phusion.storage.Record;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The records of a query, read one by one from a forward-only result set (see SQLDBStorageImpl.openCursor).
+ *
+ * The connection is held until the cursor is closed, which is done when all records are read. The column names
+ * are read once, and shared by the records.
+ */
+public class SQLDBCursor implements Iterator<Record>, AutoCloseable {
+    private final Connection conn;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final String[] columns;
+    private final boolean restoreAutoCommit;
+
+    private Boolean hasNext = null; // Unknown until checked
+    private long count = 0;
+    private boolean closed = false;
+
+    SQLDBCursor(Connection conn, PreparedStatement statement, ResultSet resultSet, boolean restoreAutoCommit) throws Exception {
+        this.conn = conn;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.columns = SQLDBStorageImpl.getColumnNames(resultSet);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+
+        if (hasNext == null) {
+            try {
+                hasNext = resultSet.next();
+            } catch (Exception ex) {
+                close();
+                throw new IllegalStateException("Failed to read the next record", ex);
+            }
+
+            if (! hasNext) close();
+        }
+
+        return hasNext;
+    }
+
+    @Override
+    public Record next() {
+        if (! hasNext()) throw new NoSuchElementException();
+        hasNext = null;
+
+        try {
+            count++;
+            return SQLDBStorageImpl.toRecord(resultSet, columns);
+        } catch (Exception ex) {
+            close();
+            throw new IllegalStateException("Failed to read the record", ex);
+        }
+    }
+
+    /**
+     * Returns at most "size" records, or an empty list at the end.
+     */
+    public List<Record> next(int size) {
+        List<Record> result = new ArrayList<>();
+        while (result.size() < size && hasNext()) result.add(next());
+        return result;
+    }
+
+    /**
+     * The number of records read.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        try {
+            resultSet.close();
+        } catch (Exception ex) {}
+
+        try {
+            statement.close();
+        } catch (Exception ex) {}
+
+        try {
+            if (restoreAutoCommit) {
+                conn.commit();
+                conn.setAutoCommit(true);
+            }
+        } catch (Exception ex) {}
+
+        try {
+            SQLDBStorageImpl.closeConnection(conn);
+        } catch (Exception ex) {}
+    }
+
+}
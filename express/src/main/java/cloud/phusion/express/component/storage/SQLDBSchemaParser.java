@@ -10,6 +10,7 @@ import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class SQLDBSchemaParser {
@@ -309,6 +310,51 @@ public class SQLDBSchemaParser {
         return result.toString();
     }
 
+    /**
+     * The statement to insert a record, or update it if the ID exists, with the fields (in order) as the parameters.
+     * The ID field should be the primary key or a unique index.
+     *
+     * Returns null if the database has no native upsert.
+     */
+    public String generateUpsertStatement(String tablename, List<String> fields, String idField) {
+        String id = idField.replaceAll("`", "");
+        StringBuilder fieldList = new StringBuilder();
+
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) fieldList.append(", ");
+            fieldList.append("`").append(fields.get(i)).append("`");
+        }
+
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) values.append(i==0 ? "?" : ", ?");
+
+        StringBuilder sql = new StringBuilder();
+
+        if (isMemoryDB) {
+            sql.append("MERGE INTO ").append(tablename).append(" (").append(fieldList).append(")")
+                    .append(" KEY (`").append(id).append("`)")
+                    .append(" VALUES (").append(values).append(")");
+        }
+        else if (dbType.equals("mysql")) {
+            sql.append("INSERT INTO ").append(tablename).append(" (").append(fieldList).append(")")
+                    .append(" VALUES (").append(values).append(")")
+                    .append(" ON DUPLICATE KEY UPDATE ");
+
+            boolean isFirst = true;
+            for (String field : fields) {
+                if (field.equals(id)) continue;
+
+                if (isFirst) isFirst = false;
+                else sql.append(", ");
+                sql.append("`").append(field).append("`=VALUES(`").append(field).append("`)");
+            }
+            if (isFirst) sql.append("`").append(id).append("`=`").append(id).append("`"); // Only the ID
+        }
+        else return null;
+
+        return sql.toString();
+    }
+
     public String generateAlterTableStatement(String tablename, String dbSchema, String newSchema) throws Exception {
         if (isMemoryDB) {
             // Remove the table and create a new one
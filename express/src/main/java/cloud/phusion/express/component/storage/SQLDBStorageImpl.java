@@ -1,11 +1,14 @@
 package cloud.phusion.express.component.storage;
 
 import cloud.phusion.Context;
+import cloud.phusion.DataObject;
 import cloud.phusion.EngineFactory;
 import cloud.phusion.PhusionException;
+import cloud.phusion.express.ExpressContext;
 import cloud.phusion.express.util.TimeMarker;
 import cloud.phusion.storage.DBStorage;
 import cloud.phusion.storage.Record;
+import com.alibaba.druid.pool.DruidDataSource;
 import com.alibaba.druid.pool.DruidDataSourceFactory;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
@@ -13,7 +16,22 @@ import com.alibaba.fastjson2.JSONObject;
 import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * DBStorage on a JDBC database, through the Druid connection pool, also for H2 (in-memory or embedded).
+ *
+ * The SQL statements are composed from templates cached by the operation, table, fields and clauses, and the
+ * prepared statements are cached by the pooled connections (see EngineFactory.JDBC_StatementCacheSize).
+ *
+ * The batch operations (insertRecords, insertBatch, updateBatchById and upsertBatch) send the records with one
+ * prepared statement in chunks (see EngineFactory.JDBC_BatchSize), on one connection and in one transaction.
+ *
+ * The cursors (openCursor, openFreeCursor and queryStream) read the records one by one from a forward-only result set
+ * (see EngineFactory.JDBC_FetchSize), so that a large result is not held in memory as a whole.
+ */
 public class SQLDBStorageImpl implements DBStorage {
     private static final String _position = SQLDBStorageImpl.class.getName();
 
@@ -23,8 +41,9 @@ public class SQLDBStorageImpl implements DBStorage {
 
     private static DataSource ds = null;
     private static boolean isMemoryDB = false;
-    private static Connection conn = null; // For in-memory database
-    private static Set<String> tables = new HashSet<>(); // For in-memory database
+    private static final Set<String> tables = ConcurrentHashMap.newKeySet(); // For in-memory database
+    private static int batchSize = 1000; // The max number of records sent in one batch
+    private static int fetchSize = 1000; // The number of rows fetched in one round trip by the cursors
 
     public static void init(Properties props) throws Exception {
         if (dbUrl!=null || props==null) return;
@@ -32,8 +51,12 @@ public class SQLDBStorageImpl implements DBStorage {
         String driver = props.getProperty(EngineFactory.JDBC_DriverClass);
         if (driver==null || driver.length()==0) return;
 
+        batchSize = Integer.parseInt(props.getProperty(EngineFactory.JDBC_BatchSize, "1000"));
+        fetchSize = Integer.parseInt(props.getProperty(EngineFactory.JDBC_FetchSize, "1000"));
+
         String minPoolSize = props.getProperty(EngineFactory.JDBC_MinPoolSize,"2");
         String maxPoolSize = props.getProperty(EngineFactory.JDBC_MaxPoolSize,"200");
+        int statementCacheSize = Integer.parseInt(props.getProperty(EngineFactory.JDBC_StatementCacheSize, "100"));
         String user = props.getProperty(EngineFactory.JDBC_User);
         String password = props.getProperty(EngineFactory.JDBC_Password);
 
@@ -43,36 +66,102 @@ public class SQLDBStorageImpl implements DBStorage {
         isMemoryDB = dbType.equals("h2");
 
         if (isMemoryDB) {
-            Driver d = (Driver) Class.forName(driver).newInstance();
-            DriverManager.registerDriver(d);
-            conn = DriverManager.getConnection(dbUrl);
+            // The in-memory database is dropped when its last connection is closed, unless it is kept till the JVM exits
+            if (dbUrl.startsWith("jdbc:h2:mem:") && ! dbUrl.toUpperCase().contains("DB_CLOSE_DELAY"))
+                dbUrl += ";DB_CLOSE_DELAY=-1";
+
+            if (user == null) user = "sa";
+            if (password == null) password = "";
         }
-        else {
-            Properties jdbcProps = new Properties();
-            jdbcProps.setProperty("driverClassName", driver);
-            jdbcProps.setProperty("url", dbUrl);
-            jdbcProps.setProperty("username", user);
-            jdbcProps.setProperty("password", password);
-            jdbcProps.setProperty("initialSize", minPoolSize);
-            jdbcProps.setProperty("maxActive", maxPoolSize);
 
-            ds = DruidDataSourceFactory.createDataSource(jdbcProps);
-            ds.getConnection().close(); // Try to connect to database. Or, the connection pool may be initialized in the web server threads.
+        Properties jdbcProps = new Properties();
+        jdbcProps.setProperty("driverClassName", driver);
+        jdbcProps.setProperty("url", dbUrl);
+        jdbcProps.setProperty("username", user);
+        jdbcProps.setProperty("password", password);
+        jdbcProps.setProperty("initialSize", minPoolSize);
+        jdbcProps.setProperty("maxActive", maxPoolSize);
+        if (isMemoryDB) {
+            jdbcProps.setProperty("minIdle", minPoolSize);
+            jdbcProps.setProperty("validationQuery", "SELECT 1");
+        }
+        if (statementCacheSize > 0) {
+            jdbcProps.setProperty("poolPreparedStatements", "true");
+            jdbcProps.setProperty("maxPoolPreparedStatementPerConnectionSize", ""+statementCacheSize);
         }
+
+        ds = DruidDataSourceFactory.createDataSource(jdbcProps);
+        ds.getConnection().close(); // Try to connect to database. Or, the connection pool may be initialized in the web server threads.
     }
 
     public static Connection getConnection() throws Exception {
-        if (isMemoryDB) return conn;
-        else return ds.getConnection();
+        return ds.getConnection();
     }
 
     public static void closeConnection(Connection conn) throws Exception {
-        if (! isMemoryDB) {
-            try {
-                if (conn!=null && !conn.isClosed()) conn.close();
-            }
-            catch (Exception e) {}
+        try {
+            if (conn!=null && !conn.isClosed()) conn.close();
+        }
+        catch (Exception e) {}
+    }
+
+    /*
+     The same shapes of SQL (e.g. the transaction logs and the heartbeats) are executed again and again, so the SQL
+     composed is cached by the operation, table, fields and clauses. The SQL with literal values in the clauses makes
+     new templates, which are not cached beyond the max.
+     */
+
+    private static final int MAX_SQL_TEMPLATES = 10000;
+    private static final Map<String, String> sqlTemplates = new ConcurrentHashMap<>();
+    private static final AtomicLong templateHits = new AtomicLong(0);
+    private static final AtomicLong templateMisses = new AtomicLong(0);
+
+    private static String _sqlTemplate(Supplier<String> composer, String... keyParts) {
+        StringBuilder key = new StringBuilder();
+        for (String part : keyParts) {
+            if (part != null) key.append(part);
+            key.append('\u0001');
+        }
+
+        String sql = sqlTemplates.get(key.toString());
+        if (sql != null) {
+            templateHits.incrementAndGet();
+            return sql;
+        }
+
+        templateMisses.incrementAndGet();
+        sql = composer.get();
+        if (sql!=null && sqlTemplates.size()<MAX_SQL_TEMPLATES) sqlTemplates.put(key.toString(), sql);
+        return sql;
+    }
+
+    private static boolean _isLogEnabled(boolean noLog) {
+        return !noLog && ExpressContext.isInfoEnabled();
+    }
+
+    /**
+     * Statistics of the SQL templates and the connection pool (including the prepared statement cache).
+     */
+    public static DataObject getStatistics() {
+        JSONObject result = new JSONObject();
+
+        long hits = templateHits.get();
+        long misses = templateMisses.get();
+        result.put("templates", sqlTemplates.size());
+        result.put("templateHits", hits);
+        result.put("templateMisses", misses);
+        result.put("templateHitRatio", hits+misses==0 ? 0.0 : hits*1000/(hits+misses)/1000.0);
+
+        if (ds instanceof DruidDataSource) {
+            DruidDataSource pool = (DruidDataSource) ds;
+            result.put("activeConnections", pool.getActiveCount());
+            result.put("idleConnections", pool.getPoolingCount());
+            result.put("cachedStatements", pool.getCachedPreparedStatementCount());
+            result.put("statementCacheHits", pool.getCachedPreparedStatementHitCount());
+            result.put("statementCacheMisses", pool.getCachedPreparedStatementMissCount());
         }
+
+        return new DataObject(result);
     }
 
     private String namespace;
@@ -208,28 +297,26 @@ public class SQLDBStorageImpl implements DBStorage {
     @Override
     public int insertRecord(String tableName, Record record, Context ctx) throws Exception {
         ctx.setContextInfo("tableName", namespace + tableName);
-        ArrayList<Object> arr = _recordToInsertStatement(record); // The first element is the SQL clause, and the others are argument values
-
-        StringBuilder sql = new StringBuilder();
-        sql.append("INSERT INTO ").append(namespace).append(tableName).append(" ");
-        sql.append(arr.get(0));
+        List<String> fields = new ArrayList<>(record.getFields());
+        String sql = _insertStatement(namespace + tableName, fields);
 
         int count;
+        boolean log = _isLogEnabled(false);
 
-        ctx.logInfo(_position, "Inserting record", String.format("record=%s, sql=[%s], params=%s",
-                record.toJSONString(), sql, arr.subList(1, arr.size())));
+        if (log) ctx.logInfo(_position, "Inserting record", String.format("record=%s, sql=[%s]",
+                record.toJSONString(), sql));
         TimeMarker marker = new TimeMarker();
 
         Connection conn = getConnection();
         try {
-            try (PreparedStatement statement = conn.prepareStatement(sql.toString())) {
-                for (int i = 1; i < arr.size(); i++) {
-                    statement.setObject(i, arr.get(i));
+            try (PreparedStatement statement = conn.prepareStatement(sql)) {
+                for (int i = 0; i < fields.size(); i++) {
+                    statement.setObject(i+1, record.getValue(fields.get(i)));
                 }
                 count = statement.executeUpdate();
 
                 double ms = marker.mark();
-                ctx.logInfo(_position, "Record inserted", String.format("count=%d, time=%.1fms", count, ms));
+                if (log) ctx.logInfo(_position, "Record inserted", String.format("count=%d, time=%.1fms", count, ms));
             }
         } catch (Exception ex) {
             throw new PhusionException("DB_OP", "Failed to insert record", ctx, ex);
@@ -243,81 +330,263 @@ public class SQLDBStorageImpl implements DBStorage {
 
     @Override
     public int insertRecords(String tableName, String fields, List<Object> params, Context ctx) throws Exception {
-        StringBuilder sql = new StringBuilder();
-        sql.append("INSERT INTO ").append(namespace).append(tableName)
-                .append(" (").append(fields).append(") VALUES ");
+        List<String> fieldList = new ArrayList<>();
+        for (String field : fields.split(",")) fieldList.add(field.trim().replaceAll("`",""));
+
+        int nFields = fieldList.size();
+        int nRecords = Math.floorDiv(params.size(), nFields);
+        String sql = _insertStatement(namespace + tableName, fieldList);
+
+        ctx.setContextInfo("tableName", namespace + tableName);
+        boolean log = _isLogEnabled(false);
+        if (log) ctx.logInfo(_position, "Inserting records", String.format("sql=[%s], records=%d", sql, nRecords));
+        TimeMarker marker = new TimeMarker();
+
+        int count;
+        try {
+            count = _inTransaction(conn -> _sum(_executeBatch(conn, sql, nRecords, (statement, i) -> {
+                for (int j = 0; j < nFields; j++) statement.setObject(j+1, params.get(i*nFields + j));
+            })));
 
-        int nFields = fields.split(",").length;
-        int nParams = params.size();
-        int nRecords = Math.floorDiv(nParams, nFields);
-        StringBuilder record = new StringBuilder();
-        record.append("(");
-        for (int i = 0; i < nFields; i++) {
-            if (i > 0) record.append(",");
-            record.append("?");
+            double ms = marker.mark();
+            if (log) ctx.logInfo(_position, "Records inserted", String.format("count=%d, time=%.1fms", count, ms));
+        } catch (Exception ex) {
+            throw new PhusionException("DB_OP", "Failed to insert record", ctx, ex);
         }
-        record.append(")");
-        String recordStr = record.toString();
 
-        for (int i = 0; i < nRecords; i++) {
-            if (i > 0) sql.append(",");
-            sql.append(recordStr);
+        ctx.removeContextInfo("tableName");
+        return count;
+    }
+
+    public int insertBatch(String tableName, List<Record> records) throws Exception {
+        return insertBatch(tableName, records, baseCtx);
+    }
+
+    /**
+     * Insert the records in batches. The fields are taken from the first record, and the ones missing in the other
+     * records are inserted as null.
+     */
+    public int insertBatch(String tableName, List<Record> records, Context ctx) throws Exception {
+        if (records==null || records.size()==0) return 0;
+
+        List<String> fields = new ArrayList<>(records.get(0).getFields());
+        String sql = _insertStatement(namespace + tableName, fields);
+
+        return _runBatch(tableName, "insert", sql, records.size(), ctx, conn ->
+                _sum(_executeBatch(conn, sql, records.size(), (statement, i) ->
+                        _fillFields(statement, 0, records.get(i), fields)))
+        );
+    }
+
+    public int updateBatchById(String tableName, List<Record> records, String idField) throws Exception {
+        return updateBatchById(tableName, records, idField, baseCtx);
+    }
+
+    /**
+     * Update the records by their IDs in batches. The fields (except the ID) are taken from the first record, and
+     * the ones missing in the other records are updated to null.
+     */
+    public int updateBatchById(String tableName, List<Record> records, String idField, Context ctx) throws Exception {
+        if (records==null || records.size()==0) return 0;
+
+        String id = idField.replaceAll("`","");
+        List<String> fields = new ArrayList<>(records.get(0).getFields());
+        fields.remove(id);
+        String sql = _updateStatement(namespace + tableName, fields, idField+"=?");
+
+        return _runBatch(tableName, "update", sql, records.size(), ctx, conn ->
+                _sum(_executeBatch(conn, sql, records.size(), (statement, i) -> {
+                    _fillFields(statement, 0, records.get(i), fields);
+                    statement.setObject(fields.size()+1, records.get(i).getValue(id));
+                }))
+        );
+    }
+
+    public int upsertBatch(String tableName, List<Record> records, String idField) throws Exception {
+        return upsertBatch(tableName, records, idField, baseCtx);
+    }
+
+    /**
+     * Insert the records, or update them if the IDs exist, in batches. The ID field should be the primary key or a
+     * unique index. The fields are taken from the first record, and the ones missing in the other records are null.
+     *
+     * The native upsert of the database is used (INSERT ... ON DUPLICATE KEY UPDATE of MySQL, MERGE of H2), and
+     * the counts are the ones reported by the database (e.g. MySQL counts 2 for an update). Otherwise, the records
+     * are updated, and the ones not found are inserted, in the same transaction.
+     */
+    public int upsertBatch(String tableName, List<Record> records, String idField, Context ctx) throws Exception {
+        if (records==null || records.size()==0) return 0;
+
+        String table = namespace + tableName;
+        String id = idField.replaceAll("`","");
+        List<String> fields = new ArrayList<>(records.get(0).getFields());
+
+        String sql = _sqlTemplate(
+                () -> new SQLDBSchemaParser(dbType, isMemoryDB).generateUpsertStatement(table, fields, idField),
+                "UPSERT", table, String.join(",", fields), idField
+        );
+
+        if (sql != null) {
+            return _runBatch(tableName, "upsert", sql, records.size(), ctx, conn ->
+                    _sum(_executeBatch(conn, sql, records.size(), (statement, i) ->
+                            _fillFields(statement, 0, records.get(i), fields)))
+            );
         }
 
-        int count;
+        List<String> updateFields = new ArrayList<>(fields);
+        updateFields.remove(id);
+        String updateSql = _updateStatement(table, updateFields, idField+"=?");
+        String insertSql = _insertStatement(table, fields);
+        String existSql = "SELECT 1 FROM " + table + " WHERE " + idField + "=?";
 
-        ctx.logInfo(_position, "Inserting records", String.format("sql=[%s], params=%s", sql, Arrays.toString(params.toArray())));
-        TimeMarker marker = new TimeMarker();
+        return _runBatch(tableName, "upsert", updateSql, records.size(), ctx, conn -> {
+            int[] updated = _executeBatch(conn, updateSql, records.size(), (statement, i) -> {
+                _fillFields(statement, 0, records.get(i), updateFields);
+                statement.setObject(updateFields.size()+1, records.get(i).getValue(id));
+            });
 
-        Connection conn = getConnection();
-        try {
-            try (PreparedStatement statement = conn.prepareStatement(sql.toString())) {
-                for (int i = 0; i < nParams; i++) {
-                    statement.setObject(i+1, params.get(i));
+            // Whether the record is updated is unknown to the driver (SUCCESS_NO_INFO), check if it exists
+            PreparedStatement exist = null;
+            try {
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] != Statement.SUCCESS_NO_INFO) continue;
+
+                    if (exist == null) exist = conn.prepareStatement(existSql);
+                    exist.setObject(1, records.get(i).getValue(id));
+                    try (ResultSet rs = exist.executeQuery()) {
+                        updated[i] = rs.next() ? 1 : 0;
+                    }
                 }
-                count = statement.executeUpdate();
+            } finally {
+                if (exist != null) exist.close();
+            }
 
-                double ms = marker.mark();
-                ctx.logInfo(_position, "Records inserted", String.format("count=%d, time=%.1fms", count, ms));
+            List<Record> missing = new ArrayList<>();
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] == 0) missing.add(records.get(i));
             }
+
+            return _sum(updated) + _sum(_executeBatch(conn, insertSql, missing.size(), (statement, i) ->
+                    _fillFields(statement, 0, missing.get(i), fields)));
+        });
+    }
+
+    private interface Transaction<T> {
+        T run(Connection conn) throws Exception;
+    }
+
+    private interface BatchFiller {
+        void fill(PreparedStatement statement, int index) throws Exception;
+    }
+
+    /**
+     * Run the work on one connection in one transaction, and roll back if failed.
+     */
+    private static <T> T _inTransaction(Transaction<T> work) throws Exception {
+        Connection conn = getConnection();
+        boolean autoCommit = conn.getAutoCommit();
+
+        try {
+            if (autoCommit) conn.setAutoCommit(false);
+            T result = work.run(conn);
+            conn.commit();
+            return result;
         } catch (Exception ex) {
-            throw new PhusionException("DB_OP", "Failed to insert record", ctx, ex);
+            try {
+                conn.rollback();
+            } catch (Exception e) {}
+            throw ex;
         } finally {
+            try {
+                if (autoCommit) conn.setAutoCommit(true);
+            } catch (Exception e) {}
             closeConnection(conn);
         }
-
-        return count;
     }
 
-    private ArrayList<Object> _recordToInsertStatement(Record record) {
-        ArrayList<Object> arr = new ArrayList<>();
-        arr.add("");
+    /**
+     * Execute the statement for the records in chunks of batchSize. Returns the count of every record.
+     */
+    private static int[] _executeBatch(Connection conn, String sql, int records, BatchFiller filler) throws Exception {
+        int[] result = new int[records];
+        if (records == 0) return result;
 
-        StringBuilder sql1 = new StringBuilder();
-        StringBuilder sql2 = new StringBuilder();
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            int done = 0;
 
-        sql1.append("(");
-        sql2.append(" VALUES (");
-        boolean isStart = true;
-        Set<String> fields = record.getFields();
+            for (int i = 0; i < records; i++) {
+                filler.fill(statement, i);
+                statement.addBatch();
 
-        for (String field : fields) {
-            if (! isStart) {
-                sql1.append(", ");
-                sql2.append(", ");
+                if (i-done+1 == batchSize || i == records-1) {
+                    int[] counts = statement.executeBatch();
+                    System.arraycopy(counts, 0, result, done, counts.length);
+                    done = i + 1;
+                }
             }
-            else isStart = false;
+        }
+
+        return result;
+    }
+
+    private int _runBatch(String tableName, String operation, String sql, int records, Context ctx, Transaction<Integer> work) throws Exception {
+        ctx.setContextInfo("tableName", namespace + tableName);
+
+        boolean log = _isLogEnabled(false);
+        if (log) ctx.logInfo(_position, "Executing batch", String.format("operation=%s, sql=[%s], records=%d", operation, sql, records));
+        TimeMarker marker = new TimeMarker();
+
+        int count;
+        try {
+            count = _inTransaction(work);
 
-            sql1.append("`").append(field).append("`");
-            sql2.append("?");
+            double ms = marker.mark();
+            if (log) ctx.logInfo(_position, "Batch executed", String.format("count=%d, time=%.1fms", count, ms));
+        } catch (Exception ex) {
+            throw new PhusionException("DB_OP", "Failed to "+operation+" records in batch", ctx, ex);
+        }
 
-            arr.add(record.getValue(field));
+        ctx.removeContextInfo("tableName");
+        return count;
+    }
+
+    private static void _fillFields(PreparedStatement statement, int filledParams, Record record, List<String> fields) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            statement.setObject(i+(filledParams+1), record.getValue(fields.get(i)));
         }
+    }
+
+    /**
+     * The counts unknown to the driver (SUCCESS_NO_INFO) are counted as 1.
+     */
+    private static int _sum(int[] counts) {
+        int result = 0;
+        for (int count : counts) result += count==Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        return result;
+    }
+
+    private static String _insertStatement(String table, List<String> fields) {
+        return _sqlTemplate(() -> {
+            StringBuilder sql1 = new StringBuilder();
+            StringBuilder sql2 = new StringBuilder();
+
+            sql1.append("INSERT INTO ").append(table).append(" (");
+            sql2.append(" VALUES (");
+
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) {
+                    sql1.append(", ");
+                    sql2.append(", ");
+                }
 
-        sql1.append(")");
-        sql2.append(")");
-        arr.set(0, sql1.toString() + sql2.toString());
-        return arr;
+                sql1.append("`").append(fields.get(i)).append("`");
+                sql2.append("?");
+            }
+
+            sql1.append(")");
+            sql2.append(")");
+            return sql1.toString() + sql2.toString();
+        }, "INSERT", table, String.join(",", fields));
     }
 
     @Override
@@ -371,44 +640,37 @@ public class SQLDBStorageImpl implements DBStorage {
     private Record[] _queryRecords(String tableName, String selectClause, String whereClause, String groupClause, String havingClause, List<Object> params, String orderClause, long from, long length, boolean noLog, Context ctx) throws Exception {
         ctx.setContextInfo("tableName", namespace + tableName);
 
-        StringBuilder sql = new StringBuilder();
-        sql.append("SELECT ")
-                .append((selectClause==null || selectClause.length()==0) ? "*" : selectClause)
-                .append(" FROM ").append(namespace).append(tableName);
-        if (whereClause!=null && whereClause.length()>0) sql.append(" WHERE ").append(whereClause);
-        if (groupClause!=null && groupClause.length()>0) sql.append(" GROUP BY ").append(groupClause);
-        if (havingClause!=null && havingClause.length()>0) sql.append(" HAVING ").append(havingClause);
-        if (orderClause!=null && orderClause.length()>0) sql.append(" ORDER BY ").append(orderClause);
+        String sql = _selectStatement(namespace + tableName, selectClause, whereClause, groupClause, havingClause, orderClause,
+                length > 0, from > 0);
 
         if (length > 0) {
-            sql.append(" LIMIT ?");
             if (params == null) params = new ArrayList<>();
             params.add(length); // Changed the input object. To be optimized.
         }
         if (from > 0) {
-            sql.append(" OFFSET ?");
             if (params == null) params = new ArrayList<>();
             params.add(from); // Changed the input object. To be optimized.
         }
 
-        if (! noLog) ctx.logInfo(_position, "Executing query", String.format("sql=[%s], params=%s",
-                sql, params!=null ? Arrays.toString(params.toArray()) : "null"));
+        boolean log = _isLogEnabled(noLog);
+        if (log) ctx.logInfo(_position, "Executing query", String.format("sql=[%s], params=%s", sql, params));
         TimeMarker marker = new TimeMarker();
 
         ArrayList<Record> result = new ArrayList<>();
 
         Connection conn = getConnection();
         try {
-            try (PreparedStatement statement = conn.prepareStatement(sql.toString())) {
+            try (PreparedStatement statement = conn.prepareStatement(sql)) {
                 _fillUpParams(statement, 0, params);
 
                 try (ResultSet records = statement.executeQuery()) {
+                    String[] columns = getColumnNames(records);
                     while (records.next()) {
-                        result.add( _resultSetToRecord(records) );
+                        result.add( toRecord(records, columns) );
                     }
 
                     double ms = marker.mark();
-                    if (! noLog) ctx.logInfo(_position, "Query executed", String.format("count=%d, time=%.1fms", result.size(), ms));
+                    if (log) ctx.logInfo(_position, "Query executed", String.format("count=%d, time=%.1fms", result.size(), ms));
                 }
             }
         } catch (Exception ex) {
@@ -421,6 +683,23 @@ public class SQLDBStorageImpl implements DBStorage {
         return result.size()==0 ? null : result.toArray(new Record[]{});
     }
 
+    private static String _selectStatement(String table, String selectClause, String whereClause, String groupClause, String havingClause, String orderClause, boolean limited, boolean offset) {
+        return _sqlTemplate(() -> {
+            StringBuilder result = new StringBuilder();
+            result.append("SELECT ")
+                    .append((selectClause==null || selectClause.length()==0) ? "*" : selectClause)
+                    .append(" FROM ").append(table);
+            if (whereClause!=null && whereClause.length()>0) result.append(" WHERE ").append(whereClause);
+            if (groupClause!=null && groupClause.length()>0) result.append(" GROUP BY ").append(groupClause);
+            if (havingClause!=null && havingClause.length()>0) result.append(" HAVING ").append(havingClause);
+            if (orderClause!=null && orderClause.length()>0) result.append(" ORDER BY ").append(orderClause);
+            if (limited) result.append(" LIMIT ?");
+            if (offset) result.append(" OFFSET ?");
+            return result.toString();
+        }, "SELECT", table, selectClause, whereClause, groupClause, havingClause, orderClause,
+                limited ? "L" : null, offset ? "O" : null);
+    }
+
     @Override
     public Record[] freeQuery(String sql, List<Object> params, long from, long length, Context ctx) throws Exception {
         if (length > 0) {
@@ -434,8 +713,8 @@ public class SQLDBStorageImpl implements DBStorage {
             params.add(from); // Changed the input object. To be optimized.
         }
 
-        ctx.logInfo(_position, "Executing free query", String.format("sql=[%s], params=%s",
-                sql, params!=null ? Arrays.toString(params.toArray()) : "null"));
+        boolean log = _isLogEnabled(false);
+        if (log) ctx.logInfo(_position, "Executing free query", String.format("sql=[%s], params=%s", sql, params));
         TimeMarker marker = new TimeMarker();
 
         ArrayList<Record> result = new ArrayList<>();
@@ -446,12 +725,13 @@ public class SQLDBStorageImpl implements DBStorage {
                 _fillUpParams(statement, 0, params);
 
                 try (ResultSet records = statement.executeQuery()) {
+                    String[] columns = getColumnNames(records);
                     while (records.next()) {
-                        result.add( _resultSetToRecord(records) );
+                        result.add( toRecord(records, columns) );
                     }
 
                     double ms = marker.mark();
-                    ctx.logInfo(_position, "Free query executed", String.format("count=%d, time=%.1fms", result.size(), ms));
+                    if (log) ctx.logInfo(_position, "Free query executed", String.format("count=%d, time=%.1fms", result.size(), ms));
                 }
             }
         } catch (Exception ex) {
@@ -465,8 +745,8 @@ public class SQLDBStorageImpl implements DBStorage {
 
     @Override
     public int freeUpdate(String sql, List<Object> params, Context ctx) throws Exception {
-        ctx.logInfo(_position, "Executing free update", String.format("sql=[%s], params=%s",
-                sql, params!=null ? Arrays.toString(params.toArray()) : "null"));
+        boolean log = _isLogEnabled(false);
+        if (log) ctx.logInfo(_position, "Executing free update", String.format("sql=[%s], params=%s", sql, params));
         TimeMarker marker = new TimeMarker();
 
         Connection conn = getConnection();
@@ -477,7 +757,7 @@ public class SQLDBStorageImpl implements DBStorage {
                 int result = statement.executeUpdate();
 
                 double ms = marker.mark();
-                ctx.logInfo(_position, "Free query executed", String.format("count=%d, time=%.1fms", result, ms));
+                if (log) ctx.logInfo(_position, "Free query executed", String.format("count=%d, time=%.1fms", result, ms));
                 return result;
             }
         } catch (Exception ex) {
@@ -487,6 +767,94 @@ public class SQLDBStorageImpl implements DBStorage {
         }
     }
 
+    /**
+     * Opens a cursor on the records, which must be closed if not read to the end.
+     */
+    public SQLDBCursor openCursor(String tableName, String selectClause, String whereClause, List<Object> params, String orderClause) throws Exception {
+        return openCursor(tableName, selectClause, whereClause, params, orderClause, baseCtx);
+    }
+
+    public SQLDBCursor openCursor(String tableName, String selectClause, String whereClause, List<Object> params, String orderClause, Context ctx) throws Exception {
+        String sql = _selectStatement(namespace + tableName, selectClause, whereClause, null, null, orderClause, false, false);
+        return _openCursor(sql, params, ctx);
+    }
+
+    public SQLDBCursor openFreeCursor(String sql, List<Object> params, Context ctx) throws Exception {
+        return _openCursor(sql, params, ctx);
+    }
+
+    public interface RecordConsumer {
+        /**
+         * Returns false to stop reading.
+         */
+        boolean accept(Record record) throws Exception;
+    }
+
+    /**
+     * Hands the records to the consumer one by one, and returns the number of records read.
+     */
+    public long queryStream(String tableName, String selectClause, String whereClause, List<Object> params, String orderClause, RecordConsumer consumer) throws Exception {
+        return queryStream(tableName, selectClause, whereClause, params, orderClause, consumer, baseCtx);
+    }
+
+    public long queryStream(String tableName, String selectClause, String whereClause, List<Object> params, String orderClause, RecordConsumer consumer, Context ctx) throws Exception {
+        ctx.setContextInfo("tableName", namespace + tableName);
+        TimeMarker marker = new TimeMarker();
+
+        try (SQLDBCursor cursor = openCursor(tableName, selectClause, whereClause, params, orderClause, ctx)) {
+            while (cursor.hasNext()) {
+                if (! consumer.accept(cursor.next())) break;
+            }
+
+            double ms = marker.mark();
+            if (_isLogEnabled(false)) ctx.logInfo(_position, "Query streamed", String.format("count=%d, time=%.1fms", cursor.getCount(), ms));
+
+            ctx.removeContextInfo("tableName");
+            return cursor.getCount();
+        } catch (PhusionException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new PhusionException("DB_OP", "Failed to stream the query", ctx, ex);
+        }
+    }
+
+    private SQLDBCursor _openCursor(String sql, List<Object> params, Context ctx) throws Exception {
+        if (_isLogEnabled(false)) ctx.logInfo(_position, "Opening cursor", String.format("sql=[%s], params=%s", sql, params));
+
+        // PostgreSQL and the like fetch the rows in chunks only out of the auto-commit mode
+        boolean restoreAutoCommit = false;
+        Connection conn = getConnection();
+        PreparedStatement statement = null;
+
+        try {
+            if (! isMemoryDB && ! dbType.equals("mysql") && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+
+            statement = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(dbType.equals("mysql") ? Integer.MIN_VALUE : fetchSize); // Streaming mode of MySQL
+            _fillUpParams(statement, 0, params);
+
+            return new SQLDBCursor(conn, statement, statement.executeQuery(), restoreAutoCommit);
+        } catch (Exception ex) {
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (Exception e) {}
+            }
+            if (restoreAutoCommit) {
+                try {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                } catch (Exception e) {}
+            }
+            closeConnection(conn);
+
+            throw new PhusionException("DB_OP", "Failed to open cursor", ctx, ex);
+        }
+    }
+
     @Override
     public Record[] queryRecords(String tableName, String selectClause, String whereClause, List<Object> params, String orderClause, long from, long length) throws Exception {
         return _queryRecords(tableName, selectClause, whereClause, null, null, params, orderClause, from, length, false, baseCtx);
@@ -497,14 +865,25 @@ public class SQLDBStorageImpl implements DBStorage {
         return _queryRecords(tableName, selectClause, whereClause, null, null, params, orderClause, from, length, false, ctx);
     }
 
-    private Record _resultSetToRecord(ResultSet resultSet) throws Exception {
+    /**
+     * The column names of the result set, read once and used for all the rows.
+     */
+    static String[] getColumnNames(ResultSet resultSet) throws Exception {
         ResultSetMetaData metaData = resultSet.getMetaData();
-        int columns = metaData.getColumnCount();
+        String[] result = new String[metaData.getColumnCount()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = metaData.getColumnName(i+1);
+        }
+
+        return result;
+    }
 
+    static Record toRecord(ResultSet resultSet, String[] columns) throws Exception {
         Record record = new Record();
 
-        for (int i = 1; i <= columns; i++) {
-            record.setValue(metaData.getColumnName(i), resultSet.getObject(i));
+        for (int i = 0; i < columns.length; i++) {
+            record.setValue(columns[i], resultSet.getObject(i+1));
         }
 
         return record;
@@ -571,34 +950,28 @@ public class SQLDBStorageImpl implements DBStorage {
 
     private int _updateRecords(String tableName, Record record, String whereClause, List<Object> params, boolean noLog, Context ctx) throws Exception {
         ctx.setContextInfo("tableName", namespace + tableName);
-        ArrayList<Object> arr = _recordToUpdateStatement(record); // The first element is the SQL clause, and the others are argument values
-
-        StringBuilder sql = new StringBuilder();
-        sql.append("UPDATE ").append(namespace).append(tableName).append(" SET ");
-        sql.append(arr.get(0));
-        if (whereClause!=null && whereClause.length()>0) sql.append(" WHERE ").append(whereClause);
+        List<String> fields = new ArrayList<>(record.getFields());
+        String sql = _updateStatement(namespace + tableName, fields, whereClause);
 
         int count;
+        boolean log = _isLogEnabled(noLog);
 
-        ArrayList<Object> allParams = new ArrayList<>();
-        allParams.addAll(arr.subList(1, arr.size()));
-        if (params != null) allParams.addAll(params);
-        if (! noLog) ctx.logInfo(_position, "Executing update", String.format("record=%s, sql=[%s], params=%s",
-                record.toJSONString(), sql, allParams));
+        if (log) ctx.logInfo(_position, "Executing update", String.format("record=%s, sql=[%s], params=%s",
+                record.toJSONString(), sql, params));
         TimeMarker marker = new TimeMarker();
 
         Connection conn = getConnection();
         try {
-            try (PreparedStatement statement = conn.prepareStatement(sql.toString())) {
-                for (int i = 1; i < arr.size(); i++) {
-                    statement.setObject(i, arr.get(i));
+            try (PreparedStatement statement = conn.prepareStatement(sql)) {
+                for (int i = 0; i < fields.size(); i++) {
+                    statement.setObject(i+1, record.getValue(fields.get(i)));
                 }
 
-                _fillUpParams(statement, arr.size()-1, params);
+                _fillUpParams(statement, fields.size(), params);
                 count = statement.executeUpdate();
 
                 double ms = marker.mark();
-                if (! noLog) ctx.logInfo(_position, "Update executed", String.format("count=%d, time=%.1fms", count, ms));
+                if (log) ctx.logInfo(_position, "Update executed", String.format("count=%d, time=%.1fms", count, ms));
             }
         } catch (Exception ex) {
             throw new PhusionException("DB_OP", "Failed to update", ctx, ex);
@@ -610,24 +983,19 @@ public class SQLDBStorageImpl implements DBStorage {
         return count;
     }
 
-    private ArrayList<Object> _recordToUpdateStatement(Record record) {
-        ArrayList<Object> arr = new ArrayList<>();
-        arr.add("");
-
-        StringBuilder sql = new StringBuilder();
-        boolean isStart = true;
-        Set<String> fields = record.getFields();
+    private static String _updateStatement(String table, List<String> fields, String whereClause) {
+        return _sqlTemplate(() -> {
+            StringBuilder sql = new StringBuilder();
+            sql.append("UPDATE ").append(table).append(" SET ");
 
-        for (String field : fields) {
-            if (! isStart) sql.append(", ");
-            else isStart = false;
-
-            sql.append("`").append(field).append("`").append("=?");
-            arr.add(record.getValue(field));
-        }
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) sql.append(", ");
+                sql.append("`").append(fields.get(i)).append("`").append("=?");
+            }
 
-        arr.set(0, sql.toString());
-        return arr;
+            if (whereClause!=null && whereClause.length()>0) sql.append(" WHERE ").append(whereClause);
+            return sql.toString();
+        }, "UPDATE", table, String.join(",", fields), whereClause);
     }
 
     @Override
@@ -668,24 +1036,28 @@ public class SQLDBStorageImpl implements DBStorage {
     public int deleteRecords(String tableName, String whereClause, List<Object> params, Context ctx) throws Exception {
         ctx.setContextInfo("tableName", namespace + tableName);
 
-        StringBuilder sql = new StringBuilder();
-        sql.append("DELETE FROM ").append(namespace).append(tableName);
-        if (whereClause!=null && whereClause.length()>0) sql.append(" WHERE ").append(whereClause);
+        String table = namespace + tableName;
+        String sql = _sqlTemplate(() -> {
+            StringBuilder result = new StringBuilder();
+            result.append("DELETE FROM ").append(table);
+            if (whereClause!=null && whereClause.length()>0) result.append(" WHERE ").append(whereClause);
+            return result.toString();
+        }, "DELETE", table, whereClause);
 
         int count;
+        boolean log = _isLogEnabled(false);
 
-        ctx.logInfo(_position, "Executing deletion", String.format("sql=[%s], params=%s",
-                sql, params!=null ? Arrays.toString(params.toArray()) : "null"));
+        if (log) ctx.logInfo(_position, "Executing deletion", String.format("sql=[%s], params=%s", sql, params));
         TimeMarker marker = new TimeMarker();
 
         Connection conn = getConnection();
         try {
-            try (PreparedStatement statement = conn.prepareStatement(sql.toString())) {
+            try (PreparedStatement statement = conn.prepareStatement(sql)) {
                 _fillUpParams(statement, 0, params);
                 count = statement.executeUpdate();
 
                 double ms = marker.mark();
-                ctx.logInfo(_position, "Deletion executed", String.format("count=%d, time=%.1fms", count, ms));
+                if (log) ctx.logInfo(_position, "Deletion executed", String.format("count=%d, time=%.1fms", count, ms));
             }
         } catch (Exception ex) {
             throw new PhusionException("DB_OP", "Failed to delete", ctx, ex);
@@ -0,0 +1,136 @@
+package cloud.phusion.express.integration;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.EngineFactory;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSONWriter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled conditions shared by all integrations and condition tests, so the same condition is compiled only once.
+ *
+ * - The key is the normalized condition: only "expression" and "vars", with the fields sorted.
+ * - The least recently used condition is evicted when the cache is full,
+ *   and a condition not used for the expire time is compiled again.
+ * - ConditionEvaluator is thread-safe, so one instance is handed out to all.
+ */
+public class ConditionCache {
+    private static final String _position = ConditionCache.class.getName();
+
+    private static int maxSize = 1000;
+    private static long expireTime = 3600000; // In milliseconds
+
+    private static final class Entry {
+        final ConditionEvaluator evaluator;
+        long lastAccess;
+
+        Entry(ConditionEvaluator evaluator, long lastAccess) {
+            this.evaluator = evaluator;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            else return false;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+    private static final AtomicLong evictions = new AtomicLong(0);
+    private static final AtomicLong compileTime = new AtomicLong(0); // In nanoseconds
+
+    public static void init(Properties props) {
+        if (props == null) return;
+
+        maxSize = Integer.parseInt(props.getProperty(EngineFactory.Condition_CacheSize, "1000"));
+        expireTime = Long.parseLong(props.getProperty(EngineFactory.Condition_CacheExpire, "3600")) * 1000;
+    }
+
+    /**
+     * The condition can be String or JSONObject, the same as ConditionEvaluator.
+     */
+    public static ConditionEvaluator get(Object condition) throws Exception {
+        if (condition == null) return new ConditionEvaluator(null);
+
+        JSONObject objCond = (condition instanceof String) ? JSON.parseObject((String) condition) : (JSONObject) condition;
+        JSONObject normalized = new JSONObject();
+        normalized.put("expression", objCond.getString("expression"));
+        if (objCond.containsKey("vars")) normalized.put("vars", objCond.getJSONObject("vars"));
+        String key = JSON.toJSONString(normalized, JSONWriter.Feature.MapSortField);
+
+        long now = System.currentTimeMillis();
+
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+
+            if (entry != null && now-entry.lastAccess <= expireTime) {
+                entry.lastAccess = now;
+                hits.incrementAndGet();
+                return entry.evaluator;
+            }
+        }
+
+        // Compile outside the lock, so that the other conditions are not blocked
+
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        ConditionEvaluator evaluator = new ConditionEvaluator(normalized);
+        compileTime.addAndGet(System.nanoTime() - start);
+
+        synchronized (cache) {
+            cache.put(key, new Entry(evaluator, now));
+            _removeExpired(now);
+        }
+
+        return evaluator;
+    }
+
+    private static void _removeExpired(long now) {
+        Iterator<Entry> it = cache.values().iterator();
+
+        while (it.hasNext()) {
+            if (now - it.next().lastAccess > expireTime) {
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static DataObject getStatistics() {
+        JSONObject result = new JSONObject();
+
+        synchronized (cache) {
+            result.put("size", cache.size());
+        }
+
+        long compiles = misses.get();
+        result.put("maxSize", maxSize);
+        result.put("hits", hits.get());
+        result.put("misses", compiles);
+        result.put("evictions", evictions.get());
+        result.put("compileTime", compileTime.get()/100000/10.0); // Total, in milliseconds
+        result.put("avgCompileTime", compiles==0 ? 0.0 : compileTime.get()/compiles/100000/10.0); // In milliseconds
+
+        return new DataObject(result);
+    }
+
+}
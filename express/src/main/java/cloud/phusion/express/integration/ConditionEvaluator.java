@@ -4,9 +4,9 @@ import cloud.phusion.DataObject;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
+import org.codehaus.janino.ClassBodyEvaluator;
 import org.codehaus.janino.ExpressionEvaluator;
 
-import java.util.ArrayList;
 import java.util.Set;
 
 /**
@@ -26,77 +26,189 @@ import java.util.Set;
  * }
  *
  * Caution: "floatA == floatB" may give a wrong result, use "floatA.equals(floatB)" or "floatA == 1.0" instead.
+ *
+ * The condition is compiled once when constructed, and it is thread-safe:
+ * - The field paths of the variables are split into accessors in advance, and the constants are retrieved in advance.
+ * - By default, the value extraction and the expression are compiled into one class, which is called directly.
+ * - Otherwise, the expression is compiled alone and called with the parameters (an array reused by each thread).
  */
 public class ConditionEvaluator {
 
-    private ExpressionEvaluator evaluator;
-    private JSONObject vars;
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_INTEGER = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_DOUBLE = 5;
+
+    private static final String[] TYPE_NAMES = {"String", "Boolean", "Integer", "Long", "Float", "Double"};
+    private static final Class[] TYPE_CLASSES = {String.class, Boolean.class, Integer.class, Long.class, Float.class, Double.class};
+
+    /**
+     * The condition compiled into a class.
+     */
+    public interface CompiledCondition {
+        void setAccessors(Accessor[] accessors);
+        boolean evaluate(JSONObject msg, JSONObject config);
+    }
+
+    /**
+     * Retrieves the value of a variable.
+     */
+    public static final class Accessor {
+        private final int source; // 0: constant, 1: message, 2: config
+        private final String[] path; // The fields in the path
+        private final int type;
+        private final Object constant;
+
+        private Accessor(int source, String[] path, int type, Object constant) {
+            this.source = source;
+            this.path = path;
+            this.type = type;
+            this.constant = constant;
+        }
+
+        public Object get(JSONObject msg, JSONObject config) {
+            if (source == 0) return constant;
+
+            JSONObject objValue = source==1 ? msg : config;
+            int last = path.length - 1;
+
+            for (int i = 0; i < last && objValue != null; i++) {
+                Object layer = objValue.get(path[i]);
+
+                if (layer instanceof JSONObject) objValue = (JSONObject) layer;
+                else if (layer instanceof JSONArray) {
+                    // If it is an array, check the first element only
+                    objValue = ((JSONArray) layer).size()==0 ? null : ((JSONArray) layer).getJSONObject(0);
+                }
+                else objValue = null;
+            }
+
+            return _retrieveValue(objValue, path[last], type);
+        }
+    }
+
+    private String[] varNames = null;
+    private Accessor[] accessors = null;
+    private CompiledCondition compiled = null;
+    private ExpressionEvaluator evaluator = null;
+    private ThreadLocal<Object[]> params = null;
 
     /**
      * Sometimes it is better to load condition as JSONObject, so String and JSONObject are both acceptable
      */
     public ConditionEvaluator(Object condition) throws Exception {
+        this(condition, true);
+    }
+
+    /**
+     * @param compileAll whether to compile the value extraction and the expression into one class
+     */
+    public ConditionEvaluator(Object condition, boolean compileAll) throws Exception {
         super();
 
-        if (condition == null) {
-            evaluator = null;
-            vars = null;
+        if (condition == null) return;
+
+        JSONObject objCond = (condition instanceof String) ? JSON.parseObject((String) condition) : (JSONObject) condition;
+        JSONObject vars = objCond.getJSONObject("vars");
+        String expression = objCond.getString("expression");
+
+        if (vars!=null && vars.size()>0) _compileAccessors(vars);
+
+        if (compileAll) _compileClass(expression);
+        else _compileExpression(expression);
+    }
+
+    private void _compileAccessors(JSONObject vars) {
+        Set<String> names = vars.keySet();
+        varNames = new String[names.size()];
+        accessors = new Accessor[names.size()];
+
+        int i = 0;
+        for (String varName : names) {
+            JSONObject var = vars.getJSONObject(varName);
+            int type = _typeOf(var.getString("type"));
+
+            String msgField = var.getString("fromMessage");
+            String cfgField = var.getString("fromConfig");
+            if (msgField!=null && msgField.length()==0) msgField = null;
+            if (cfgField!=null && cfgField.length()==0) cfgField = null;
+
+            Accessor accessor;
+            if (msgField != null) accessor = new Accessor(1, msgField.split("\\."), type, null); // Fields in the path are connected with "."
+            else if (cfgField != null) accessor = new Accessor(2, cfgField.split("\\."), type, null);
+            else accessor = new Accessor(0, null, type, _retrieveValue(var, "value", type)); // from constant value
+
+            varNames[i] = varName;
+            accessors[i] = accessor;
+            i++;
         }
-        else {
-            JSONObject objCond = (condition instanceof String) ? JSON.parseObject((String) condition) : (JSONObject) condition;
-            vars = objCond.getJSONObject("vars");
+    }
+
+    private void _compileExpression(String expression) throws Exception {
+        evaluator = new ExpressionEvaluator();
 
-            evaluator = new org.codehaus.janino.ExpressionEvaluator();
+        if (accessors != null) {
+            Class[] types = new Class[accessors.length];
+            for (int i = 0; i < accessors.length; i++) types[i] = TYPE_CLASSES[accessors[i].type];
 
-            if (vars!=null && vars.size()>0) _setExpressionParameters();
-            else vars = null;
+            evaluator.setParameters(varNames, types);
 
-            evaluator.setExpressionType(Boolean.class);
-            evaluator.cook(objCond.getString("expression"));
+            int size = accessors.length;
+            params = ThreadLocal.withInitial(() -> new Object[size]);
         }
+
+        evaluator.setExpressionType(Boolean.class);
+        evaluator.cook(expression);
     }
 
-    private void _setExpressionParameters() {
-        ArrayList<String> params = new ArrayList<>();
-        ArrayList<Class> types = new ArrayList<>();
-        Set<String> varNames = vars.keySet();
-
-        for (String varName : varNames) {
-            params.add(varName);
-
-            switch (vars.getJSONObject(varName).getString("type")) {
-                case "String": types.add(String.class); break;
-                case "Boolean": types.add(Boolean.class); break;
-                case "Integer": types.add(Integer.class); break;
-                case "Long": types.add(Long.class); break;
-                case "Float": types.add(Float.class); break;
-                case "Double": types.add(Double.class); break;
+    private void _compileClass(String expression) throws Exception {
+        StringBuilder body = new StringBuilder();
+        body.append("private ").append(Accessor.class.getCanonicalName()).append("[] $accessors;\n");
+        body.append("public void setAccessors(").append(Accessor.class.getCanonicalName()).append("[] a) { $accessors = a; }\n");
+        body.append("public boolean evaluate(JSONObject $msg, JSONObject $config) {\n");
+
+        if (accessors != null) {
+            for (int i = 0; i < accessors.length; i++) {
+                String typeName = TYPE_NAMES[accessors[i].type];
+                body.append(String.format("    %s %s = (%s) $accessors[%d].get($msg, $config);\n", typeName, varNames[i], typeName, i));
             }
         }
 
-        String[] arrParams = params.toArray(new String[]{});
-        Class[] arrTypes = types.toArray(new Class[]{});
+        body.append("    Boolean $result = (").append(expression).append(");\n");
+        body.append("    return $result != null && $result.booleanValue();\n");
+        body.append("}\n");
+
+        ClassBodyEvaluator cbe = new ClassBodyEvaluator();
+        cbe.setParentClassLoader(ConditionEvaluator.class.getClassLoader());
+        cbe.setDefaultImports("com.alibaba.fastjson2.JSONObject");
+        cbe.setImplementedInterfaces(new Class[]{CompiledCondition.class});
+        cbe.cook(body.toString());
 
-        evaluator.setParameters(arrParams, arrTypes);
+        compiled = (CompiledCondition) cbe.getClazz().getDeclaredConstructor().newInstance();
+        compiled.setAccessors(accessors==null ? new Accessor[0] : accessors);
     }
 
     public boolean evaluate(DataObject msg, DataObject config) throws Exception {
-        if (evaluator == null) return true;
+        if (compiled==null && evaluator==null) return true;
 
         JSONObject objMsg = msg==null ? null : msg.getJSONObject();
         JSONObject objConfig = config==null ?  null : config.getJSONObject();
+
+        if (compiled != null) return compiled.evaluate(objMsg, objConfig);
+
         Object result = null;
 
-        if (vars != null) {
-            ArrayList<Object> params = new ArrayList<>();
-            Set<String> varNames = vars.keySet();
+        if (accessors != null) {
+            Object[] arrParams = params.get();
+            for (int i = 0; i < accessors.length; i++) arrParams[i] = accessors[i].get(objMsg, objConfig);
 
-            for (String varName : varNames) {
-                params.add( _processExpressionParam(varName, objMsg, objConfig) );
+            try {
+                result = evaluator.evaluate(arrParams);
+            } finally {
+                for (int i = 0; i < arrParams.length; i++) arrParams[i] = null; // Do not hold the values
             }
-
-            Object[] arrParams = params.toArray(new Object[]{});
-            result = evaluator.evaluate(arrParams);
         }
         else
             result = evaluator.evaluate();
@@ -104,70 +216,36 @@ public class ConditionEvaluator {
         return result==null ? false : (Boolean) result;
     }
 
-    private Object _processExpressionParam(String varName, JSONObject msg, JSONObject config) {
-        JSONObject var = vars.getJSONObject(varName);
-        String type = var.getString("type");
-
-        String msgField = var.containsKey("fromMessage") ? var.getString("fromMessage") : null;
-        String cfgField = var.containsKey("fromConfig") ? var.getString("fromConfig") : null;
-        if (msgField!=null && msgField.length()==0) msgField = null;
-        if (cfgField!=null && cfgField.length()==0) cfgField = null;
-
-        if (msgField!=null || cfgField!=null) {
-            JSONObject objValue = msgField!=null ? msg : config;
-            String field = msgField!=null ? msgField : cfgField;
-
-            if (objValue == null) return null;
-            else {
-                int ipos = field.indexOf("."); // Fields in the path are connected with "."
-
-                while (ipos >= 0) {
-                    String firstLayerField = field.substring(0,ipos);
-                    Object firstLayer = objValue.get(firstLayerField);
-
-                    if (firstLayer == null) return null;
-                    else if (firstLayer instanceof JSONObject) objValue = (JSONObject) firstLayer;
-                    else if (firstLayer instanceof JSONArray) {
-                        // If it is an array, check the first element only
-                        if (((JSONArray)firstLayer).size() == 0) return null;
-                        else objValue = ((JSONArray)firstLayer).getJSONObject(0);
-                    }
-
-                    field = field.substring(ipos+1);
-                    ipos = field.indexOf("_");
-                }
-
-                return _retrieveValue(objValue, field, type);
-            }
-        }
-        else { // from constant value
-            return _retrieveValue(var, "value", type);
+    private static int _typeOf(String type) {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(type)) return i;
         }
+        throw new IllegalArgumentException("Unsupported variable type: " + type);
     }
 
-    private Object _retrieveValue(JSONObject obj, String field, String type) {
+    private static Object _retrieveValue(JSONObject obj, String field, int type) {
         Object result = null;
 
         if (obj != null) {
             switch (type) {
-                case "String":
+                case TYPE_STRING:
                     result = obj.getString(field);
                     break;
-                case "Integer":
+                case TYPE_INTEGER:
                     result = obj.getInteger(field);
                     break;
-                case "Long":
+                case TYPE_LONG:
                     result = obj.getLong(field);
                     break;
-                case "Float":
+                case TYPE_FLOAT:
                     result = obj.getFloat(field);
                     break;
-                case "Double":
+                case TYPE_DOUBLE:
                     result = obj.getDouble(field);
                     break;
-                case "Boolean":
+                case TYPE_BOOLEAN:
                     result = obj.getBoolean(field);
-                    if (result == null) result = new Boolean(false);
+                    if (result == null) result = Boolean.FALSE;
                     break;
             }
         }
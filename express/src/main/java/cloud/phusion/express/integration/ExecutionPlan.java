@@ -0,0 +1,124 @@
+package cloud.phusion.express.integration;
+
+import cloud.phusion.integration.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The workflow compiled once when the integration is created, so that executing a step does not need to look up
+ * the definition again.
+ *
+ * - Each step is placed in a slot, with its handler bound and its next step resolved in advance.
+ * - The plan is immutable, and can be shared by all the transactions of the integration.
+ */
+public class ExecutionPlan {
+
+    public static final int NONE = -1;
+
+    public interface StepHandler {
+        void execute(StepExecutor exe, Step step, Transaction trx) throws Exception;
+    }
+
+    public static final class Slot {
+        public final int index;
+        public final String id;
+        public final Step step;
+        public final StepHandler handler;
+        public final int next; // The first next step, NONE means the end of the workflow
+        public final int nextCollect; // For a ForEach step, the Collect step which closes the loop (nested loops skipped)
+
+        private Slot(int index, Step step, StepHandler handler, int next, int nextCollect) {
+            this.index = index;
+            this.id = step.getId();
+            this.step = step;
+            this.handler = handler;
+            this.next = next;
+            this.nextCollect = nextCollect;
+        }
+    }
+
+    private final Slot[] slots;
+    private final Map<String,Integer> indexes;
+
+    private ExecutionPlan(Slot[] slots, Map<String,Integer> indexes) {
+        this.slots = slots;
+        this.indexes = indexes;
+    }
+
+    public static ExecutionPlan compile(IntegrationDefinition idef) {
+        Step[] steps = idef.getSteps();
+        if (steps == null) steps = new Step[0];
+
+        Map<String,Integer> indexes = new HashMap<>();
+        for (int i = 0; i < steps.length; i++) indexes.put(steps[i].getId(), i);
+
+        int[] nexts = new int[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            Step[] nextSteps = idef.getNextSteps(steps[i].getId());
+            nexts[i] = (nextSteps==null || nextSteps.length==0) ? NONE : _indexOf(indexes, nextSteps[0].getId());
+        }
+
+        Slot[] slots = new Slot[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            Step step = steps[i];
+
+            int nextCollect = NONE;
+            if (step instanceof StepForEach) {
+                nextCollect = _findMatchingCollect(steps, nexts, i);
+
+                if (nextCollect == NONE) {
+                    Step collect = idef.getNextCollectStep(step.getId());
+                    if (collect != null) nextCollect = _indexOf(indexes, collect.getId());
+                }
+            }
+
+            slots[i] = new Slot(i, step, StepExecutor.bindHandler(step), nexts[i], nextCollect);
+        }
+
+        return new ExecutionPlan(slots, indexes);
+    }
+
+    /**
+     * Follow the next steps to find the Collect step closing the loop, skipping the nested loops.
+     */
+    private static int _findMatchingCollect(Step[] steps, int[] nexts, int forEach) {
+        int depth = 1;
+        int current = nexts[forEach];
+
+        for (int count = 0; current != NONE && count < steps.length; count++) {
+            if (steps[current] instanceof StepForEach) depth++;
+            else if (steps[current] instanceof StepCollect) {
+                depth--;
+                if (depth == 0) return current;
+            }
+
+            current = nexts[current];
+        }
+
+        return NONE;
+    }
+
+    private static int _indexOf(Map<String,Integer> indexes, String id) {
+        Integer index = indexes.get(id);
+        return index==null ? NONE : index;
+    }
+
+    public Slot getSlot(int index) {
+        return (index<0 || index>=slots.length) ? null : slots[index];
+    }
+
+    public Slot getSlot(String stepId) {
+        Integer index = stepId==null ? null : indexes.get(stepId);
+        return index==null ? null : slots[index];
+    }
+
+    public Slot getNextSlot(Slot slot) {
+        return (slot==null || slot.next==NONE) ? null : slots[slot.next];
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+}
@@ -0,0 +1,163 @@
+package cloud.phusion.express.integration;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import cloud.phusion.express.util.ThreadMode;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool to execute the instances of an integration (or of all integrations of a client).
+ *
+ * The thread which triggers the integration (Tomcat, Quartz, or the caller) submits the work into the pool,
+ * so a slow integration can hold at most "maxConcurrency" threads plus "queueSize" waiting requests.
+ * When both are used up, the request is rejected at once:
+ * - reject: throw the exception "IT_BUSY" (default).
+ * - callerRuns: run it in the calling thread, as if there is no pool.
+ *
+ * execute() blocks the calling thread until the result is ready, so the pool does not free the callers (e.g. the
+ * Tomcat threads); it adds the admission control and the bound on the instances running at the same time.
+ * dispatch() does not wait.
+ */
+public class ExecutionPool {
+    private static final String _position = ExecutionPool.class.getName();
+
+    public static final String REJECT_ABORT = "reject";
+    public static final String REJECT_CALLER_RUNS = "callerRuns";
+
+    private final String name;
+    private final int maxConcurrency;
+    private final int queueSize;
+    private final boolean callerRuns;
+    private ThreadPoolExecutor executor = null;
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong ranByCaller = new AtomicLong(0);
+    private final AtomicLong started = new AtomicLong(0);
+    private final AtomicLong totalQueueWait = new AtomicLong(0); // In nanoseconds
+    private final AtomicLong maxQueueWait = new AtomicLong(0); // In nanoseconds
+
+    public ExecutionPool(String name, int maxConcurrency, int queueSize, String rejection) {
+        super();
+
+        this.name = name;
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+        this.queueSize = Math.max(queueSize, 0);
+        this.callerRuns = REJECT_CALLER_RUNS.equals(rejection);
+    }
+
+    private synchronized ThreadPoolExecutor _getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(
+                    maxConcurrency,
+                    maxConcurrency,
+                    60, TimeUnit.SECONDS,
+                    queueSize==0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize),
+                    ThreadMode.newThreadFactory("phusion-it-" + name + "-"),
+                    new ThreadPoolExecutor.AbortPolicy()
+            );
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Run the work in the pool and wait for the result.
+     */
+    public <T> T execute(Callable<T> work, Context ctx) throws Exception {
+        Future<T> future = _submit(work, ctx);
+        if (future == null) return work.call();
+
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            throw (t instanceof Exception) ? (Exception) t : ex;
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Run the work in the pool without waiting for it.
+     */
+    public void dispatch(Runnable work, Context ctx) throws Exception {
+        Future<Object> future = _submit(() -> {
+            work.run();
+            return null;
+        }, ctx);
+
+        if (future == null) work.run();
+    }
+
+    /**
+     * Returns null if the work should run in the calling thread.
+     */
+    private <T> Future<T> _submit(Callable<T> work, Context ctx) throws Exception {
+        long submitTime = System.nanoTime();
+        submitted.incrementAndGet();
+
+        try {
+            return _getExecutor().submit(() -> {
+                _recordQueueWait(System.nanoTime() - submitTime);
+
+                try {
+                    return work.call();
+                } finally {
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (callerRuns) {
+                ranByCaller.incrementAndGet();
+                return null;
+            }
+
+            rejected.incrementAndGet();
+            throw new PhusionException("IT_BUSY", "Failed to run integration instance",
+                    String.format("pool=%s, maxConcurrency=%d, queueSize=%d", name, maxConcurrency, queueSize), ctx);
+        }
+    }
+
+    private void _recordQueueWait(long wait) {
+        started.incrementAndGet();
+        totalQueueWait.addAndGet(wait);
+
+        long max = maxQueueWait.get();
+        while (wait > max && ! maxQueueWait.compareAndSet(max, wait)) max = maxQueueWait.get();
+    }
+
+    public DataObject getStatistics() {
+        ThreadPoolExecutor exe = executor;
+        long count = started.get();
+
+        JSONObject result = new JSONObject();
+        result.put("pool", name);
+        result.put("maxConcurrency", maxConcurrency);
+        result.put("queueSize", queueSize);
+        result.put("active", exe==null ? 0 : exe.getActiveCount());
+        result.put("queued", exe==null ? 0 : exe.getQueue().size());
+        result.put("submitted", submitted.get());
+        result.put("completed", completed.get());
+        result.put("rejected", rejected.get());
+        result.put("ranByCaller", ranByCaller.get());
+        result.put("avgQueueWait", count==0 ? 0.0 : totalQueueWait.get()/count/100000/10.0); // In milliseconds
+        result.put("maxQueueWait", maxQueueWait.get()/100000/10.0); // In milliseconds
+
+        return new DataObject(result);
+    }
+
+}
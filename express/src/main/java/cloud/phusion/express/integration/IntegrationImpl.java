@@ -14,6 +14,7 @@ import com.alibaba.fastjson2.JSONObject;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -24,6 +25,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * - when start from an HTTP request, run in the Tomcat service thread.
  * - when start from the scheduler, run in the Quartz service thread.
  * - otherwise, run in the main thread (maybe).
+ * - if bound to an execution pool, run in the pool thread, and the triggering thread waits for it (or not, for the scheduler).
  *
  * Transaction logging:
  * - for each step, only logged the incoming status of the transaction.
@@ -38,24 +40,52 @@ public class IntegrationImpl implements Integration {
     private Step firstStep = null;
     private ConditionEvaluator evaluator = null;
     private IntegrationDefinition def = null;
+    private ExecutionPlan plan = null; // The workflow compiled from the definition
     private DataObject itConfig = null; // Integration configuration in JSON string
     private boolean stopped = true; // Whether the integration is stopped
     private boolean endpointRegistered = false; // Whether bound to the application endpoints according to StepEndpoint defined in the workflow
     private Map<String,String> startedTasks = new ConcurrentHashMap<>();
+    private ExecutionPool pool = null; // If null, run the instances in the triggering threads
 
     private static String trxlogTarget = null;
     private static boolean trxlogEncodeMsg = false;
+    private static TransactionLogWriter trxlogWriter = null; // If null, write the logs synchronously
 
     private static IntegrationMocker itMocker;
 
-    public static void initSystemSettings(String target, String encodeMsg, Context ctx) throws Exception {
+    public static void initSystemSettings(Properties props, Context ctx) throws Exception {
+        ParallelForEach.init(props);
+
+        String target = props.getProperty(EngineFactory.TRXLog_Target);
         trxlogTarget = (target!=null && target.length()==0) ? null : target;
 
         if (trxlogTarget != null) {
-            trxlogEncodeMsg = "true".equals(encodeMsg);
+            trxlogEncodeMsg = "true".equals(props.getProperty(EngineFactory.TRXLog_EncodeMsg, "true"));
+
+            if (Boolean.parseBoolean(props.getProperty(EngineFactory.TRXLog_Async, "true")) && trxlogWriter == null) {
+                trxlogWriter = new TransactionLogWriter(trxlogTarget, trxlogEncodeMsg, props, ctx.getEngine());
+                trxlogWriter.start(ctx);
+            }
         }
     }
 
+    public static void stopSystemSettings(Context ctx) throws Exception {
+        ParallelForEach.shutdown();
+
+        if (trxlogWriter != null) {
+            trxlogWriter.stop(ctx);
+            trxlogWriter = null;
+        }
+    }
+
+    /**
+     * Statistics of the background transaction log writer, or null if the logs are written synchronously.
+     */
+    public static DataObject getTransactionLogStatistics() {
+        TransactionLogWriter writer = trxlogWriter;
+        return writer==null ? null : writer.getStatistics();
+    }
+
     public static void prepareDBTables(String targetNamespace, Context ctx) throws Exception {
             DBStorage storage = ctx.getEngine().getDBStorageForApplication(targetNamespace);
 
@@ -124,7 +154,8 @@ public class IntegrationImpl implements Integration {
         this.def = idef;
         this.firstStep = idef.getFirstStep();
         this.endpointRegistered = false;
-        this.evaluator = new ConditionEvaluator(idef.getStartCondition());
+        this.evaluator = ConditionCache.get(idef.getStartCondition());
+        this.plan = ExecutionPlan.compile(idef);
     }
 
     @Override
@@ -137,6 +168,14 @@ public class IntegrationImpl implements Integration {
         return itId;
     }
 
+    public void setExecutionPool(ExecutionPool pool) {
+        this.pool = pool;
+    }
+
+    public ExecutionPool getExecutionPool() {
+        return pool;
+    }
+
     @Override
     public void setClientId(String id) {
         this.clientId = id;
@@ -291,6 +330,11 @@ public class IntegrationImpl implements Integration {
     public DataObject execute(DataObject msg, Context ctx) throws Exception {
         if (itMocker != null) return itMocker.executeIntegration(itId, msg);
 
+        if (pool != null) return pool.execute(() -> _execute(msg, ctx), ctx);
+        else return _execute(msg, ctx);
+    }
+
+    private DataObject _execute(DataObject msg, Context ctx) throws Exception {
         DataObject result = null;
 
         if (canStart(msg)) {
@@ -323,8 +367,8 @@ public class IntegrationImpl implements Integration {
                 // If there's a message, it indicates the first step has been executed already.
                 // In this situation, find the next step to move to. If there are multiple next steps, choose the first one.
 
-                Step[] steps = def.getNextSteps(firstStep.getId());
-                String next = (steps == null || steps.length == 0) ? null : steps[0].getId();
+                ExecutionPlan.Slot nextSlot = plan.getNextSlot(plan.getSlot(firstStep.getId()));
+                String next = nextSlot == null ? null : nextSlot.id;
 
                 trx = new Transaction(itId, id, next, firstStep.getId(), ctx);
                 trx.setMessage(msg);
@@ -416,7 +460,7 @@ public class IntegrationImpl implements Integration {
 
         TimeMarker m = new TimeMarker();
 
-        StepExecutor exe = new StepExecutor(def, probing);
+        StepExecutor exe = new StepExecutor(plan, probing);
         if (moveOn) {
             while (!trx.isFinished()) exe.execute(trx);
         }
@@ -433,10 +477,47 @@ public class IntegrationImpl implements Integration {
         double duration = stepStartTime==0 ? 0.0 : ((System.nanoTime()-stepStartTime)/100000/10.0);
 
         if (trxlogTarget == null) {
-            ctx.logInfo(_position, "Step", String.format("step=%s, fromStep=%s, msg=%s, properties=%s, failed=%b, finished=%b, time=%.1fms",
+            // The message is only serialized when it is logged
+            if (ExpressContext.isInfoEnabled()) ctx.logInfo(_position, "Step", String.format("step=%s, fromStep=%s, msg=%s, properties=%s, failed=%b, finished=%b, time=%.1fms",
                     trx.getCurrentStep(), trx.getPreviousStep(), trx.getMessage() == null ? "" : trx.getMessage().getString(500),
                     trx.getProperties(), trx.isFailed(), trx.isFinished(), trx.getTimeInMilliseconds()));
         }
+        else if (trxlogWriter != null) {
+            // Only take a snapshot here, the database is accessed by the writer thread
+
+            TransactionLogWriter.Entry entry = new TransactionLogWriter.Entry();
+            entry.transactionId = trx.getId();
+            entry.integrationId = trx.getIntegrationId();
+            entry.first = stepStartTime == 0;
+            entry.failed = trx.isFailed();
+            entry.finished = trx.isFinished();
+            entry.trxDuration = trx.getTimeInMilliseconds();
+            entry.step = trx.getCurrentStep();
+            entry.fromStep = trx.getPreviousStep();
+            entry.duration = duration;
+
+            DataObject obj;
+            if (entry.first) {
+                entry.startTime = _getDatetimeString();
+                obj = trx.getIntegrationConfig();
+                if (obj != null) entry.config = obj.getString();
+            }
+
+            obj = trx.getMessage();
+            if (obj != null) {
+                String str = obj.getString();
+                if (str!=null && str.length()>0) entry.msg = str;
+            }
+
+            Map<String,Object> props = trx.getProperties();
+            if (props!=null && props.size()>0) {
+                JSONObject objProps = new JSONObject();
+                objProps.putAll(props);
+                entry.properties = objProps.toJSONString();
+            }
+
+            trxlogWriter.append(entry);
+        }
         else {
             Engine engine = ctx.getEngine();
             DBStorage storage = engine.getDBStorageForApplication(trxlogTarget);
@@ -2,23 +2,52 @@ package cloud.phusion.express.integration;
 
 import cloud.phusion.Context;
 import cloud.phusion.DataObject;
+import cloud.phusion.EngineFactory;
 import cloud.phusion.ExecStatus;
 import cloud.phusion.PhusionException;
 import cloud.phusion.integration.Integration;
 import cloud.phusion.integration.IntegrationDefinition;
+import com.alibaba.fastjson2.JSONObject;
 
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * If the execution pools are enabled, each integration is bound to a pool when registered,
+ * see EngineFactory.Integration_PoolEnabled.
+ */
 public class IntegrationManager {
     private static final String _position = IntegrationManager.class.getName();
 
+    private static final String SCOPE_CLIENT = "client";
+    private static final String CLIENT_POOL_PREFIX = "client:";
+
     private Map<String, Integration> integrations;
+    private Map<String, ExecutionPool> pools; // Key: integration ID, or "client:" + client ID
+
+    private boolean poolEnabled;
+    private boolean poolPerClient;
+    private int poolMaxConcurrency;
+    private int poolQueueSize;
+    private String poolRejection;
 
     public IntegrationManager() {
+        this(null);
+    }
+
+    public IntegrationManager(Properties props) {
         super();
 
         this.integrations = new ConcurrentHashMap<>();
+        this.pools = new ConcurrentHashMap<>();
+
+        if (props == null) props = new Properties();
+        this.poolEnabled = Boolean.parseBoolean(props.getProperty(EngineFactory.Integration_PoolEnabled, "false"));
+        this.poolPerClient = SCOPE_CLIENT.equals(props.getProperty(EngineFactory.Integration_PoolScope));
+        this.poolMaxConcurrency = Integer.parseInt(props.getProperty(EngineFactory.Integration_PoolMaxConcurrency, "10"));
+        this.poolQueueSize = Integer.parseInt(props.getProperty(EngineFactory.Integration_PoolQueueSize, "100"));
+        this.poolRejection = props.getProperty(EngineFactory.Integration_PoolRejection, ExecutionPool.REJECT_ABORT);
     }
 
     public void registerIntegration(String integrationId, String clientId, IntegrationDefinition idef, DataObject config, Context ctx) throws Exception {
@@ -27,16 +56,48 @@ public class IntegrationManager {
 
         ctx.logInfo(_position, "Registering integration", "config="+(config==null?"":config.getString()));
 
-        Integration it = new IntegrationImpl(idef);
+        IntegrationImpl it = new IntegrationImpl(idef);
         it.setId(integrationId);
         it.setClientId(clientId);
         it.init(config, ctx);
 
-        integrations.put(integrationId, it);
+        if (poolEnabled) {
+            synchronized (pools) {
+                it.setExecutionPool( _getPool(integrationId, clientId, config, ctx) );
+                integrations.put(integrationId, it);
+            }
+        }
+        else integrations.put(integrationId, it);
 
         ctx.logInfo(_position, "Integration registered");
     }
 
+    private ExecutionPool _getPool(String integrationId, String clientId, DataObject config, Context ctx) {
+        JSONObject objConfig = config==null ? null : config.getJSONObject();
+        JSONObject options = objConfig==null ? null : objConfig.getJSONObject("execution");
+
+        if (poolPerClient && clientId != null) {
+            if (options != null)
+                ctx.logError(_position, "Execution settings ignored, the integration shares the pool of the client",
+                        String.format("clientId=%s, execution=%s", clientId, options.toJSONString()));
+
+            return pools.computeIfAbsent(CLIENT_POOL_PREFIX + clientId, key ->
+                    new ExecutionPool(clientId, poolMaxConcurrency, poolQueueSize, poolRejection));
+        }
+
+        ExecutionPool pool = (options == null) ?
+                new ExecutionPool(integrationId, poolMaxConcurrency, poolQueueSize, poolRejection) :
+                new ExecutionPool(
+                        integrationId,
+                        options.getIntValue("maxConcurrency", poolMaxConcurrency),
+                        options.getIntValue("queueSize", poolQueueSize),
+                        options.getString("rejection")==null ? poolRejection : options.getString("rejection")
+                );
+
+        pools.put(integrationId, pool);
+        return pool;
+    }
+
     public void removeIntegration(String integrationId, Context ctx) throws Exception {
         Integration it = integrations.get(integrationId);
 
@@ -45,11 +106,30 @@ public class IntegrationManager {
                 throw new PhusionException("IT_RUN", "Failed to remove integration", ctx);
 
             it.destroy(ctx);
-            integrations.remove(integrationId);
+
+            synchronized (pools) {
+                integrations.remove(integrationId);
+
+                ExecutionPool pool = pools.remove(integrationId);
+                if (pool != null) pool.shutdown();
+
+                String clientId = it.getClientId();
+                if (clientId != null && ! _hasIntegrationOfClient(clientId)) {
+                    pool = pools.remove(CLIENT_POOL_PREFIX + clientId);
+                    if (pool != null) pool.shutdown();
+                }
+            }
         } else
             throw new PhusionException("IT_NONE", "Failed to remove integration", ctx);
     }
 
+    private boolean _hasIntegrationOfClient(String clientId) {
+        for (Integration it : integrations.values()) {
+            if (clientId.equals(it.getClientId())) return true;
+        }
+        return false;
+    }
+
     public ExecStatus getIntegrationStatus(String integrationId) {
         Integration it = integrations.get(integrationId);
         if (it == null) return ExecStatus.None;
@@ -60,4 +140,20 @@ public class IntegrationManager {
         return integrations.get(integrationId);
     }
 
+    /**
+     * Statistics of the execution pool the integration is bound to, or null if not bound.
+     */
+    public DataObject getExecutionStatistics(String integrationId) {
+        Integration it = integrations.get(integrationId);
+        ExecutionPool pool = (it instanceof IntegrationImpl) ? ((IntegrationImpl) it).getExecutionPool() : null;
+        return pool==null ? null : pool.getStatistics();
+    }
+
+    /**
+     * Stop the threads of all pools. A pool starts its threads again when it is used.
+     */
+    public void shutdownPools() {
+        for (ExecutionPool pool : pools.values()) pool.shutdown();
+    }
+
 }
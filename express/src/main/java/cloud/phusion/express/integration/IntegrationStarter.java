@@ -18,6 +18,21 @@ public class IntegrationStarter implements ScheduledTask {
 
     @Override
     public void run(String taskId, Context ctx) {
+        ExecutionPool pool = (it instanceof IntegrationImpl) ? ((IntegrationImpl) it).getExecutionPool() : null;
+
+        if (pool == null) _run(ctx);
+        else {
+            // Do not hold the scheduler thread, the pool runs it
+
+            try {
+                pool.dispatch(() -> _run(ctx), ctx);
+            } catch (Exception ex) {
+                ctx.logError(_position, "Failed to execute integration by IntegrationStarter.run", ex);
+            }
+        }
+    }
+
+    private void _run(Context ctx) {
         String integrationId = null;
         String transactionId = null;
 
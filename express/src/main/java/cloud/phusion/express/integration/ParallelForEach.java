@@ -0,0 +1,222 @@
+package cloud.phusion.express.integration;
+
+import cloud.phusion.*;
+import cloud.phusion.express.util.ThreadMode;
+import cloud.phusion.integration.Transaction;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+/**
+ * Runs the body of a ForEach loop (the steps between StepForEach and StepCollect) for all the items concurrently.
+ *
+ * It is enabled per ForEach step in the integration config:
+ *
+ *   "forEach": {
+ *       "02": {"parallel": true, "maxConcurrency": 8, "failurePolicy": "failFast"}
+ *   }
+ *
+ * - Each item runs in its own transaction object, which shares the ID with the parent transaction,
+ *   so the steps of every item are written into the transaction log with their own timings.
+ * - The results are collected in the order of the items.
+ * - Failure policy: "failFast" (default) stops submitting items, cancels the ones not started yet (the running ones
+ *   are not interrupted) and fails the ForEach step; "collectErrors" puts an error object in place of the item's
+ *   result and goes on.
+ * - The items are run by a shared pool. If a parallel loop is nested inside another one,
+ *   the inner loop runs on the current thread, so that the pool threads never wait for each other.
+ */
+public class ParallelForEach {
+    private static final String _position = ParallelForEach.class.getName();
+
+    public static final String CONFIG_KEY = "forEach";
+    public static final String POLICY_FAIL_FAST = "failFast";
+    public static final String POLICY_COLLECT_ERRORS = "collectErrors";
+
+    private static ExecutorService pool = null;
+    private static int poolSize = 0;
+    private static final ThreadLocal<Boolean> inPool = new ThreadLocal<>();
+
+    public static synchronized void init(Properties props) {
+        if (pool != null) return;
+
+        poolSize = Integer.parseInt(props.getProperty(EngineFactory.Integration_ForEachThreadCount, "16"));
+
+        ThreadFactory factory = ThreadMode.newThreadFactory("phusion-foreach-");
+        pool = Executors.newFixedThreadPool(poolSize, r -> factory.newThread(() -> {
+            inPool.set(Boolean.TRUE);
+            r.run();
+        }));
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Find the parallel options of the ForEach step from the integration config, or return null if not enabled.
+     */
+    public static JSONObject getOptions(Transaction trx, String stepId) {
+        DataObject config = trx.getIntegrationConfig();
+        if (config == null) return null;
+
+        JSONObject objConfig = config.getJSONObject();
+        JSONObject loops = objConfig==null ? null : objConfig.getJSONObject(CONFIG_KEY);
+        JSONObject options = loops==null ? null : loops.getJSONObject(stepId);
+
+        return (options!=null && options.getBooleanValue("parallel")) ? options : null;
+    }
+
+    /**
+     * Run the loop body for every item, and return the results in the order of the items.
+     *
+     * @param loopStart the first step of the loop body
+     * @param collect the Collect step closing the loop
+     */
+    public static List<DataObject> run(ExecutionPlan plan, ExecutionPlan.Slot forEach, ExecutionPlan.Slot loopStart,
+                                       ExecutionPlan.Slot collect, JSONArray items, JSONObject options,
+                                       Transaction trx, boolean probing) throws Exception {
+        Context ctx = trx.getContext();
+        int size = items.size();
+        int maxConcurrency = options.getIntValue("maxConcurrency", poolSize);
+        boolean failFast = ! POLICY_COLLECT_ERRORS.equals(options.getString("failurePolicy"));
+
+        ExecutorService executor = pool;
+        if (executor==null || Boolean.TRUE.equals(inPool.get()) || maxConcurrency<=1) executor = null;
+
+        DataObject[] results = new DataObject[size];
+        ItemFailure[] failure = new ItemFailure[1];
+
+        if (executor == null) {
+            for (int i = 0; i < size; i++) {
+                ItemFailure f = _runItem(plan, forEach, loopStart, collect, items, i, results, failFast, trx, probing);
+                if (f != null) {
+                    failure[0] = f;
+                    break;
+                }
+            }
+        }
+        else {
+            Semaphore permits = new Semaphore(Math.min(maxConcurrency, size));
+            List<Future<?>> futures = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++) {
+                permits.acquire();
+
+                synchronized (failure) {
+                    if (failure[0] != null) {
+                        permits.release();
+                        break;
+                    }
+                }
+
+                final int index = i;
+                futures.add(executor.submit(() -> {
+                    try {
+                        ItemFailure f = _runItem(plan, forEach, loopStart, collect, items, index, results, failFast, trx, probing);
+                        if (f != null) {
+                            synchronized (failure) {
+                                if (failure[0] == null) failure[0] = f;
+                            }
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                synchronized (failure) {
+                    if (failure[0] != null) future.cancel(false);
+                }
+                if (future.isCancelled()) continue;
+
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable t = ex.getCause();
+                    throw (t instanceof Exception) ? (Exception) t : ex;
+                }
+            }
+        }
+
+        if (failure[0] != null)
+            throw new PhusionException("IT_EXEC", "Failed to execute ForEach item",
+                    String.format("step=%s, item=%d, failedStep=%s, itemTraceId=%s",
+                            forEach.id, failure[0].index, failure[0].step, failure[0].traceId), ctx);
+
+        List<DataObject> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) list.add(results[i]);
+        return list;
+    }
+
+    private static class ItemFailure {
+        int index;
+        String step;
+        String traceId; // To find the error in the log
+    }
+
+    /**
+     * Returns the failure if the item failed and the policy is fail-fast, otherwise null.
+     */
+    private static ItemFailure _runItem(ExecutionPlan plan, ExecutionPlan.Slot forEach, ExecutionPlan.Slot loopStart,
+                                        ExecutionPlan.Slot collect, JSONArray items, int index, DataObject[] results,
+                                        boolean failFast, Transaction parent, boolean probing) throws Exception {
+        Context parentCtx = parent.getContext();
+        Context ctx = EngineFactory.createContext(parentCtx.getEngine());
+        ctx.setContextInfo("transactionId", parent.getId());
+        ctx.setContextInfo("integrationId", parent.getIntegrationId());
+
+        Transaction trx = new Transaction(parent.getIntegrationId(), parent.getId(), loopStart.id, forEach.id, ctx);
+        trx.setIntegrationConfig(parent.getIntegrationConfig());
+        trx.setClientId(parent.getClientId());
+        Map<String,Object> properties = parent.getProperties();
+        if (properties != null) {
+            for (Map.Entry<String,Object> p : properties.entrySet()) trx.setProperty(p.getKey(), p.getValue());
+        }
+        trx.setMessage( StepExecutor.itemToMessage(items, index) );
+
+        long startTime = System.nanoTime();
+        StepExecutor exe = new StepExecutor(plan, probing);
+        String lastStep = loopStart.id;
+
+        while (!trx.isFinished() && !trx.isFailed() && !collect.id.equals(trx.getCurrentStep())) {
+            lastStep = trx.getCurrentStep();
+            exe.execute(trx);
+        }
+
+        double ms = (System.nanoTime()-startTime)/100000/10.0;
+        ctx.logInfo(_position, "ForEach item processed", String.format("step=%s, item=%d, failed=%b, time=%.1fms",
+                forEach.id, index, trx.isFailed(), ms));
+
+        if (trx.isFailed()) {
+            if (failFast) {
+                ItemFailure f = new ItemFailure();
+                f.index = index;
+                f.step = lastStep;
+                f.traceId = ctx.getId();
+                return f;
+            }
+
+            JSONObject error = new JSONObject();
+            error.put("failed", true);
+            error.put("item", index);
+            error.put("step", lastStep);
+            error.put("traceId", ctx.getId());
+            results[index] = new DataObject(error.toJSONString());
+        }
+        else
+            results[index] = trx.getMessage();
+
+        return null;
+    }
+
+}
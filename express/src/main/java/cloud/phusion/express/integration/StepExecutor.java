@@ -4,32 +4,88 @@ import cloud.phusion.*;
 import cloud.phusion.application.*;
 import cloud.phusion.integration.*;
 import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSONReader;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 
 /**
  * ForEach loop:
- * - Currently, StepForEach-StepCollect can not be nested.
+ * - StepForEach-StepCollect can be nested. Each loop being executed is a frame on the stack, the innermost on the top.
+ * - The items are taken from the source array one by one when the loop body runs, not copied in advance.
  * - Can not go midway into or out of a loop.
+ * - The loop body can run for all items in parallel, if enabled in the integration config, see ParallelForEach.
+ *
+ * Steps are dispatched through the execution plan compiled from the workflow, see ExecutionPlan.
  */
 public class StepExecutor {
     private static final String _position = StepExecutor.class.getName();
 
-    private IntegrationDefinition idef;
+    private static final ExecutionPlan.StepHandler HANDLER_DIRECT = (exe, step, trx) -> exe._executeStep((StepDirect) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_ENDPOINT = (exe, step, trx) -> exe._executeStep((StepEndpoint) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_JAVA = (exe, step, trx) -> exe._executeStep((StepJava) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_JAVASCRIPT = (exe, step, trx) -> exe._executeStep((StepJavaScript) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_FOREACH = (exe, step, trx) -> exe._executeStep((StepForEach) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_COLLECT = (exe, step, trx) -> exe._executeStep((StepCollect) step, trx);
+    private static final ExecutionPlan.StepHandler HANDLER_NONE = (exe, step, trx) -> {};
+
+    private ExecutionPlan plan;
     private boolean probing;
+    private ExecutionPlan.Slot expectedSlot; // The slot the transaction is supposed to be at, to skip the lookup by step ID
+
+    private Deque<LoopFrame> loops; // The ForEach loops being executed, created when the first loop is entered
 
-    private ArrayList<DataObject> msgItems; // The items emitted by a ForEach step
-    private ArrayList<DataObject> msgResultItems; // The items already processed by a round of the ForEach loop
-    private int msgItemPointer; // The current item to be processed. -1 means not in a ForEach loop
-    private String currentForEachStep; // The current ForEach step (loop head)
+    private static final class LoopFrame {
+        final ExecutionPlan.Slot head; // The ForEach step
+        final JSONArray items; // The items emitted by the ForEach step
+        final ArrayList<DataObject> resultItems; // The items already processed by a round of the loop
+        int pointer; // The current item to be processed
+
+        LoopFrame(ExecutionPlan.Slot head, JSONArray items) {
+            this.head = head;
+            this.items = items;
+            this.resultItems = new ArrayList<>(items.size());
+            this.pointer = 0;
+        }
+
+        int size() {
+            return items.size();
+        }
+
+        DataObject currentItem() {
+            return itemToMessage(items, pointer);
+        }
+    }
 
     public StepExecutor(IntegrationDefinition idef, boolean probing) {
+        this(ExecutionPlan.compile(idef), probing);
+    }
+
+    public StepExecutor(ExecutionPlan plan, boolean probing) {
         super();
 
-        this.idef = idef;
+        this.plan = plan;
         this.probing = probing;
-        this.msgItemPointer = -1;
-        this.currentForEachStep = null;
+        this.expectedSlot = null;
+        this.loops = null;
+    }
+
+    /**
+     * Bind the handler according to the step type, when the plan is compiled.
+     */
+    static ExecutionPlan.StepHandler bindHandler(Step step) {
+        if (step instanceof StepDirect) return HANDLER_DIRECT;
+        else if (step instanceof StepEndpoint) return HANDLER_ENDPOINT;
+        else if (step instanceof StepJava) return HANDLER_JAVA;
+        else if (step instanceof StepJavaScript) return HANDLER_JAVASCRIPT;
+        else if (step instanceof StepForEach) return HANDLER_FOREACH;
+        else if (step instanceof StepCollect) return HANDLER_COLLECT;
+        else return HANDLER_NONE;
     }
 
     public void execute(Transaction trx) throws Exception {
@@ -38,26 +94,24 @@ public class StepExecutor {
         assert currentStep != null;
         long startTime = System.nanoTime();
 
-        Step step = idef.getStepById(currentStep);
+        ExecutionPlan.Slot slot = (expectedSlot != null && expectedSlot.id.equals(currentStep)) ?
+                expectedSlot : plan.getSlot(currentStep);
+        if (slot == null)
+            throw new PhusionException("IT_EXEC", "Failed to find the step", "step="+currentStep, ctx);
+        expectedSlot = null;
+
         boolean failed = false;
         String failMsg = null;
 
         try {
-            switch (step.getClass().getSimpleName()) {
-                case "StepDirect": _executeStep((StepDirect)step, trx); break;
-                case "StepEndpoint": _executeStep((StepEndpoint)step, trx); break;
-                case "StepJava": _executeStep((StepJava)step, trx); break;
-                case "StepJavaScript": _executeStep((StepJavaScript)step, trx); break;
-                case "StepForEach": _executeStep((StepForEach) step, trx); break;
-                case "StepCollect": _executeStep((StepCollect) step, trx); break;
-            }
+            slot.handler.execute(this, slot.step, trx);
         } catch (Exception ex) {
             failed = true;
             failMsg = ex instanceof PhusionException ?
                         String.format("traceId=%s, step=%s", ((PhusionException) ex).getContextId(), currentStep) :
                         ex.getMessage();
 
-            ctx.logError("IT_EXEC", "Failed to execute the step", "step="+step.getId(), ex);
+            ctx.logError("IT_EXEC", "Failed to execute the step", "step="+slot.id, ex);
         }
 
         if (failed) {
@@ -71,10 +125,13 @@ public class StepExecutor {
             // If the step processor do not move the transaction to the next step, automatically move
             // If multiple next steps are found, choose the first one
             if (currentStep.equals(trx.getCurrentStep())) {
-                Step[] steps = idef.getNextSteps(currentStep);
+                ExecutionPlan.Slot next = plan.getNextSlot(slot);
 
-                if (steps == null || steps.length == 0) trx.moveToEnd();
-                else trx.moveToStep(steps[0].getId());
+                if (next == null) trx.moveToEnd();
+                else {
+                    trx.moveToStep(next.id);
+                    expectedSlot = next;
+                }
             }
         }
 
@@ -150,39 +207,48 @@ public class StepExecutor {
         Context ctx = trx.getContext();
         assert ctx != null;
 
-        if (currentForEachStep != null)
-            throw new PhusionException("IT_NESTED_LOOP", "Failed to execute step", "step="+step.getId(), ctx);
-
-        msgItemPointer = 0;
-        currentForEachStep = step.getId();
-        msgItems = new ArrayList<>();
-        msgResultItems = new ArrayList<>();
+        ExecutionPlan.Slot slot = plan.getSlot(step.getId());
 
         JSONArray msg = trx.getMessage().getJSONArray();
-        if (msg!=null && msg.size()>0) {
-            for (int i = 0; i < msg.size(); i++) {
-                msgItems.add(new DataObject(msg.getString(i)));
-            }
+        LoopFrame frame = new LoopFrame(slot, msg==null ? new JSONArray() : msg);
+
+        if (loops == null) loops = new ArrayDeque<>();
+        loops.push(frame);
 
-            Step[] nextSteps = idef.getNextSteps(step.getId());
-            Step nextStep = (nextSteps==null || nextSteps.length==0) ? null : nextSteps[0];
+        if (frame.size() > 0) {
+            ExecutionPlan.Slot nextStep = plan.getNextSlot(slot);
 
-            if (nextStep==null || nextStep instanceof StepCollect) {
+            if (nextStep==null || nextStep.step instanceof StepCollect) {
                 // For sake of completeness, if the next step is just a Collect step, then move the pointer right to the end
 
-                for (int i = 0; i < msg.size(); i++) {
-                    msgResultItems.add(new DataObject(msg.getString(i)));
+                // No step changes the items, so they are not copied
+                for (int i = 0; i < frame.size(); i++) {
+                    frame.resultItems.add(_wrapItem(frame.items.get(i), frame.items, i));
                 }
-                msgItemPointer = msgItems.size();
+                frame.pointer = frame.size();
+            }
+            else {
+                JSONObject options = slot.nextCollect==ExecutionPlan.NONE ? null : ParallelForEach.getOptions(trx, slot.id);
+
+                if (options != null) {
+                    // Run the loop body for all items concurrently, then go to the Collect step with all the results
+
+                    ExecutionPlan.Slot collect = plan.getSlot(slot.nextCollect);
+                    frame.resultItems.addAll( ParallelForEach.run(plan, slot, nextStep, collect, frame.items, options, trx, probing) );
+                    frame.pointer = frame.size();
+
+                    trx.moveToStep(collect.id);
+                    expectedSlot = collect;
+                }
+                else
+                    trx.setMessage( frame.currentItem() );
             }
-            else
-                trx.setMessage( msgItems.get(msgItemPointer) );
         }
         else {
             // No item found, go to the Collect step directly
             trx.setMessage( new DataObject("[]") );
-            Step nextStep = idef.getNextCollectStep(step.getId());
-            if (nextStep != null) trx.moveToStep(nextStep.getId());
+            ExecutionPlan.Slot nextStep = plan.getSlot(slot.nextCollect);
+            if (nextStep != null) trx.moveToStep(nextStep.id);
             else trx.moveToEnd();
         }
     }
@@ -191,42 +257,136 @@ public class StepExecutor {
         Context ctx = trx.getContext();
         assert ctx != null;
 
-        if (currentForEachStep == null)
+        LoopFrame frame = loops==null ? null : loops.peek();
+        if (frame == null)
             throw new PhusionException("IT_NONE_LOOP", "Failed to execute step", "step="+step.getId(), ctx);
 
-        if (msgItemPointer < msgItems.size()) {
-            msgResultItems.add(trx.getMessage());
-            msgItemPointer++;
+        if (frame.pointer < frame.size()) {
+            frame.resultItems.add(trx.getMessage());
+            frame.pointer++;
         }
 
-        if (msgItemPointer >= msgItems.size()) {
-            // ForEach loop has completed
-
-            StringBuilder result = new StringBuilder();
-            result.append("[");
-            for (int i = 0; i < msgResultItems.size(); i++) {
-                if (i > 0) result.append(",");
-                result.append(msgResultItems.get(i).getString());
-            }
-            result.append("]");
+        if (frame.pointer >= frame.size()) {
+            // The innermost loop has completed
 
-            trx.setMessage(new DataObject(result.toString()));
+            trx.setMessage( messagesToArray(frame.resultItems) );
 
-            _clearForEachLoopStates();
+            loops.pop();
         }
         else {
-            trx.setMessage( msgItems.get(msgItemPointer) );
-            trx.moveToStep(idef.getNextSteps(currentForEachStep)[0].getId());
+            trx.setMessage( frame.currentItem() );
+            ExecutionPlan.Slot loopStart = plan.getNextSlot(frame.head);
+            trx.moveToStep(loopStart.id);
+            expectedSlot = loopStart;
         }
     }
 
-    private void _clearForEachLoopStates() {
-        if (currentForEachStep != null) {
-            msgItemPointer = -1;
-            msgItems = null;
-            msgResultItems = null;
-            currentForEachStep = null;
+    /**
+     * Wrap an item of the array as a message. JSON objects and arrays are handed over as parsed copies, so that the
+     * step changing the message in place does not change the source array.
+     */
+    static DataObject itemToMessage(JSONArray items, int index) {
+        return _wrapItem(copyJSON(items.get(index)), items, index);
+    }
+
+    private static DataObject _wrapItem(Object item, JSONArray items, int index) {
+        if (item instanceof JSONObject) return new NodeMessage((JSONObject) item);
+        else if (item instanceof JSONArray) return new NodeMessage((JSONArray) item);
+        else return new NodeMessage(item, items.getString(index));
+    }
+
+    /**
+     * The message wrapping a JSON node, which is collected as it is. The steps replace the message by
+     * Transaction.setMessage(), or change the node in place.
+     *
+     * The other values (strings, numbers, booleans and null) are wrapped along with their string form, and collected
+     * as the original values.
+     */
+    static final class NodeMessage extends DataObject {
+        final Object node;
+
+        NodeMessage(Object value, String str) {
+            super(str);
+            this.node = value;
+        }
+
+        NodeMessage(JSONObject node) {
+            super(node);
+            this.node = node;
+        }
+
+        NodeMessage(JSONArray node) {
+            super(node);
+            this.node = node;
+        }
+    }
+
+    /**
+     * Deep copy of the JSON node. The other values (strings, numbers and booleans) are immutable and shared.
+     */
+    @SuppressWarnings("unchecked")
+    static Object copyJSON(Object node) {
+        if (node instanceof Map) {
+            Map<String, Object> obj = (Map<String, Object>) node;
+            JSONObject result = new JSONObject(obj.size());
+            for (Map.Entry<String, Object> entry : obj.entrySet()) result.put(entry.getKey(), copyJSON(entry.getValue()));
+            return result;
+        }
+        else if (node instanceof Collection) {
+            Collection<Object> arr = (Collection<Object>) node;
+            JSONArray result = new JSONArray(arr.size());
+            for (Object item : arr) result.add(copyJSON(item));
+            return result;
         }
+        else return node;
+    }
+
+    /**
+     * Put the messages into an array, reusing the parsed content of the messages instead of joining their strings.
+     */
+    static DataObject messagesToArray(List<DataObject> msgs) {
+        JSONArray result = new JSONArray(msgs.size());
+        for (DataObject msg : msgs) result.add( _messageToJSON(msg) );
+        return new DataObject(result);
+    }
+
+    /**
+     * The node of the message handed over by the executor is taken as it is. The other messages (set by the steps)
+     * are parsed according to the first character of their content: objects, arrays, numbers and the literals
+     * true, false and null are parsed, anything else is taken as a string.
+     */
+    private static Object _messageToJSON(DataObject msg) {
+        if (msg == null) return null;
+        if (msg instanceof NodeMessage) return ((NodeMessage) msg).node;
+
+        String str = msg.getString();
+        if (str == null) return null;
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+
+            if (c == '{') return msg.getJSONObject();
+            else if (c == '[') return msg.getJSONArray();
+            else if (c=='-' || (c>='0' && c<='9') || c=='t' || c=='f' || c=='n') return _parseScalar(str);
+            else break;
+        }
+
+        return str;
+    }
+
+    private static Object _parseScalar(String str) {
+        try (JSONReader reader = JSONReader.of(str)) {
+            Object value = reader.readAny();
+            if (reader.isEnd() && (value==null || value instanceof Number || value instanceof Boolean)) return value;
+        } catch (Exception ex) {
+            // Not a JSON literal, e.g. "not a number"
+        }
+        return str;
+    }
+
+    private void _clearForEachLoopStates() {
+        if (loops != null) loops.clear();
     }
 
 }
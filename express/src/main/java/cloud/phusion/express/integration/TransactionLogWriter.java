@@ -0,0 +1,570 @@
+package cloud.phusion.express.integration;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.util.FullTextEncoder;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.storage.DBStorage;
+import cloud.phusion.storage.Record;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer of the transaction logs.
+ *
+ * The workflow threads only take a snapshot of the step and append it to a bounded ring (queue).
+ * A dedicated writer thread drains the ring and flushes the entries in batches: one multi-row insert per table,
+ * plus the updates of the transactions finished in the batch but started in an earlier one.
+ *
+ * When the ring is full, the overflow policy decides what to do:
+ * - block: wait until there's room (the workflow thread is slowed down, no log is lost).
+ * - drop: discard the entry and count it.
+ * - spill: append the entry to a local file, which is loaded back by the writer.
+ *
+ * The spilled entries keep the order they arrive in, so that a transaction is never updated before it is inserted:
+ * - Once an entry is spilled, the later ones are spilled too, until the writer has loaded them all back.
+ * - The batches failed to write (in any policy) are put in front of the spilled entries, and retried by the writer.
+ * - The writer loads the entries in the ring first, then the file being loaded (".loading"), then the spill file.
+ * - An invalid line in the file is skipped. The entries the database keeps rejecting one by one are skipped too.
+ */
+public class TransactionLogWriter {
+    private static final String _position = TransactionLogWriter.class.getName();
+
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_SPILL = "spill";
+
+    private static final String FIELDS_TRANSACTION = "id,integrationId,engineId,failed,finished,startTime,duration";
+    private static final String FIELDS_STEP = "id,transactionId,step,fromStep,duration";
+    private static final String FIELDS_STEP_INFO = "stepId,config,msg,properties";
+
+    private static final int MAX_RETRIES = 3; // Failures of the same batch before the entries are written one by one
+
+    /**
+     * Snapshot of a transaction step. The transaction object itself can not be queued, because it goes on changing.
+     */
+    static class Entry {
+        String transactionId;
+        String integrationId;
+        boolean first; // The first step of the transaction
+        boolean failed;
+        boolean finished;
+        double trxDuration;
+        String startTime;
+        String step;
+        String fromStep;
+        double duration;
+        String config;
+        String msg;
+        String properties;
+
+        static final int WRITTEN_STEP = 1;
+        static final int WRITTEN_STEP_INFO = 2;
+        static final int WRITTEN_ALL = 3;
+
+        long stepId = 0; // Assigned when written the first time
+        int written = 0; // Progress of the writing, kept when spilled
+
+        JSONObject toJSONObject() {
+            JSONObject obj = new JSONObject();
+            obj.put("transactionId", transactionId);
+            obj.put("integrationId", integrationId);
+            obj.put("first", first);
+            obj.put("failed", failed);
+            obj.put("finished", finished);
+            obj.put("trxDuration", trxDuration);
+            obj.put("startTime", startTime);
+            obj.put("step", step);
+            obj.put("fromStep", fromStep);
+            obj.put("duration", duration);
+            obj.put("config", config);
+            obj.put("msg", msg);
+            obj.put("properties", properties);
+            obj.put("stepId", stepId);
+            obj.put("written", written);
+            return obj;
+        }
+
+        static Entry fromJSONObject(JSONObject obj) {
+            Entry e = new Entry();
+            e.transactionId = obj.getString("transactionId");
+            e.integrationId = obj.getString("integrationId");
+            e.first = obj.getBooleanValue("first");
+            e.failed = obj.getBooleanValue("failed");
+            e.finished = obj.getBooleanValue("finished");
+            e.trxDuration = obj.getDoubleValue("trxDuration");
+            e.startTime = obj.getString("startTime");
+            e.step = obj.getString("step");
+            e.fromStep = obj.getString("fromStep");
+            e.duration = obj.getDoubleValue("duration");
+            e.config = obj.getString("config");
+            e.msg = obj.getString("msg");
+            e.properties = obj.getString("properties");
+            e.stepId = obj.getLongValue("stepId");
+            e.written = obj.getIntValue("written");
+            return e;
+        }
+    }
+
+    private final Engine engine;
+    private final String target;
+    private final boolean encodeMsg;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final String overflow;
+    private final File spillFile;
+    private final File loadingFile; // Only accessed by the writer
+
+    private final BlockingQueue<Entry> queue;
+    private final Object spillLock = new Object();
+    private volatile boolean spilling; // Whether the entries go to the spill file
+    private volatile boolean running = false;
+    private Thread thread = null;
+    private int retries = 0; // Failures of the first batch in the loading file
+
+    private final AtomicLong countAppended = new AtomicLong(0);
+    private final AtomicLong countWritten = new AtomicLong(0);
+    private final AtomicLong countDropped = new AtomicLong(0);
+    private final AtomicLong countSpilled = new AtomicLong(0);
+    private final AtomicLong countFailed = new AtomicLong(0);
+    private final AtomicLong countBatches = new AtomicLong(0);
+
+    public TransactionLogWriter(String target, boolean encodeMsg, Properties props, Engine engine) {
+        super();
+
+        if (props == null) props = new Properties();
+
+        this.engine = engine;
+        this.target = target;
+        this.encodeMsg = encodeMsg;
+        this.batchSize = Integer.parseInt(props.getProperty(EngineFactory.TRXLog_BatchSize, "100"));
+        this.flushIntervalMs = Long.parseLong(props.getProperty(EngineFactory.TRXLog_FlushInterval, "1000"));
+        this.overflow = props.getProperty(EngineFactory.TRXLog_Overflow, OVERFLOW_BLOCK);
+
+        String spillPath = props.getProperty(EngineFactory.TRXLog_SpillPath);
+        if (spillPath==null || spillPath.length()==0) spillPath = System.getProperty("java.io.tmpdir");
+        this.spillFile = new File(spillPath, "phusion-trxlog-" + engine.getId() + ".spill");
+        this.loadingFile = new File(spillFile.getPath() + ".loading");
+        this.spilling = spillFile.exists() || loadingFile.exists(); // Left by the last run
+
+        int queueSize = Integer.parseInt(props.getProperty(EngineFactory.TRXLog_QueueSize, "10000"));
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    public synchronized void start(Context ctx) {
+        if (running) return;
+
+        running = true;
+        thread = new Thread(this::_run, "phusion-trxlog-writer");
+        thread.setDaemon(true);
+        thread.start();
+
+        ctx.logInfo(_position, "Transaction log writer started", String.format("target=%s, batchSize=%d, flushInterval=%dms, queueSize=%d, overflow=%s",
+                target, batchSize, flushIntervalMs, queue.remainingCapacity(), overflow));
+    }
+
+    /**
+     * Stop the writer thread, and flush all entries left in the ring (and in the spill file).
+     */
+    public synchronized void stop(Context ctx) throws Exception {
+        if (! running) return;
+
+        // Not interrupted, which would break the database operation in progress
+        running = false;
+        thread.join(flushIntervalMs * 10);
+
+        if (thread.isAlive()) {
+            // Still writing, the files can not be touched here. The remaining entries are spilled for the next run
+            ctx.logError(_position, "Transaction log writer not stopped in time", "queueDepth="+queue.size());
+
+            Entry entry;
+            while ((entry = queue.poll()) != null) _spill(entry, true);
+        }
+        else {
+            // Flush the remaining entries in the current thread. If failed, they are kept in the files for the next run
+            List<Entry> batch = new ArrayList<>();
+            while (queue.drainTo(batch, batchSize) > 0) {
+                _flush(batch);
+                batch.clear();
+            }
+            _loadSpilledEntries(true);
+        }
+        thread = null;
+
+        ctx.logInfo(_position, "Transaction log writer stopped", getStatistics().getString());
+    }
+
+    /**
+     * Take a snapshot of the transaction step, and put it into the ring.
+     */
+    public void append(Entry entry) throws Exception {
+        countAppended.incrementAndGet();
+
+        if (spilling && _spill(entry, false)) return;
+
+        switch (overflow) {
+            case OVERFLOW_DROP:
+                if (! queue.offer(entry)) {
+                    countDropped.incrementAndGet();
+                    return;
+                }
+                break;
+            case OVERFLOW_SPILL:
+                if (! queue.offer(entry)) {
+                    _spill(entry, true);
+                    return;
+                }
+                break;
+            default:
+                queue.put(entry);
+        }
+
+        // Spilling started meanwhile, so the entry must follow the ones spilled before it
+        if (spilling && queue.remove(entry)) _spill(entry, true);
+    }
+
+    public DataObject getStatistics() {
+        JSONObject result = new JSONObject();
+        result.put("queueDepth", queue.size());
+        result.put("queueCapacity", queue.size() + queue.remainingCapacity());
+        result.put("appended", countAppended.get());
+        result.put("written", countWritten.get());
+        result.put("dropped", countDropped.get());
+        result.put("spilled", countSpilled.get());
+        result.put("failed", countFailed.get());
+        result.put("batches", countBatches.get());
+        result.put("spilling", spilling);
+        return new DataObject(result);
+    }
+
+    private void _run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+
+        while (running) {
+            try {
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+
+                // Collect the entries until the batch is full or the flush interval is due
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) break;
+
+                    Entry entry = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (entry == null) break;
+
+                    batch.add(entry);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+
+                if (batch.size() > 0) {
+                    _flush(batch);
+                    batch.clear();
+                }
+
+                // The entries spilled are older than the ones appended from now on
+                if (spilling) _loadSpilledEntries(false);
+            } catch (InterruptedException ex) {
+                // Stopping, the entries left in the ring will be flushed by stop()
+                if (batch.size() > 0) _flush(batch);
+                batch.clear();
+            } catch (Exception ex) {
+                EngineFactory.createContext(engine).logError(_position, "Failed to write transaction logs", ex);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the entries taken from the ring. If failed, they are spilled in front of the others.
+     */
+    private void _flush(List<Entry> batch) {
+        if (! _write(batch)) _spillFailed(batch);
+    }
+
+    /**
+     * Returns false if failed. The progress is kept in the entries, so that writing the batch again (if failed
+     * midway) does not insert anything twice.
+     */
+    private boolean _write(List<Entry> batch) {
+        Context ctx = EngineFactory.createContext(engine);
+        TimeMarker marker = new TimeMarker();
+
+        try {
+            DBStorage storage = engine.getDBStorageForApplication(target);
+            String engineId = engine.getId();
+
+            // Transactions started in this batch, they can be inserted with their final status directly
+            Map<String, List<Object>> trxRows = new LinkedHashMap<>();
+            List<Entry> trxRowEntries = new ArrayList<>();
+            // Transactions finished in this batch but started in an earlier one
+            List<Entry> trxUpdates = new ArrayList<>();
+
+            List<Entry> steps = new ArrayList<>();
+            List<Object> stepParams = new ArrayList<>();
+            List<Entry> infos = new ArrayList<>();
+            List<Object> infoParams = new ArrayList<>();
+
+            for (Entry e : batch) {
+                if (e.stepId == 0) e.stepId = engine.generateUniqueId(ctx);
+
+                if (e.written < Entry.WRITTEN_STEP) {
+                    steps.add(e);
+                    stepParams.add(e.stepId);
+                    stepParams.add(e.transactionId);
+                    stepParams.add(e.step==null ? "" : e.step);
+                    stepParams.add(e.fromStep==null ? "" : e.fromStep);
+                    stepParams.add(e.duration);
+                }
+
+                if (e.written < Entry.WRITTEN_STEP_INFO) {
+                    String msg = e.msg;
+                    if (msg!=null && msg.length()>0 && encodeMsg) msg = FullTextEncoder.encode(msg);
+
+                    infos.add(e);
+                    infoParams.add(e.stepId);
+                    infoParams.add(e.config);
+                    infoParams.add(msg);
+                    infoParams.add(e.properties);
+                }
+
+                if (e.written >= Entry.WRITTEN_ALL) continue;
+
+                if (e.first) {
+                    List<Object> row = new ArrayList<>(7);
+                    row.add(e.transactionId);
+                    row.add(e.integrationId);
+                    row.add(engineId);
+                    row.add(false);
+                    row.add(false);
+                    row.add(e.startTime);
+                    row.add(0.0);
+                    trxRows.put(e.transactionId, row);
+                    trxRowEntries.add(e);
+                }
+                else if (e.finished) {
+                    List<Object> row = trxRows.get(e.transactionId);
+                    if (row != null) {
+                        row.set(3, e.failed);
+                        row.set(4, e.finished);
+                        row.set(6, e.trxDuration);
+                        trxRowEntries.add(e);
+                    }
+                    else trxUpdates.add(e);
+                }
+                else if (e.written >= Entry.WRITTEN_STEP_INFO) e.written = Entry.WRITTEN_ALL; // Nothing to do with the transaction
+            }
+
+            if (steps.size() > 0) {
+                storage.insertRecords(EngineFactory.TRXLog_Table_TransactionStep, FIELDS_STEP, stepParams, ctx);
+                for (Entry e : steps) e.written = Entry.WRITTEN_STEP;
+            }
+
+            if (infos.size() > 0) {
+                storage.insertRecords(EngineFactory.TRXLog_Table_TransactionStepInfo, FIELDS_STEP_INFO, infoParams, ctx);
+                // A step in the middle of the transaction is done once its rows are inserted
+                for (Entry e : infos) e.written = (e.first || e.finished) ? Entry.WRITTEN_STEP_INFO : Entry.WRITTEN_ALL;
+            }
+
+            if (trxRows.size() > 0) {
+                List<Object> trxParams = new ArrayList<>(trxRows.size() * 7);
+                for (List<Object> row : trxRows.values()) trxParams.addAll(row);
+                storage.insertRecords(EngineFactory.TRXLog_Table_Transaction, FIELDS_TRANSACTION, trxParams, ctx);
+                for (Entry e : trxRowEntries) e.written = Entry.WRITTEN_ALL;
+            }
+
+            for (Entry e : trxUpdates) {
+                Record record = new Record();
+                record.setValue("failed", e.failed);
+                record.setValue("finished", e.finished);
+                record.setValue("duration", e.trxDuration);
+
+                storage.updateRecordById(EngineFactory.TRXLog_Table_Transaction, record, "id", e.transactionId, ctx);
+                e.written = Entry.WRITTEN_ALL;
+            }
+
+            countWritten.addAndGet(batch.size());
+            countBatches.incrementAndGet();
+
+            double ms = marker.mark();
+            ctx.logInfo(_position, "Transaction logs flushed", String.format("count=%d, queueDepth=%d, time=%.1fms",
+                    batch.size(), queue.size(), ms));
+            return true;
+        } catch (Exception ex) {
+            ctx.logError(_position, "Failed to flush transaction logs", "count="+batch.size(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * @param force false: only spill the entry if spilling already
+     */
+    private boolean _spill(Entry entry, boolean force) throws Exception {
+        String line = entry.toJSONObject().toJSONString() + "\n";
+
+        synchronized (spillLock) {
+            if (! force && ! spilling) return false;
+
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8)) {
+                w.write(line);
+            }
+            spilling = true;
+        }
+
+        countSpilled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Put the failed batch, and the newer entries still in the ring, in front of the spilled entries.
+     */
+    private void _spillFailed(List<Entry> batch) {
+        List<Entry> entries = new ArrayList<>(batch);
+
+        synchronized (spillLock) {
+            spilling = true;
+        }
+        queue.drainTo(entries);
+
+        File tmp = new File(spillFile.getPath() + ".tmp");
+
+        try {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                for (Entry e : entries) w.write(e.toJSONObject().toJSONString() + "\n");
+                if (loadingFile.exists()) _copyLines(loadingFile, 0, w);
+            }
+            Files.move(tmp.toPath(), loadingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            countSpilled.addAndGet(entries.size());
+        } catch (Exception ex) {
+            countFailed.addAndGet(entries.size());
+            EngineFactory.createContext(engine).logError(_position, "Failed to spill transaction logs", "count="+entries.size(), ex);
+        }
+    }
+
+    /**
+     * Write the spilled entries in order, until any batch fails (the rest is kept for the next time).
+     *
+     * @param all true: load all files, including the ones spilled during the loading; false: load one file at most
+     */
+    private void _loadSpilledEntries(boolean all) {
+        do {
+            if (! loadingFile.exists()) {
+                synchronized (spillLock) {
+                    if (! spillFile.exists()) {
+                        spilling = false;
+                        return;
+                    }
+                    if (! spillFile.renameTo(loadingFile)) return;
+                }
+            }
+        } while (_loadFile() && all);
+    }
+
+    /**
+     * Returns true if all the entries in the loading file are written. Otherwise, the lines written are removed from
+     * the file, and the rest is loaded again later.
+     */
+    private boolean _loadFile() {
+        Context ctx = EngineFactory.createContext(engine);
+        List<Entry> batch = new ArrayList<>(batchSize);
+        long lines = 0;
+        long linesWritten = 0;
+        boolean completed = false;
+
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(loadingFile), StandardCharsets.UTF_8))) {
+            String line;
+            boolean failed = false;
+
+            while (! failed && (line = r.readLine()) != null) {
+                lines++;
+
+                if (line.length() > 0) {
+                    try {
+                        batch.add(Entry.fromJSONObject(JSON.parseObject(line)));
+                    } catch (Exception ex) {
+                        countFailed.incrementAndGet();
+                        ctx.logError(_position, "Skipped invalid spilled transaction log", "line="+line, ex);
+                    }
+                }
+
+                if (batch.size() >= batchSize) {
+                    failed = ! _writeLoaded(batch);
+                    if (! failed) linesWritten = lines;
+                    batch.clear();
+                }
+            }
+
+            completed = ! failed && (batch.size() == 0 || _writeLoaded(batch));
+        } catch (Exception ex) {
+            ctx.logError(_position, "Failed to load spilled transaction logs", "file="+loadingFile.getPath(), ex);
+        }
+
+        if (completed) {
+            loadingFile.delete();
+            return true;
+        }
+
+        if (linesWritten > 0) {
+            File tmp = new File(spillFile.getPath() + ".tmp");
+
+            try {
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    _copyLines(loadingFile, linesWritten, w);
+                }
+                Files.move(tmp.toPath(), loadingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception ex) {
+                ctx.logError(_position, "Failed to truncate spilled transaction logs", "file="+loadingFile.getPath(), ex);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If the batch keeps failing, and the database takes some of the entries one by one, the others are rejected for
+     * their content. They are skipped, so that the entries behind them are not held back forever.
+     */
+    private boolean _writeLoaded(List<Entry> batch) {
+        if (_write(batch)) {
+            retries = 0;
+            return true;
+        }
+        if (++retries < MAX_RETRIES) return false;
+
+        List<Entry> rejected = new ArrayList<>();
+        for (Entry e : batch) {
+            if (! _write(Collections.singletonList(e))) rejected.add(e);
+        }
+        if (rejected.size() == batch.size()) return false; // The database is not available
+
+        retries = 0;
+        countFailed.addAndGet(rejected.size());
+
+        StringBuilder ids = new StringBuilder();
+        for (Entry e : rejected) ids.append(ids.length()==0 ? "" : ",").append(e.transactionId);
+        EngineFactory.createContext(engine).logError(_position, "Skipped rejected transaction logs", "transactionIds="+ids);
+        return true;
+    }
+
+    private static void _copyLines(File file, long skipLines, Writer w) throws IOException {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            long lines = 0;
+            while ((line = r.readLine()) != null) {
+                if (++lines > skipLines) w.write(line + "\n");
+            }
+        }
+    }
+
+}
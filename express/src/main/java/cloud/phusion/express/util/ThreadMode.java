@@ -0,0 +1,83 @@
+package cloud.phusion.express.util;
+
+import cloud.phusion.EngineFactory;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the engine: platform threads, or virtual threads if enabled.
+ *
+ * The engine is built for Java 8, so the virtual threads are created by reflection. If enabled but the JVM
+ * does not support them (Java 21 or later is required), the engine falls back to platform threads.
+ *
+ * Used by: the execution pools of integrations, the parallel ForEach loops, the scheduled task bodies,
+ * and the HTTP request handling of Tomcat.
+ */
+public class ThreadMode {
+    private static boolean virtual = false;
+
+    /**
+     * Returns whether the virtual threads are used.
+     */
+    public static synchronized boolean init(Properties props) {
+        boolean enabled = props!=null && Boolean.parseBoolean(props.getProperty(EngineFactory.Engine_VirtualThreads, "false"));
+        virtual = enabled && isVirtualThreadSupported();
+        return virtual;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Thread factory for a bounded pool. The threads are named as namePrefix + number.
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        if (virtual) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception ex) {
+                // Fall back to platform threads
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger(0);
+        return r -> {
+            Thread t = new Thread(r, namePrefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Executor which starts a new virtual thread for each task. Returns null if virtual threads are not used.
+     */
+    public static ExecutorService newVirtualTaskExecutor() {
+        if (! virtual) return null;
+
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+}
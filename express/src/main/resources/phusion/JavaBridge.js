@@ -1,6 +1,13 @@
 
-var Transaction = function(strTransaction) {
+// The calls of an async script carry its callback handle, so that they are made within the context of the script.
+// Otherwise (e.g. from the event loop) the context is not exact if several async scripts run on the runtime.
+function _type(type, callbackHandle) {
+    return callbackHandle ? type+"@"+callbackHandle : type;
+}
+
+var Transaction = function(strTransaction, callbackHandle) { // callbackHandle: given to the async scripts
     this._data = strTransaction ? JSON.parse(strTransaction) : {};
+    this._callbackHandle = callbackHandle;
 };
 
 Transaction.prototype = {
@@ -86,7 +93,7 @@ Transaction.prototype = {
     },
 
     getContext: function(){
-        return new Context(this._data);
+        return new Context(this._data, this._callbackHandle);
     },
 
     toString: function(){
@@ -94,8 +101,9 @@ Transaction.prototype = {
     }
 };
 
-var Context = function(data) {
+var Context = function(data, callbackHandle) {
     this._data = data;
+    this._callbackHandle = callbackHandle;
 };
 
 Context.prototype = {
@@ -106,113 +114,107 @@ Context.prototype = {
     logInfo: function(position, msg, data) {
         if (! msg) msg = "";
         if (! data) data = "";
-        _callJava("context", null, "logInfo", position, msg, data);
+        _callJava(_type("context", this._callbackHandle), null, "logInfo", position, msg, data);
     },
 
     logError: function(position, msg, data) {
         if (! msg) msg = "";
         if (! data) data = "";
-        _callJava("context", null, "logError", position, msg, data);
+        _callJava(_type("context", this._callbackHandle), null, "logError", position, msg, data);
     },
 
     getEngine: function() {
-        return new Engine(this._data);
+        return new Engine(this._data, this._callbackHandle);
     }
 };
 
-var Engine = function(data) {
+var Engine = function(data, callbackHandle) {
     this._data = data;
+    this._callbackHandle = callbackHandle;
 };
 
 Engine.prototype = {
     getKVStorageForIntegration: function(id) {
         if (!id) id = this._data.integrationId;
-        return new KVStorage("integration", id);
+        return new KVStorage("integration", id, this._callbackHandle);
     },
 
     getKVStorageForClient: function(id) {
         if (!id) id = this._data.clientId;
-        return new KVStorage("client", id);
+        return new KVStorage("client", id, this._callbackHandle);
     },
 
     getKVStorageForApplication: function(id) {
-        return new KVStorage("application", id);
+        return new KVStorage("application", id, this._callbackHandle);
     },
 
     getDBStorageForIntegration: function(id) {
         if (!id) id = this._data.integrationId;
-        return new DBStorage("integration", id);
+        return new DBStorage("integration", id, this._callbackHandle);
     },
 
     getDBStorageForClient: function(id) {
         if (!id) id = this._data.clientId;
-        return new DBStorage("client", id);
+        return new DBStorage("client", id, this._callbackHandle);
     },
 
     getDBStorageForApplication: function(id) {
-        return new DBStorage("application", id);
+        return new DBStorage("application", id, this._callbackHandle);
     },
 
     getFileStorageForIntegration: function(id) {
         if (!id) id = this._data.integrationId;
-        return new FileStorage("integration", id);
+        return new FileStorage("integration", id, this._callbackHandle);
     },
 
     getFileStorageForClient: function(id) {
         if (!id) id = this._data.clientId;
-        return new FileStorage("client", id);
+        return new FileStorage("client", id, this._callbackHandle);
     },
 
     getFileStorageForApplication: function(id) {
-        return new FileStorage("application", id);
+        return new FileStorage("application", id, this._callbackHandle);
     }
 };
 
-var FileStorage = function(type, id) {
+var FileStorage = function(type, id, callbackHandle) {
     this._id = type+" "+id; // application, integration, client
+    this._callbackHandle = callbackHandle;
 };
 
 FileStorage.prototype = {
     doesFileExist: function(path) {
-        return _callJava("filestorage", this._id, "doesFileExist", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "doesFileExist", path);
     },
     doesPublicFileExist: function(path) {
-        return _callJava("filestorage", this._id, "doesPublicFileExist", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "doesPublicFileExist", path);
     },
 
     getFileSize: function(path) {
-        return _callJava("filestorage", this._id, "getFileSize", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "getFileSize", path);
     },
     getPublicFileSize: function(path) {
-        return _callJava("filestorage", this._id, "getPublicFileSize", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "getPublicFileSize", path);
     },
 
     listFolders: function(path) {
-        var result = _callJava("filestorage", this._id, "listFolders", path);
-        if (result) return JSON.parse(result);
-        else return null;
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "listFolders", path);
     },
     listPublicFolders: function(path) {
-        var result = _callJava("filestorage", this._id, "listPublicFolders", path);
-        if (result) return JSON.parse(result);
-        else return null;
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "listPublicFolders", path);
     },
     listFiles: function(path) {
-        var result = _callJava("filestorage", this._id, "listFiles", path);
-        if (result) return JSON.parse(result);
-        else return null;
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "listFiles", path);
     },
     listPublicFiles: function(path) {
-        var result = _callJava("filestorage", this._id, "listPublicFiles", path);
-        if (result) return JSON.parse(result);
-        else return null;
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "listPublicFiles", path);
     },
 
     saveToFile: function(path, content) { // content can be UTF-8 String or ArrayBuffer
-        _callJava("filestorage", this._id, "saveToFile", path, content);
+        _callJava(_type("filestorage", this._callbackHandle), this._id, "saveToFile", path, content);
     },
     saveToPublicFile: function(path, content) {
-        _callJava("filestorage", this._id, "saveToPublicFile", path, content);
+        _callJava(_type("filestorage", this._callbackHandle), this._id, "saveToPublicFile", path, content);
     },
 
     readFromFileInString: function(path) {
@@ -224,93 +226,162 @@ FileStorage.prototype = {
     },
 
     readFromFile: function(path, inString) { // If inString=true, return UTF-8 String, otherwise return ArrayBuffer. The default is false
-        inString = (inString) ? "true" : "false";
-        return _callJava("filestorage", this._id, "readFromFile", path, inString);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "readFromFile", path, inString ? true : false);
     },
     readFromPublicFile: function(path, inString) {
-        inString = (inString) ? "true" : "false";
-        return _callJava("filestorage", this._id, "readFromPublicFile", path, inString);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "readFromPublicFile", path, inString ? true : false);
     },
 
     removeFile: function(path) {
-        _callJava("filestorage", this._id, "removeFile", path);
+        _callJava(_type("filestorage", this._callbackHandle), this._id, "removeFile", path);
     },
     removePublicFile: function(path) {
-        return _callJava("filestorage", this._id, "removePublicFile", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "removePublicFile", path);
     },
     removeAll: function() {
-        return _callJava("filestorage", this._id, "removeAll");
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "removeAll");
     },
 
     getPublicFileUrl: function(path) {
-        return _callJava("filestorage", this._id, "getPublicFileUrl", path);
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "getPublicFileUrl", path);
+    },
+
+    // Read or write the file in chunks. Mode: "r" (read, the default), "w" (write from the beginning), "a" (append).
+    // Returns FileHandle, or null if failed. The handle must be closed after used.
+    openFile: function(path, mode) {
+        var handle = _callJava(_type("filestorage", this._callbackHandle), this._id, "openFile", path, mode ? mode : "r");
+        return (handle === null || handle === undefined) ? null : new FileHandle(this._id, handle, this._callbackHandle);
+    },
+    openPublicFile: function(path, mode) {
+        var handle = _callJava(_type("filestorage", this._callbackHandle), this._id, "openPublicFile", path, mode ? mode : "r");
+        return (handle === null || handle === undefined) ? null : new FileHandle(this._id, handle, this._callbackHandle);
     }
 };
 
-var KVStorage = function(type, id) {
+var FileHandle = function(storageId, handle, callbackHandle) {
+    this._id = storageId;
+    this._handle = handle;
+    this._callbackHandle = callbackHandle;
+};
+
+FileHandle.prototype = {
+    readChunk: function(size) { // Returns ArrayBuffer (at most "size" bytes, 65536 by default), or null at the end of the file
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "readChunk", this._handle, size ? size : 0);
+    },
+
+    writeChunk: function(content) { // content can be UTF-8 String, ArrayBuffer or its view (e.g. Uint8Array, Buffer)
+        if (ArrayBuffer.isView(content)) {
+            content = (content.byteOffset === 0 && content.byteLength === content.buffer.byteLength) ?
+                content.buffer : content.buffer.slice(content.byteOffset, content.byteOffset + content.byteLength);
+        }
+        return _callJava(_type("filestorage", this._callbackHandle), this._id, "writeChunk", this._handle, content);
+    },
+
+    close: function() {
+        _callJava(_type("filestorage", this._callbackHandle), this._id, "closeFile", this._handle);
+    }
+};
+
+var KVStorage = function(type, id, callbackHandle) {
     this._id = type+" "+id; // application, integration, client
+    this._callbackHandle = callbackHandle;
 };
 
 KVStorage.prototype = {
     put: function(key, value, ms) { // ms is optional
-        ms = (ms && ms!=0) ? ""+ms : "";
-        _callJava("kvstorage", this._id, "put", key, ""+value, ms);
+        _callJava(_type("kvstorage", this._callbackHandle), this._id, "put", key, ""+value, ms ? ms : 0);
     },
 
     get: function(key) {
-        return _callJava("kvstorage", this._id, "get", key);
+        return _callJava(_type("kvstorage", this._callbackHandle), this._id, "get", key);
     },
 
     doesExist: function(key) {
-        var str = _callJava("kvstorage", this._id, "doesExist", key);
-
-        if (str && str=="true") return true;
-        else return false;
+        return _callJava(_type("kvstorage", this._callbackHandle), this._id, "doesExist", key) ? true : false;
     },
 
     remove: function(key) {
-        _callJava("kvstorage", this._id, "remove", key);
+        _callJava(_type("kvstorage", this._callbackHandle), this._id, "remove", key);
     },
 
-    lock: function(key, ms) { // ms is optional
-        ms = (ms && ms!=0) ? ""+ms : "";
-        var str = _callJava("kvstorage", this._id, "lock", key, ms);
+    // Multi-key operations, in one round trip
 
-        if (str && str=="true") return true;
-        else return false;
+    getAll: function(keys) { // Returns {key: value}, without the keys not found
+        var result = _callJava(_type("kvstorage", this._callbackHandle), this._id, "getAll", keys);
+        return result ? result : {};
+    },
+
+    putAll: function(entries, ms) { // entries: {key: value}, ms is optional
+        var values = {};
+        for (var key in entries) {
+            if (entries.hasOwnProperty(key)) values[key] = ""+entries[key];
+        }
+        _callJava(_type("kvstorage", this._callbackHandle), this._id, "putAll", values, ms ? ms : 0);
+    },
+
+    removeAll: function(keys) {
+        _callJava(_type("kvstorage", this._callbackHandle), this._id, "removeAll", keys);
+    },
+
+    lock: function(key, ms) { // ms is optional
+        return _callJava(_type("kvstorage", this._callbackHandle), this._id, "lock", key, ms ? ms : 0) ? true : false;
     },
 
     unlock: function(key) {
-        _callJava("kvstorage", this._id, "unlock", key);
+        _callJava(_type("kvstorage", this._callbackHandle), this._id, "unlock", key);
+    },
+
+    // Wait for the lock until the timeout (ms). Returns the fencing token (increases each time the key is locked),
+    // or 0 if not acquired. The script is blocked while waiting, so keep the timeout short.
+    // In async scripts, it tries only once without waiting, because the other scripts on the runtime would be blocked.
+    tryLock: function(key, ms, timeout) {
+        var result = _callJava(_type("kvstorage", this._callbackHandle), this._id, "tryLock", key, ms ? ms : 0, timeout ? timeout : 0);
+        return result ? result : 0;
+    },
+
+    // For async scripts: wait for the lock until the timeout (ms), without blocking the runtime.
+    // Returns a Promise of the fencing token, or 0 if not acquired.
+    tryLockAsync: function(key, ms, timeout) {
+        var self = this;
+        var deadline = Date.now() + (timeout ? timeout : 0);
+        var delay = 10;
+
+        return new Promise(function(resolve, reject) {
+            var attempt = function() {
+                try {
+                    var result = self.tryLock(key, ms, 0);
+                    if (result || Date.now() >= deadline) resolve(result ? result : 0);
+                    else {
+                        setTimeout(attempt, delay);
+                        delay = Math.min(delay*2, 100);
+                    }
+                } catch (e) {
+                    reject(e);
+                }
+            };
+            attempt();
+        });
+    },
+
+    renewLock: function(key, ms) { // Returns false if the lock is not held any more
+        return _callJava(_type("kvstorage", this._callbackHandle), this._id, "renewLock", key, ms) ? true : false;
     }
 };
 
-var DBStorage = function(type, id) {
+var DBStorage = function(type, id, callbackHandle) {
     this._id = type+" "+id; // application, integration, client
+    this._callbackHandle = callbackHandle;
 };
 
 DBStorage.prototype = {
-    _paramsToJSONString: function(params) {
-        if (! params) return "{}";
-
-        var obj = {};
-        for (var i=0; i<params.length; i++) {
-            obj[i] = params[i];
-        }
-
-        return JSON.stringify(obj);
-    },
+    // Records and params are passed as objects and arrays, and records are returned as objects
 
     doesTableExist: function(tableName) {
-        var str = _callJava("dbstorage", this._id, "doesTableExist", tableName);
-
-        if (str && str=="true") return true;
-        else return false;
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "doesTableExist", tableName) ? true : false;
     },
 
     insertRecord: function(tableName, record) {
-        var str = _callJava("dbstorage", this._id, "insertRecord", tableName, JSON.stringify(record));
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "insertRecord", tableName, record);
     },
 
     queryRecords: function(tableName, selectClause, whereClause, groupClause, havingClause, params, orderClause, from, length) { // By default, from=0, length=100
@@ -319,63 +390,84 @@ DBStorage.prototype = {
         if (! groupClause) groupClause = "";
         if (! havingClause) havingClause = "";
         if (! orderClause) orderClause = "";
-        from = (from && from!=0) ? ""+from : "";
-        length = (length && length!=0) ? ""+length : "";
-        params = this._paramsToJSONString(params);
+        if (! from) from = 0;
+        if (! length) length = 0;
 
-        var str = _callJava("dbstorage", this._id, "queryRecords", tableName, selectClause, whereClause, groupClause, havingClause, params, orderClause, from, length);
-
-        if (str) return JSON.parse(str);
-        else return null;
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "queryRecords", tableName, selectClause, whereClause, groupClause, havingClause, params || [], orderClause, from, length);
     },
 
     queryCount: function(tableName, selectClause, whereClause, params) {
         if (! selectClause) selectClause = "";
         if (! whereClause) whereClause = "";
-        params = this._paramsToJSONString(params);
-        var str = _callJava("dbstorage", this._id, "queryCount", tableName, selectClause, whereClause, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "queryCount", tableName, selectClause, whereClause, params || []);
     },
 
     queryRecordById: function(tableName, selectClause, idField, value) {
         if (! selectClause) selectClause = "";
-        params = this._paramsToJSONString([value]);
-        var str = _callJava("dbstorage", this._id, "queryRecordById", tableName, selectClause, idField, params);
+        var result = _callJava(_type("dbstorage", this._callbackHandle), this._id, "queryRecordById", tableName, selectClause, idField, value);
 
-        if (str) return JSON.parse(str);
+        if (result) return result;
         else return;
     },
 
     updateRecords: function(tableName, record, whereClause, params) {
         if (! whereClause) whereClause = "";
-        params = this._paramsToJSONString(params);
-        var str = _callJava("dbstorage", this._id, "updateRecords", tableName, JSON.stringify(record), whereClause, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "updateRecords", tableName, record, whereClause, params || []);
     },
 
     updateRecordById: function(tableName, record, idField, value) {
-        params = this._paramsToJSONString([value]);
-        var str = _callJava("dbstorage", this._id, "updateRecordById", tableName, JSON.stringify(record), idField, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "updateRecordById", tableName, record, idField, value);
     },
 
     replaceRecordById: function(tableName, record, idField, value) {
-        params = this._paramsToJSONString([value]);
-        var str = _callJava("dbstorage", this._id, "replaceRecordById", tableName, JSON.stringify(record), idField, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "replaceRecordById", tableName, record, idField, value);
     },
 
     deleteRecords: function(tableName, whereClause, params) {
         if (! whereClause) whereClause = "";
-        params = this._paramsToJSONString(params);
-        var str = _callJava("dbstorage", this._id, "deleteRecords", tableName, whereClause, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "deleteRecords", tableName, whereClause, params || []);
     },
 
     deleteRecordById: function(tableName, idField, value) {
-        params = this._paramsToJSONString([value]);
-        var str = _callJava("dbstorage", this._id, "deleteRecordById", tableName, idField, params);
-        return parseInt(str);
+        return _callJava(_type("dbstorage", this._callbackHandle), this._id, "deleteRecordById", tableName, idField, value);
+    },
+
+    // Read the records page by page, without loading the whole result. Page size: 100 by default.
+    // Returns RecordCursor, or null if failed. The cursor is closed at the end, or must be closed if not read through.
+    openCursor: function(tableName, selectClause, whereClause, params, orderClause, pageSize) {
+        if (! selectClause) selectClause = "";
+        if (! whereClause) whereClause = "";
+        if (! orderClause) orderClause = "";
+
+        var handle = _callJava(_type("dbstorage", this._callbackHandle), this._id, "openCursor", tableName, selectClause, whereClause, params || [], orderClause);
+        return (handle === null || handle === undefined) ? null : new RecordCursor(this._id, handle, pageSize, this._callbackHandle);
+    }
+};
+
+var RecordCursor = function(storageId, handle, pageSize, callbackHandle) {
+    this._id = storageId;
+    this._callbackHandle = callbackHandle;
+    this._handle = handle;
+    this._pageSize = pageSize ? pageSize : 0;
+    this._done = false;
+};
+
+RecordCursor.prototype = {
+    nextPage: function() { // Returns an array of records, or null at the end
+        if (this._done) return null;
+
+        var result = _callJava(_type("dbstorage", this._callbackHandle), this._id, "fetchRecords", this._handle, this._pageSize);
+        if (result === null || result === undefined) {
+            this._done = true;
+            return null;
+        }
+        return result;
+    },
+
+    close: function() {
+        if (this._done) return;
+        this._done = true;
+        _callJava(_type("dbstorage", this._callbackHandle), this._id, "closeCursor", this._handle);
     }
 };
 
@@ -1,9 +1,14 @@
 package cloud.phusion.test;
 
+import cloud.phusion.DataObject;
 import cloud.phusion.Engine;
 import cloud.phusion.EngineFactory;
+import cloud.phusion.express.integration.ConditionCache;
+import cloud.phusion.express.integration.ConditionEvaluator;
+import cloud.phusion.express.util.TimeMarker;
 import org.junit.Test;
 
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class EvaluatorTest {
@@ -28,4 +33,58 @@ public class EvaluatorTest {
         assertTrue( engine.evaluateCondition(condition,msg,config) );
     }
 
+    @Test
+    public void testEvaluationSpeed() throws Exception {
+        String condition = "{" +
+                "  \"expression\": \"(x==3.0 || x.equals(e)) && c.endsWith(d)\"," +
+                "  \"vars\": {" +
+                "    \"x\": {\"type\":\"Float\", \"fromMessage\":\"a.b\"}," +
+                "    \"c\": {\"type\":\"String\", \"fromMessage\":\"c\"}," +
+                "    \"d\": {\"type\":\"String\", \"fromConfig\":\"d\"}," +
+                "    \"e\": {\"type\":\"Float\", \"value\":5.0}" +
+                "  }" +
+                "}";
+
+        DataObject msg = new DataObject("{\"a\":[{\"b\":5.0}], \"c\":\"wwwVwww\"}");
+        DataObject config = new DataObject("{\"d\":\"w\"}");
+        int rounds = 1000000;
+
+        ConditionEvaluator byParams = new ConditionEvaluator(condition, false);
+        ConditionEvaluator byClass = new ConditionEvaluator(condition, true);
+
+        for (int i = 0; i < rounds; i++) {
+            assertTrue( byParams.evaluate(msg, config) );
+            assertTrue( byClass.evaluate(msg, config) );
+        }
+
+        TimeMarker m = new TimeMarker();
+
+        for (int i = 0; i < rounds; i++) byParams.evaluate(msg, config);
+        double msParams = m.mark();
+
+        for (int i = 0; i < rounds; i++) byClass.evaluate(msg, config);
+        double msClass = m.mark();
+
+        System.out.println(String.format("Evaluations/sec, expression with parameters: %.0f, compiled class: %.0f",
+                rounds/msParams*1000, rounds/msClass*1000));
+    }
+
+    @Test
+    public void testConditionCache() throws Exception {
+        String condition = "{\"expression\": \"x > 1\", \"vars\": {\"x\": {\"type\":\"Integer\", \"fromMessage\":\"a\"}}}";
+        String sameCondition = "{\"vars\": {\"x\": {\"fromMessage\":\"a\", \"type\":\"Integer\"}}, \"expression\": \"x > 1\"}";
+
+        TimeMarker m = new TimeMarker();
+        ConditionEvaluator eval = ConditionCache.get(condition);
+        double msCompile = m.mark();
+        ConditionEvaluator sameEval = ConditionCache.get(sameCondition);
+        double msCached = m.mark();
+
+        assertSame(eval, sameEval);
+        assertTrue( eval.evaluate(new DataObject("{\"a\":2}"), null) );
+
+        System.out.println(String.format("Compiled in %.1fms, cached in %.1fms, statistics: %s",
+                msCompile, msCached, ConditionCache.getStatistics().getString()));
+    }
+
 }
@@ -0,0 +1,120 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.PhusionException;
+import cloud.phusion.express.integration.ExecutionPool;
+import cloud.phusion.express.integration.IntegrationImpl;
+import cloud.phusion.express.integration.IntegrationManager;
+import cloud.phusion.integration.IntegrationDefinition;
+import org.junit.*;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * The execution pools of integrations, when they are full; and the pools shared by the integrations of a client.
+ */
+public class ExecutionPoolTest {
+    private static Context ctx = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ctx = EngineFactory.createContext(EngineFactory.createEngine());
+    }
+
+    /**
+     * Occupy the only thread of the pool until the latch is released.
+     */
+    private static CountDownLatch _occupy(ExecutionPool pool) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        pool.dispatch(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                // Released
+            }
+        }, ctx);
+
+        started.await();
+        return release;
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        ExecutionPool pool = new ExecutionPool("busy", 1, 0, ExecutionPool.REJECT_ABORT);
+        CountDownLatch release = _occupy(pool);
+
+        try {
+            pool.execute(() -> "never", ctx);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("IT_BUSY", ex.getCode());
+        }
+        assertEquals(1, pool.getStatistics().getJSONObject().getLongValue("rejected"));
+
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals("ok", pool.execute(() -> "ok", ctx));
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCallerRuns() throws Exception {
+        ExecutionPool pool = new ExecutionPool("busy", 1, 0, ExecutionPool.REJECT_CALLER_RUNS);
+        CountDownLatch release = _occupy(pool);
+
+        Thread caller = Thread.currentThread();
+        assertSame(caller, pool.execute(Thread::currentThread, ctx));
+        assertEquals(1, pool.getStatistics().getJSONObject().getLongValue("ranByCaller"));
+
+        release.countDown();
+        Thread.sleep(100);
+        assertNotSame(caller, pool.execute(Thread::currentThread, ctx));
+
+        pool.shutdown();
+    }
+
+    /**
+     * The integrations of a client share one pool, which is removed with the last of them.
+     */
+    @Test
+    public void testClientPool() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.Integration_PoolEnabled, "true");
+        props.setProperty(EngineFactory.Integration_PoolScope, "client");
+        IntegrationManager manager = new IntegrationManager(props);
+
+        manager.registerIntegration("IT1", "C1", new IntegrationDefinition(), null, ctx);
+        // The execution settings are ignored in the client scope
+        manager.registerIntegration("IT2", "C1", new IntegrationDefinition(),
+                new DataObject("{\"execution\": {\"maxConcurrency\": 1}}"), ctx);
+
+        ExecutionPool pool = _getPool(manager, "IT1");
+        assertSame(pool, _getPool(manager, "IT2"));
+        assertEquals(10, pool.getStatistics().getJSONObject().getIntValue("maxConcurrency"));
+
+        manager.removeIntegration("IT1", ctx);
+        manager.registerIntegration("IT3", "C1", new IntegrationDefinition(), null, ctx);
+        assertSame(pool, _getPool(manager, "IT3"));
+
+        manager.removeIntegration("IT2", ctx);
+        manager.removeIntegration("IT3", ctx);
+        manager.registerIntegration("IT4", "C1", new IntegrationDefinition(), null, ctx);
+        assertNotSame(pool, _getPool(manager, "IT4"));
+
+        manager.removeIntegration("IT4", ctx);
+    }
+
+    private static ExecutionPool _getPool(IntegrationManager manager, String integrationId) {
+        return ((IntegrationImpl) manager.getIntegration(integrationId)).getExecutionPool();
+    }
+
+}
@@ -1,8 +1,14 @@
 package cloud.phusion.test;
 
 import cloud.phusion.*;
+import cloud.phusion.express.integration.ExecutionPlan;
+import cloud.phusion.express.integration.StepExecutor;
+import cloud.phusion.integration.IntegrationDefinition;
+import cloud.phusion.integration.Transaction;
 import org.junit.*;
 
+import static org.junit.Assert.*;
+
 public class IntegrationTest {
     private static Engine engine = null;
     private static Context ctx = null;
@@ -177,6 +183,33 @@ public class IntegrationTest {
 //        it.start(ctx);
     }
 
+    /**
+     * Runs by the step executor directly, with no database or scheduler required.
+     */
+    @Test
+    public void testNestedForEach() throws Exception {
+        Engine localEngine = EngineFactory.createEngine();
+        Context localCtx = EngineFactory.createContext(localEngine);
+        String workflowPath = IntegrationTest.class.getClassLoader().getResource("").getPath() + "workflow/";
+
+        localEngine.loadJavaModule("Simple", new String[]{}, localCtx); // The processor is in the test classes
+
+        IntegrationDefinition idef = new IntegrationDefinition();
+        idef.setWorkflow(workflowPath + "workflow-08.json");
+        ExecutionPlan plan = ExecutionPlan.compile(idef);
+
+        // Twice, the message of the Direct step is not changed by the first run
+        for (int i = 0; i < 2; i++) {
+            Transaction trx = new Transaction(itId, ""+i, "01", localCtx);
+            StepExecutor exe = new StepExecutor(plan, true);
+            while (!trx.isFinished()) exe.execute(trx);
+
+            assertFalse(trx.isFailed());
+            assertEquals("[[{\"text\":\"person-1\",\"tag\":\"04\"},{\"text\":\"person-2\",\"tag\":\"04\"}]," +
+                    "[{\"text\":\"person-3\",\"tag\":\"04\"}]]", trx.getMessage().getJSONArray().toJSONString());
+        }
+    }
+
     @Test
     public void testAsyncJS() throws Exception {
 //        IntegrationDefinition idef = new IntegrationDefinition();
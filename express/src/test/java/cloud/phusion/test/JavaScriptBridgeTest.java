@@ -0,0 +1,96 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.scripting.JavaScriptValues;
+import cloud.phusion.express.component.scripting.StorageHandles;
+import cloud.phusion.storage.Record;
+import org.junit.*;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The parts of the Java bridge which do not need a JavaScript runtime: the conversion of the scalar values,
+ * and the storage handles cached by a runtime.
+ */
+public class JavaScriptBridgeTest {
+    private static Engine engine = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        engine = EngineFactory.createEngine();
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        // From JavaScript, the same as parsing the JSON string
+
+        assertEquals(3, JavaScriptValues.toJava(3.0));
+        assertEquals(-7, JavaScriptValues.toJava(-7.0));
+        assertEquals(1L << 40, JavaScriptValues.toJava((double) (1L << 40)));
+        assertEquals(2.5, JavaScriptValues.toJava(2.5));
+        assertEquals(1e20, JavaScriptValues.toJava(1e20)); // Beyond the safe integers
+        assertEquals("text", JavaScriptValues.toJava("text"));
+        assertNull(JavaScriptValues.toJava(null));
+
+        assertEquals(0, JavaScriptValues.toList(null).size());
+        List<Object> list = JavaScriptValues.toList(5.0);
+        assertEquals(1, list.size());
+        assertEquals(5, list.get(0));
+
+        Record record = JavaScriptValues.toRecord("not an object");
+        assertEquals(0, record.getFields().size());
+
+        // To JavaScript, the same as the JSON serialization
+
+        assertNull(JavaScriptValues.toV8(null, null));
+        assertEquals(5, JavaScriptValues.toV8(null, 5L));
+        assertEquals((double) (1L << 40), JavaScriptValues.toV8(null, 1L << 40));
+        assertEquals(7, JavaScriptValues.toV8(null, (short) 7));
+        assertEquals(9, JavaScriptValues.toV8(null, BigInteger.valueOf(9)));
+        assertEquals(2, JavaScriptValues.toV8(null, new BigDecimal("2.00")));
+        assertEquals(2.25, JavaScriptValues.toV8(null, new BigDecimal("2.25")));
+        assertEquals(1.5, JavaScriptValues.toV8(null, 1.5f));
+        assertEquals(true, JavaScriptValues.toV8(null, true));
+        assertEquals(1700000000000.0, JavaScriptValues.toV8(null, new Date(1700000000000L)));
+    }
+
+    @Test
+    public void testStorageHandles() throws Exception {
+        StorageHandles handles = new StorageHandles();
+
+        Object storage = handles.get("k", "application A", engine);
+        assertNotNull(storage);
+        assertSame(storage, handles.get("k", "application A", engine));
+        assertNotSame(storage, handles.get("k", "integration A", engine));
+        assertNull(handles.get("x", "application A", engine));
+        assertEquals(2, handles.size());
+
+        // Dropped when any application or integration is removed
+
+        StorageHandles.invalidate();
+        Object renewed = handles.get("k", "application A", engine);
+        assertNotSame(storage, renewed);
+        assertEquals(1, handles.size());
+
+        // Dropped when the engine changes
+
+        Engine another = EngineFactory.createEngine();
+        assertNotSame(renewed, handles.get("k", "application A", another));
+        assertEquals(1, handles.size());
+
+        // Dropped when there are too many
+
+        for (int i = 1; i < StorageHandles.MAX_HANDLES; i++) handles.get("k", "client C" + i, another);
+        assertEquals(StorageHandles.MAX_HANDLES, handles.size());
+
+        handles.get("k", "client X", another);
+        assertEquals(1, handles.size());
+    }
+
+}
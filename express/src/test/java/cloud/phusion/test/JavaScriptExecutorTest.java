@@ -1,15 +1,30 @@
 package cloud.phusion.test;
 
 import cloud.phusion.Context;
+import cloud.phusion.DataObject;
 import cloud.phusion.Engine;
 import cloud.phusion.EngineFactory;
+import cloud.phusion.PhusionException;
+import cloud.phusion.express.ExpressEngine;
+import cloud.phusion.integration.Transaction;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
 import org.junit.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
 
 public class JavaScriptExecutorTest {
     private static Engine engine;
     private static Context ctx;
+    private static boolean jsAvailable = false;
 
     @BeforeClass
     public static void setup() throws Exception {
@@ -36,6 +51,14 @@ public class JavaScriptExecutorTest {
 
         engine = EngineFactory.createEngine(props);
         ctx = EngineFactory.createContext(engine);
+
+        // J2V8 is bound to the platform of its native library, so the scripts are not run if no runtime can be created
+
+        try {
+            jsAvailable = "ok".equals(engine.runJavaScript("'ok'", ctx));
+        } catch (Exception ex) {
+            System.out.println("JavaScript runtime is not available, the script tests are skipped: " + ex.getMessage());
+        }
     }
 
     @AfterClass
@@ -70,6 +93,34 @@ public class JavaScriptExecutorTest {
 //        Thread.sleep(1500);
     }
 
+    @Test
+    public void testWorkerPool() throws Exception {
+        Assume.assumeTrue(jsAvailable);
+
+        engine.loadJavaScriptModule("PoolTest", "CollectStep.js", ctx);
+
+        ExecutorService pool = Executors.newFixedThreadPool(50);
+        List<Future<String>> results = new ArrayList<>();
+
+        long t0 = System.nanoTime();
+
+        for (int i = 0; i < 1000; i++) {
+            results.add(pool.submit(() -> {
+                Transaction trx = new Transaction("I1001","120001","03", ctx);
+                trx.setMessage(new DataObject("{\"text\":\"Hello\"}"));
+                engine.runJavaScriptWithTransaction("PoolTest", trx);
+                return trx.getMessage().getJSONObject().getString("text");
+            }));
+        }
+
+        for (Future<String> result : results) assertEquals("Hello, Hello", result.get());
+        long t1 = System.nanoTime();
+        pool.shutdown();
+
+        System.out.println("1000 transactions from 50 threads in " + ((t1-t0)/100000/10.0) + "ms");
+        System.out.println(((ExpressEngine) engine).getJavaScriptStatistics().getString());
+    }
+
     @Test
     public void testKVStorage() throws Exception {
 //        engine.loadJavaScriptModule("KVStorageTest", "KVStorageTest.js", ctx);
@@ -84,6 +135,58 @@ public class JavaScriptExecutorTest {
 //        System.out.println("In " + ((t1-t0)/100000/10.0) +"ms");
     }
 
+    @Test
+    public void testKVLoopBenchmark() throws Exception {
+        // Calls KVStorage.get() through the Java bridge for 10k times
+
+        Assume.assumeTrue(jsAvailable);
+
+        engine.loadJavaScriptModule("KVLoopBenchmark", "KVLoopBenchmark.js", ctx);
+
+        Transaction trx = new Transaction("I1001","120001","01", ctx);
+        trx.setMessage(new DataObject("{}"));
+
+        engine.runJavaScriptWithTransaction("KVLoopBenchmark", trx);
+
+        JSONObject result = trx.getMessage().getJSONObject();
+        assertEquals(result.getIntValue("iterations"), result.getIntValue("hits"));
+        System.out.println(trx.getMessage().getString());
+    }
+
+    @Test
+    public void testCodeCache() throws Exception {
+        // The first runtime compiles the script, the others load it from the code cache. Every runtime loads it
+        // when warming up.
+
+        Assume.assumeTrue(jsAvailable);
+
+        engine.loadJavaScriptModule("CodeCacheTest", "CollectStep.js", ctx);
+
+        JSONObject stats = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            stats = _getScriptLoads("CodeCacheTest");
+            if (stats!=null && stats.getIntValue("compiles")+stats.getIntValue("cachedLoads") >= _getWorkerCount()) break;
+            Thread.sleep(50);
+        }
+
+        assertNotNull(stats);
+        assertEquals(_getWorkerCount(), stats.getIntValue("compiles")+stats.getIntValue("cachedLoads"));
+        System.out.println(stats.toJSONString());
+    }
+
+    private static JSONObject _getScriptLoads(String scriptId) {
+        JSONArray loads = ((ExpressEngine) engine).getJavaScriptStatistics().getJSONObject().getJSONArray("scripts");
+        for (int i = 0; i < loads.size(); i++) {
+            if (scriptId.equals(loads.getJSONObject(i).getString("scriptId"))) return loads.getJSONObject(i);
+        }
+        return null;
+    }
+
+    private static int _getWorkerCount() {
+        return ((ExpressEngine) engine).getJavaScriptStatistics().getJSONObject().getIntValue("workers");
+    }
+
     @Test
     public void testDBStorage() throws Exception {
         // Need database table: CXCH_Order !!!!!!!
@@ -101,6 +204,22 @@ public class JavaScriptExecutorTest {
 //        System.out.println("In " + ((t1-t0)/100000/10.0) +"ms");
     }
 
+    @Test
+    public void testDBQueryBenchmark() throws Exception {
+        // Need database table: CXCH_Order with 1000 records !!!!!!!
+        // Reads 1000 records through the Java bridge for 20 rounds, and reports the average time of one round
+
+//        engine.loadJavaScriptModule("DBQueryBenchmark", "DBQueryBenchmark.js", ctx);
+//
+//        Transaction trx = new Transaction("I1001","120001","01", ctx);
+//        trx.setClientId("XCH");
+//        trx.setMessage(new DataObject("{}"));
+//
+//        engine.runJavaScriptWithTransaction("DBQueryBenchmark", trx);
+//
+//        System.out.println(trx.getMessage().getString());
+    }
+
     @Test
     public void testFileStorage() throws Exception {
 //        engine.loadJavaScriptModule("FileStorageTest", "FileStorageTest.js", ctx);
@@ -154,6 +273,79 @@ public class JavaScriptExecutorTest {
 //        System.out.println(engine.runJavaScriptFile("SimpleNodeAsync.js", true, ctx));
     }
 
+    @Test
+    public void testAsyncInterleaving() throws Exception {
+        // Each script waits for 200ms, so they finish in about 200ms in total if interleaved in the workers
+
+        Assume.assumeTrue(jsAvailable);
+
+        ExecutorService pool = Executors.newFixedThreadPool(100);
+        List<Future<String>> results = new ArrayList<>();
+
+        long t0 = System.nanoTime();
+
+        for (int i = 0; i < 100; i++) {
+            results.add(pool.submit(() -> engine.runJavaScriptFile("SimpleNodeAsync.js", true, false, ctx)));
+        }
+
+        for (Future<String> result : results) assertEquals("hello", result.get());
+        double ms = (System.nanoTime()-t0)/100000/10.0;
+        pool.shutdown();
+
+        System.out.println("100 async scripts in " + ms + "ms");
+        assertTrue(ms < 100*200/_getWorkerCount()); // Faster than running them one by one in each worker
+    }
+
+    /**
+     * The async transactions interleaved in a worker, each with its own message.
+     */
+    @Test
+    public void testAsyncTransactions() throws Exception {
+        Assume.assumeTrue(jsAvailable);
+
+        engine.loadJavaScriptModule("AsyncStep", "AsyncStep.js", ctx);
+
+        List<CompletableFuture<Transaction>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Transaction trx = new Transaction("I1001", "12000"+i, "02", ctx);
+            trx.setMessage(new DataObject("{\"index\":" + i + "}"));
+            results.add(((ExpressEngine) engine).runJavaScriptWithTransactionAsync("AsyncStep", trx));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            JSONObject msg = results.get(i).get().getMessage().getJSONObject();
+            assertEquals(i, msg.getIntValue("index"));
+            assertEquals(30, msg.getIntValue("age"));
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Assume.assumeTrue(jsAvailable);
+
+        String base = FileStorageTest.class.getClassLoader().getResource("").getPath();
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.Module_JavaScriptFileRootPath, base + "javascript/");
+        props.setProperty(EngineFactory.Module_JavaScriptTimeout, "1000");
+        props.setProperty(EngineFactory.Module_JavaScriptWorkerCount, "1");
+
+        Engine timedEngine = EngineFactory.createEngine(props);
+
+        try {
+            timedEngine.runJavaScriptFile("RunawayNode.js", false, false, ctx);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("JS_TIMEOUT", ex.getCode());
+        }
+
+        // The runtime is recycled, and runs the next script
+        assertEquals("ok", timedEngine.runJavaScript("'ok'", ctx));
+
+        JSONObject stats = ((ExpressEngine) timedEngine).getJavaScriptStatistics().getJSONObject();
+        assertEquals(1, stats.getIntValue("terminated"));
+        assertEquals(1, stats.getIntValue("recycled"));
+    }
+
     @Test
     public void testRunScript() throws Exception {
 //        System.out.println(engine.runJavaScript("(function(){return \"haha\"})()", null));
@@ -0,0 +1,144 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.test.util.RedisStandIn;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the single-key operations with the multi-key operations and the batching, on the local store and on
+ * an in-process Redis stand-in with 200us round-trip time (no Redis server needed).
+ *
+ * The stand-in serves the connections in parallel, so the batching saves the round trips (and the work of Redis
+ * on them), rather than the time of the concurrent threads here.
+ */
+public class KVBatchTest {
+    private static final int KEYS = 200;
+    private static final int THREADS = 16;
+    private static final long LATENCY = 200; // In microseconds
+
+    private static RedisStandIn redis = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        redis = new RedisStandIn(LATENCY);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        // Back to the local store for the other tests
+
+        KVStorageImpl.shutdown();
+        KVStorageImpl.init(new Properties());
+
+        redis.close();
+    }
+
+    private static KVStorageImpl _init(boolean standIn, boolean batch) throws Exception {
+        KVStorageImpl.shutdown();
+
+        Properties props = new Properties();
+        if (standIn) {
+            props.setProperty(EngineFactory.Redis_Host, "127.0.0.1");
+            props.setProperty(EngineFactory.Redis_Port, "" + redis.getPort());
+            props.setProperty(EngineFactory.Redis_Database, "0");
+            props.setProperty(EngineFactory.Redis_Batch, "" + batch);
+        }
+        KVStorageImpl.init(props);
+
+        KVStorageImpl storage = new KVStorageImpl("IBatch");
+
+        Map<String,Object> entries = new LinkedHashMap<>();
+        for (int i = 0; i < KEYS; i++) entries.put("key" + i, "value" + i);
+        storage.putAll(entries, 60000);
+
+        return storage;
+    }
+
+    @Test
+    public void testMultiKeys() throws Exception {
+        for (boolean standIn : new boolean[]{false, true}) {
+            KVStorageImpl storage = _init(standIn, false);
+
+            Map<String,Object> values = storage.getAll(Arrays.asList("key1", "none", "key2"));
+            assertEquals(2, values.size());
+            assertEquals("value1", values.get("key1"));
+            assertEquals("value2", values.get("key2"));
+
+            storage.removeAll(Arrays.asList("key1", "key2"));
+            assertFalse(storage.doesExist("key1"));
+            assertNull(storage.get("key2"));
+            assertEquals("value3", storage.get("key3"));
+        }
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) keys.add("key" + i);
+
+        KVStorageImpl storage = _init(false, false);
+        TimeMarker m = new TimeMarker();
+        for (String key : keys) storage.get(key);
+        double msLocal = m.mark();
+
+        storage = _init(true, false);
+        for (String key : keys) storage.get(key); // Warm up the connection
+
+        m.mark();
+        for (String key : keys) storage.get(key);
+        double msSingle = m.mark();
+
+        Map<String,Object> values = storage.getAll(keys);
+        double msMulti = m.mark();
+        assertEquals(KEYS, values.size());
+
+        long trips = redis.getRoundTrips();
+        double msConcurrent = _getConcurrently(storage, keys);
+        long tripsConcurrent = redis.getRoundTrips() - trips;
+
+        storage = _init(true, true);
+        _getConcurrently(storage, keys); // Warm up the batcher
+
+        trips = redis.getRoundTrips();
+        double msBatched = _getConcurrently(storage, keys);
+        long tripsBatched = redis.getRoundTrips() - trips;
+
+        System.out.println(String.format("Get %d keys (local store): %.1fms", KEYS, msLocal));
+        System.out.println(String.format("Get %d keys one by one (RTT %dus): %.1fms", KEYS, LATENCY, msSingle));
+        System.out.println(String.format("Get %d keys with getAll (RTT %dus): %.1fms", KEYS, LATENCY, msMulti));
+        System.out.println(String.format("Get %d keys by %d threads each: %.1fms in %d round trips without batching, " +
+                "%.1fms in %d round trips with batching", KEYS, THREADS, msConcurrent, tripsConcurrent, msBatched, tripsBatched));
+        System.out.println(KVStorageImpl.getStatistics().getString());
+    }
+
+    private static double _getConcurrently(KVStorageImpl storage, List<String> keys) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            TimeMarker m = new TimeMarker();
+
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(pool.submit(() -> {
+                    for (String key : keys) {
+                        assertEquals("value" + key.substring(3), storage.get(key));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+
+            return m.mark();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
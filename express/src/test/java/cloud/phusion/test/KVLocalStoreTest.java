@@ -0,0 +1,142 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.KVLock;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The local store of KVStorageImpl, used when Redis is not configured.
+ */
+public class KVLocalStoreTest {
+    private static File aof = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        aof = File.createTempFile("phusion-kv", ".aof");
+        aof.delete();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        KVStorageImpl.shutdown();
+        KVStorageImpl.init(new Properties());
+
+        aof.delete();
+    }
+
+    private static KVStorageImpl _init(long maxMemory, boolean persistent) throws Exception {
+        KVStorageImpl.shutdown();
+
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.KV_LocalMaxMemory, "" + maxMemory);
+        if (persistent) props.setProperty(EngineFactory.KV_LocalAOF, aof.getPath());
+        KVStorageImpl.init(props);
+
+        return new KVStorageImpl("ILocal");
+    }
+
+    private static JSONObject _getStatistics() {
+        return KVStorageImpl.getStatistics().getJSONObject().getJSONObject("localStore");
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        KVStorageImpl storage = _init(0, false);
+
+        for (int i = 0; i < 1000; i++) storage.put("short" + i, "value", 100);
+        storage.put("long", "value", 60000);
+        storage.put("forever", "value");
+        assertEquals(1002, _getStatistics().getIntValue("keys"));
+
+        // Reclaimed by the reaper, without being read
+        Thread.sleep(400);
+        JSONObject stats = _getStatistics();
+        assertEquals(2, stats.getIntValue("keys"));
+        assertEquals(1000, stats.getIntValue("expired"));
+        assertEquals("value", storage.get("long"));
+        assertEquals("value", storage.get("forever"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        KVStorageImpl storage = _init(1, false); // 1MB
+
+        storage.put("hot", "value");
+        for (int i = 0; i < 20000; i++) {
+            storage.put("key" + i, "value" + i);
+            if (i % 100 == 0) assertEquals("value", storage.get("hot")); // Kept by the second chance
+        }
+
+        JSONObject stats = _getStatistics();
+        System.out.println(stats.toJSONString());
+        assertTrue(stats.getLongValue("evicted") > 0);
+        assertTrue(stats.getLongValue("usedMemory") <= 1024*1024);
+        assertEquals("value", storage.get("hot"));
+        assertEquals("value19999", storage.get("key19999"));
+        assertNull(storage.get("key0"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        KVStorageImpl storage = _init(0, true);
+
+        storage.put("kept", "value1");
+        storage.put("kept", "value2");
+        storage.put("removed", "value");
+        storage.remove("removed");
+        storage.put("expiring", "value", 100);
+        storage.put("session", "token", 60000);
+        KVLock lock = storage.acquireLock("job", 60000);
+
+        storage = _init(0, true);
+        Thread.sleep(150);
+
+        assertEquals("value2", storage.get("kept"));
+        assertNull(storage.get("removed"));
+        assertNull(storage.get("expiring"));
+        assertEquals("token", storage.get("session"));
+
+        // The lock and its fencing token survive
+        assertNull(storage.acquireLock("job", 60000));
+        assertTrue(storage.releaseLock(lock));
+        assertTrue(storage.acquireLock("job", 60000).getFencingToken() > lock.getFencingToken());
+    }
+
+    @Test
+    public void testAtomicLock() throws Exception {
+        KVStorageImpl storage = _init(0, false);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger holders = new AtomicInteger(0);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        KVLock lock = storage.tryLock("shared", 10000, 10000);
+                        assertNotNull(lock);
+                        assertEquals(1, holders.incrementAndGet());
+                        holders.decrementAndGet();
+                        assertTrue(storage.releaseLock(lock));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(800, storage.acquireLock("shared", 1000).getFencingToken() - 1);
+    }
+
+}
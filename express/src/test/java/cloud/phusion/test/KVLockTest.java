@@ -0,0 +1,169 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.KVLock;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.test.util.RedisStandIn;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The distributed locks of KVStorageImpl, on the local store and on an in-process Redis stand-in with 200us
+ * round-trip time.
+ */
+public class KVLockTest {
+    private static final long LATENCY = 200; // In microseconds
+    private static final int LOCKS = 200;
+    private static final int THREADS = 8;
+
+    private static RedisStandIn redis = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        redis = new RedisStandIn(LATENCY);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        // Back to the local store for the other tests
+
+        KVStorageImpl.shutdown();
+        KVStorageImpl.init(new Properties());
+
+        redis.close();
+    }
+
+    private static KVStorageImpl _init(boolean standIn) throws Exception {
+        KVStorageImpl.shutdown();
+
+        Properties props = new Properties();
+        if (standIn) {
+            props.setProperty(EngineFactory.Redis_Host, "127.0.0.1");
+            props.setProperty(EngineFactory.Redis_Port, "" + redis.getPort());
+            props.setProperty(EngineFactory.Redis_Database, "0");
+        }
+        KVStorageImpl.init(props);
+
+        return new KVStorageImpl("ILock");
+    }
+
+    @Test
+    public void testLock() throws Exception {
+        for (boolean standIn : new boolean[]{false, true}) {
+            KVStorageImpl storage = _init(standIn);
+
+            KVLock first = storage.acquireLock("job", 1000);
+            assertNotNull(first);
+            assertNull(storage.acquireLock("job", 1000));
+            assertFalse(storage.lock("job", 1000));
+
+            assertTrue(storage.releaseLock(first));
+            KVLock second = storage.acquireLock("job", 1000);
+            assertNotNull(second);
+            assertTrue(second.getFencingToken() > first.getFencingToken());
+
+            // The lock released already can not release the one held by others
+            assertFalse(storage.releaseLock(first));
+            assertFalse(storage.renewLock(first, 1000));
+            assertTrue(storage.renewLock(second, 1000));
+            assertNull(storage.acquireLock("job", 1000));
+
+            storage.unlock("job"); // Releases the lock held by this engine
+            assertTrue(storage.lock("job", 100));
+            Thread.sleep(150);
+            assertTrue(storage.lock("job", 1000)); // Expired
+            storage.unlock("job");
+
+            // The waiter is woken up by the release, long before the lock expires
+            KVLock held = storage.acquireLock("job", 5000);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    storage.releaseLock(held);
+                } catch (Exception ex) {
+                    // Fails the assertions below
+                }
+            }).start();
+
+            TimeMarker m = new TimeMarker();
+            KVLock waited = storage.tryLock("job", 1000, 2000);
+            double ms = m.mark();
+            assertNotNull(waited);
+            assertTrue(ms < 1000);
+            assertTrue(waited.getFencingToken() > held.getFencingToken());
+
+            assertNull(storage.tryLock("job", 1000, 50)); // Timeout
+            assertTrue(storage.releaseLock(waited));
+        }
+    }
+
+    /**
+     * The lock without expire time is released by another engine, or after restarting.
+     */
+    @Test
+    public void testUnlockByOthers() throws Exception {
+        KVStorageImpl storage = _init(true);
+        assertTrue(storage.lock("job"));
+
+        KVStorageImpl other = _init(true); // The locks held by this engine are forgotten
+        assertFalse(other.lock("job"));
+        other.unlock("job");
+        assertTrue(other.lock("job"));
+
+        _init(true).unlock("job");
+        assertNotNull(_init(true).acquireLock("job", 1000));
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        KVStorageImpl storage = _init(true);
+        storage.releaseLock(storage.acquireLock("warm", 1000)); // Warm up the connection and the scripts
+
+        long trips = redis.getRoundTrips();
+        TimeMarker m = new TimeMarker();
+        for (int i = 0; i < LOCKS; i++) {
+            KVLock lock = storage.acquireLock("key" + i, 10000);
+            assertTrue(storage.releaseLock(lock));
+        }
+        double msUncontended = m.mark();
+        long tripsUncontended = redis.getRoundTrips() - trips;
+
+        // The threads take turns on one lock
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        int rounds = LOCKS / THREADS;
+
+        try {
+            m.mark();
+
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < rounds; i++) {
+                        KVLock lock = storage.tryLock("shared", 10000, 10000);
+                        assertNotNull(lock);
+                        assertTrue(storage.releaseLock(lock));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            pool.shutdown();
+        }
+        double msContended = m.mark();
+
+        System.out.println(String.format("Acquire and release %d locks (RTT %dus): %.1fms in %d round trips, %.0f locks/s",
+                LOCKS, LATENCY, msUncontended, tripsUncontended, LOCKS*1000/msUncontended));
+        System.out.println(String.format("Acquire and release one lock %d times by %d threads: %.1fms, %.0f locks/s",
+                rounds*THREADS, THREADS, msContended, rounds*THREADS*1000/msContended));
+        System.out.println(KVStorageImpl.getStatistics().getString());
+    }
+
+}
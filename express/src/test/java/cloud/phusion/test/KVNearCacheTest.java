@@ -0,0 +1,174 @@
+package cloud.phusion.test;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.test.util.RedisStandIn;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+import redis.clients.jedis.Jedis;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * The near-cache of KVStorageImpl, on an in-process Redis stand-in with 200us round-trip time.
+ *
+ * Another engine is played by a plain Redis client, which changes the value and publishes the key.
+ */
+public class KVNearCacheTest {
+    private static final long LATENCY = 200; // In microseconds
+    private static final String CHANNEL = "phusion_kv_invalidation";
+
+    private static RedisStandIn redis = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        redis = new RedisStandIn(LATENCY);
+
+        KVStorageImpl.shutdown();
+
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.Redis_Host, "127.0.0.1");
+        props.setProperty(EngineFactory.Redis_Port, "" + redis.getPort());
+        props.setProperty(EngineFactory.Redis_Database, "0");
+        props.setProperty(EngineFactory.Redis_NearCacheNamespaces, "INear");
+        KVStorageImpl.init(props);
+
+        // The values are cached only after the invalidation channel is subscribed
+        for (int i = 0; i < 200 && ! _getStatistics().getBooleanValue("subscribed"); i++) Thread.sleep(10);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        // Back to the local store for the other tests
+
+        KVStorageImpl.shutdown();
+        KVStorageImpl.init(new Properties());
+
+        redis.close();
+    }
+
+    private static JSONObject _getStatistics() throws Exception {
+        DataObject stats = KVStorageImpl.getStatistics();
+        return stats.getJSONObject().getJSONObject("nearCache");
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        KVStorageImpl storage = new KVStorageImpl("INear");
+
+        storage.put("token", "v1", 60000);
+        assertEquals("v1", storage.get("token")); // Retrieved from Redis
+
+        long trips = redis.getRoundTrips();
+        assertEquals("v1", storage.get("token"));
+        assertTrue(storage.doesExist("token"));
+        assertEquals(trips, redis.getRoundTrips());
+
+        try (Jedis other = new Jedis("127.0.0.1", redis.getPort())) {
+            other.set("INear_token", "v2");
+            assertEquals("v1", storage.get("token")); // Not notified yet
+
+            other.publish(CHANNEL, "other-engine\n" + System.currentTimeMillis() + "\nINear_token");
+        }
+
+        String value = null;
+        for (int i = 0; i < 200 && ! "v2".equals(value = (String) storage.get("token")); i++) Thread.sleep(10);
+        assertEquals("v2", value);
+
+        // Expires along with Redis
+        storage.put("short", "x", 200);
+        assertEquals("x", storage.get("short"));
+        assertEquals("x", storage.get("short"));
+        Thread.sleep(300);
+        assertNull(storage.get("short"));
+
+        // Changed by itself
+        storage.remove("token");
+        assertNull(storage.get("token"));
+
+        JSONObject stats = _getStatistics();
+        System.out.println(stats.toJSONString());
+        assertTrue(stats.getLongValue("hits") >= 3);
+        assertEquals(1, stats.getLongValue("receivedKeys"));
+    }
+
+    /**
+     * The other keys keep changing, but the hot key is still cached after retrieved from Redis.
+     */
+    @Test
+    public void testInvalidationChurn() throws Exception {
+        final int threads = 4;
+        final int rounds = 50;
+
+        KVStorageImpl storage = new KVStorageImpl("INear");
+        storage.put("hot", "h", 60000);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] churn = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            churn[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; running.get(); i++) storage.put("busy" + thread + "_" + (i % 100), "b" + i, 60000);
+                } catch (Exception ex) {
+                    // Stopped
+                }
+            });
+            churn[t].start();
+        }
+
+        int cached = 0;
+        try {
+            for (int r = 0; r < rounds; r++) {
+                storage.remove("hot");
+                storage.put("hot", "h", 60000);
+                assertEquals("h", storage.get("hot")); // Retrieved from Redis
+
+                long trips = redis.getRoundTrips();
+                assertEquals("h", storage.get("hot"));
+                if (trips == redis.getRoundTrips()) cached++;
+            }
+        } finally {
+            running.set(false);
+            for (Thread t : churn) t.join();
+        }
+
+        System.out.println(String.format("Cached after retrieved: %d of %d, while %d threads change the other keys",
+                cached, rounds, threads));
+        assertTrue(cached >= rounds/2); // Hardly ever cached, if every change invalidates the retrievals of all keys
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        final int keys = 20;
+        final int rounds = 50;
+
+        KVStorageImpl cached = new KVStorageImpl("INear");
+        KVStorageImpl uncached = new KVStorageImpl("IFar");
+        for (int i = 0; i < keys; i++) {
+            cached.put("hot" + i, "value" + i, 60000);
+            uncached.put("hot" + i, "value" + i, 60000);
+        }
+
+        TimeMarker m = new TimeMarker();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < keys; i++) assertEquals("value" + i, uncached.get("hot" + i));
+        }
+        double msUncached = m.mark();
+
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < keys; i++) assertEquals("value" + i, cached.get("hot" + i));
+        }
+        double msCached = m.mark();
+
+        System.out.println(String.format("Get %d hot keys %d times (RTT %dus): %.1fms without near-cache, %.1fms with near-cache",
+                keys, rounds, LATENCY, msUncached, msCached));
+        System.out.println(_getStatistics().toJSONString());
+    }
+
+}
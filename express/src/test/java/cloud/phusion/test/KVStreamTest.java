@@ -0,0 +1,220 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.KVStorageImpl;
+import cloud.phusion.express.component.storage.MessageListener;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.test.util.RedisStandIn;
+import org.junit.*;
+
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The message streams of KVStorageImpl, on the local store and on an in-process Redis stand-in.
+ * Also the pub/sub on the stand-in, whose channels share one subscribed connection.
+ */
+public class KVStreamTest {
+    private static RedisStandIn redis = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        redis = new RedisStandIn(200);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        // Back to the local store for the other tests
+
+        KVStorageImpl.shutdown();
+        KVStorageImpl.init(new Properties());
+
+        redis.close();
+    }
+
+    private static KVStorageImpl _init(boolean standIn) throws Exception {
+        KVStorageImpl.shutdown();
+
+        Properties props = new Properties();
+        if (standIn) {
+            props.setProperty(EngineFactory.Redis_Host, "127.0.0.1");
+            props.setProperty(EngineFactory.Redis_Port, "" + redis.getPort());
+            props.setProperty(EngineFactory.Redis_Database, "0");
+        }
+        KVStorageImpl.init(props);
+
+        return new KVStorageImpl("IStream");
+    }
+
+    private static String _poll(BlockingQueue<String> queue) throws Exception {
+        return queue.poll(3, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        for (boolean standIn : new boolean[]{false, true}) {
+            KVStorageImpl storage = _init(standIn);
+            BlockingQueue<String> engine1 = new LinkedBlockingQueue<>();
+            BlockingQueue<String> engine2 = new LinkedBlockingQueue<>();
+
+            // Every group receives all messages
+            storage.receiveMessages("orders", "engine1", (channel, msg) -> engine1.add(channel + ":" + msg));
+            storage.receiveMessages("orders", "engine2", (channel, msg) -> engine2.add(msg));
+
+            for (int i = 1; i <= 3; i++) storage.sendMessage("orders", "m" + i);
+            assertEquals("IStream_orders:m1", _poll(engine1));
+            for (int i = 1; i <= 3; i++) assertEquals("m" + i, _poll(engine2));
+            assertEquals("IStream_orders:m2", _poll(engine1));
+            assertEquals("IStream_orders:m3", _poll(engine1));
+
+            // The messages sent while stopped are received when started again
+            storage.stopReceivingMessages("orders", "engine2");
+            Thread.sleep(100);
+            storage.sendMessage("orders", "m4");
+            storage.sendMessage("orders", "m5");
+            assertEquals("IStream_orders:m4", _poll(engine1));
+            assertNull(engine2.poll(200, TimeUnit.MILLISECONDS));
+
+            storage.receiveMessages("orders", "engine2", (channel, msg) -> engine2.add(msg));
+            assertEquals("m4", _poll(engine2));
+            assertEquals("m5", _poll(engine2));
+
+            storage.stopReceivingMessages("orders", "engine1");
+            storage.stopReceivingMessages("orders", "engine2");
+        }
+    }
+
+    @Test
+    public void testRedelivery() throws Exception {
+        KVStorageImpl storage = _init(true);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        AtomicBoolean failing = new AtomicBoolean(true);
+
+        storage.receiveMessages("jobs", "engine1", (channel, msg) -> {
+            if (failing.get() && msg.equals("j2")) throw new IllegalStateException("Failed to handle " + msg);
+            received.add(msg);
+        });
+
+        for (int i = 1; i <= 3; i++) storage.sendMessage("jobs", "j" + i);
+        assertEquals("j1", _poll(received));
+        assertEquals("j3", _poll(received));
+
+        // The one failed is not acknowledged, and delivered again after restarted
+        Thread.sleep(100); // The acknowledgements are sent along with the next read
+        failing.set(false);
+        storage = _init(true);
+        storage.receiveMessages("jobs", "engine1", (channel, msg) -> received.add(msg));
+        assertEquals("j2", _poll(received));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        // Redis drops the blocking read of the reader shut down, but the stand-in completes it in a second
+        Thread.sleep(1000);
+        storage.sendMessage("jobs", "j4");
+        assertEquals("j4", _poll(received));
+
+        System.out.println(KVStorageImpl.getStatistics().getJSONObject().getJSONObject("streams").toJSONString());
+    }
+
+    /**
+     * The message always failed does not hold the others, and is moved to the dead-letter channel in the end.
+     */
+    @Test
+    public void testPoisonMessage() throws Exception {
+        KVStorageImpl storage = _init(true);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        BlockingQueue<String> dead = new LinkedBlockingQueue<>();
+        AtomicInteger attempts = new AtomicInteger(0);
+        MessageListener listener = (channel, msg) -> {
+            if (msg.equals("p1")) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("Failed to handle " + msg);
+            }
+            received.add(msg);
+        };
+
+        storage.receiveMessages("tasks:dead", "audit", (channel, msg) -> dead.add(msg));
+        storage.receiveMessages("tasks", "engine1", listener);
+
+        storage.sendMessage("tasks", "p1");
+        storage.sendMessage("tasks", "p2");
+        assertEquals("p2", _poll(received));
+
+        // Started again, the pending message is delivered once per replay rather than again and again
+        for (int i = 0; i < 2; i++) {
+            storage.stopReceivingMessages("tasks", "engine1");
+            storage.receiveMessages("tasks", "engine1", listener);
+            storage.sendMessage("tasks", "p" + (i+3));
+            assertEquals("p" + (i+3), _poll(received));
+        }
+
+        assertEquals("p1", _poll(dead));
+        assertEquals(3, attempts.get());
+
+        storage.stopReceivingMessages("tasks", "engine1");
+        storage.receiveMessages("tasks", "engine1", listener);
+        Thread.sleep(300);
+        assertEquals(3, attempts.get());
+
+        storage.stopReceivingMessages("tasks", "engine1");
+        storage.stopReceivingMessages("tasks:dead", "audit");
+    }
+
+    /**
+     * The channels are subscribed one after another on the same connection, and the messages published right after
+     * subscribing are received.
+     */
+    @Test
+    public void testPubSub() throws Exception {
+        KVStorageImpl storage = _init(true);
+        Context ctx = EngineFactory.createContext(EngineFactory.createEngine()); // The engine ID is logged
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        TimeMarker m = new TimeMarker();
+        for (String channel : new String[]{"news", "alerts", "audit"}) {
+            storage.subscribe(channel, (ch, msg) -> received.add(ch + ":" + msg), ctx);
+        }
+        double ms = m.mark();
+        System.out.println(String.format("Subscribed 3 channels in %.1fms", ms));
+
+        storage.publish("news", "n1", ctx);
+        storage.publish("alerts", "a1", ctx);
+        storage.publish("audit", "x1", ctx);
+        assertEquals("IStream_news:n1", _poll(received));
+        assertEquals("IStream_alerts:a1", _poll(received));
+        assertEquals("IStream_audit:x1", _poll(received));
+
+        assertEquals(1, _countThreads("phusion-kv-subscriber"));
+
+        storage.unsubscribe("news", ctx);
+        storage.publish("news", "n2", ctx);
+        storage.publish("alerts", "a2", ctx);
+        assertEquals("IStream_alerts:a2", _poll(received));
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+
+        // Subscribed again after all channels are removed
+
+        storage.unsubscribe("alerts", ctx);
+        storage.unsubscribe("audit", ctx);
+        storage.subscribe("news", (ch, msg) -> received.add(ch + ":" + msg), ctx);
+        storage.publish("news", "n3", ctx);
+        assertEquals("IStream_news:n3", _poll(received));
+
+        storage.unsubscribe("news", ctx);
+    }
+
+    private static int _countThreads(String name) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name) && t.isAlive()) count++;
+        }
+        return count;
+    }
+
+}
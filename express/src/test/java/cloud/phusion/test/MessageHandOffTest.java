@@ -0,0 +1,140 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.integration.ExecutionPlan;
+import cloud.phusion.express.integration.StepExecutor;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.integration.*;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * The message hand-off between steps by the parsed JSON tree, on a workflow of 5 ForEach-Collect pairs (hand-off
+ * only) and on a loop with a Java step changing the items in place, with a 100KB message.
+ */
+public class MessageHandOffTest {
+    private static Engine engine = null;
+    private static Context ctx = null;
+    private static String basePath = null;
+
+    private static final int ROUNDS = 200;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        engine = EngineFactory.createEngine();
+        ctx = EngineFactory.createContext(engine);
+        basePath = MessageHandOffTest.class.getClassLoader().getResource("").getPath() + "workflow/";
+
+        engine.loadJavaModule("Simple", new String[]{}, ctx); // The processors are in the test classes
+    }
+
+    /**
+     * The items changed by the loop body are collected, and the source array is not changed.
+     */
+    @Test
+    public void testIsolation() throws Exception {
+        ExecutionPlan plan = _compile("workflow-10.json");
+        JSONArray source = JSON.parseArray(_createMessage());
+
+        Transaction trx = _run(plan, new DataObject(source));
+        assertTrue(trx.isFinished());
+        assertFalse(trx.isFailed());
+
+        JSONArray result = trx.getMessage().getJSONArray();
+        assertEquals(100, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals("02", result.getJSONObject(i).getString("tag"));
+            assertEquals(i, result.getJSONObject(i).getIntValue("index"));
+            assertFalse(source.getJSONObject(i).containsKey("tag"));
+        }
+    }
+
+    /**
+     * The numbers, booleans, nulls and strings are collected as they are.
+     */
+    @Test
+    public void testPrimitiveItems() throws Exception {
+        ExecutionPlan plan = _compile("workflow-09.json");
+
+        Transaction trx = _run(plan, new DataObject("[1,true,null,\"text\",\"2\",2.5]"));
+        assertTrue(trx.isFinished());
+        assertEquals("[1,true,null,\"text\",\"2\",2.5]", trx.getMessage().getJSONArray().toJSONString());
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        ExecutionPlan planHandOff = _compile("workflow-09.json");
+        ExecutionPlan planBody = _compile("workflow-10.json");
+        String msg = _createMessage();
+
+        assertEquals(100, _run(planHandOff, new DataObject(msg)).getMessage().getJSONArray().size());
+
+        // Warm up
+
+        for (int i = 0; i < ROUNDS; i++) {
+            _run(planHandOff, new DataObject(msg));
+            _run(planBody, new DataObject(msg));
+        }
+
+        TimeMarker m = new TimeMarker();
+        long bytes = _allocatedBytes();
+
+        for (int i = 0; i < ROUNDS; i++) _run(planHandOff, new DataObject(msg));
+        double msHandOff = m.mark();
+        long bytesHandOff = _allocatedBytes() - bytes;
+
+        bytes = _allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) _run(planBody, new DataObject(msg));
+        double msBody = m.mark();
+        long bytesBody = _allocatedBytes() - bytes;
+
+        System.out.println(String.format("%d runs, 5 empty loops: %.1fms, %dMB allocated; 1 loop with a Java step: %.1fms, %dMB allocated",
+                ROUNDS, msHandOff, bytesHandOff/1024/1024, msBody, bytesBody/1024/1024));
+    }
+
+    private ExecutionPlan _compile(String workflow) throws Exception {
+        IntegrationDefinition idef = new IntegrationDefinition();
+        idef.setWorkflow(basePath + workflow);
+        return ExecutionPlan.compile(idef);
+    }
+
+    private String _createMessage() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) text.append("0123456789");
+
+        JSONArray arr = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            JSONObject item = new JSONObject();
+            item.put("index", i);
+            item.put("text", text.toString());
+            arr.add(item);
+        }
+
+        return arr.toJSONString();
+    }
+
+    private Transaction _run(ExecutionPlan plan, DataObject msg) throws Exception {
+        Transaction trx = new Transaction("TestIT", "1", "01", ctx);
+        trx.setMessage(msg);
+
+        StepExecutor exe = new StepExecutor(plan, true);
+        while (!trx.isFinished()) exe.execute(trx);
+
+        return trx;
+    }
+
+    private long _allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
@@ -0,0 +1,176 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.integration.ExecutionPlan;
+import cloud.phusion.express.integration.ParallelForEach;
+import cloud.phusion.express.integration.StepExecutor;
+import cloud.phusion.integration.IntegrationDefinition;
+import cloud.phusion.integration.Transaction;
+import cloud.phusion.test.util.ProbeProcessor;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The ForEach loops run in parallel (see ParallelForEach), with a Java step as the loop body.
+ */
+public class ParallelForEachTest {
+    private static Engine engine = null;
+    private static Context ctx = null;
+    private static ExecutionPlan plan = null;
+    private static ExecutionPlan nestedPlan = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        engine = EngineFactory.createEngine();
+        ctx = EngineFactory.createContext(engine);
+        engine.loadJavaModule("Simple", new String[]{}, ctx); // The processor is in the test classes
+
+        ParallelForEach.init(new Properties());
+
+        String basePath = ParallelForEachTest.class.getClassLoader().getResource("").getPath() + "workflow/";
+        plan = _compile(basePath + "workflow-11.json");
+        nestedPlan = _compile(basePath + "workflow-12.json");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        ParallelForEach.shutdown();
+    }
+
+    @Before
+    public void reset() {
+        ProbeProcessor.reset();
+    }
+
+    private static ExecutionPlan _compile(String path) throws Exception {
+        IntegrationDefinition idef = new IntegrationDefinition();
+        idef.setWorkflow(path);
+        return ExecutionPlan.compile(idef);
+    }
+
+    /**
+     * The later items finish first.
+     */
+    @Test
+    public void testOrder() throws Exception {
+        Transaction trx = _run(plan, _items(20, -1), "{\"01\": {\"parallel\": true, \"maxConcurrency\": 20}}");
+
+        assertFalse(trx.isFailed());
+        _assertDone(trx.getMessage().getJSONArray(), 20);
+        assertTrue(ProbeProcessor.maxActive.get() > 1);
+    }
+
+    @Test
+    public void testMaxConcurrency() throws Exception {
+        Transaction trx = _run(plan, _items(12, -1), "{\"01\": {\"parallel\": true, \"maxConcurrency\": 3}}");
+
+        assertFalse(trx.isFailed());
+        _assertDone(trx.getMessage().getJSONArray(), 12);
+        assertEquals(3, ProbeProcessor.maxActive.get());
+    }
+
+    /**
+     * The item failed stops the items after it.
+     */
+    @Test
+    public void testFailFast() throws Exception {
+        Transaction trx = _run(plan, _items(20, 3), "{\"01\": {\"parallel\": true, \"maxConcurrency\": 2}}");
+
+        assertTrue(trx.isFailed());
+        assertTrue(ProbeProcessor.started.get() <= 5); // The failed one, and the one running with it at most
+    }
+
+    @Test
+    public void testCollectErrors() throws Exception {
+        Transaction trx = _run(plan, _items(10, 3),
+                "{\"01\": {\"parallel\": true, \"maxConcurrency\": 4, \"failurePolicy\": \"collectErrors\"}}");
+
+        assertFalse(trx.isFailed());
+        assertEquals(10, ProbeProcessor.started.get());
+
+        JSONArray result = trx.getMessage().getJSONArray();
+        assertEquals(10, result.size());
+        for (int i = 0; i < 10; i++) {
+            JSONObject item = result.getJSONObject(i);
+
+            if (i == 3) {
+                assertTrue(item.getBooleanValue("failed"));
+                assertEquals(3, item.getIntValue("item"));
+                assertEquals("02", item.getString("step"));
+            }
+            else {
+                assertEquals(i, item.getIntValue("index"));
+                assertTrue(item.getBooleanValue("done"));
+            }
+        }
+    }
+
+    /**
+     * The inner loop runs in parallel for each item of the outer one (sequential, or parallel too).
+     */
+    @Test
+    public void testNested() throws Exception {
+        JSONArray groups = new JSONArray();
+        for (int g = 0; g < 3; g++) groups.add(_items(6, -1));
+
+        for (boolean outerParallel : new boolean[]{false, true}) {
+            ProbeProcessor.reset();
+            String config = "{\"02\": {\"parallel\": true, \"maxConcurrency\": 3}" +
+                    (outerParallel ? ", \"01\": {\"parallel\": true}}" : "}");
+            Transaction trx = _run(nestedPlan, groups, config);
+
+            assertFalse(trx.isFailed());
+            JSONArray result = trx.getMessage().getJSONArray();
+            assertEquals(3, result.size());
+            for (int g = 0; g < 3; g++) _assertDone(result.getJSONArray(g), 6);
+            assertEquals(18, ProbeProcessor.started.get());
+
+            // The inner loop runs on the pool thread of the outer item, one item after another
+            if (outerParallel) assertTrue(ProbeProcessor.maxActive.get() <= 3);
+            else assertEquals(3, ProbeProcessor.maxActive.get());
+        }
+    }
+
+    /**
+     * The earlier items take longer. The item at "failed" (if not negative) fails.
+     */
+    private static JSONArray _items(int count, int failed) {
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject item = new JSONObject();
+            item.put("index", i);
+            item.put("delay", 5 + (count-i) * 2);
+            if (i == failed) item.put("fail", true);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void _assertDone(JSONArray result, int count) {
+        assertEquals(count, result.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, result.getJSONObject(i).getIntValue("index"));
+            assertTrue(result.getJSONObject(i).getBooleanValue("done"));
+        }
+    }
+
+    private static Transaction _run(ExecutionPlan plan, JSONArray items, String forEachConfig) throws Exception {
+        Transaction trx = new Transaction("TestIT", "1", "01", ctx);
+        trx.setIntegrationConfig(new DataObject("{\"" + ParallelForEach.CONFIG_KEY + "\": " + forEachConfig + "}"));
+        trx.setMessage(new DataObject(items));
+
+        StepExecutor exe = new StepExecutor(plan, true);
+        while (!trx.isFinished()) exe.execute(trx);
+
+        return trx;
+    }
+
+}
@@ -0,0 +1,129 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.PhusionException;
+import cloud.phusion.express.component.storage.SQLDBSchemaParser;
+import cloud.phusion.express.component.storage.SQLDBStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.storage.Record;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The batch operations of SQLDBStorageImpl, on the H2 in-memory database.
+ */
+public class SQLDBBatchTest {
+    private static final String TABLE = "Step";
+    private static final int RECORDS = 5000;
+
+    private static SQLDBStorageImpl storage = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.JDBC_DriverClass, "org.h2.Driver");
+        props.setProperty(EngineFactory.JDBC_Url, "jdbc:h2:mem:test;DATABASE_TO_UPPER=FALSE");
+        SQLDBStorageImpl.init(props);
+
+        storage = new SQLDBStorageImpl("XBatch");
+        storage.prepareTable(TABLE, "{" +
+                "\"fields\": {\"id\": \"Long\", \"status\": \"String[20]\", \"msg\": \"String[100]\"}," +
+                "\"indexes\": [{\"field\": \"id\", \"primary\": true}]" +
+                "}");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        storage.removeTable(TABLE);
+    }
+
+    private static List<Record> _records(long from, int count, String status) {
+        List<Record> result = new ArrayList<>();
+        for (long id = from; id < from+count; id++) {
+            Record record = new Record();
+            record.setValue("id", id);
+            record.setValue("status", status);
+            record.setValue("msg", "message " + id);
+            result.add(record);
+        }
+        return result;
+    }
+
+    private static List<Object> _params(Object... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        assertEquals(3, storage.insertBatch(TABLE, _records(1, 3, "new")));
+        assertEquals(2, storage.insertRecords(TABLE, "id,status,msg", _params(4L, "new", "m4", 5L, "new", "m5"), EngineFactory.createContext()));
+
+        assertEquals(2, storage.updateBatchById(TABLE, _records(1, 2, "done"), "id"));
+        assertEquals("done", storage.queryRecordById(TABLE, "*", "id", 2L).getString("status"));
+        assertEquals("new", storage.queryRecordById(TABLE, "*", "id", 3L).getString("status"));
+
+        // 2 updated and 2 inserted
+        assertEquals(4, storage.upsertBatch(TABLE, _records(4, 4, "merged"), "id"));
+        assertEquals("merged", storage.queryRecordById(TABLE, "*", "id", 5L).getString("status"));
+        assertEquals("merged", storage.queryRecordById(TABLE, "*", "id", 7L).getString("status"));
+        assertEquals(7, storage.queryCount(TABLE, null, "id<?", _params(100L)));
+
+        // Rolled back as a whole
+        List<Record> invalid = _records(100, 5, "invalid");
+        invalid.get(3).setValue("status", "longer than the status field");
+        try {
+            storage.insertBatch(TABLE, invalid);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals(0, storage.queryCount(TABLE, null, "status=?", _params("invalid")));
+        }
+
+        storage.deleteRecords(TABLE, "id<?", _params(1000L));
+    }
+
+    @Test
+    public void testUpsertStatement() throws Exception {
+        List<String> fields = Arrays.asList("id", "status");
+
+        assertEquals("INSERT INTO T (`id`, `status`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `status`=VALUES(`status`)",
+                new SQLDBSchemaParser("mysql", false).generateUpsertStatement("T", fields, "id"));
+        assertEquals("MERGE INTO T (`id`, `status`) KEY (`id`) VALUES (?, ?)",
+                new SQLDBSchemaParser("h2", true).generateUpsertStatement("T", fields, "id"));
+        assertNull(new SQLDBSchemaParser("postgresql", false).generateUpsertStatement("T", fields, "id"));
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        List<Record> records = _records(10000, RECORDS, "new");
+        List<Record> moreRecords = _records(20000, RECORDS, "new");
+
+        TimeMarker m = new TimeMarker();
+        for (Record record : records) storage.insertRecord(TABLE, record);
+        double msSingle = m.mark();
+
+        storage.insertBatch(TABLE, moreRecords);
+        double msBatch = m.mark();
+
+        List<Record> changed = _records(10000, RECORDS, "done");
+        for (Record record : changed) storage.upsertRecordById(TABLE, "id", record);
+        double msUpsertSingle = m.mark();
+
+        changed = _records(20000, RECORDS, "done");
+        storage.upsertBatch(TABLE, changed, "id");
+        double msUpsertBatch = m.mark();
+
+        assertEquals(RECORDS*2, storage.queryCount(TABLE, null, "status=?", _params("done")));
+
+        System.out.println(String.format("Insert %d records on H2: %.1fms one by one, %.1fms in batches",
+                RECORDS, msSingle, msBatch));
+        System.out.println(String.format("Upsert %d records on H2: %.1fms one by one, %.1fms in batches",
+                RECORDS, msUpsertSingle, msUpsertBatch));
+    }
+
+}
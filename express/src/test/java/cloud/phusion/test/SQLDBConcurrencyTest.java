@@ -0,0 +1,130 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.SQLDBStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.storage.Record;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent access to SQLDBStorageImpl, on the pooled H2 in-memory database.
+ */
+public class SQLDBConcurrencyTest {
+    private static final String TABLE = "Counter";
+    private static final int OPERATIONS = 2000; // Per thread
+
+    private static SQLDBStorageImpl storage = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.JDBC_DriverClass, "org.h2.Driver");
+        props.setProperty(EngineFactory.JDBC_Url, "jdbc:h2:mem:test;DATABASE_TO_UPPER=FALSE");
+        SQLDBStorageImpl.init(props);
+
+        storage = new SQLDBStorageImpl("XConcurrency");
+        storage.prepareTable(TABLE, "{" +
+                "\"fields\": {\"id\": \"Long\", \"thread\": \"Integer\", \"content\": \"String[20]\"}," +
+                "\"indexes\": [{\"field\": \"id\", \"primary\": true}]" +
+                "}");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        storage.removeTable(TABLE);
+    }
+
+    /**
+     * Runs the task on the threads, and returns the total time in milliseconds.
+     */
+    private static double _run(int threads, Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+
+        TimeMarker m = new TimeMarker();
+        try {
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                futures.add(executor.submit(() -> {
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        return m.mark();
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    @Test
+    public void testTableRegistry() throws Exception {
+        _run(8, thread -> {
+            String table = "T" + thread;
+            for (int i = 0; i < 20; i++) {
+                storage.prepareTable(table, "{\"fields\": {\"id\": \"Long\"}}");
+                assertTrue(storage.doesTableExist(table));
+                storage.removeTable(table);
+                assertFalse(storage.doesTableExist(table));
+            }
+        });
+    }
+
+    /**
+     * The records are removed right after inserted, so that the time is not taken by scanning the growing table (the
+     * in-memory tables have no indexes).
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        long base = 0;
+
+        for (int threads : new int[]{1, 8, 32}) {
+            long from = base;
+            int operations = OPERATIONS * 8 / threads; // The same total work for 8 and 32 threads
+
+            double ms = _run(threads, thread -> {
+                for (int i = 0; i < operations; i++) {
+                    long id = from + (long) thread * operations + i;
+
+                    Record record = new Record();
+                    record.setValue("id", id);
+                    record.setValue("thread", thread);
+                    record.setValue("content", "v" + id);
+                    assertEquals(1, storage.insertRecord(TABLE, record));
+
+                    assertEquals("v" + id, storage.queryRecordById(TABLE, "content", "id", id).getString("content"));
+                    assertEquals(1, storage.deleteRecordById(TABLE, "id", id));
+                }
+            });
+
+            long total = (long) threads * operations;
+            assertEquals(0, storage.queryCount(TABLE, null, "id>=? AND id<?", _params(from, from+total)));
+            base += total;
+
+            System.out.println(String.format("Insert, query and delete %d records on H2 with %d threads: %.1fms, %.0f ops/s",
+                    total, threads, ms, total*3*1000/ms));
+        }
+
+        System.out.println(SQLDBStorageImpl.getStatistics().getJSONObject().toJSONString());
+    }
+
+    private static List<Object> _params(Object... values) {
+        List<Object> result = new ArrayList<>();
+        for (Object value : values) result.add(value);
+        return result;
+    }
+
+}
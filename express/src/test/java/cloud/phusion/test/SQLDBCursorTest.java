@@ -0,0 +1,111 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.SQLDBCursor;
+import cloud.phusion.express.component.storage.SQLDBStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.storage.Record;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The cursors of SQLDBStorageImpl, on the H2 in-memory database.
+ */
+public class SQLDBCursorTest {
+    private static final String TABLE = "Log";
+    private static final int RECORDS = 20000;
+
+    private static SQLDBStorageImpl storage = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.JDBC_DriverClass, "org.h2.Driver");
+        props.setProperty(EngineFactory.JDBC_Url, "jdbc:h2:mem:test;DATABASE_TO_UPPER=FALSE");
+        SQLDBStorageImpl.init(props);
+
+        storage = new SQLDBStorageImpl("XCursor");
+        storage.prepareTable(TABLE, "{" +
+                "\"fields\": {\"id\": \"Long\", \"msg\": \"String[100]\"}," +
+                "\"indexes\": [{\"field\": \"id\", \"primary\": true}]" +
+                "}");
+
+        List<Record> records = new ArrayList<>();
+        for (long id = 1; id <= RECORDS; id++) {
+            Record record = new Record();
+            record.setValue("id", id);
+            record.setValue("msg", "message " + id);
+            records.add(record);
+        }
+        storage.insertBatch(TABLE, records);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        storage.removeTable(TABLE);
+    }
+
+    private static List<Object> _params(Object... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        try (SQLDBCursor cursor = storage.openCursor(TABLE, "id, msg", "id<=?", _params(250L), "id")) {
+            assertEquals(100, cursor.next(100).size());
+            assertEquals(101, (long) cursor.next().getLong("id"));
+
+            List<Record> page = cursor.next(200);
+            assertEquals(149, page.size());
+            assertEquals("message 250", page.get(148).getString("msg"));
+
+            assertFalse(cursor.hasNext());
+            assertEquals(0, cursor.next(100).size());
+            assertEquals(250, cursor.getCount());
+        }
+
+        // Closed before the end
+        SQLDBCursor cursor = storage.openCursor(TABLE, null, null, null, "id");
+        assertEquals(1, (long) cursor.next().getLong("id"));
+        cursor.close();
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void testQueryStream() throws Exception {
+        long[] sum = {0};
+        long count = storage.queryStream(TABLE, "id", "id>?", _params((long) RECORDS-10), null, record -> {
+            sum[0] += record.getLong("id");
+            return true;
+        });
+        assertEquals(10, count);
+        assertEquals(10L*RECORDS - 45, sum[0]);
+
+        // Stopped by the consumer
+        count = storage.queryStream(TABLE, "id", null, null, "id", record -> record.getLong("id") < 5);
+        assertEquals(5, count);
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        TimeMarker m = new TimeMarker();
+        Record[] records = storage.queryRecords(TABLE, "*", null, null, null, 0, RECORDS);
+        double msQuery = m.mark();
+
+        long count = storage.queryStream(TABLE, "*", null, null, null, record -> true);
+        double msStream = m.mark();
+
+        assertEquals(RECORDS, records.length);
+        assertEquals(RECORDS, count);
+
+        System.out.println(String.format("Read %d records on H2: %.1fms in one array, %.1fms streamed",
+                RECORDS, msQuery, msStream));
+    }
+
+}
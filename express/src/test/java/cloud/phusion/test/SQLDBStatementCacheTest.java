@@ -0,0 +1,96 @@
+package cloud.phusion.test;
+
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.storage.SQLDBStorageImpl;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.storage.Record;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The SQL templates of SQLDBStorageImpl, on the H2 in-memory database.
+ */
+public class SQLDBStatementCacheTest {
+    private static final String TABLE = "Heartbeat";
+    private static final int RECORDS = 5000;
+
+    private static SQLDBStorageImpl storage = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.JDBC_DriverClass, "org.h2.Driver");
+        props.setProperty(EngineFactory.JDBC_Url, "jdbc:h2:mem:test;DATABASE_TO_UPPER=FALSE");
+        SQLDBStorageImpl.init(props);
+
+        storage = new SQLDBStorageImpl("XCache");
+        storage.prepareTable(TABLE, "{" +
+                "\"fields\": {\"id\": \"Long\", \"engineId\": \"String[10]\", \"updateTime\": \"String[20]\"}," +
+                "\"indexes\": [{\"field\": \"id\", \"primary\": true}]" +
+                "}");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        storage.removeTable(TABLE);
+    }
+
+    private static Record _record(long id) {
+        Record record = new Record();
+        record.setValue("id", id);
+        record.setValue("engineId", "E" + (id % 10));
+        record.setValue("updateTime", "2022-07-01 00:00:00");
+        return record;
+    }
+
+    private static JSONObject _getStatistics() {
+        return SQLDBStorageImpl.getStatistics().getJSONObject();
+    }
+
+    @Test
+    public void testTemplates() throws Exception {
+        long hits = _getStatistics().getLongValue("templateHits");
+
+        for (long id = 1; id <= 3; id++) storage.insertRecord(TABLE, _record(id));
+
+        Record update = new Record();
+        update.setValue("updateTime", "2022-07-02 00:00:00");
+        assertEquals(1, storage.updateRecords(TABLE, update, "engineId=?", _params("E2")));
+
+        for (long id = 1; id <= 3; id++) {
+            Record record = storage.queryRecordById(TABLE, "*", "id", id);
+            assertEquals(id==2 ? "2022-07-02 00:00:00" : "2022-07-01 00:00:00", record.getString("updateTime"));
+        }
+
+        for (long id = 1; id <= 3; id++) assertEquals(1, storage.deleteRecordById(TABLE, "id", id));
+
+        // The same shapes are composed once: 2 inserts, 2 queries and 2 deletions are served by the templates
+        assertTrue(_getStatistics().getLongValue("templateHits") - hits >= 6);
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        TimeMarker m = new TimeMarker();
+        for (long id = 1; id <= RECORDS; id++) storage.insertRecord(TABLE, _record(1000000 + id));
+        double ms = m.mark();
+
+        System.out.println(String.format("Insert %d records on H2: %.1fms, %.0f records/s", RECORDS, ms, RECORDS*1000/ms));
+        System.out.println(_getStatistics().toJSONString());
+
+        assertTrue(_getStatistics().getDoubleValue("templateHitRatio") > 0.9);
+        assertEquals(RECORDS, storage.queryCount(TABLE, null, "id>?", _params(1000000L)));
+    }
+
+    private static List<Object> _params(Object... values) {
+        List<Object> result = new ArrayList<>();
+        for (Object value : values) result.add(value);
+        return result;
+    }
+
+}
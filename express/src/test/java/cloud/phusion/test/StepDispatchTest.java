@@ -0,0 +1,93 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.integration.ExecutionPlan;
+import cloud.phusion.express.integration.StepExecutor;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.integration.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the step dispatching by the compiled execution plan with the former lookup by class name.
+ */
+public class StepDispatchTest {
+    private static Engine engine = null;
+    private static Context ctx = null;
+    private static String basePath = null;
+
+    private static final int ROUNDS = 20000;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        engine = EngineFactory.createEngine();
+        ctx = EngineFactory.createContext(engine);
+        basePath = StepDispatchTest.class.getClassLoader().getResource("").getPath() + "workflow/";
+    }
+
+    @Test
+    public void testDispatchPlan() throws Exception {
+        IntegrationDefinition idef = new IntegrationDefinition();
+        idef.setWorkflow(basePath + "workflow-07.json");
+
+        ExecutionPlan plan = ExecutionPlan.compile(idef);
+        assertEquals(20, plan.size());
+
+        Transaction trx = _runByPlan(plan);
+        assertTrue(trx.isFinished());
+        assertEquals("step-20", trx.getMessage().getJSONObject().getString("text"));
+
+        // Warm up
+
+        for (int i = 0; i < ROUNDS; i++) {
+            _runByLookup(idef);
+            _runByPlan(plan);
+        }
+
+        TimeMarker m = new TimeMarker();
+
+        for (int i = 0; i < ROUNDS; i++) _runByLookup(idef);
+        double msLookup = m.mark();
+
+        for (int i = 0; i < ROUNDS; i++) _runByPlan(plan);
+        double msPlan = m.mark();
+
+        System.out.println(String.format("%d runs of 20 steps, lookup: %.1fms, plan: %.1fms", ROUNDS, msLookup, msPlan));
+    }
+
+    private Transaction _runByPlan(ExecutionPlan plan) throws Exception {
+        Transaction trx = new Transaction("TestIT", "1", "01", ctx);
+
+        StepExecutor exe = new StepExecutor(plan, true);
+        while (!trx.isFinished()) exe.execute(trx);
+
+        return trx;
+    }
+
+    private Transaction _runByLookup(IntegrationDefinition idef) throws Exception {
+        Transaction trx = new Transaction("TestIT", "1", "01", ctx);
+
+        while (!trx.isFinished()) {
+            String currentStep = trx.getCurrentStep();
+            Step step = idef.getStepById(currentStep);
+
+            switch (step.getClass().getSimpleName()) {
+                case "StepDirect": trx.setMessage(((StepDirect) step).getMessage()); break;
+                default: break;
+            }
+
+            if (currentStep.equals(trx.getCurrentStep())) {
+                Step[] steps = idef.getNextSteps(currentStep);
+
+                if (steps == null || steps.length == 0) trx.moveToEnd();
+                else trx.moveToStep(steps[0].getId());
+            }
+        }
+
+        return trx;
+    }
+
+}
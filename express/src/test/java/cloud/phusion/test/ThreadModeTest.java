@@ -0,0 +1,195 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.component.scheduling.TaskManager;
+import cloud.phusion.express.integration.ExecutionPool;
+import cloud.phusion.express.integration.IntegrationImpl;
+import cloud.phusion.express.integration.IntegrationStarter;
+import cloud.phusion.express.util.ThreadMode;
+import cloud.phusion.express.util.TimeMarker;
+import cloud.phusion.integration.IntegrationDefinition;
+import cloud.phusion.test.util.ProbeProcessor;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.*;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * How many transactions can be in flight at the same time against a slow endpoint:
+ * platform threads compared with virtual threads, with the same concurrency limit.
+ *
+ * In both modes, an integration is also triggered through TaskManager, the way the scheduler does it.
+ */
+public class ThreadModeTest {
+    private static final int REQUESTS = 1000;
+    private static final int MAX_CONCURRENCY = 200; // Default maxThreads of Tomcat
+    private static final int DELAY = 200; // Response time of the endpoint in milliseconds
+
+    private static HttpServer mockServer = null;
+    private static ScheduledExecutorService responder = null;
+    private static String url = null;
+    private static String workflowPath = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // The mock endpoint responds after the delay, without holding a thread while waiting
+
+        responder = Executors.newScheduledThreadPool(4);
+        mockServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), REQUESTS);
+        mockServer.createContext("/slow", exchange -> responder.schedule(() -> {
+            byte[] body = "{\"result\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+            return null;
+        }, DELAY, TimeUnit.MILLISECONDS));
+        mockServer.start();
+
+        url = "http://127.0.0.1:" + mockServer.getAddress().getPort() + "/slow";
+        workflowPath = ThreadModeTest.class.getClassLoader().getResource("").getPath() + "workflow/workflow-13.json";
+    }
+
+    @Before
+    public void reset() {
+        ProbeProcessor.reset();
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        Properties props = new Properties();
+        assertFalse(ThreadMode.init(props));
+
+        _run("platform", props);
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        if (! ThreadMode.isVirtualThreadSupported()) {
+            System.out.println("Virtual threads are not supported by this JVM, skipped");
+            return;
+        }
+
+        Properties props = new Properties();
+        props.setProperty(EngineFactory.Engine_VirtualThreads, "true");
+        assertTrue(ThreadMode.init(props));
+
+        try {
+            _run("virtual", props);
+        } finally {
+            ThreadMode.init(new Properties());
+            TaskManager.init(new Properties());
+        }
+    }
+
+    private void _run(String mode, Properties props) throws Exception {
+        Engine engine = EngineFactory.createEngine(props); // Initializes the thread mode again, with the same properties
+        Context ctx = EngineFactory.createContext(engine);
+        assertEquals("virtual".equals(mode), ThreadMode.isVirtual());
+
+        _sendRequests(mode, engine, ctx);
+        _runScheduledIntegration(mode, engine, ctx);
+    }
+
+    private void _sendRequests(String mode, Engine engine, Context ctx) throws Exception {
+        ExecutionPool pool = new ExecutionPool("bench", MAX_CONCURRENCY, REQUESTS, ExecutionPool.REJECT_ABORT);
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxInFlight = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+
+        TimeMarker m = new TimeMarker();
+
+        for (int i = 0; i < REQUESTS; i++) {
+            pool.dispatch(() -> {
+                int n = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(n, Math::max);
+
+                try {
+                    engine.createHttpClient().get(url).send();
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                } finally {
+                    inFlight.decrementAndGet();
+                    done.countDown();
+                }
+            }, ctx);
+        }
+
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        double ms = m.mark();
+        pool.shutdown();
+
+        System.out.println(String.format("%s threads: %d requests in %.1fms, max in flight %d, failed %d",
+                mode, REQUESTS, ms, maxInFlight.get(), failed.get()));
+
+        assertEquals(0, failed.get());
+        assertTrue(maxInFlight.get() <= MAX_CONCURRENCY);
+    }
+
+    /**
+     * The task starts the integration, which runs in its execution pool. With virtual threads, TaskManager runs
+     * the task in a new virtual thread; otherwise it runs in the calling thread, which stands for a Quartz thread.
+     */
+    private void _runScheduledIntegration(String mode, Engine engine, Context ctx) throws Exception {
+        engine.loadJavaModule("Simple", new String[]{}, ctx); // The processor is in the test classes
+
+        IntegrationDefinition idef = new IntegrationDefinition();
+        idef.setWorkflow(workflowPath);
+
+        ExecutionPool pool = new ExecutionPool("IThreadMode", MAX_CONCURRENCY, REQUESTS, ExecutionPool.REJECT_ABORT);
+        IntegrationImpl it = new IntegrationImpl(idef);
+        it.setId("ThreadMode");
+        it.setExecutionPool(pool);
+        it.init(null, ctx);
+        it.start(ctx); // Not scheduled, so it runs once right now
+
+        String taskId = "TThreadMode";
+        TaskManager.init(new Properties());
+        TaskManager.addTask(taskId, new IntegrationStarter(it), false, ctx);
+        assertEquals("virtual".equals(mode), TaskManager.isDispatching());
+
+        TimeMarker m = new TimeMarker();
+
+        try {
+            for (int i = 0; i < REQUESTS; i++) {
+                if (TaskManager.isDispatching()) TaskManager.dispatchTask(taskId);
+                else TaskManager.runTask(taskId);
+            }
+
+            int runs = REQUESTS + 1;
+            long deadline = System.currentTimeMillis() + 60000;
+            while (ProbeProcessor.started.get()<runs || ProbeProcessor.active.get()>0) {
+                assertTrue("Integration runs not finished in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            double ms = m.mark();
+
+            System.out.println(String.format("%s threads: %d scheduled integration runs in %.1fms, max active %d",
+                    mode, runs, ms, ProbeProcessor.maxActive.get()));
+
+            assertEquals(runs, ProbeProcessor.started.get());
+            assertTrue(ProbeProcessor.maxActive.get() <= MAX_CONCURRENCY);
+            assertEquals(0, pool.getStatistics().getJSONObject().getLongValue("rejected"));
+        } finally {
+            TaskManager.removeTask(taskId, ctx);
+            it.stop(ctx);
+            pool.shutdown();
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (mockServer != null) mockServer.stop(0);
+        if (responder != null) responder.shutdownNow();
+    }
+
+}
@@ -0,0 +1,141 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.Engine;
+import cloud.phusion.EngineFactory;
+import cloud.phusion.express.integration.IntegrationImpl;
+import cloud.phusion.integration.Transaction;
+import cloud.phusion.storage.DBStorage;
+import org.junit.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * The background writer of the transaction logs, on the H2 in-memory database.
+ */
+public class TransactionLogWriterTest {
+    private static final int TRANSACTIONS = 300;
+
+    private static Engine engine = null;
+    private static Context ctx = null;
+    private static Properties props = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File spillPath = Files.createTempDirectory("phusion-trxlog").toFile();
+
+        props = new Properties();
+        props.setProperty(EngineFactory.DB_Type, EngineFactory.DBType_JDBC);
+        props.setProperty(EngineFactory.JDBC_DriverClass, "org.h2.Driver");
+        props.setProperty(EngineFactory.JDBC_Url, "jdbc:h2:mem:test;DATABASE_TO_UPPER=FALSE");
+        props.setProperty(EngineFactory.TRXLog_BatchSize, "10");
+        props.setProperty(EngineFactory.TRXLog_FlushInterval, "100");
+        props.setProperty(EngineFactory.TRXLog_QueueSize, "1");
+        props.setProperty(EngineFactory.TRXLog_Overflow, "spill");
+        props.setProperty(EngineFactory.TRXLog_SpillPath, spillPath.getPath());
+
+        engine = EngineFactory.createEngine(props);
+        ctx = EngineFactory.createContext(engine);
+    }
+
+    /**
+     * The ring holds one entry only, so most of the entries are spilled. The transactions must be finished anyway.
+     */
+    @Test
+    public void testSpillOverflow() throws Exception {
+        String target = "XLogSpill";
+        IntegrationImpl.prepareDBTables(target, ctx);
+
+        _start(target);
+        _logTransactions(0);
+        DataObject stats = IntegrationImpl.getTransactionLogStatistics();
+        IntegrationImpl.stopSystemSettings(ctx);
+
+        assertTrue(stats.getJSONObject().getLongValue("spilled") > 0);
+        _assertFinished(target, 2);
+    }
+
+    /**
+     * The tables are not ready at first, so the batches fail and are spilled. They are written when the tables are
+     * created.
+     */
+    @Test
+    public void testSpillFailure() throws Exception {
+        String target = "XLogFailure";
+
+        _start(target);
+        _logTransactions(0);
+        Thread.sleep(500);
+        assertTrue(IntegrationImpl.getTransactionLogStatistics().getJSONObject().getBooleanValue("spilling"));
+
+        IntegrationImpl.prepareDBTables(target, ctx);
+        IntegrationImpl.stopSystemSettings(ctx);
+
+        _assertFinished(target, 2);
+    }
+
+    /**
+     * The same as above, with the steps in the middle of the transactions, which do not touch the transaction row.
+     * None of their steps may be lost when the failed batches are written again.
+     */
+    @Test
+    public void testSpillFailureMiddleSteps() throws Exception {
+        String target = "XLogMiddle";
+
+        _start(target);
+        _logTransactions(2);
+        Thread.sleep(500);
+        assertTrue(IntegrationImpl.getTransactionLogStatistics().getJSONObject().getBooleanValue("spilling"));
+
+        IntegrationImpl.prepareDBTables(target, ctx);
+        IntegrationImpl.stopSystemSettings(ctx);
+
+        _assertFinished(target, 4);
+    }
+
+    private void _start(String target) throws Exception {
+        props.setProperty(EngineFactory.TRXLog_Target, target);
+        IntegrationImpl.initSystemSettings(props, ctx);
+    }
+
+    private void _logTransactions(int middleSteps) throws Exception {
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction trx = new Transaction("TestIT", ""+engine.generateUniqueId(ctx), "01", ctx);
+            IntegrationImpl.logTransaction(trx, 0);
+
+            for (int j = 0; j < middleSteps; j++) {
+                trx.moveToStep("0" + (j+2));
+                IntegrationImpl.logTransaction(trx, System.nanoTime());
+            }
+
+            trx.moveToEnd();
+            IntegrationImpl.logTransaction(trx, System.nanoTime());
+        }
+    }
+
+    private void _assertFinished(String target, int steps) throws Exception {
+        DBStorage storage = engine.getDBStorageForApplication(target);
+
+        assertEquals(TRANSACTIONS, storage.queryCount(EngineFactory.TRXLog_Table_Transaction, null, "finished=?", _params(true)));
+        assertEquals(0, storage.queryCount(EngineFactory.TRXLog_Table_Transaction, null, "finished=?", _params(false)));
+        assertEquals(TRANSACTIONS*steps, storage.queryCount(EngineFactory.TRXLog_Table_TransactionStep, null, null, null));
+        assertEquals(TRANSACTIONS*steps, storage.queryCount(EngineFactory.TRXLog_Table_TransactionStepInfo, null, null, null));
+
+        storage.removeTable(EngineFactory.TRXLog_Table_Transaction);
+        storage.removeTable(EngineFactory.TRXLog_Table_TransactionStep);
+        storage.removeTable(EngineFactory.TRXLog_Table_TransactionStepInfo);
+    }
+
+    private static List<Object> _params(Object... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+}
@@ -0,0 +1,39 @@
+package cloud.phusion.test.util;
+
+import cloud.phusion.integration.Processor;
+import cloud.phusion.integration.Transaction;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Marks the item as done after its "delay" (in milliseconds), and counts the items running at the same time.
+ * It throws for the item with "fail": true.
+ */
+public class ProbeProcessor implements Processor {
+    public static final AtomicInteger started = new AtomicInteger(0);
+    public static final AtomicInteger active = new AtomicInteger(0);
+    public static final AtomicInteger maxActive = new AtomicInteger(0);
+
+    public static void reset() {
+        started.set(0);
+        active.set(0);
+        maxActive.set(0);
+    }
+
+    @Override
+    public void process(Transaction trx) throws Exception {
+        started.incrementAndGet();
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+
+        try {
+            JSONObject item = trx.getMessage().getJSONObject();
+            Thread.sleep(item.getIntValue("delay"));
+
+            if (item.getBooleanValue("fail")) throw new IllegalStateException("Failed item " + item.getIntValue("index"));
+            item.put("done", true);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+}
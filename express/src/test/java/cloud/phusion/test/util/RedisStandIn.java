@@ -0,0 +1,549 @@
+package cloud.phusion.test.util;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in of Redis, for tests and benchmarks without a Redis server.
+ *
+ * It speaks RESP with the commands used by KVStorageImpl (strings only, and pub/sub without patterns), and the expire
+ * time is checked when read. The lock scripts of KVStorageImpl are emulated in Java, recognized by the commands they
+ * call; other scripts are not supported. The streams support consumer groups, without trimming (MAXLEN is ignored).
+ * The round-trip time of the network is simulated: the replies are held for the latency each time the client
+ * waits for them, so a pipeline pays it once.
+ */
+public class RedisStandIn implements Closeable {
+    private final ServerSocket server;
+    private final long latency; // In microseconds
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+    private final Map<String, Long> expireTimes = new ConcurrentHashMap<>();
+    private final Map<String, Set<OutputStream>> subscribers = new ConcurrentHashMap<>(); // By channel
+    private final Map<String, String> scripts = new ConcurrentHashMap<>(); // By SHA1
+    private final Object scriptLock = new Object(); // The scripts are atomic
+    private final Map<String, Stream> streams = new HashMap<>(); // Guarded by itself
+    private final AtomicLong roundTrips = new AtomicLong(0);
+    private volatile boolean running = true;
+
+    public RedisStandIn(long latencyInMicroseconds) throws IOException {
+        this.latency = latencyInMicroseconds;
+        this.server = new ServerSocket(0);
+
+        Thread acceptor = new Thread(this::_accept, "redis-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * The times the replies are sent back, i.e. the round trips paid by the clients.
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    private void _accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> _serve(socket), "redis-stand-in-connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void _serve(Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            s.setTcpNoDelay(true);
+
+            try {
+                while (running) {
+                    List<String> command = _readCommand(in);
+                    if (command == null) break;
+
+                    synchronized (out) {
+                        _reply(command, out);
+
+                        // The client is waiting for the replies
+                        if (in.available() == 0) {
+                            roundTrips.incrementAndGet();
+                            _sleep();
+                            out.flush();
+                        }
+                    }
+                }
+            } finally {
+                for (Set<OutputStream> outs : subscribers.values()) outs.remove(out);
+            }
+        } catch (IOException ex) {
+            // Disconnected
+        }
+    }
+
+    private void _sleep() {
+        if (latency > 0) LockSupport.parkNanos(latency*1000);
+    }
+
+    private static List<String> _readCommand(InputStream in) throws IOException {
+        String line = _readLine(in);
+        if (line == null) return null;
+        if (line.charAt(0) != '*') throw new IOException("Unsupported request: " + line);
+
+        int count = Integer.parseInt(line.substring(1));
+        List<String> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            String header = _readLine(in);
+            if (header == null || header.charAt(0) != '$') throw new IOException("Unsupported request: " + header);
+
+            byte[] bytes = new byte[Integer.parseInt(header.substring(1))];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0) return null;
+                offset += n;
+            }
+            in.read(); in.read(); // CRLF
+
+            result.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        return result;
+    }
+
+    private static String _readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                in.read(); // LF
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+
+        return null;
+    }
+
+    private void _reply(List<String> command, OutputStream out) throws IOException {
+        String name = command.get(0).toUpperCase();
+
+        switch (name) {
+            case "PING":
+                _writeSimple(out, "PONG");
+                break;
+            case "AUTH":
+            case "SELECT":
+            case "CLIENT":
+                _writeSimple(out, "OK");
+                break;
+            case "GET":
+                _writeBulk(out, _get(command.get(1)));
+                break;
+            case "SET":
+                _set(command.get(1), command.get(2), 0);
+                _writeSimple(out, "OK");
+                break;
+            case "PSETEX":
+                _set(command.get(1), command.get(3), Long.parseLong(command.get(2)));
+                _writeSimple(out, "OK");
+                break;
+            case "MSET":
+                for (int i = 1; i+1 < command.size(); i += 2) _set(command.get(i), command.get(i+1), 0);
+                _writeSimple(out, "OK");
+                break;
+            case "MGET":
+                _write(out, "*" + (command.size()-1) + "\r\n");
+                for (int i = 1; i < command.size(); i++) _writeBulk(out, _get(command.get(i)));
+                break;
+            case "EXISTS":
+            case "DEL": {
+                long count = 0;
+                for (int i = 1; i < command.size(); i++) {
+                    if (_get(command.get(i)) != null) {
+                        count++;
+                        if (name.equals("DEL")) _remove(command.get(i));
+                    }
+                }
+                _write(out, ":" + count + "\r\n");
+                break;
+            }
+            case "PTTL": {
+                Long expireTime = expireTimes.get(command.get(1));
+                long ttl = _get(command.get(1)) == null ? -2 : expireTime == null ? -1 : expireTime - System.currentTimeMillis();
+                _write(out, ":" + Math.max(ttl, -2) + "\r\n");
+                break;
+            }
+            case "SUBSCRIBE":
+                for (int i = 1; i < command.size(); i++) {
+                    subscribers.computeIfAbsent(command.get(i), k -> ConcurrentHashMap.newKeySet()).add(out);
+
+                    int count = 0;
+                    for (Set<OutputStream> outs : subscribers.values()) if (outs.contains(out)) count++;
+                    _writePush(out, "subscribe", command.get(i), count);
+                }
+                break;
+            case "UNSUBSCRIBE": {
+                List<String> channels = new ArrayList<>();
+                for (Map.Entry<String, Set<OutputStream>> entry : subscribers.entrySet()) {
+                    if (entry.getValue().contains(out)) channels.add(entry.getKey());
+                }
+                if (command.size() > 1) channels.retainAll(command.subList(1, command.size()));
+
+                int remaining = 0;
+                for (Set<OutputStream> outs : subscribers.values()) if (outs.contains(out)) remaining++;
+                for (String channel : channels) {
+                    subscribers.get(channel).remove(out);
+                    _writePush(out, "unsubscribe", channel, --remaining);
+                }
+                break;
+            }
+            case "PUBLISH":
+                _write(out, ":" + _publish(command.get(1), command.get(2), out) + "\r\n");
+                break;
+            case "INCR": {
+                long value = _get(command.get(1)) == null ? 1 : Long.parseLong(_get(command.get(1))) + 1;
+                values.put(command.get(1), "" + value);
+                _write(out, ":" + value + "\r\n");
+                break;
+            }
+            case "EVAL":
+                scripts.put(_sha1(command.get(1)), command.get(1));
+                _eval(command.get(1), command, out);
+                break;
+            case "EVALSHA": {
+                String script = scripts.get(command.get(1));
+                if (script == null) _write(out, "-NOSCRIPT No matching script. Please use EVAL.\r\n");
+                else _eval(script, command, out);
+                break;
+            }
+            case "XADD":
+                _writeBulk(out, _xadd(command));
+                break;
+            case "XGROUP":
+                _xgroup(command, out);
+                break;
+            case "XREADGROUP":
+                _xreadgroup(command, out);
+                break;
+            case "XACK":
+                _write(out, ":" + _xack(command) + "\r\n");
+                break;
+            default:
+                _write(out, "-ERR unknown command '" + command.get(0) + "'\r\n");
+        }
+    }
+
+    private long _publish(String channel, String message, OutputStream publisher) throws IOException {
+        Set<OutputStream> outs = subscribers.get(channel);
+        long count = 0;
+
+        if (outs != null) {
+            for (OutputStream subscriber : outs) {
+                if (subscriber == publisher) continue; // A subscribed connection does not publish
+                synchronized (subscriber) {
+                    _write(subscriber, "*3\r\n");
+                    _writeBulk(subscriber, "message");
+                    _writeBulk(subscriber, channel);
+                    _writeBulk(subscriber, message);
+                    subscriber.flush();
+                }
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * EVAL / EVALSHA script numkeys key... arg...
+     */
+    private void _eval(String script, List<String> command, OutputStream out) throws IOException {
+        int numKeys = Integer.parseInt(command.get(2));
+        List<String> keys = command.subList(3, 3 + numKeys);
+        List<String> args = command.subList(3 + numKeys, command.size());
+
+        synchronized (scriptLock) {
+            if (script.contains("'NX'")) {
+                // Acquire the lock: {fencing token, 0}, or {0, PTTL}
+                if (_get(keys.get(0)) != null) {
+                    Long expireTime = expireTimes.get(keys.get(0));
+                    _write(out, "*2\r\n:0\r\n:" + (expireTime == null ? -1 : expireTime - System.currentTimeMillis()) + "\r\n");
+                }
+                else {
+                    _set(keys.get(0), args.get(0), Long.parseLong(args.get(1)));
+                    long fence = _get(keys.get(1)) == null ? 1 : Long.parseLong(_get(keys.get(1))) + 1;
+                    values.put(keys.get(1), "" + fence);
+                    _write(out, "*2\r\n:" + fence + "\r\n:0\r\n");
+                }
+            }
+            else if (script.contains("'pexpire'")) {
+                // Renew the lock
+                boolean owned = args.get(0).equals(_get(keys.get(0)));
+                if (owned) expireTimes.put(keys.get(0), System.currentTimeMillis() + Long.parseLong(args.get(1)));
+                _write(out, owned ? ":1\r\n" : ":0\r\n");
+            }
+            else if (script.contains("'del', KEYS[1]) == 1")) {
+                // Release the lock whoever holds it
+                boolean existed = _get(keys.get(0)) != null;
+                if (existed) {
+                    _remove(keys.get(0));
+                    _publish(args.get(0), keys.get(0), out);
+                }
+                _write(out, existed ? ":1\r\n" : ":0\r\n");
+            }
+            else if (script.contains("'publish'")) {
+                // Release the lock
+                boolean owned = args.get(0).equals(_get(keys.get(0)));
+                if (owned) {
+                    _remove(keys.get(0));
+                    _publish(args.get(1), keys.get(0), out);
+                }
+                _write(out, owned ? ":1\r\n" : ":0\r\n");
+            }
+            else _write(out, "-ERR unsupported script\r\n");
+        }
+    }
+
+    private static final class Stream {
+        final List<String[]> entries = new ArrayList<>(); // Field and value, the ID is "0-{index+1}"
+        final Map<String, Group> groups = new HashMap<>();
+    }
+
+    private static final class Group {
+        int next = 0; // The index of the next entry to deliver
+        final Map<String, TreeSet<Integer>> pending = new HashMap<>(); // Indexes by consumer
+    }
+
+    private static int _index(String id) {
+        return Integer.parseInt(id.substring(id.indexOf('-') + 1)) - 1;
+    }
+
+    private String _xadd(List<String> command) {
+        int start = command.indexOf("*") + 1;
+
+        synchronized (streams) {
+            Stream stream = streams.computeIfAbsent(command.get(1), k -> new Stream());
+            stream.entries.add(new String[]{command.get(start), command.get(start + 1)});
+            streams.notifyAll();
+            return "0-" + stream.entries.size();
+        }
+    }
+
+    private void _xgroup(List<String> command, OutputStream out) throws IOException {
+        if (! command.get(1).equalsIgnoreCase("CREATE")) {
+            _write(out, "-ERR unsupported XGROUP subcommand\r\n");
+            return;
+        }
+
+        synchronized (streams) {
+            Stream stream = streams.get(command.get(2));
+            if (stream == null) {
+                if (command.size() < 6) {
+                    _write(out, "-ERR The XGROUP subcommand requires the key to exist\r\n");
+                    return;
+                }
+                stream = new Stream();
+                streams.put(command.get(2), stream);
+            }
+
+            if (stream.groups.containsKey(command.get(3))) {
+                _write(out, "-BUSYGROUP Consumer Group name already exists\r\n");
+                return;
+            }
+
+            Group group = new Group();
+            group.next = command.get(4).equals("$") ? stream.entries.size() : _index(command.get(4)) + 1;
+            stream.groups.put(command.get(3), group);
+        }
+        _writeSimple(out, "OK");
+    }
+
+    private void _xreadgroup(List<String> command, OutputStream out) throws IOException {
+        String groupName = command.get(2);
+        String consumer = command.get(3);
+        int count = Integer.MAX_VALUE;
+        long block = -1;
+
+        int i = 4;
+        for (; ! command.get(i).equalsIgnoreCase("STREAMS"); i += 2) {
+            if (command.get(i).equalsIgnoreCase("COUNT")) count = Integer.parseInt(command.get(i + 1));
+            else if (command.get(i).equalsIgnoreCase("BLOCK")) block = Long.parseLong(command.get(i + 1));
+        }
+        int keys = (command.size() - i - 1) / 2;
+
+        List<String> results = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + block;
+
+        synchronized (streams) {
+            while (true) {
+                boolean blocking = block >= 0;
+
+                for (int k = 0; k < keys; k++) {
+                    String key = command.get(i + 1 + k);
+                    String id = command.get(i + 1 + keys + k);
+                    Stream stream = streams.get(key);
+                    Group group = stream==null ? null : stream.groups.get(groupName);
+                    if (group == null) {
+                        _write(out, "-NOGROUP No such key '" + key + "' or consumer group '" + groupName + "'\r\n");
+                        return;
+                    }
+
+                    TreeSet<Integer> pending = group.pending.computeIfAbsent(consumer, c -> new TreeSet<>());
+                    List<Integer> indexes = new ArrayList<>();
+
+                    if (id.equals(">")) {
+                        while (group.next < stream.entries.size() && indexes.size() < count) {
+                            pending.add(group.next);
+                            indexes.add(group.next++);
+                        }
+                        if (indexes.isEmpty()) continue;
+                    }
+                    else {
+                        blocking = false; // Reading the pending entries never blocks
+                        for (int index : pending.tailSet(_index(id) + 1)) {
+                            if (indexes.size() >= count) break;
+                            indexes.add(index);
+                        }
+                    }
+
+                    StringBuilder result = new StringBuilder("*2\r\n");
+                    result.append(_bulk(key)).append("*").append(indexes.size()).append("\r\n");
+                    for (int index : indexes) {
+                        String[] entry = stream.entries.get(index);
+                        result.append("*2\r\n").append(_bulk("0-" + (index + 1)))
+                                .append("*2\r\n").append(_bulk(entry[0])).append(_bulk(entry[1]));
+                    }
+                    results.add(result.toString());
+                }
+
+                long wait = deadline - System.currentTimeMillis();
+                if (! results.isEmpty() || ! blocking || wait <= 0 || ! running) break;
+
+                try {
+                    streams.wait(wait);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+
+        if (results.isEmpty()) {
+            _write(out, "*-1\r\n");
+            return;
+        }
+
+        _write(out, "*" + results.size() + "\r\n");
+        for (String result : results) _write(out, result);
+    }
+
+    private long _xack(List<String> command) {
+        long count = 0;
+
+        synchronized (streams) {
+            Stream stream = streams.get(command.get(1));
+            Group group = stream==null ? null : stream.groups.get(command.get(2));
+            if (group == null) return 0;
+
+            for (int i = 3; i < command.size(); i++) {
+                int index = _index(command.get(i));
+                for (TreeSet<Integer> pending : group.pending.values()) {
+                    if (pending.remove(index)) count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static String _bulk(String value) {
+        return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    private static String _sha1(String script) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8))) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String _get(String key) {
+        Long expireTime = expireTimes.get(key);
+
+        if (expireTime != null && expireTime <= System.currentTimeMillis()) {
+            _remove(key);
+            return null;
+        }
+
+        return values.get(key);
+    }
+
+    private void _set(String key, String value, long millisecondsToLive) {
+        values.put(key, value);
+        if (millisecondsToLive > 0) expireTimes.put(key, System.currentTimeMillis() + millisecondsToLive);
+        else expireTimes.remove(key);
+    }
+
+    private void _remove(String key) {
+        values.remove(key);
+        expireTimes.remove(key);
+    }
+
+    private static void _writePush(OutputStream out, String kind, String channel, int count) throws IOException {
+        _write(out, "*3\r\n");
+        _writeBulk(out, kind);
+        _writeBulk(out, channel);
+        _write(out, ":" + count + "\r\n");
+    }
+
+    private static void _writeSimple(OutputStream out, String value) throws IOException {
+        _write(out, "+" + value + "\r\n");
+    }
+
+    private static void _writeBulk(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            _write(out, "$-1\r\n");
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        _write(out, "$" + bytes.length + "\r\n");
+        out.write(bytes);
+        _write(out, "\r\n");
+    }
+
+    private static void _write(OutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+
+        synchronized (streams) {
+            streams.notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package cloud.phusion.test.util;
+
+import cloud.phusion.integration.Processor;
+import cloud.phusion.integration.Transaction;
+
+/**
+ * Changes the JSON message in place, by tagging it with the current step.
+ */
+public class TagProcessor implements Processor {
+    @Override
+    public void process(Transaction trx) throws Exception {
+        trx.getMessage().getJSONObject().put("tag", trx.getCurrentStep());
+    }
+}
@@ -7,7 +7,7 @@ var bridge = require("../../classes/phusion/JavaBridge");
 
 exports._runTransaction = function(strTransaction, callbackHandle) {
 
-    var trx = new bridge.Transaction(strTransaction);
+    var trx = new bridge.Transaction(strTransaction, callbackHandle);
     var msg = trx.getMessage();
 
     if (trx.getCurrentStep() == "01") {
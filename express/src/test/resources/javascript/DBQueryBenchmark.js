@@ -0,0 +1,26 @@
+var bridge = require("../../classes/phusion/JavaBridge");
+
+exports._runTransaction = function(strTransaction) {
+    var trx = new bridge.Transaction(strTransaction);
+
+    var storage = trx.getContext().getEngine().getDBStorageForClient();
+    var table = "Order";
+    var rounds = 20;
+
+    var t0 = Date.now();
+    var count = 0;
+
+    for (var i = 0; i < rounds; i++) {
+        var result = storage.queryRecords(table, null, null, null, null, null, "id", 0, 1000);
+        for (var j = 0; j < result.length; j++) count += result[j].score ? 1 : 0;
+    }
+
+    var t1 = Date.now();
+
+    trx.setMessage({
+        rows: count / rounds,
+        avgTime: (t1 - t0) / rounds
+    });
+
+    return trx.toString();
+};
@@ -29,5 +29,9 @@ exports._runTransaction = function(strTransaction) {
     result = storage.queryRecords(table, "name, score", null, null, null, null, "score", 1, 2);
     console.log( JSON.stringify(result) );
 
+//    var cursor = storage.openCursor(table, "name, score", "score>?", [60], "score", 2);
+//    var page;
+//    while ((page = cursor.nextPage()) !== null) console.log( JSON.stringify(page) );
+
     return trx.toString();
 };
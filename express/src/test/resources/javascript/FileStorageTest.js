@@ -25,6 +25,16 @@ exports._runTransaction = function(strTransaction) {
     storage.saveToFile("/a/exampleCopy.jpg", img);
     console.log( "Copy Example.jpg: done" );
 
+    var input = storage.openFile("/a/example.jpg");
+    var output = storage.openFile("/a/exampleChunked.jpg", "w");
+    var chunk, bytes = 0;
+    while ((chunk = input.readChunk(4096)) !== null) bytes += output.writeChunk(chunk);
+    input.close();
+    output.close();
+    console.log( "Copy Example.jpg in chunks: " + bytes + " bytes, same size? " +
+        (bytes === storage.getFileSize("/a/example.jpg")) );
+    storage.removeFile("/a/exampleChunked.jpg");
+
     var files = storage.listFolders("/");
     console.log( "List folders: " + JSON.stringify(files) );
 
@@ -0,0 +1,27 @@
+var bridge = require("../../classes/phusion/JavaBridge");
+
+exports._runTransaction = function(strTransaction) {
+    var trx = new bridge.Transaction(strTransaction);
+
+    var storage = trx.getContext().getEngine().getKVStorageForIntegration();
+    var iterations = 10000;
+
+    storage.put("bench", "hello");
+
+    var t0 = Date.now();
+    var hits = 0;
+
+    for (var i = 0; i < iterations; i++) {
+        if (storage.get("bench")) hits++;
+    }
+
+    var t1 = Date.now();
+
+    trx.setMessage({
+        iterations: iterations,
+        hits: hits,
+        time: t1 - t0
+    });
+
+    return trx.toString();
+};
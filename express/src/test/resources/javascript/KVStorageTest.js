@@ -32,5 +32,12 @@ exports._runTransaction = function(strTransaction) {
         console.log("Unlocked");
     }
 
+    var fencingToken = storage.tryLock("B", 5000, 500);
+    console.log("Fencing token of B: "+fencingToken);
+    if (fencingToken) {
+        console.log("Renewed? "+storage.renewLock("B", 5000));
+        storage.unlock("B");
+    }
+
     return trx.toString();
 };
@@ -0,0 +1,3 @@
+exports._run = function() {
+    while (true) {}
+};